@@ -0,0 +1,169 @@
+package it.zwets.sms.codec;
+
+/**
+ * Encoder and decoder for text in the GSM 03.38 default alphabet.
+ *
+ * Works on caller supplied arrays and allocates nothing, so that the hot
+ * path can reuse its buffers.  Encoding checks that the text fits the
+ * alphabet in the same pass.
+ *
+ * Text is encoded as septets, one per octet (the "unpacked" form that SMPP
+ * uses for data coding 0), with an extension character taking an escape
+ * septet and its code.  {@link #pack} and {@link #unpack} convert between
+ * that and the packed form, seven bits per septet, that goes over the air
+ * and that some SMSCs use, with fill bits to align after a user data header.
+ */
+public final class Gsm7Codec {
+
+    // Basic character by code, and extension character by code (0 where
+    // the code is not in the table)
+
+    private static final char[] BASIC_TABLE = GsmAlphabet.BASIC_TABLE.toCharArray();
+    private static final char[] EXTENSION_TABLE = new char[128];
+
+    static {
+        for (int i = 0; i < GsmAlphabet.EXTENSION_CHARS.length(); ++i) {
+            EXTENSION_TABLE[GsmAlphabet.EXTENSION_CODES[i]] = GsmAlphabet.EXTENSION_CHARS.charAt(i);
+        }
+    }
+
+    private Gsm7Codec() {
+    }
+
+    /**
+     * Encodes text[start..end) to septets in dst.
+     *
+     * The caller must provide room for two septets per character.
+     *
+     * @param text the text to encode
+     * @param start the index of the first character to encode
+     * @param end the index after the last character to encode
+     * @param dst the destination array
+     * @param offset the position in dst to start writing
+     * @return the number of septets written, or -1 if text has a character
+     *         outside the alphabet, in which case dst holds garbage
+     */
+    public static int encode(CharSequence text, int start, int end, byte[] dst, int offset) {
+        int pos = offset;
+        for (int i = start; i < end; ++i) {
+            int code = GsmAlphabet.code(text.charAt(i));
+            if (code < 0) {
+                return -1;
+            }
+            else if (code > 0x7F) {
+                dst[pos++] = (byte) GsmAlphabet.ESCAPE;
+                dst[pos++] = (byte) (code & 0x7F);
+            }
+            else {
+                dst[pos++] = (byte) code;
+            }
+        }
+        return pos - offset;
+    }
+
+    /**
+     * Decodes count septets from src into dst.
+     *
+     * An escape followed by a code not in the extension table decodes as a
+     * space, as 03.38 prescribes.  A trailing escape is dropped.
+     *
+     * @param src the septets, one per octet
+     * @param offset the position of the first septet in src
+     * @param count the number of septets
+     * @param dst the destination array, with room for count characters
+     * @param dstOffset the position in dst to start writing
+     * @return the number of characters written
+     */
+    public static int decode(byte[] src, int offset, int count, char[] dst, int dstOffset) {
+        int pos = dstOffset;
+        int end = offset + count;
+        for (int i = offset; i < end; ++i) {
+            int septet = src[i] & 0x7F;
+            if (septet == GsmAlphabet.ESCAPE) {
+                if (++i == end) {
+                    break;
+                }
+                char c = EXTENSION_TABLE[src[i] & 0x7F];
+                dst[pos++] = c != 0 ? c : ' ';
+            }
+            else {
+                dst[pos++] = BASIC_TABLE[septet];
+            }
+        }
+        return pos - dstOffset;
+    }
+
+    /**
+     * Returns the number of octets that count septets take when packed.
+     *
+     * @param count the number of septets
+     * @param fillBits the number of fill bits before the first septet (0-6)
+     * @return the packed length in octets
+     */
+    public static int packedLength(int count, int fillBits) {
+        return (count * 7 + fillBits + 7) / 8;
+    }
+
+    /**
+     * Packs count septets from src into dst, seven bits each, least
+     * significant bit first.
+     *
+     * @param src the septets, one per octet
+     * @param offset the position of the first septet in src
+     * @param count the number of septets
+     * @param dst the destination array, with room for {@link #packedLength} octets
+     * @param dstOffset the position in dst to start writing
+     * @param fillBits the number of zero bits to insert before the first septet (0-6)
+     * @return the number of octets written
+     */
+    public static int pack(byte[] src, int offset, int count, byte[] dst, int dstOffset, int fillBits) {
+        int length = packedLength(count, fillBits);
+        int acc = 0;
+        int bits = fillBits;
+        int pos = dstOffset;
+        for (int i = offset; i < offset + count; ++i) {
+            acc |= (src[i] & 0x7F) << bits;
+            bits += 7;
+            if (bits >= 8) {
+                dst[pos++] = (byte) acc;
+                acc >>>= 8;
+                bits -= 8;
+            }
+        }
+        if (bits > 0) {
+            dst[pos++] = (byte) acc;
+        }
+        return length;
+    }
+
+    /**
+     * Unpacks count septets from the packed octets in src into dst, one per octet.
+     *
+     * @param src the packed octets
+     * @param offset the position of the first octet in src
+     * @param count the number of septets to unpack
+     * @param fillBits the number of fill bits before the first septet (0-6)
+     * @param dst the destination array, with room for count octets
+     * @param dstOffset the position in dst to start writing
+     * @return the number of septets written
+     */
+    public static int unpack(byte[] src, int offset, int count, int fillBits, byte[] dst, int dstOffset) {
+        int acc = 0;
+        int bits = 0;
+        int pos = offset;
+        if (fillBits > 0) {
+            acc = (src[pos++] & 0xFF) >>> fillBits;
+            bits = 8 - fillBits;
+        }
+        for (int i = 0; i < count; ++i) {
+            if (bits < 7) {
+                acc |= (src[pos++] & 0xFF) << bits;
+                bits += 8;
+            }
+            dst[dstOffset + i] = (byte) (acc & 0x7F);
+            acc >>>= 7;
+            bits -= 7;
+        }
+        return count;
+    }
+}
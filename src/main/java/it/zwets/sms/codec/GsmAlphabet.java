@@ -0,0 +1,105 @@
+package it.zwets.sms.codec;
+
+import java.util.Arrays;
+
+/**
+ * The GSM 03.38 default alphabet and its extension table.
+ *
+ * Characters in the basic table take one septet, characters in the
+ * extension table take two (an escape septet followed by the code).
+ * Any other character can not be sent in the default alphabet, and forces
+ * the message to UCS-2.
+ *
+ * All characters of both tables but the euro sign lie below U+0400, so the
+ * lookups go through a table indexed by character for that range.
+ */
+public final class GsmAlphabet {
+
+    /** The escape code that precedes a code from the extension table */
+    public static final int ESCAPE = 0x1B;
+
+    /** The basic table, indexed by septet code; the escape position has a non-character */
+    public static final String BASIC_TABLE =
+            "@£$¥èéùìòÇ\nØø\rÅå" +
+            "Δ_ΦΓΛΩΠΨΣΘΞ\uFFFFÆæßÉ" +
+            " !\"#¤%&'()*+,-./" +
+            "0123456789:;<=>?" +
+            "¡ABCDEFGHIJKLMNO" +
+            "PQRSTUVWXYZÄÖÑÜ§" +
+            "¿abcdefghijklmno" +
+            "pqrstuvwxyzäöñüà";
+
+    /** The characters in the extension table */
+    public static final String EXTENSION_CHARS = "\f^{}\\[~]|€";
+
+    /** The codes of the extension characters, in the same order */
+    public static final byte[] EXTENSION_CODES = { 0x0A, 0x14, 0x28, 0x29, 0x2F, 0x3C, 0x3D, 0x3E, 0x40, 0x65 };
+
+    // Code of each character below U+0400: the septet for basic characters,
+    // ESCAPE << 8 | code for extension characters, -1 if not in the alphabet
+
+    private static final int LOOKUP_SIZE = 0x0400;
+    private static final char EURO = '€';
+    private static final short EURO_CODE = ESCAPE << 8 | 0x65;
+    private static final short[] LOOKUP = new short[LOOKUP_SIZE];
+
+    static {
+        Arrays.fill(LOOKUP, (short) -1);
+        for (int i = 0; i < BASIC_TABLE.length(); ++i) {
+            char c = BASIC_TABLE.charAt(i);
+            if (c != '\uFFFF') {
+                LOOKUP[c] = (short) i;
+            }
+        }
+        for (int i = 0; i < EXTENSION_CHARS.length(); ++i) {
+            char c = EXTENSION_CHARS.charAt(i);
+            if (c != EURO) {
+                LOOKUP[c] = (short) (ESCAPE << 8 | EXTENSION_CODES[i]);
+            }
+        }
+    }
+
+    private GsmAlphabet() {
+    }
+
+    /**
+     * Returns the code of a character in the default alphabet.
+     *
+     * @param c the character
+     * @return the septet for a basic character, the escape septet shifted
+     *         left 8 bits or'ed with the septet for an extension character,
+     *         or -1 if the character is not in the alphabet
+     */
+    public static int code(char c) {
+        return c < LOOKUP_SIZE ? LOOKUP[c] : c == EURO ? EURO_CODE : -1;
+    }
+
+    /**
+     * Returns the number of septets a character takes in the default alphabet.
+     *
+     * @param c the character
+     * @return 1 for basic, 2 for extension characters, 0 if not in the alphabet
+     */
+    public static int septets(char c) {
+        int code = code(c);
+        return code < 0 ? 0 : code > 0x7F ? 2 : 1;
+    }
+
+    /**
+     * Returns the number of septets needed to encode text in the default alphabet.
+     *
+     * @param text the text to encode
+     * @return the number of septets, or -1 if text has characters outside the alphabet
+     */
+    public static int septetCount(CharSequence text) {
+        int count = 0;
+        for (int i = 0; i < text.length(); ++i) {
+            int n = septets(text.charAt(i));
+            if (n == 0) {
+                return -1;
+            }
+            count += n;
+        }
+        return count;
+    }
+}
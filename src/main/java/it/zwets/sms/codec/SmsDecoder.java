@@ -0,0 +1,63 @@
+package it.zwets.sms.codec;
+
+/**
+ * Decodes the short message of an inbound SMS into text.
+ *
+ * Handles the data codings we see from the SMSC: the GSM 03.38 default
+ * alphabet (one septet per octet, as SMPP delivers it), IA5/ASCII, Latin-1
+ * and UCS-2.  A user data header, when present, is skipped.  Decoding goes
+ * through a per-thread scratch buffer, so the only allocation is the result.
+ */
+public final class SmsDecoder {
+
+    private static final int DATA_CODING_GSM7 = 0x00;
+    private static final int DATA_CODING_ASCII = 0x01;
+    private static final int DATA_CODING_LATIN1 = 0x03;
+    private static final int DATA_CODING_UCS2 = 0x08;
+
+    private static final ThreadLocal<char[]> SCRATCH = ThreadLocal.withInitial(() -> new char[SmsSegments.GSM7_SINGLE]);
+
+    private SmsDecoder() {
+    }
+
+    /**
+     * Decodes a short message.
+     *
+     * @param dataCoding the SMPP data coding of the message
+     * @param message the short message octets
+     * @param udhi whether the message starts with a user data header
+     * @return the text, or null if the data coding is not one we decode
+     */
+    public static String decode(byte dataCoding, byte[] message, boolean udhi) {
+        int offset = udhi && message.length > 0 ? Math.min(message.length, (message[0] & 0xFF) + 1) : 0;
+        int length = message.length - offset;
+        char[] chars = scratch(length);
+
+        switch (dataCoding & 0xFF) {
+        case DATA_CODING_GSM7:
+            return new String(chars, 0, Gsm7Codec.decode(message, offset, length, chars, 0));
+        case DATA_CODING_ASCII:
+        case DATA_CODING_LATIN1:
+            for (int i = 0; i < length; ++i) {
+                chars[i] = (char) (message[offset + i] & 0xFF);
+            }
+            return new String(chars, 0, length);
+        case DATA_CODING_UCS2:
+            for (int i = 0; i < length / 2; ++i) {
+                chars[i] = (char) ((message[offset + 2 * i] & 0xFF) << 8 | (message[offset + 2 * i + 1] & 0xFF));
+            }
+            return new String(chars, 0, length / 2);
+        default:
+            return null;
+        }
+    }
+
+    private static char[] scratch(int size) {
+        char[] buffer = SCRATCH.get();
+        if (buffer.length < size) {
+            buffer = new char[size];
+            SCRATCH.set(buffer);
+        }
+        return buffer;
+    }
+}
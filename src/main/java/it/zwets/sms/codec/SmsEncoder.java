@@ -0,0 +1,139 @@
+package it.zwets.sms.codec;
+
+import java.util.Arrays;
+
+/**
+ * Encodes a message body into the short messages that carry it.
+ *
+ * Picks the GSM 03.38 default alphabet when the body fits it, else UCS-2,
+ * and splits the body into concatenated segments with a user data header
+ * when it does not fit a single message.  The segment boundaries are the
+ * ones {@link SmsSegments} counts.
+ *
+ * GSM 03.38 text is encoded one septet per octet (unpacked), as SMPP
+ * expects for data coding 0; UCS-2 is encoded big endian.  The GSM check
+ * and encoding are a single pass of {@link Gsm7Codec} into a per-thread
+ * scratch buffer, so that the only allocations are the segments themselves.
+ */
+public final class SmsEncoder {
+
+    /** SMPP data coding for the SMSC default alphabet */
+    public static final byte DATA_CODING_GSM7 = 0x00;
+
+    /** SMPP data coding for UCS-2 */
+    public static final byte DATA_CODING_UCS2 = 0x08;
+
+    // User data header: length, IEI concatenation with 8-bit reference, IE length, ref, total, seq
+    private static final int UDH_LENGTH = 6;
+
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[2 * SmsSegments.GSM7_SINGLE]);
+
+    /**
+     * The short messages for a body, and their data coding.
+     *
+     * @param dataCoding the SMPP data coding of the messages
+     * @param segments the short messages, each with a UDH when there are more than one
+     */
+    public record Encoded(byte dataCoding, byte[][] segments) {
+
+        /**
+         * @return true if the segments are concatenated, and so carry a UDH
+         */
+        public boolean isConcatenated() {
+            return segments.length > 1;
+        }
+    }
+
+    private SmsEncoder() {
+    }
+
+    /**
+     * Encodes body.
+     *
+     * @param body the message body
+     * @param reference the concatenation reference, only its low 8 bits are used
+     * @return the encoded body
+     */
+    public static Encoded encode(CharSequence body, int reference) {
+        byte[] septets = scratch(2 * body.length());
+        int count = Gsm7Codec.encode(body, 0, body.length(), septets, 0);
+        if (count >= 0) {
+            return new Encoded(DATA_CODING_GSM7, count <= SmsSegments.GSM7_SINGLE
+                    ? new byte[][] { Arrays.copyOf(septets, count) }
+                    : splitGsm7(septets, count, reference));
+        }
+        else {
+            return new Encoded(DATA_CODING_UCS2, body.length() <= SmsSegments.UCS2_SINGLE
+                    ? new byte[][] { encodeUcs2(body, 0, body.length(), 0) }
+                    : splitUcs2(body, reference));
+        }
+    }
+
+    private static byte[][] splitGsm7(byte[] septets, int count, int reference) {
+        int total = 0;
+        for (int start = 0; start < count; start = segmentEnd(septets, start, count)) {
+            ++total;
+        }
+        byte[][] segments = new byte[total][];
+        int seg = 0;
+        for (int start = 0; start < count; ) {
+            int end = segmentEnd(septets, start, count);
+            segments[seg] = new byte[UDH_LENGTH + end - start];
+            System.arraycopy(septets, start, segments[seg], UDH_LENGTH, end - start);
+            writeUdh(segments[seg], reference, total, ++seg);
+            start = end;
+        }
+        return segments;
+    }
+
+    // End of the segment that starts at start, never between an escape and its code
+
+    private static int segmentEnd(byte[] septets, int start, int count) {
+        int end = Math.min(start + SmsSegments.GSM7_MULTI, count);
+        return end < count && septets[end - 1] == GsmAlphabet.ESCAPE ? end - 1 : end;
+    }
+
+    private static byte[][] splitUcs2(CharSequence body, int reference) {
+        byte[][] segments = new byte[SmsSegments.count(body)][];
+        int seg = 0;
+        int start = 0;
+        while (start < body.length()) {
+            int end = Math.min(start + SmsSegments.UCS2_MULTI, body.length());
+            if (end < body.length() && Character.isHighSurrogate(body.charAt(end - 1))) {
+                --end;
+            }
+            segments[seg] = encodeUcs2(body, start, end, UDH_LENGTH);
+            writeUdh(segments[seg], reference, segments.length, ++seg);
+            start = end;
+        }
+        return segments;
+    }
+
+    private static byte[] encodeUcs2(CharSequence body, int start, int end, int offset) {
+        byte[] bytes = new byte[offset + 2 * (end - start)];
+        for (int i = start; i < end; ++i) {
+            char c = body.charAt(i);
+            bytes[offset++] = (byte) (c >> 8);
+            bytes[offset++] = (byte) c;
+        }
+        return bytes;
+    }
+
+    private static byte[] scratch(int size) {
+        byte[] buffer = SCRATCH.get();
+        if (buffer.length < size) {
+            buffer = new byte[size];
+            SCRATCH.set(buffer);
+        }
+        return buffer;
+    }
+
+    private static void writeUdh(byte[] segment, int reference, int total, int seq) {
+        segment[0] = UDH_LENGTH - 1;
+        segment[1] = 0x00;
+        segment[2] = 0x03;
+        segment[3] = (byte) reference;
+        segment[4] = (byte) total;
+        segment[5] = (byte) seq;
+    }
+}
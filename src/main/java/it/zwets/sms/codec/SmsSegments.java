@@ -0,0 +1,75 @@
+package it.zwets.sms.codec;
+
+/**
+ * Computes the number of SMS segments a message body takes.
+ *
+ * A body that fits the GSM 03.38 default alphabet is sent as septets, with
+ * 160 per single message, or 153 per segment when concatenated (the user
+ * data header takes the rest).  Any other body is sent as UCS-2, with 70
+ * characters per single message or 67 per segment.  An extension character
+ * (two septets) and a surrogate pair (two UCS-2 units) are never split
+ * across segments.
+ */
+public final class SmsSegments {
+
+    public static final int GSM7_SINGLE = 160;
+    public static final int GSM7_MULTI = 153;
+    public static final int UCS2_SINGLE = 70;
+    public static final int UCS2_MULTI = 67;
+
+    private SmsSegments() {
+    }
+
+    /**
+     * @param body the message body
+     * @return true if the body can be sent in the GSM default alphabet
+     */
+    public static boolean isGsm7(CharSequence body) {
+        return GsmAlphabet.septetCount(body) >= 0;
+    }
+
+    /**
+     * Returns the number of segments needed to send body.
+     *
+     * @param body the message body
+     * @return the segment count, at least 1
+     */
+    public static int count(CharSequence body) {
+        int septets = GsmAlphabet.septetCount(body);
+        if (septets >= 0) {
+            return septets <= GSM7_SINGLE ? 1 : countGsm7(body);
+        }
+        else {
+            return body.length() <= UCS2_SINGLE ? 1 : countUcs2(body);
+        }
+    }
+
+    private static int countGsm7(CharSequence body) {
+        int segments = 1;
+        int used = 0;
+        for (int i = 0; i < body.length(); ++i) {
+            int n = GsmAlphabet.septets(body.charAt(i));
+            if (used + n > GSM7_MULTI) {
+                ++segments;
+                used = 0;
+            }
+            used += n;
+        }
+        return segments;
+    }
+
+    private static int countUcs2(CharSequence body) {
+        int segments = 1;
+        int used = 0;
+        for (int i = 0; i < body.length(); ++i) {
+            int n = Character.isHighSurrogate(body.charAt(i)) && i + 1 < body.length() ? 2 : 1;
+            if (used + n > UCS2_MULTI) {
+                ++segments;
+                used = 0;
+            }
+            used += n;
+            i += n - 1;
+        }
+        return segments;
+    }
+}
@@ -12,7 +12,12 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,6 +51,11 @@ import org.slf4j.LoggerFactory;
  * The resulting public key can be used by {@link PkiUtils#encrypt()} to
  * encrypt messages that can only be decrypted by the Vault.
  * 
+ * Key pairs are cached once read, as reading the keystore for every
+ * message would cost more than the decryption.  A key added to the
+ * keystore is picked up on its first use, but a changed key only on
+ * restart.
+ * 
  * @author zwets
  */
 public class Vault {
@@ -54,6 +64,7 @@ public class Vault {
 
 	private String keyStoreFileName;
 	private char[] keyStorePassword;
+	private final Map<String, PrivateKeyEntry> entries = new ConcurrentHashMap<>();
 
 	/**
 	 * Create or open the given keystore with the given password
@@ -81,6 +92,31 @@ public class Vault {
         }
     }
     
+	/**
+	 * Read the key pairs for all aliases into the cache, so that the first
+	 * messages do not pay for reading the keystore.
+	 * 
+	 * @return the aliases whose key pairs were read
+	 * @throws RuntimeException for any underlying checked exception
+	 */
+	public List<String> preload() {
+		KeyStore keyStore = getKeyStore();
+		List<String> aliases = new ArrayList<>();
+		try {
+			for (String alias : Collections.list(keyStore.aliases())) {
+				if (keyStore.isKeyEntry(alias)) {
+					entries.put(alias, readEntry(keyStore, alias));
+					aliases.add(alias);
+				}
+			}
+		} catch (KeyStoreException e) {
+			LOG.error("Exception getting aliases from {}: {}", keyStoreFileName, e.getMessage());
+			throw new RuntimeException(e.getMessage(), e.getCause());
+		}
+		LOG.info("Read {} key pairs from {}", aliases.size(), keyStoreFileName);
+		return aliases;
+	}
+
 	/**
 	 * Return the public key stored for the alias
 	 * 
@@ -92,6 +128,18 @@ public class Vault {
 	    return getEntry(alias).getCertificate().getPublicKey();
 	}
 
+	/**
+	 * Encrypt the plaintext with the public key for alias.
+	 * 
+	 * @param alias the ID the key was stored under
+	 * @param plaintext the text to encode
+	 * @return the ciphertext, which only the private key for alias decrypts
+	 * @throws RuntimeException for any underlying checked exception
+	 */
+	public byte[] encrypt(String alias, byte[] plaintext) {
+		return PkiCrypto.encrypt(getPublicKey(alias), plaintext);
+	}
+
 	/**
 	 * Decrypt the cyphertext with the private key for alias.
 	 * 
@@ -132,8 +180,17 @@ public class Vault {
 	}
 
 	private PrivateKeyEntry getEntry(String alias) {
+		PrivateKeyEntry pke = entries.get(alias);
+		if (pke == null) {
+			pke = readEntry(getKeyStore(), alias);
+			entries.put(alias, pke);
+		}
+		return pke;
+	}
+
+	private PrivateKeyEntry readEntry(KeyStore keyStore, String alias) {
 		try {
-		    PrivateKeyEntry pke = (PrivateKeyEntry) getKeyStore().getEntry(alias, new PasswordProtection(keyStorePassword));
+		    PrivateKeyEntry pke = (PrivateKeyEntry) keyStore.getEntry(alias, new PasswordProtection(keyStorePassword));
 		    if (pke == null) {
 	            LOG.error("No key in keystore for alias: {}", alias);
 		        throw new RuntimeException("No key in keystore for alias: %s".formatted(alias));
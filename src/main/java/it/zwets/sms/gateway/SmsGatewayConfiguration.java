@@ -1,6 +1,11 @@
 package it.zwets.sms.gateway;
 
-import javax.net.ssl.HostnameVerifier;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.camel.CamelContext;
 import org.apache.camel.Endpoint;
@@ -8,23 +13,48 @@ import org.apache.camel.builder.endpoint.StaticEndpointBuilders;
 import org.apache.camel.builder.endpoint.dsl.KafkaEndpointBuilderFactory.KafkaEndpointConsumerBuilder;
 import org.apache.camel.builder.endpoint.dsl.KafkaEndpointBuilderFactory.KafkaEndpointProducerBuilder;
 import org.apache.camel.component.kafka.SeekPolicy;
-import org.apache.hc.client5.http.ssl.NoopHostnameVerifier;
+import org.apache.camel.component.kafka.consumer.DefaultKafkaManualAsyncCommitFactory;
+import org.apache.camel.component.smpp.SmppEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.jmx.export.MBeanExporter;
 
 import it.zwets.sms.crypto.Vault;
+import it.zwets.sms.gateway.comp.BackpressurePolicy;
+import it.zwets.sms.gateway.comp.ClientQuotas;
 import it.zwets.sms.gateway.comp.CorrelationTable;
+import it.zwets.sms.gateway.comp.DispatchProcessor;
+import it.zwets.sms.gateway.comp.DispatchQueue;
+import it.zwets.sms.gateway.comp.InboundSmsEncoder;
+import it.zwets.sms.gateway.comp.OffsetCommitter;
 import it.zwets.sms.gateway.comp.PayloadDecoder;
+import it.zwets.sms.gateway.comp.QuotaProcessor;
+import it.zwets.sms.gateway.comp.ReceiptDeduplicator;
+import it.zwets.sms.gateway.comp.RecipientRouter;
 import it.zwets.sms.gateway.comp.RequestProcessor;
 import it.zwets.sms.gateway.comp.SmppRequestProducer;
 import it.zwets.sms.gateway.comp.SmppInboundProcessor;
+import it.zwets.sms.gateway.comp.SmppSegmenter;
+import it.zwets.sms.gateway.comp.StageMonitor;
+import it.zwets.sms.gateway.comp.StatusTracker;
+import it.zwets.sms.gateway.comp.VodaWaspClient;
 import it.zwets.sms.gateway.comp.VodaWaspRequestProducer;
 import it.zwets.sms.gateway.comp.VodaWaspResponseProcessor;
+import it.zwets.sms.gateway.comp.WaspLoadBalancer;
+import it.zwets.sms.gateway.routes.BackendRoute;
 import it.zwets.sms.gateway.routes.SmppRoute;
-import it.zwets.sms.gateway.routes.VodaWaspRoute;
+import it.zwets.sms.gateway.routes.SmsRouter;
+import it.zwets.sms.gateway.smpp.SmppBindPool;
+import it.zwets.sms.gateway.smpp.SmppMultiSubmitter;
+import it.zwets.sms.gateway.smpp.SmppReconciler;
+import it.zwets.sms.gateway.smpp.SmppSubmitProcessor;
+import it.zwets.sms.gateway.smpp.SmscSimulator;
 
 /**
  * Application configuration.
@@ -43,15 +73,52 @@ public class SmsGatewayConfiguration {
 
     private final String[] allowedClients;
     private final String clientLogDir;
+    private final int dispatchQueueSize;
+    private final int dispatchConcurrency;
+    private final Map<String, Integer> clientWeights;
+    private final Map<String, Integer> clientMaxInFlight;
+    private final int maxQueuedPerClient;
+    private final Map<String, Integer> clientMaxQueued;
+    private final Map<String, Integer> quotaPerSecond;
+    private final Map<String, Integer> quotaPerDay;
+    private final ClientQuotas.OnExhaustion quotaOnExhaustion;
+    private final double backpressureHigh;
+    private final double backpressureLow;
+    private final Duration dlrDedupWindow;
+    private final int dlrDedupMaxEntries;
+    private final Map<String, Integer> statusRanks;
+    private final Duration statusWindow;
+    private final int statusMaxEntries;
     private final String vaultKeystore;
     private final String vaultPassword;
     private final KafkaEndpointConsumerBuilder kafkaInBuilder;
     private final KafkaEndpointProducerBuilder kafkaOutBuilder;
     private final KafkaEndpointConsumerBuilder kafkaCorrelReadBuilder;
     private final KafkaEndpointProducerBuilder kafkaCorrelWriteBuilder;
+    private final KafkaEndpointProducerBuilder kafkaInboundSmsBuilder;
     private final String backend;
+    private final String routingTable;
+    private final String portabilityTable;
+    private final String smppHost;
+    private final int smppPort;
+    private final String smppUsername;
+    private final String smppPassword;
+    private final String[] smppTargets;
+    private final int smppBindCount;
+    private final int smppWindowSize;
+    private final long smppWindowWait;
+    private final double smppRatePerBind;
+    private final long smppMaxEnquireLatency;
+    private final long smppMultiWindow;
+    private final int smppMultiMaxDestinations;
+    private final double smppReconcileRate;
+    private final long smppReconcileInterval;
+    private final Duration smppReconcileGrace;
+    private final int smppReconcileMaxEntries;
+    private final Duration maxValidity;
     private final String waspUsername;
     private final String waspPassword;
+    private final Map<String, String> inboundSmsRecipients;
     
     /**
      * Constructor with constructor injection of the Camel context and
@@ -64,17 +131,54 @@ public class SmsGatewayConfiguration {
     public SmsGatewayConfiguration(CamelContext camelContext,
             @Value("${sms.gateway.allowed-clients}") String allowClients,
             @Value("${sms.gateway.client-log.dir}") String clientLog,
+            @Value("${sms.gateway.dispatch.queue-size:1000}") int dispatchQueueSize,
+            @Value("${sms.gateway.dispatch.concurrency:1}") int dispatchConcurrency,
+            @Value("${sms.gateway.dispatch.client-weights:}") String clientWeights,
+            @Value("${sms.gateway.dispatch.client-max-in-flight:}") String clientMaxInFlight,
+            @Value("${sms.gateway.dispatch.max-queued-per-client:0}") int maxQueuedPerClient,
+            @Value("${sms.gateway.dispatch.client-max-queued:}") String clientMaxQueued,
+            @Value("${sms.gateway.quota.segments-per-second:}") String quotaPerSecond,
+            @Value("${sms.gateway.quota.segments-per-day:}") String quotaPerDay,
+            @Value("${sms.gateway.quota.on-exhaustion:DELAY}") ClientQuotas.OnExhaustion quotaOnExhaustion,
+            @Value("${sms.gateway.stage.backpressure.high-watermark:0.9}") double backpressureHigh,
+            @Value("${sms.gateway.stage.backpressure.low-watermark:0.5}") double backpressureLow,
+            @Value("${sms.gateway.stage.dlr.dedup-window:900}") long dlrDedupSeconds,
+            @Value("${sms.gateway.stage.dlr.dedup-max-entries:100000}") int dlrDedupMaxEntries,
+            @Value("${sms.gateway.status.ranks:" + StatusTracker.DEFAULT_RANKS + "}") String statusRanks,
+            @Value("${sms.gateway.status.window:172800}") long statusWindowSeconds,
+            @Value("${sms.gateway.status.max-entries:1000000}") int statusMaxEntries,
             @Value("${sms.gateway.crypto.keystore}") String keyStore,
             @Value("${sms.gateway.crypto.storepass}") String storePass,
             @Value("${sms.gateway.kafka.brokers}") String kafkaBrokers,
             @Value("${sms.gateway.kafka.inbound-topic:send-sms}") String kafkaInboundTopic,
             @Value("${sms.gateway.kafka.outbound-topic:sms-status}") String kafkaOutboundTopic,
             @Value("${sms.gateway.kafka.correl-topic:correl-id}") String kafkaCorrelTopic,
+            @Value("${sms.gateway.kafka.inbound-sms-topic:inbound-sms}") String kafkaInboundSmsTopic,
             @Value("${sms.gateway.kafka.client-id:${spring.application.name}}") String kafkaClientId,
             @Value("${sms.gateway.kafka.group-id:${spring.application.name}}") String kafkaGroupId,
             @Value("${sms.gateway.backend:SMPP}") String backend, // BACKEND_SMPP or BACKEND_WASP
+            @Value("${sms.gateway.routing.table:}") String routingTable,
+            @Value("${sms.gateway.routing.portability:}") String portabilityTable,
+            @Value("${sms.gateway.smpp.host}") String smppHost,
+            @Value("${sms.gateway.smpp.port}") int smppPort,
+            @Value("${sms.gateway.smpp.username}") String smppUsername,
+            @Value("${sms.gateway.smpp.password}") String smppPassword,
+            @Value("${sms.gateway.smpp.targets:}") String smppTargets,
+            @Value("${sms.gateway.smpp.binds:1}") int smppBindCount,
+            @Value("${sms.gateway.smpp.window-size:10}") int smppWindowSize,
+            @Value("${sms.gateway.smpp.window-wait:30000}") long smppWindowWait,
+            @Value("${sms.gateway.smpp.tps-per-bind:0}") double smppRatePerBind,
+            @Value("${sms.gateway.smpp.max-enquire-latency:5000}") long smppMaxEnquireLatency,
+            @Value("${sms.gateway.smpp.multi.window:0}") long smppMultiWindow,
+            @Value("${sms.gateway.smpp.multi.max-destinations:100}") int smppMultiMaxDestinations,
+            @Value("${sms.gateway.smpp.reconcile.rate:1}") double smppReconcileRate,
+            @Value("${sms.gateway.smpp.reconcile.interval:10000}") long smppReconcileInterval,
+            @Value("${sms.gateway.smpp.reconcile.grace:300}") long smppReconcileGrace,
+            @Value("${sms.gateway.smpp.reconcile.max-entries:10000}") int smppReconcileMaxEntries,
+            @Value("${sms.gateway.smpp.max-validity-hours:48}") int maxValidityHours,
             @Value("${sms.gateway.vodacom.wasp.username}") String vodaWaspUsername, 
-            @Value("${sms.gateway.vodacom.wasp.password}") String vodaWaspPassword
+            @Value("${sms.gateway.vodacom.wasp.password}") String vodaWaspPassword,
+            @Value("${sms.gateway.inbound-sms.recipients:}") String inboundSmsRecipients
             ) {
         LOG.debug("Constructing SmsGatewayConfiguration to {} backend  with CamelContext '{}'", backend, camelContext.getName());
         this.camelContext = camelContext;
@@ -83,13 +187,35 @@ public class SmsGatewayConfiguration {
         
         clientLogDir = clientLog;
         
+        this.dispatchQueueSize = dispatchQueueSize;
+        this.dispatchConcurrency = dispatchConcurrency;
+        this.clientWeights = parseClientValues(clientWeights);
+        this.clientMaxInFlight = parseClientValues(clientMaxInFlight);
+        this.maxQueuedPerClient = maxQueuedPerClient > 0 ? maxQueuedPerClient : Math.max(1, dispatchQueueSize / 2);
+        this.clientMaxQueued = parseClientValues(clientMaxQueued);
+        this.quotaPerSecond = parseClientValues(quotaPerSecond);
+        this.quotaPerDay = parseClientValues(quotaPerDay);
+        this.quotaOnExhaustion = quotaOnExhaustion;
+        this.backpressureHigh = backpressureHigh;
+        this.backpressureLow = backpressureLow;
+        this.dlrDedupWindow = Duration.ofSeconds(dlrDedupSeconds);
+        this.dlrDedupMaxEntries = dlrDedupMaxEntries;
+        this.statusRanks = parseClientValues(statusRanks);
+        this.statusWindow = Duration.ofSeconds(statusWindowSeconds);
+        this.statusMaxEntries = statusMaxEntries;
+
         vaultKeystore = keyStore;
         vaultPassword = storePass;
 
         kafkaInBuilder = StaticEndpointBuilders
                 .kafka(kafkaInboundTopic)
                 .brokers(kafkaBrokers)
-                .groupId(kafkaGroupId);
+                .groupId(kafkaGroupId)
+                .autoCommitEnable(false)
+                .allowManualCommit(true)
+                .advanced()
+                .kafkaManualCommitFactory(new DefaultKafkaManualAsyncCommitFactory())
+                .basic();
  
         kafkaOutBuilder = StaticEndpointBuilders
                 .kafka(kafkaOutboundTopic)
@@ -107,10 +233,37 @@ public class SmsGatewayConfiguration {
                 .brokers(kafkaBrokers)
                 .clientId(kafkaClientId);
         
+        kafkaInboundSmsBuilder = StaticEndpointBuilders
+                .kafka(kafkaInboundSmsTopic)
+                .brokers(kafkaBrokers)
+                .clientId(kafkaClientId);
+        
         this.backend = backend == null ? SmsGatewayConfiguration.BACKEND_SMPP : backend;
+        this.routingTable = routingTable;
+        this.portabilityTable = portabilityTable;
+
+        this.smppHost = smppHost;
+        this.smppPort = smppPort;
+        this.smppUsername = smppUsername;
+        this.smppPassword = smppPassword;
+        this.smppTargets = smppTargets.isBlank() ? new String[0] : smppTargets.trim().split(" *, *");
+        this.smppBindCount = smppBindCount;
+        this.smppWindowSize = smppWindowSize;
+        this.smppWindowWait = smppWindowWait;
+        this.smppRatePerBind = smppRatePerBind;
+        this.smppMaxEnquireLatency = smppMaxEnquireLatency;
+        this.smppMultiWindow = smppMultiWindow;
+        this.smppMultiMaxDestinations = smppMultiMaxDestinations;
+        this.smppReconcileRate = smppReconcileRate;
+        this.smppReconcileInterval = smppReconcileInterval;
+        this.smppReconcileGrace = Duration.ofSeconds(smppReconcileGrace);
+        this.smppReconcileMaxEntries = smppReconcileMaxEntries;
+        this.maxValidity = Duration.ofHours(maxValidityHours);
         
         waspUsername = vodaWaspUsername;
         waspPassword = vodaWaspPassword;
+
+        this.inboundSmsRecipients = parseRecipientClients(inboundSmsRecipients);
     }
     
     @Bean(Constants.ENDPOINT_FRONTEND_REQUEST)
@@ -125,14 +278,7 @@ public class SmsGatewayConfiguration {
     
     @Bean(Constants.ENDPOINT_BACKEND_REQUEST)
     public Endpoint backendRequestEndpoint() {
-        switch (backend.toUpperCase()) {
-        case SmsGatewayConfiguration.BACKEND_SMPP:
-            return camelContext.getEndpoint(SmppRoute.SMPP_SUBMIT);
-        case SmsGatewayConfiguration.BACKEND_WASP:
-            return camelContext.getEndpoint(VodaWaspRoute.VODA_WASP_ROUTE);
-        default:
-            throw new IllegalArgumentException("Not a valid backend: %s".formatted(backend));
-        }
+        return camelContext.getEndpoint(BackendRoute.BACKEND_ROUTE);
     }
 
     @Bean(Constants.ENDPOINT_CORREL_READ)
@@ -145,35 +291,168 @@ public class SmsGatewayConfiguration {
         return kafkaCorrelWriteBuilder.resolve(camelContext);
     }
 
+    @Bean(Constants.ENDPOINT_INBOUND_SMS)
+    public Endpoint inboundSmsTopic() {
+        return kafkaInboundSmsBuilder.resolve(camelContext);
+    }
+
     @Bean(Constants.ENDPOINT_CLIENT_LOG)
     public Endpoint clientLogEndpoint() {
         return camelContext.getEndpoint("file://%s?fileExist=append".formatted(clientLogDir));
     }
 
+    @Bean(Constants.ENDPOINT_DISPATCH)
+    public Endpoint dispatchEndpoint() {
+        return camelContext.getEndpoint("seda:dispatch?queue=#%s&blockWhenFull=true&concurrentConsumers=%d"
+                .formatted(Constants.BEAN_DISPATCH_QUEUE, dispatchConcurrency));
+    }
+
+    @Bean(Constants.BEAN_DISPATCH_QUEUE)
+    public DispatchQueue getDispatchQueue(ClientQuotas quotas) {
+        return new DispatchQueue(dispatchQueueSize, maxQueuedPerClient, clientWeights, clientMaxInFlight, clientMaxQueued, quotas);
+    }
+
+    @Bean
+    public OffsetCommitter getOffsetCommitter() {
+        return new OffsetCommitter();
+    }
+
+    @Bean
+    public ClientQuotas getClientQuotas() {
+        return new ClientQuotas(quotaPerSecond, quotaPerDay, quotaOnExhaustion);
+    }
+
+    @Bean
+    public QuotaProcessor getQuotaProcessor(ClientQuotas quotas) {
+        return new QuotaProcessor(quotas);
+    }
+
+    @Bean
+    public StageMonitor getStageMonitor() {
+        return new StageMonitor();
+    }
+
+    @Bean
+    public BackpressurePolicy getBackpressurePolicy(DispatchQueue dispatchQueue) {
+        return new BackpressurePolicy(dispatchQueue, backpressureHigh, backpressureLow);
+    }
+
+    @Bean
+    public ReceiptDeduplicator getReceiptDeduplicator() {
+        return new ReceiptDeduplicator(dlrDedupWindow, dlrDedupMaxEntries);
+    }
+
+    @Bean
+    public StatusTracker getStatusTracker() {
+        return new StatusTracker(statusRanks, statusWindow, statusMaxEntries);
+    }
+
+    @Bean
+    public DispatchProcessor getDispatchProcessor(ClientQuotas quotas) {
+        return new DispatchProcessor(quotas);
+    }
+
     @Bean(Constants.BEAN_CORRELATION_TABLE)
     public CorrelationTable getCorrelationTable() {
         return new CorrelationTable();
     }
 
-    @Bean("NoopHostnameVerifier")
-    public HostnameVerifier getNoopHostnameVerifier() {
-        return NoopHostnameVerifier.INSTANCE;
-    }
-   
     @Bean RequestProcessor getRequestProcessor() {
         return new RequestProcessor(allowedClients);
     }
 
+    @Bean
+    public RecipientRouter getRecipientRouter() throws IOException {
+        return new RecipientRouter(routingTable, portabilityTable, backend);
+    }
+
     @Bean
     public SmppRequestProducer getSmppRequestProducer() {
-        return new SmppRequestProducer();
+        return new SmppRequestProducer(maxValidity);
     }
     
+    @Bean
+    public SmppSegmenter getSmppSegmenter() {
+        return new SmppSegmenter();
+    }
+
     @Bean
     public SmppInboundProcessor getSmppResponseProcessor() {
         return new SmppInboundProcessor();
     }
 
+    /**
+     * The pool of binds to the SMSC, or to the SMSC targets when these are
+     * configured.  Each target has its settings under <code>sms.gateway.smpp.target.NAME</code>,
+     * which we read from the environment as they are keyed by the target name.
+     * @param mbeanExporter to export the binds
+     * @param env the environment with the target settings
+     * @return the bind pool
+     */
+    @Bean(destroyMethod = "close")
+    public SmppBindPool getSmppBindPool(ObjectProvider<MBeanExporter> mbeanExporter, Environment env) {
+        List<SmppBindPool.Target> targets = new ArrayList<>();
+        if (smppTargets.length == 0) {
+            targets.add(new SmppBindPool.Target("", getSmppEndpoint(smppHost, smppPort, smppUsername, smppPassword), 1, smppBindCount));
+        }
+        for (String name : smppTargets) {
+            String prefix = "sms.gateway.smpp.target.%s.".formatted(name);
+            targets.add(new SmppBindPool.Target(name,
+                    getSmppEndpoint(
+                        env.getRequiredProperty(prefix + "host"),
+                        env.getRequiredProperty(prefix + "port", Integer.class),
+                        env.getProperty(prefix + "username", smppUsername),
+                        env.getProperty(prefix + "password", smppPassword)),
+                    env.getProperty(prefix + "weight", Integer.class, 1),
+                    env.getProperty(prefix + "binds", Integer.class, smppBindCount)));
+        }
+        SmppBindPool pool = new SmppBindPool(targets, SmppRoute.SMPP_INBOUND, smppWindowSize, smppRatePerBind, smppMaxEnquireLatency);
+        // The binds are not beans, so we export them ourselves (they name themselves)
+        mbeanExporter.ifAvailable(exporter -> pool.getBinds().forEach(exporter::registerManagedResource));
+        return pool;
+    }
+
+    // One endpoint per SMSC and system ID, as the SMPP settings come from it
+
+    private SmppEndpoint getSmppEndpoint(String host, int port, String username, String password) {
+        SmppEndpoint endpoint = camelContext.getEndpoint("smpp://%s@%s:%d".formatted(username, host, port), SmppEndpoint.class);
+        endpoint.getConfiguration().setSystemId(username);
+        endpoint.getConfiguration().setPassword(password);
+        return endpoint;
+    }
+
+    @Bean
+    public SmppSubmitProcessor getSmppSubmitProcessor(SmppBindPool pool) {
+        return new SmppSubmitProcessor(pool, smppWindowWait);
+    }
+
+    @Bean(destroyMethod = "close")
+    public SmppMultiSubmitter getSmppMultiSubmitter(SmppSubmitProcessor single, SmppBindPool pool) {
+        return new SmppMultiSubmitter(single, pool, smppWindowWait, smppMultiWindow, smppMultiMaxDestinations, camelContext);
+    }
+
+    @Bean(destroyMethod = "close")
+    public SmppReconciler getSmppReconciler(SmppBindPool pool) {
+        return new SmppReconciler(pool, SmsRouter.RESPOND, smppReconcileRate, smppReconcileInterval,
+                smppReconcileGrace, smppReconcileMaxEntries, camelContext);
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "close")
+    @ConditionalOnProperty("sms.gateway.smpp.simulator.enabled")
+    public SmscSimulator getSmscSimulator(
+            @Value("${sms.gateway.smpp.simulator.window-size:${sms.gateway.smpp.window-size:10}}") int windowSize,
+            @Value("${sms.gateway.smpp.simulator.latency:50}") long latency,
+            @Value("${sms.gateway.smpp.simulator.latency-sigma:0.5}") double latencySigma,
+            @Value("${sms.gateway.smpp.simulator.max-tps:0}") double maxTps,
+            @Value("${sms.gateway.smpp.simulator.throttle-ratio:0}") double throttleRatio,
+            @Value("${sms.gateway.smpp.simulator.dlr-delay:1000}") long dlrDelay,
+            @Value("${sms.gateway.smpp.simulator.dlr-mix:DELIVRD:95,UNDELIV:3,EXPIRED:2}") String dlrMix,
+            @Value("${sms.gateway.smpp.simulator.id-width:10}") int idWidth) {
+        return new SmscSimulator(new SmscSimulator.Settings(smppPort, smppUsername, smppPassword,
+                windowSize, latency, latencySigma, maxTps, throttleRatio,
+                dlrDelay, SmscSimulator.Settings.parseDlrMix(dlrMix), idWidth));
+    }
+
     @Bean
     public VodaWaspRequestProducer getVodaWaspRequestProducer() {
         return new VodaWaspRequestProducer(waspUsername, waspPassword);
@@ -183,6 +462,43 @@ public class SmsGatewayConfiguration {
     public VodaWaspResponseProcessor getVodaWaspResponseProcessor() {
         return new VodaWaspResponseProcessor();
     }
+
+    /**
+     * The HTTP client for the WASP endpoints, whose URLs are numbered from
+     * <code>sms.gateway.vodacom.wasp.url.1</code> up.  The URLs are posted to
+     * as they are, so Camel endpoint options left on them from the camel-http
+     * days (such as <code>x509HostnameVerifier=#NoopHostnameVerifier</code>)
+     * would go to the WASP as query parameters; we refuse those.
+     * @param env the environment with the endpoint URLs
+     * @return the client
+     */
+    @Bean(destroyMethod = "close")
+    public VodaWaspClient getVodaWaspClient(Environment env,
+            @Value("${sms.gateway.vodacom.wasp.max-connections-per-host:20}") int maxPerHost,
+            @Value("${sms.gateway.vodacom.wasp.max-connections:200}") int maxTotal,
+            @Value("${sms.gateway.vodacom.wasp.connect-timeout:5000}") long connectTimeout,
+            @Value("${sms.gateway.vodacom.wasp.response-timeout:15000}") long responseTimeout,
+            @Value("${sms.gateway.vodacom.wasp.idle-timeout:30000}") long idleTimeout,
+            @Value("${sms.gateway.vodacom.wasp.hostname-verification:true}") boolean hostnameVerification) {
+        List<String> urls = new ArrayList<>();
+        String url;
+        while ((url = env.getProperty("sms.gateway.vodacom.wasp.url.%d".formatted(urls.size() + 1))) != null) {
+            if (url.contains("=#") || url.contains("x509HostnameVerifier")) {
+                throw new IllegalArgumentException("WASP URL %d has Camel endpoint options, which are not supported: %s".formatted(urls.size() + 1, url));
+            }
+            urls.add(url);
+        }
+        return new VodaWaspClient(urls, maxPerHost, maxTotal, connectTimeout, responseTimeout, idleTimeout,
+                hostnameVerification, camelContext);
+    }
+
+    @Bean
+    public WaspLoadBalancer getWaspLoadBalancer(VodaWaspClient client,
+            @Value("${sms.gateway.vodacom.wasp.circuit.failure-threshold:3}") int failureThreshold,
+            @Value("${sms.gateway.vodacom.wasp.circuit.open-time:10000}") long openTime,
+            @Value("${sms.gateway.vodacom.wasp.circuit.half-open-trials:2}") int halfOpenTrials) {
+        return new WaspLoadBalancer(client.getUrls(), failureThreshold, openTime, halfOpenTrials, VodaWaspClient.CONNECT_EXCEPTIONS);
+    }
     
     @Bean
     public Vault getVault() {
@@ -193,7 +509,52 @@ public class SmsGatewayConfiguration {
     public PayloadDecoder getPayloadDecoder(Vault vault) {
         return new PayloadDecoder(vault);
     }
-    
+
+    @Bean
+    public InboundSmsEncoder getInboundSmsEncoder(Vault vault) {
+        return new InboundSmsEncoder(vault, inboundSmsRecipients);
+    }
+
+    /**
+     * Parses the recipients of inbound SMS, of the form <code>recipient:client, ...</code>.
+     *
+     * @param spec the property value, may be empty
+     * @return map from recipient (without leading +) to client-id
+     */
+    public static Map<String, String> parseRecipientClients(String spec) {
+        Map<String, String> map = new HashMap<>();
+        if (spec != null && !spec.isBlank()) {
+            for (String item : spec.trim().split(" *, *")) {
+                String[] kv = item.split(" *: *");
+                if (kv.length != 2) {
+                    throw new IllegalArgumentException("Invalid inbound SMS recipient (expect recipient:client): %s".formatted(item));
+                }
+                map.put(kv[0].replaceFirst("^\\+", ""), kv[1]);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Parses a per-client setting of the form <code>client:n, client:n, ...</code>.
+     *
+     * @param spec the property value, may be empty
+     * @return map from client-id to value
+     */
+    public static Map<String, Integer> parseClientValues(String spec) {
+        Map<String, Integer> map = new HashMap<>();
+        if (spec != null && !spec.isBlank()) {
+            for (String item : spec.trim().split(" *, *")) {
+                String[] kv = item.split(" *: *");
+                if (kv.length != 2) {
+                    throw new IllegalArgumentException("Invalid client setting (expect client:n): %s".formatted(item));
+                }
+                map.put(kv[0], Integer.valueOf(kv[1]));
+            }
+        }
+        return map;
+    }
+
     /**
      * Defines string constants (field names etc)
      */
@@ -207,7 +568,10 @@ public class SmsGatewayConfiguration {
         public static final String ENDPOINT_CORREL_READ = "correlRead";
         public static final String ENDPOINT_CORREL_WRITE = "correlWrite";
         public static final String ENDPOINT_CLIENT_LOG = "clientLog";
+        public static final String ENDPOINT_INBOUND_SMS = "inboundSms";
+        public static final String ENDPOINT_DISPATCH = "dispatch";
         public static final String BEAN_CORRELATION_TABLE = "correlationTable";
+        public static final String BEAN_DISPATCH_QUEUE = "dispatchQueue";
 
         // Incoming message fields
 
@@ -221,8 +585,13 @@ public class SmsGatewayConfiguration {
         public static final String HEADER_CLIENT_ID = "clientId";
         public static final String HEADER_CORREL_ID = "correlId";
         public static final String HEADER_CORREL_REC = "correlRec";
+        public static final String HEADER_DEADLINE = "deadline";
+        public static final String HEADER_SEGMENTS = "segments";
         public static final String HEADER_TIMESTAMP = "timeStamp";
         public static final String HEADER_RECALL_ID = "recallId";
+        public static final String HEADER_RECIPIENT = "recipient";
+        public static final String HEADER_SMSC = "smsc";
+        public static final String HEADER_BACKEND = "backend";
         public static final String HEADER_SMS_STATUS = "smsStatus";
         public static final String HEADER_ERROR_TEXT = "errorText";
 
@@ -242,7 +611,11 @@ public class SmsGatewayConfiguration {
         
         public static final String OUT_FIELD_SENDER = "sender";
         public static final String OUT_FIELD_RECIPIENT = "recipient";
-        public static final String OUT_FIELD_BODY = "recipient";
+        public static final String OUT_FIELD_BODY = "body";
+
+        // Outgoing relayed inbound SMS fields
+
+        public static final String OUT_FIELD_PAYLOAD = "payload";
 
         // Values for OUT_FIELD_SMS_STATUS
  
@@ -2,11 +2,32 @@ package it.zwets.sms.gateway;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.event.ApplicationEnvironmentPreparedEvent;
+import org.springframework.context.ApplicationListener;
 
 @SpringBootApplication(proxyBeanMethods = false)
 public class SmsGatewayServer {
 
 	public static void main(String[] args) {
-		SpringApplication.run(SmsGatewayServer.class, args);
+		SpringApplication app = new SpringApplication(SmsGatewayServer.class);
+		app.addListeners(new VirtualThreadsListener());
+		app.run(args);
+	}
+
+	/**
+	 * Switches Camel to virtual threads when sms.gateway.virtual-threads is set.
+	 *
+	 * Camel decides the thread type once, from a system property, when its
+	 * thread factory is first loaded.  We therefore set it as soon as the
+	 * Spring environment is known, before the Camel context is created.
+	 */
+	static class VirtualThreadsListener implements ApplicationListener<ApplicationEnvironmentPreparedEvent> {
+
+		@Override
+		public void onApplicationEvent(ApplicationEnvironmentPreparedEvent event) {
+			if (event.getEnvironment().getProperty("sms.gateway.virtual-threads", Boolean.class, false)) {
+				System.setProperty("camel.threads.virtual.enabled", "true");
+			}
+		}
 	}
 }
@@ -0,0 +1,111 @@
+package it.zwets.sms.gateway.comp;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.Consumer;
+import org.apache.camel.Exchange;
+import org.apache.camel.Route;
+import org.apache.camel.support.RoutePolicySupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Route policy that pauses the consumer of the ingest route while the queue
+ * it feeds into is nearly full.
+ *
+ * Without this the ingest route would block on the full queue, and the Kafka
+ * consumer with it, until Kafka decides it is dead and rebalances.  Instead,
+ * we suspend the consumer (the Kafka consumer pauses its partitions, but
+ * keeps polling) when the queue fills past its high watermark, and resume it
+ * when the queue has drained below its low watermark.
+ */
+@ManagedResource(objectName = "it.zwets.sms.gateway:name=Backpressure", description = "Ingest backpressure")
+public class BackpressurePolicy extends RoutePolicySupport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BackpressurePolicy.class);
+
+    private static final long CHECK_INTERVAL_MS = 100;
+
+    private final BlockingQueue<?> queue;
+    private final double highWatermark;
+    private final double lowWatermark;
+
+    private Consumer consumer;
+    private ScheduledExecutorService checker;
+    private volatile boolean paused = false;
+    private volatile long pauseCount = 0;
+
+    /**
+     * Create a policy that watches queue.
+     *
+     * @param queue the queue the route feeds into
+     * @param highWatermark the fill fraction at which to pause the consumer
+     * @param lowWatermark the fill fraction at which to resume it
+     */
+    public BackpressurePolicy(BlockingQueue<?> queue, double highWatermark, double lowWatermark) {
+        if (lowWatermark >= highWatermark) {
+            throw new IllegalArgumentException("Low watermark must be below high watermark");
+        }
+        this.queue = queue;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+    }
+
+    @Override
+    public void onStart(Route route) {
+        consumer = route.getConsumer();
+        checker = route.getCamelContext().getExecutorServiceManager().newSingleThreadScheduledExecutor(this, "Backpressure");
+        checker.scheduleWithFixedDelay(this::check, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onStop(Route route) {
+        if (checker != null) {
+            route.getCamelContext().getExecutorServiceManager().shutdown(checker);
+            checker = null;
+        }
+    }
+
+    @Override
+    public void onExchangeDone(Route route, Exchange exchange) {
+        check();
+    }
+
+    private synchronized void check() {
+        if (consumer == null) {
+            return;
+        }
+        int size = queue.size();
+        double fill = (double) size / (size + queue.remainingCapacity());
+        try {
+            if (!paused && fill >= highWatermark) {
+                LOG.warn("Queue is {}% full, pausing ingest", Math.round(fill * 100));
+                suspendOrStopConsumer(consumer);
+                paused = true;
+                ++pauseCount;
+            }
+            else if (paused && fill <= lowWatermark) {
+                LOG.info("Queue is {}% full, resuming ingest", Math.round(fill * 100));
+                resumeOrStartConsumer(consumer);
+                paused = false;
+            }
+        }
+        catch (Exception e) {
+            handleException(e);
+        }
+    }
+
+    @ManagedAttribute(description = "Whether ingest is currently paused")
+    public boolean isPaused() {
+        return paused;
+    }
+
+    @ManagedAttribute(description = "Number of times ingest was paused")
+    public long getPauseCount() {
+        return pauseCount;
+    }
+}
@@ -0,0 +1,174 @@
+package it.zwets.sms.gateway.comp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker for calls to one endpoint.
+ *
+ * The circuit is closed while calls succeed.  After failure-threshold
+ * consecutive failures it opens, and no calls are let through for the open
+ * time.  Then it is half-open: up to trials calls are let through at once,
+ * and when that many have succeeded the circuit closes again, but as soon
+ * as one fails it opens for another open time.
+ *
+ * A caller asks for a permit with {@link #tryAcquire} before the call, and
+ * reports its outcome with {@link #record}, passing the permit.  Outcomes of
+ * calls that were let through before the circuit changed state are ignored,
+ * so that the calls in flight when an endpoint goes down open the circuit
+ * only once.  The permit carries the generation of the state, which counts
+ * the state changes, so that a call let through in an earlier spell of the
+ * same state is ignored too.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /**
+     * Permit for a call, from {@link #tryAcquire}.
+     *
+     * @param state the state the call is let through in
+     * @param generation the generation of that state
+     */
+    public record Permit(State state, long generation) {
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final int trials;
+
+    private State state = State.CLOSED;
+    private long generation = 0;
+    private int failures = 0;
+    private long openedAt = 0;
+    private int trialsInFlight = 0;
+    private int trialSuccesses = 0;
+
+    private final AtomicLong openCount = new AtomicLong();
+
+    /**
+     * Create a closed circuit breaker.
+     *
+     * @param name the name of the endpoint, for logging
+     * @param failureThreshold the number of consecutive failures that opens the circuit
+     * @param openMillis the time (ms) the circuit stays open
+     * @param trials the number of calls let through, and that must succeed, when half-open
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openMillis, int trials) {
+        if (failureThreshold <= 0 || trials <= 0) {
+            throw new IllegalArgumentException("Circuit breaker failure threshold and trials must be positive: %d, %d".formatted(failureThreshold, trials));
+        }
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openMillis * 1_000_000;
+        this.trials = trials;
+    }
+
+    /**
+     * Asks to let a call through.
+     *
+     * @param now the current nano time
+     * @return the permit for the call, or null if it is not let through
+     */
+    public synchronized Permit tryAcquire(long now) {
+        halfOpenIfDue(now);
+        switch (state) {
+            case CLOSED:
+                return new Permit(State.CLOSED, generation);
+            case HALF_OPEN:
+                if (trialsInFlight < trials) {
+                    ++trialsInFlight;
+                    return new Permit(State.HALF_OPEN, generation);
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @param now the current nano time
+     * @return true if {@link #tryAcquire} would let a call through
+     */
+    public synchronized boolean isCallable(long now) {
+        halfOpenIfDue(now);
+        return state == State.CLOSED || (state == State.HALF_OPEN && trialsInFlight < trials);
+    }
+
+    /**
+     * @param now the current nano time
+     * @return true if the circuit is half-open (or due to be) and has a trial free
+     */
+    public synchronized boolean isTrialDue(long now) {
+        halfOpenIfDue(now);
+        return state == State.HALF_OPEN && trialsInFlight < trials;
+    }
+
+    /**
+     * Records the outcome of a call.
+     *
+     * @param permit the permit the call was let through with
+     * @param succeeded whether the call succeeded
+     * @param now the current nano time
+     */
+    public synchronized void record(Permit permit, boolean succeeded, long now) {
+        if (permit.generation() != generation) {
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            --trialsInFlight;
+            if (!succeeded) {
+                open(now);
+            }
+            else if (++trialSuccesses >= trials) {
+                LOG.info("Circuit to {} closed", name);
+                state = State.CLOSED;
+                ++generation;
+                failures = 0;
+            }
+        }
+        else if (succeeded) {
+            failures = 0;
+        }
+        else if (++failures >= failureThreshold) {
+            open(now);
+        }
+    }
+
+    /**
+     * @return the current state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of times the circuit opened
+     */
+    public long getOpenCount() {
+        return openCount.get();
+    }
+
+    private void open(long now) {
+        LOG.warn("Circuit to {} opened for {} ms", name, openNanos / 1_000_000);
+        state = State.OPEN;
+        ++generation;
+        openedAt = now;
+        openCount.incrementAndGet();
+    }
+
+    private void halfOpenIfDue(long now) {
+        if (state == State.OPEN && now - openedAt >= openNanos) {
+            LOG.info("Circuit to {} half-open", name);
+            state = State.HALF_OPEN;
+            ++generation;
+            trialsInFlight = 0;
+            trialSuccesses = 0;
+        }
+    }
+}
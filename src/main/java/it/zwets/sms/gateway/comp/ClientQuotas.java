@@ -0,0 +1,186 @@
+package it.zwets.sms.gateway.comp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Per-client throughput quotas, counted in SMS segments.
+ *
+ * A client can have a quota per second and a quota per day, each enforced
+ * by a {@link TokenBucket}.  The per second bucket holds one second worth of
+ * segments, so allows that as a burst.  The per day bucket holds a day's
+ * worth and refills continuously, so the day is a rolling 24 hours.
+ * Clients without any quota are unlimited.
+ *
+ * What happens when a client's quota is exhausted depends on the mode.  In
+ * {@link OnExhaustion#DELAY} mode the {@link DispatchQueue} holds the client's
+ * requests back until its buckets have refilled.  In {@link OnExhaustion#FAIL}
+ * mode the {@link QuotaProcessor} answers the request <code>FAILED</code>, so
+ * that the client can retry later.  Either way the segments are charged
+ * before the {@link DispatchProcessor} checks the deadline, and it refunds
+ * them when the request has expired, so expired requests use no quota.
+ *
+ * In DELAY mode the requests held back wait in the client's share of the
+ * dispatch queue; once that is full, further requests of the client are
+ * answered <code>FAILED</code>, so that a client over its quota cannot fill
+ * the queue.
+ */
+@ManagedResource(objectName = "it.zwets.sms.gateway:name=ClientQuotas", description = "Per client segment quotas")
+public class ClientQuotas {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ClientQuotas.class);
+
+    private static final double SECONDS_PER_DAY = 24 * 3600;
+
+    public enum OnExhaustion { DELAY, FAIL }
+
+    private static final class Quota {
+        TokenBucket perSecond;
+        TokenBucket perDay;
+        final AtomicLong segmentCount = new AtomicLong();
+        final AtomicLong rejectedCount = new AtomicLong();
+        final AtomicLong refundedCount = new AtomicLong();
+    }
+
+    private final OnExhaustion onExhaustion;
+    private final Map<String, Quota> quotas = new HashMap<>();
+
+    /**
+     * Create quotas for the clients in the maps.
+     *
+     * @param perSecond segments per second by client-id
+     * @param perDay segments per day by client-id
+     * @param onExhaustion what to do with requests when a quota is exhausted
+     */
+    public ClientQuotas(Map<String, Integer> perSecond, Map<String, Integer> perDay, OnExhaustion onExhaustion) {
+        LOG.debug("Constructing ClientQuotas per second {}, per day {}, on exhaustion {}", perSecond, perDay, onExhaustion);
+
+        this.onExhaustion = onExhaustion;
+
+        perSecond.forEach((client, rate) -> quotas.computeIfAbsent(client, c -> new Quota()).perSecond = new TokenBucket(rate, rate));
+        perDay.forEach((client, rate) -> quotas.computeIfAbsent(client, c -> new Quota()).perDay = new TokenBucket(rate / SECONDS_PER_DAY, rate));
+    }
+
+    /**
+     * @return the mode in which quotas are enforced
+     */
+    public OnExhaustion getOnExhaustion() {
+        return onExhaustion;
+    }
+
+    /**
+     * Returns how long until client can send the number of segments.
+     *
+     * @param clientId the client
+     * @param segments the number of segments
+     * @param now the current time on the {@link System#nanoTime()} clock
+     * @return 0 if the segments can go now, else the nanos to wait
+     */
+    public long nanosUntilAvailable(String clientId, int segments, long now) {
+        Quota quota = quotas.get(clientId);
+        if (quota == null) {
+            return 0;
+        }
+        long perSecondWait = quota.perSecond == null ? 0 : quota.perSecond.nanosUntilAvailable(segments, now);
+        long perDayWait = quota.perDay == null ? 0 : quota.perDay.nanosUntilAvailable(segments, now);
+        return Math.max(perSecondWait, perDayWait);
+    }
+
+    /**
+     * Charges segments to client, regardless of its remaining quota.
+     * The caller is expected to have checked {@link #nanosUntilAvailable}.
+     *
+     * @param clientId the client
+     * @param segments the number of segments
+     * @param now the current time on the {@link System#nanoTime()} clock
+     */
+    public void charge(String clientId, int segments, long now) {
+        Quota quota = quotas.get(clientId);
+        if (quota != null) {
+            if (quota.perSecond != null) {
+                quota.perSecond.take(segments, now);
+            }
+            if (quota.perDay != null) {
+                quota.perDay.take(segments, now);
+            }
+            quota.segmentCount.addAndGet(segments);
+        }
+    }
+
+    /**
+     * Refunds segments charged to client for a request that did not go to
+     * the backend.
+     *
+     * @param clientId the client
+     * @param segments the number of segments
+     * @param now the current time on the {@link System#nanoTime()} clock
+     */
+    public void refund(String clientId, int segments, long now) {
+        Quota quota = quotas.get(clientId);
+        if (quota != null) {
+            if (quota.perSecond != null) {
+                quota.perSecond.give(segments, now);
+            }
+            if (quota.perDay != null) {
+                quota.perDay.give(segments, now);
+            }
+            quota.segmentCount.addAndGet(-segments);
+            quota.refundedCount.addAndGet(segments);
+        }
+    }
+
+    /**
+     * Charges segments to client if it has the quota for them.
+     *
+     * @param clientId the client
+     * @param segments the number of segments
+     * @return true if charged, false if the quota is exhausted
+     */
+    public boolean tryCharge(String clientId, int segments) {
+        Quota quota = quotas.get(clientId);
+        if (quota == null) {
+            return true;
+        }
+        synchronized (quota) {
+            long now = System.nanoTime();
+            if (nanosUntilAvailable(clientId, segments, now) == 0) {
+                charge(clientId, segments, now);
+                return true;
+            }
+        }
+        quota.rejectedCount.incrementAndGet();
+        return false;
+    }
+
+    @ManagedAttribute(description = "Behaviour when a quota is exhausted")
+    public String getOnExhaustionMode() {
+        return onExhaustion.name();
+    }
+
+    @ManagedAttribute(description = "Per client segments sent, rejected and refunded, and tokens left")
+    public String getClientStats() {
+        StringBuilder sb = new StringBuilder();
+        Set<String> clients = new TreeSet<>(quotas.keySet());
+        for (String client : clients) {
+            Quota quota = quotas.get(client);
+            sb.append("%s: segments=%d rejected=%d refunded=%d".formatted(client,
+                    quota.segmentCount.get(), quota.rejectedCount.get(), quota.refundedCount.get()));
+            if (quota.perSecond != null) {
+                sb.append(" secondTokens=%.1f".formatted(quota.perSecond.getTokens()));
+            }
+            if (quota.perDay != null) {
+                sb.append(" dayTokens=%.0f".formatted(quota.perDay.getTokens()));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
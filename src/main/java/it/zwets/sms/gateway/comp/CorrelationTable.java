@@ -1,7 +1,7 @@
 package it.zwets.sms.gateway.comp;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,12 +11,15 @@ import it.zwets.sms.gateway.dto.CorrelationRecord;
 
 /**
  * Manages the mapping of recall-id to client-id,correl-id.
+ *
+ * Thread-safe: the table is filled from the correl-read route and read by
+ * the respond stage.
  */
 public class CorrelationTable {
 
     private static final Logger LOG = LoggerFactory.getLogger(CorrelationTable.class);
 
-    private Map<String, CorrelationRecord> map = new HashMap<>();
+    private Map<String, CorrelationRecord> map = new ConcurrentHashMap<>();
 
     public void store(CorrelationRecord rec) {
         if (rec.recallId() == null) {
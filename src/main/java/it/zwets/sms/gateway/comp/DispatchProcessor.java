@@ -0,0 +1,93 @@
+package it.zwets.sms.gateway.comp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CLIENT_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CORREL_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_DEADLINE;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SEGMENTS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_EXPIRED;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Re-checks the deadline of a request as it leaves the {@link DispatchQueue}.
+ *
+ * A request may have been valid on arrival, but expire while it waits in the
+ * dispatch queue.  Such requests are shed here, before they reach the backend.
+ * For the requests that go through, we record the slack they had left.
+ * The segments of an expired request were already charged to its client's
+ * quota (at ingest or dequeue), and are refunded here.
+ *
+ * When the <code>process</code> method has completed, the message header
+ * sms-status is either unset and the request can go to the backend, or it is
+ * <code>EXPIRED</code>.  Does nothing if sms-status is already set on entry.
+ */
+@ManagedResource(objectName = "it.zwets.sms.gateway:name=DispatchProcessor", description = "Dispatch deadline check")
+public class DispatchProcessor implements Processor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DispatchProcessor.class);
+
+    // Upper bounds (ms) of the slack-to-deadline histogram: 1s 10s 1m 10m 1h 6h 1d
+    private static final long[] SLACK_BOUNDS = { 1_000, 10_000, 60_000, 600_000, 3_600_000, 21_600_000, 86_400_000 };
+
+    private final Histogram slack = new Histogram(SLACK_BOUNDS);
+    private final AtomicLong dispatchedCount = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    private final ClientQuotas quotas;
+
+    public DispatchProcessor(ClientQuotas quotas) {
+        this.quotas = quotas;
+    }
+
+    @Override
+    public void process(Exchange exchange) {
+
+        Message msg = exchange.getIn();
+
+        if (msg.getHeader(HEADER_SMS_STATUS) != null) {
+            LOG.debug("Skipping, status already {}", msg.getHeader(HEADER_SMS_STATUS));
+        }
+        else {
+            Instant deadline = msg.getHeader(HEADER_DEADLINE, Instant.class);
+            long slackMillis = deadline == null ? Long.MAX_VALUE : deadline.toEpochMilli() - System.currentTimeMillis();
+
+            if (slackMillis < 0) {
+                LOG.warn("Request expired while queued for dispatch: {}:{}",
+                        msg.getHeader(HEADER_CLIENT_ID), msg.getHeader(HEADER_CORREL_ID));
+                expiredCount.incrementAndGet();
+                quotas.refund(msg.getHeader(HEADER_CLIENT_ID, String.class), msg.getHeader(HEADER_SEGMENTS, 1, Integer.class), System.nanoTime());
+                msg.setHeader(HEADER_SMS_STATUS, SMS_STATUS_EXPIRED);
+            }
+            else {
+                LOG.debug("Dispatching request with {}ms to deadline", slackMillis);
+                dispatchedCount.incrementAndGet();
+                slack.record(slackMillis);
+            }
+        }
+    }
+
+    @ManagedAttribute(description = "Number of requests dispatched to the backend")
+    public long getDispatchedCount() {
+        return dispatchedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of requests that expired in the dispatch queue")
+    public long getExpiredCount() {
+        return expiredCount.get();
+    }
+
+    @ManagedAttribute(description = "Histogram of milliseconds to deadline at dispatch")
+    public String getSlackHistogram() {
+        return slack.toString();
+    }
+}
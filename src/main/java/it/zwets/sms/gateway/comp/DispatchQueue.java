@@ -0,0 +1,530 @@
+package it.zwets.sms.gateway.comp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CLIENT_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CORREL_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_DEADLINE;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_ERROR_TEXT;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SEGMENTS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_FAILED;
+
+import java.time.Instant;
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Bounded blocking queue that shares dispatch fairly across clients, and
+ * hands out each client's exchanges earliest deadline first.
+ *
+ * This is the queue behind the dispatch SEDA endpoint that sits between the
+ * ingest stage and the backend.  Every client (tenant) has its own virtual
+ * queue in which exchanges are ordered on their deadline header, so that a
+ * message that is due soon overtakes messages that have plenty of slack.
+ * Exchanges without a deadline go last, and exchanges with equal deadlines
+ * keep their order of arrival.
+ *
+ * Across clients we do weighted fair queuing (self-clocked): each client has
+ * a virtual finish tag that advances by segments/weight for every exchange it
+ * gets dispatched, and the next exchange comes from the eligible client with
+ * the lowest tag.  A client is eligible when it has exchanges queued, fewer
+ * than its maximum number in flight, and (when {@link ClientQuotas} are in
+ * DELAY mode) the quota to send the segments of its next exchange.  An
+ * exchange is in flight from the moment it is taken off the queue until its
+ * unit of work completes.  The upshot is that one client's bulk campaign
+ * cannot starve the others: they each get a share of the dispatch capacity
+ * proportional to their weight.
+ *
+ * Each client has a share of the queue: the maximum number of exchanges it
+ * may have queued.  The ingest stage calls {@link #admit(Exchange)} before
+ * it enqueues an exchange, which answers it <code>FAILED</code> (for the
+ * client to retry later) when its client's share is full, so that one
+ * client's campaign cannot fill the queue and block the single ingest
+ * consumer, and with it the requests of all other clients.
+ *
+ * The queue is also bounded across all clients: <code>put</code> blocks
+ * while it is full, so that the producer into the dispatch endpoint feels
+ * the backpressure.
+ */
+@ManagedResource(objectName = "it.zwets.sms.gateway:name=DispatchQueue", description = "Weighted fair, earliest deadline first dispatch queue")
+public class DispatchQueue extends AbstractQueue<Exchange> implements BlockingQueue<Exchange> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DispatchQueue.class);
+
+    public static final int DEFAULT_WEIGHT = 1;
+    public static final int UNLIMITED_IN_FLIGHT = 0;
+    public static final String ERROR_SHARE_FULL = "Dispatch queue share of client full, retry later";
+
+    private record Entry(Exchange exchange, long deadline, int segments, long seqNo) { }
+
+    private static final Comparator<Entry> EARLIEST_DEADLINE_FIRST =
+            Comparator.comparingLong(Entry::deadline).thenComparingLong(Entry::seqNo);
+
+    /**
+     * The virtual queue and scheduling state for a single client.
+     */
+    private final class ClientQueue {
+
+        final String clientId;
+        final int weight;
+        final int maxInFlight;
+        final int maxQueued;
+        final PriorityQueue<Entry> entries = new PriorityQueue<>(EARLIEST_DEADLINE_FIRST);
+        double finishTag = 0.0;
+        int inFlight = 0;
+        long dispatchedCount = 0;
+        long rejectedCount = 0;
+
+        ClientQueue(String clientId) {
+            this.clientId = clientId;
+            this.weight = Math.max(1, weights.getOrDefault(clientId, DEFAULT_WEIGHT));
+            this.maxInFlight = maxInFlights.getOrDefault(clientId, UNLIMITED_IN_FLIGHT);
+            this.maxQueued = maxQueueds.getOrDefault(clientId, maxQueuedPerClient);
+        }
+
+        boolean isEligible(long now) {
+            if (entries.isEmpty() || (maxInFlight > 0 && inFlight >= maxInFlight)) {
+                return false;
+            }
+            // An expired request goes regardless of quota, to be answered
+            // EXPIRED (and refunded) rather than wait for quota it won't use
+            if (delayOnQuota && entries.peek().deadline() >= System.currentTimeMillis()) {
+                long wait = quotas.nanosUntilAvailable(clientId, entries.peek().segments(), now);
+                if (wait > 0) {
+                    quotaWaitNanos = Math.min(quotaWaitNanos, wait);
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final int capacity;
+    private final int maxQueuedPerClient;
+    private final Map<String, Integer> weights;
+    private final Map<String, Integer> maxInFlights;
+    private final Map<String, Integer> maxQueueds;
+    private final ClientQuotas quotas;
+    private final boolean delayOnQuota;
+    private final Map<String, ClientQueue> clients = new LinkedHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private int count = 0;
+    private double virtualTime = 0.0;
+    private long quotaWaitNanos = Long.MAX_VALUE;
+    private long seqNo = 0;
+    private long enqueuedCount = 0;
+    private long dequeuedCount = 0;
+    private int highWaterMark = 0;
+
+    /**
+     * Create a queue holding at most capacity exchanges, with equal weights,
+     * the whole queue as share, and no in-flight limit or quota for all clients.
+     *
+     * @param capacity the maximum number of queued exchanges
+     */
+    public DispatchQueue(int capacity) {
+        this(capacity, capacity, Map.of(), Map.of(), Map.of(), null);
+    }
+
+    /**
+     * Create a queue holding at most capacity exchanges.
+     *
+     * @param capacity the maximum number of queued exchanges
+     * @param maxQueuedPerClient the share of the clients not in maxQueueds
+     * @param weights the weight per client-id, clients not in the map have {@link #DEFAULT_WEIGHT}
+     * @param maxInFlights the maximum number of exchanges in flight per client-id, 0 or absent for no limit
+     * @param maxQueueds the maximum number of exchanges queued (share) per client-id
+     * @param quotas the client quotas, enforced here when in DELAY mode, may be null
+     */
+    public DispatchQueue(int capacity, int maxQueuedPerClient, Map<String, Integer> weights,
+            Map<String, Integer> maxInFlights, Map<String, Integer> maxQueueds, ClientQuotas quotas) {
+        if (capacity <= 0 || maxQueuedPerClient <= 0) {
+            throw new IllegalArgumentException("Dispatch queue capacity and share must be positive: %d, %d".formatted(capacity, maxQueuedPerClient));
+        }
+        LOG.debug("Constructing DispatchQueue with capacity {}, share {}, weights {}, max in flight {}, max queued {}",
+                capacity, maxQueuedPerClient, weights, maxInFlights, maxQueueds);
+        this.capacity = capacity;
+        this.maxQueuedPerClient = maxQueuedPerClient;
+        this.weights = Map.copyOf(weights);
+        this.maxInFlights = Map.copyOf(maxInFlights);
+        this.maxQueueds = Map.copyOf(maxQueueds);
+        this.quotas = quotas;
+        this.delayOnQuota = quotas != null && quotas.getOnExhaustion() == ClientQuotas.OnExhaustion.DELAY;
+    }
+
+    /**
+     * Admits the exchange to the queue if its client has room in its share,
+     * else sets the sms-status header to <code>FAILED</code>.  Does nothing
+     * if sms-status is already set.  The ingest stage is the only producer
+     * into the queue, so the room is still there when it puts the exchange.
+     *
+     * @param exchange the exchange that is to be put on the queue
+     */
+    public void admit(Exchange exchange) {
+        Message msg = exchange.getIn();
+        if (msg.getHeader(HEADER_SMS_STATUS) != null) {
+            return;
+        }
+        String clientId = msg.getHeader(HEADER_CLIENT_ID, "", String.class);
+        lock.lock();
+        try {
+            ClientQueue client = clients.computeIfAbsent(clientId, ClientQueue::new);
+            if (client.entries.size() < client.maxQueued) {
+                return;
+            }
+            ++client.rejectedCount;
+        }
+        finally {
+            lock.unlock();
+        }
+        LOG.warn("Dispatch queue share of client {} is full, failing request {}", clientId, msg.getHeader(HEADER_CORREL_ID));
+        msg.setHeader(HEADER_SMS_STATUS, SMS_STATUS_FAILED);
+        msg.setHeader(HEADER_ERROR_TEXT, ERROR_SHARE_FULL);
+    }
+
+    // BlockingQueue implementation
+
+    @Override
+    public boolean offer(Exchange exchange) {
+        lock.lock();
+        try {
+            if (count == capacity) {
+                return false;
+            }
+            enqueue(exchange);
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Exchange exchange) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == capacity) {
+                notFull.await();
+            }
+            enqueue(exchange);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Exchange exchange, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(exchange);
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Exchange take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            ClientQueue next;
+            while ((next = nextClient()) == null) {
+                if (quotaWaitNanos == Long.MAX_VALUE) {
+                    notEmpty.await();
+                }
+                else {
+                    notEmpty.awaitNanos(quotaWaitNanos);
+                }
+            }
+            return dequeue(next);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Exchange poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            ClientQueue next;
+            while ((next = nextClient()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                long wait = Math.min(nanos, quotaWaitNanos);
+                nanos -= wait - notEmpty.awaitNanos(wait);
+            }
+            return dequeue(next);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Exchange poll() {
+        lock.lock();
+        try {
+            ClientQueue next = nextClient();
+            return next == null ? null : dequeue(next);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Exchange peek() {
+        lock.lock();
+        try {
+            ClientQueue next = nextClient();
+            return next == null ? null : next.entries.peek().exchange();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            for (ClientQueue client : clients.values()) {
+                if (client.entries.removeIf(e -> e.exchange() == o)) {
+                    --count;
+                    notFull.signal();
+                    return true;
+                }
+            }
+            return false;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - count;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Exchange> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Exchange> c, int maxElements) {
+        lock.lock();
+        try {
+            int n = 0;
+            ClientQueue next;
+            while (n < maxElements && (next = nextClient()) != null) {
+                c.add(dequeue(next));
+                ++n;
+            }
+            return n;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queue, in deadline order.
+     * The iterator does not support removal.
+     */
+    @Override
+    public Iterator<Exchange> iterator() {
+        lock.lock();
+        try {
+            List<Entry> snapshot = new ArrayList<>(count);
+            clients.values().forEach(client -> snapshot.addAll(client.entries));
+            snapshot.sort(EARLIEST_DEADLINE_FIRST);
+            return snapshot.stream().map(Entry::exchange).toList().iterator();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Monitoring
+
+    @ManagedAttribute(description = "Number of exchanges in the queue")
+    public int getDepth() {
+        return size();
+    }
+
+    @ManagedAttribute(description = "Maximum number of exchanges in the queue")
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @ManagedAttribute(description = "Largest number of exchanges that were in the queue")
+    public int getHighWaterMark() {
+        lock.lock();
+        try {
+            return highWaterMark;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @ManagedAttribute(description = "Total number of exchanges enqueued")
+    public long getEnqueuedCount() {
+        lock.lock();
+        try {
+            return enqueuedCount;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @ManagedAttribute(description = "Total number of exchanges dequeued")
+    public long getDequeuedCount() {
+        lock.lock();
+        try {
+            return dequeuedCount;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @ManagedAttribute(description = "Per client weight, queued (of share), in flight, dispatched and rejected counts")
+    public String getClientStats() {
+        lock.lock();
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (ClientQueue client : clients.values()) {
+                sb.append("%s: weight=%d queued=%d/%d inFlight=%d dispatched=%d rejected=%d\n".formatted(
+                        client.clientId, client.weight, client.entries.size(), client.maxQueued,
+                        client.inFlight, client.dispatchedCount, client.rejectedCount));
+            }
+            return sb.toString();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // Helpers, must be called with the lock held
+
+    private void enqueue(Exchange exchange) {
+        String clientId = exchange.getIn().getHeader(HEADER_CLIENT_ID, "", String.class);
+        ClientQueue client = clients.computeIfAbsent(clientId, ClientQueue::new);
+
+        // A client that becomes backlogged starts at the current virtual time,
+        // so that it can't claim credit for the time it had nothing queued
+        if (client.entries.isEmpty()) {
+            client.finishTag = Math.max(client.finishTag, virtualTime);
+        }
+
+        Instant deadline = exchange.getIn().getHeader(HEADER_DEADLINE, Instant.class);
+        int segments = exchange.getIn().getHeader(HEADER_SEGMENTS, 1, Integer.class);
+        client.entries.add(new Entry(exchange, deadline == null ? Long.MAX_VALUE : deadline.toEpochMilli(), segments, seqNo++));
+        highWaterMark = Math.max(highWaterMark, ++count);
+        ++enqueuedCount;
+        notEmpty.signal();
+    }
+
+    private ClientQueue nextClient() {
+        long now = System.nanoTime();
+        quotaWaitNanos = Long.MAX_VALUE;
+        ClientQueue next = null;
+        for (ClientQueue client : clients.values()) {
+            if (client.isEligible(now) && (next == null || client.finishTag < next.finishTag)) {
+                next = client;
+            }
+        }
+        return next;
+    }
+
+    private Exchange dequeue(ClientQueue client) {
+        Entry entry = client.entries.poll();
+        Exchange exchange = entry.exchange();
+
+        if (delayOnQuota) {
+            quotas.charge(client.clientId, entry.segments(), System.nanoTime());
+        }
+
+        virtualTime = client.finishTag;
+        client.finishTag += (double) entry.segments() / client.weight;
+        client.inFlight++;
+        client.dispatchedCount++;
+
+        exchange.getExchangeExtension().addOnCompletion(new SynchronizationAdapter() {
+            @Override
+            public void onDone(Exchange exchange) {
+                release(client);
+            }
+        });
+
+        --count;
+        ++dequeuedCount;
+        notFull.signal();
+        return exchange;
+    }
+
+    private void release(ClientQueue client) {
+        lock.lock();
+        try {
+            client.inFlight--;
+            notEmpty.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
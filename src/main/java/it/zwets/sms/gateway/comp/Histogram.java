@@ -0,0 +1,86 @@
+package it.zwets.sms.gateway.comp;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe histogram over a fixed set of bucket bounds.
+ *
+ * A value goes in the first bucket whose (inclusive) upper bound is not
+ * smaller than the value.  Values above the last bound go in an overflow
+ * bucket, so there is always one more count than there are bounds.
+ */
+public class Histogram {
+
+    private final long[] bounds;
+    private final AtomicLongArray counts;
+
+    /**
+     * Create a histogram with the given bucket upper bounds.
+     *
+     * @param bounds the inclusive upper bounds, in ascending order
+     */
+    public Histogram(long... bounds) {
+        for (int i = 1; i < bounds.length; ++i) {
+            if (bounds[i] <= bounds[i-1]) {
+                throw new IllegalArgumentException("Histogram bounds must be ascending");
+            }
+        }
+        this.bounds = bounds.clone();
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    /**
+     * Count a value in its bucket.
+     *
+     * @param value the value to record
+     */
+    public void record(long value) {
+        int i = 0;
+        while (i < bounds.length && value > bounds[i]) {
+            ++i;
+        }
+        counts.incrementAndGet(i);
+    }
+
+    /**
+     * @return the bucket upper bounds (the overflow bucket has none)
+     */
+    public long[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * @return a snapshot of the bucket counts, the last being the overflow
+     */
+    public long[] getCounts() {
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; ++i) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the total number of values recorded
+     */
+    public long getTotal() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); ++i) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @return the counts as <code>le_BOUND=COUNT</code> pairs, ending with the overflow bucket
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < bounds.length; ++i) {
+            sb.append("le_").append(bounds[i]).append('=').append(counts.get(i)).append(' ');
+        }
+        return sb.append("gt_").append(bounds.length == 0 ? 0 : bounds[bounds.length - 1])
+                .append('=').append(counts.get(bounds.length)).toString();
+    }
+}
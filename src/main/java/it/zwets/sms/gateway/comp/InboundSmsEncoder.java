@@ -0,0 +1,73 @@
+package it.zwets.sms.gateway.comp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CLIENT_ID;
+
+import java.util.Base64;
+import java.util.Map;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.apache.camel.component.kafka.KafkaConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import it.zwets.sms.crypto.Vault;
+import it.zwets.sms.gateway.dto.InboundSms;
+import it.zwets.sms.gateway.dto.InboundSmsRelay;
+
+/**
+ * Encodes an inbound (mobile originated) SMS for relay to its client.
+ *
+ * The client is the one that owns the recipient (short code or number) of
+ * the SMS.  Replaces the {@link InboundSms} body by an {@link InboundSmsRelay}
+ * whose payload is the SMS serialised to JSON, encrypted with the client's
+ * public key from the vault, and base64 encoded.  Sets the client-id header,
+ * and the Kafka key to the client-id, so that each client's SMS stay in order.
+ *
+ * When the recipient has no client, the SMS is dropped (the route stops).
+ */
+public class InboundSmsEncoder implements Processor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InboundSmsEncoder.class);
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Vault vault;
+    private final Map<String, String> recipientClients;
+
+    /**
+     * Create the encoder.
+     *
+     * @param vault the vault with the clients' keys
+     * @param recipientClients map from recipient (without leading +) to client-id
+     */
+    public InboundSmsEncoder(Vault vault, Map<String, String> recipientClients) {
+        this.vault = vault;
+        this.recipientClients = recipientClients;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+
+        Message msg = exchange.getIn();
+        InboundSms sms = msg.getBody(InboundSms.class);
+
+        String recipient = sms.recipient() == null ? "" : sms.recipient().replaceFirst("^\\+", "");
+        String clientId = recipientClients.get(recipient);
+
+        if (clientId == null) {
+            LOG.warn("Dropping inbound SMS {} for recipient {}: no client has it", sms.recallId(), sms.recipient());
+            exchange.setRouteStop(true);
+        }
+        else {
+            LOG.debug("Encrypting inbound SMS {} for client {}", sms.recallId(), clientId);
+            byte[] ciphertext = vault.encrypt(clientId, objectMapper.writeValueAsBytes(sms));
+
+            msg.setHeader(HEADER_CLIENT_ID, clientId);
+            msg.setHeader(KafkaConstants.KEY, clientId);
+            msg.setBody(new InboundSmsRelay(clientId, sms.timeStamp(), Base64.getEncoder().encodeToString(ciphertext)));
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package it.zwets.sms.gateway.comp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.apache.camel.component.kafka.KafkaConstants;
+import org.apache.camel.component.kafka.consumer.KafkaManualCommit;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Commits the Kafka offsets of the requests once they have been answered.
+ *
+ * Requests wait in memory queues (dispatch, respond, the SMPP stages), so
+ * committing a request's offset as soon as it is consumed would lose all
+ * queued requests on a stop or crash, without a status ever going back.
+ * Instead the main route consumes with auto-commit off, and this registers
+ * each request and adds an on-completion to its exchange.  The SEDA queues
+ * hand the on-completion over to their copy of the exchange, so it runs when
+ * the exchange that answers the request (or drops it) completes.
+ *
+ * Kafka commits one offset per partition, which covers all before it, so we
+ * commit the offset of the last of the unbroken run of completed requests at
+ * the start of a partition's pending ones.  A request that is still pending
+ * holds back the commits of the later requests on its partition.  After a
+ * restart the requests from the last committed offset on are consumed again:
+ * one that was sent but not yet answered may go twice, but none is lost.
+ *
+ * Exchanges without the Kafka manual commit header (as in the tests) pass
+ * unregistered.
+ */
+@ManagedResource(objectName = "it.zwets.sms.gateway:name=OffsetCommitter", description = "Commits of consumed request offsets")
+public class OffsetCommitter implements Processor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OffsetCommitter.class);
+
+    // A consumed request, its commit, and whether it has completed
+
+    private static class Pending {
+        final KafkaManualCommit commit;
+        boolean done = false;
+
+        Pending(KafkaManualCommit commit) {
+            this.commit = commit;
+        }
+    }
+
+    private final Map<String, TreeMap<Long, Pending>> partitions = new HashMap<>();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong commitCount = new AtomicLong();
+
+    @Override
+    public void process(Exchange exchange) {
+        Message msg = exchange.getIn();
+        KafkaManualCommit commit = msg.getHeader(KafkaConstants.MANUAL_COMMIT, KafkaManualCommit.class);
+        Long offset = msg.getHeader(KafkaConstants.OFFSET, Long.class);
+        if (commit == null || offset == null) {
+            return;
+        }
+
+        String partition = msg.getHeader(KafkaConstants.TOPIC, String.class) + '-' + msg.getHeader(KafkaConstants.PARTITION, String.class);
+        synchronized (this) {
+            partitions.computeIfAbsent(partition, k -> new TreeMap<>()).put(offset, new Pending(commit));
+        }
+
+        exchange.getExchangeExtension().addOnCompletion(new SynchronizationAdapter() {
+            @Override
+            public void onDone(Exchange exchange) {
+                complete(partition, offset);
+            }
+        });
+    }
+
+    // Marks the request done, and commits the offset of the last request
+    // of the run of completed ones at the start of its partition
+
+    private synchronized void complete(String partition, long offset) {
+        TreeMap<Long, Pending> pending = partitions.get(partition);
+        Pending p = pending != null ? pending.get(offset) : null;
+        if (p == null) {
+            return;
+        }
+        p.done = true;
+        completedCount.incrementAndGet();
+
+        Map.Entry<Long, Pending> last = null;
+        while (!pending.isEmpty() && pending.firstEntry().getValue().done) {
+            last = pending.pollFirstEntry();
+        }
+        if (last != null) {
+            LOG.trace("Committing offsets on {} up to {}", partition, last.getKey());
+            last.getValue().commit.commit();
+            commitCount.incrementAndGet();
+        }
+    }
+
+    @ManagedAttribute(description = "Number of requests consumed but not yet committed")
+    public synchronized int getPendingCount() {
+        return partitions.values().stream().mapToInt(Map::size).sum();
+    }
+
+    @ManagedAttribute(description = "Number of requests completed")
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of offset commits")
+    public long getCommitCount() {
+        return commitCount.get();
+    }
+}
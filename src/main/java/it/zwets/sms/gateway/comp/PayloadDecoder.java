@@ -2,6 +2,7 @@ package it.zwets.sms.gateway.comp;
 
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CLIENT_ID;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_ERROR_TEXT;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SEGMENTS;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_HEADER_TO;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_INVALID;
@@ -15,6 +16,7 @@ import org.apache.camel.Processor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import it.zwets.sms.codec.SmsSegments;
 import it.zwets.sms.crypto.Vault;
 import it.zwets.sms.gateway.dto.SendSmsRequest;
 import it.zwets.sms.gateway.dto.SmsMessage;
@@ -26,8 +28,9 @@ import it.zwets.sms.gateway.dto.SmsMessage;
  * the payload and deserialising it into an {@link SmsMessage}.
  * 
  * When the <code>process</code> method has completed, either the in body
- * is now a valid {@link SmsMessage}, or it is unchanged and the header
- * sms-status is set to INVALID and the error-text will be set.
+ * is now a valid {@link SmsMessage} and the segments header has the number
+ * of SMS segments it takes, or it is unchanged and the header sms-status
+ * is set to INVALID and the error-text will be set.
  * 
  * Does nothing if sms-status is already set on entry.
  */
@@ -76,6 +79,7 @@ public class PayloadDecoder implements Processor {
                 else { 
                     LOG.debug("Payload decoded, replacing body with SMS message");
                     msg.setBody(sms);
+                    msg.setHeader(HEADER_SEGMENTS, SmsSegments.count(sms.getBody()));
                 }
             } catch (Exception e) {
                 msg.setHeader(HEADER_ERROR_TEXT, "Failed to parse request payload: %s".formatted(e.getMessage()));
@@ -0,0 +1,279 @@
+package it.zwets.sms.gateway.comp;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps ported numbers to the network that now serves them.
+ *
+ * The table is loaded from the number portability dump, a text file with a
+ * line per ported number, holding the number in international format and
+ * the code of its network, separated by a comma, semicolon or whitespace:
+ * <pre>
+ * # number, network
+ * +255754000001, tigo
+ * 255754000002;airtel
+ * </pre>
+ * A number listed more than once is taken to be ported to the network on
+ * the last line that lists it.
+ *
+ * Dumps hold tens of millions of numbers, so rather than as a map of strings
+ * the table is kept as one sorted array of longs, each holding a number (at
+ * most 15 digits, 50 bits) and the index of its network (13 bits), at eight
+ * bytes per number.  A lookup parses the recipient into a long and does a
+ * binary search, without allocating.  At that size each step of the search
+ * would be a cache miss, so it first searches a sparse index of every 64th
+ * number (a sixty-fourth of the size), and then the block of 64 it points to.
+ * A table is immutable; to change it, load a new one.
+ */
+public final class PortabilityTable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PortabilityTable.class);
+
+    private static final int NETWORK_BITS = 13;
+    private static final int MAX_NETWORKS = 1 << NETWORK_BITS;
+    private static final long NETWORK_MASK = MAX_NETWORKS - 1;
+    private static final int MAX_DIGITS = 15;
+    private static final int BLOCK_BITS = 6;
+
+    /** The table without numbers */
+    public static final PortabilityTable EMPTY = new PortabilityTable(new long[0], new String[0]);
+
+    private final long[] entries;
+    private final long[] index;
+    private final String[] networks;
+
+    private PortabilityTable(long[] entries, String[] networks) {
+        this.entries = entries;
+        this.networks = networks;
+        this.index = new long[(entries.length + (1 << BLOCK_BITS) - 1) >>> BLOCK_BITS];
+        for (int i = 0; i < index.length; ++i) {
+            index[i] = entries[i << BLOCK_BITS];
+        }
+    }
+
+    /**
+     * Returns the network that serves the number, if it was ported.
+     *
+     * @param recipient the recipient number, with or without leading "+"
+     * @return the network code, or null if the number is not in the table
+     */
+    public String lookup(String recipient) {
+        long number = parseNumber(recipient, 0, recipient.length());
+        if (number < 0) {
+            return null;
+        }
+        long key = number << NETWORK_BITS;
+
+        // The number's entry is in the last block that starts at or below it
+
+        int block = Arrays.binarySearch(index, key | NETWORK_MASK);
+        if (block < 0) {
+            block = -block - 2;
+        }
+        if (block < 0) {
+            return null;
+        }
+
+        int from = block << BLOCK_BITS;
+        int pos = Arrays.binarySearch(entries, from, Math.min(from + (1 << BLOCK_BITS), entries.length), key);
+        if (pos < 0) {
+            pos = -pos - 1;
+        }
+        return pos < entries.length && entries[pos] >>> NETWORK_BITS == number
+                ? networks[(int) (entries[pos] & NETWORK_MASK)]
+                : null;
+    }
+
+    /**
+     * @return the number of numbers in the table
+     */
+    public int size() {
+        return entries.length;
+    }
+
+    /**
+     * @return the network codes in the table
+     */
+    public List<String> getNetworks() {
+        return List.of(networks);
+    }
+
+    /**
+     * Loads a table from a portability dump.
+     *
+     * @param location the file name, or <code>classpath:</code> and the resource name
+     * @return the table
+     * @throws IOException when the file cannot be read
+     * @throws IllegalArgumentException when a line is invalid
+     */
+    public static PortabilityTable load(String location) throws IOException {
+        try (InputStream in = location.startsWith("classpath:")
+                ? PortabilityTable.class.getClassLoader().getResourceAsStream(location.substring(10))
+                : new FileInputStream(new File(location))) {
+            if (in == null) {
+                throw new IOException("No such resource: %s".formatted(location));
+            }
+            return read(new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII), 1 << 16));
+        }
+    }
+
+    /**
+     * Reads a table from a portability dump.
+     *
+     * @param reader the reader on the dump
+     * @return the table
+     * @throws IOException when reading fails
+     * @throws IllegalArgumentException when a line is invalid
+     */
+    public static PortabilityTable read(BufferedReader reader) throws IOException {
+
+        Map<String, Integer> indexes = new HashMap<>();
+        List<String> networks = new ArrayList<>();
+        long[] entries = new long[1 << 16];
+        int count = 0;
+
+        String line;
+        int lineNo = 0;
+        while ((line = reader.readLine()) != null) {
+            ++lineNo;
+
+            int len = line.length();
+            int start = 0;
+            while (start < len && Character.isWhitespace(line.charAt(start))) {
+                ++start;
+            }
+            if (start == len || line.charAt(start) == '#') {
+                continue;
+            }
+
+            int end = start;
+            while (end < len && !isSeparator(line.charAt(end))) {
+                ++end;
+            }
+            long number = parseNumber(line, start, end);
+
+            int from = end;
+            while (from < len && isSeparator(line.charAt(from))) {
+                ++from;
+            }
+            int to = len;
+            while (to > from && Character.isWhitespace(line.charAt(to - 1))) {
+                --to;
+            }
+
+            if (number < 0 || from == to) {
+                throw new IllegalArgumentException("Invalid portability entry on line %d: %s".formatted(lineNo, line));
+            }
+
+            String network = line.substring(from, to);
+            Integer index = indexes.get(network);
+            if (index == null) {
+                if (networks.size() == MAX_NETWORKS) {
+                    throw new IllegalArgumentException("More than %d networks at line %d".formatted(MAX_NETWORKS, lineNo));
+                }
+                index = networks.size();
+                indexes.put(network, index);
+                networks.add(network);
+            }
+
+            if (count == entries.length) {
+                entries = Arrays.copyOf(entries, count * 2);
+            }
+            entries[count++] = number << NETWORK_BITS | index;
+        }
+
+        // Sort a copy, keeping the entries in line order for the duplicates
+
+        long[] sorted = Arrays.copyOf(entries, count);
+        Arrays.parallelSort(sorted);
+        sorted = dropDuplicates(sorted, entries, count);
+
+        return new PortabilityTable(sorted, networks.toArray(String[]::new));
+    }
+
+    // Drops the entries of numbers that are listed more than once, keeping the
+    // network on the last line that lists the number (as a later line records
+    // a later port).  Duplicates are rare, so we find them in the sorted
+    // entries, and then their last network in a pass over the lines.
+
+    private static long[] dropDuplicates(long[] sorted, long[] lines, int count) {
+
+        int dupCount = 0;
+        long[] dups = new long[16];
+        for (int i = 1; i < count; ++i) {
+            long number = sorted[i] >>> NETWORK_BITS;
+            if (number == sorted[i - 1] >>> NETWORK_BITS && (dupCount == 0 || dups[dupCount - 1] != number)) {
+                if (dupCount == dups.length) {
+                    dups = Arrays.copyOf(dups, dupCount * 2);
+                }
+                dups[dupCount++] = number;
+            }
+        }
+        if (dupCount == 0) {
+            return sorted;
+        }
+
+        long[] last = new long[dupCount];
+        for (int i = 0; i < count; ++i) {
+            int d = Arrays.binarySearch(dups, 0, dupCount, lines[i] >>> NETWORK_BITS);
+            if (d >= 0) {
+                last[d] = lines[i];
+            }
+        }
+
+        int unique = 0;
+        for (int i = 0, d = 0; i < count; ++i) {
+            long number = sorted[i] >>> NETWORK_BITS;
+            if (unique > 0 && number == sorted[unique - 1] >>> NETWORK_BITS) {
+                continue;
+            }
+            if (d < dupCount && dups[d] == number) {
+                sorted[unique++] = last[d++];
+            }
+            else {
+                sorted[unique++] = sorted[i];
+            }
+        }
+
+        LOG.warn("Portability dump lists {} numbers more than once, keeping the last line of each", dupCount);
+        return Arrays.copyOf(sorted, unique);
+    }
+
+    // Parses the digits of an international number, returns -1 if it is not one
+
+    private static long parseNumber(String s, int start, int end) {
+        if (start < end && s.charAt(start) == '+') {
+            ++start;
+        }
+        if (start == end || end - start > MAX_DIGITS || s.charAt(start) == '0') {
+            return -1;
+        }
+        long number = 0;
+        for (int i = start; i < end; ++i) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            number = number * 10 + digit;
+        }
+        return number;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ',' || c == ';' || Character.isWhitespace(c);
+    }
+}
@@ -0,0 +1,57 @@
+package it.zwets.sms.gateway.comp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CLIENT_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CORREL_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_ERROR_TEXT;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SEGMENTS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_FAILED;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.zwets.sms.gateway.comp.ClientQuotas.OnExhaustion;
+
+/**
+ * Enforces the client quotas before a request enters the dispatch queue,
+ * when the quotas are in {@link OnExhaustion#FAIL} mode.
+ *
+ * When the <code>process</code> method has completed, either the segments
+ * of the request have been charged to the client's quota, or the header
+ * sms-status is set to <code>FAILED</code>.  Does nothing if sms-status
+ * is already set on entry, or if the quotas are in DELAY mode (then the
+ * {@link DispatchQueue} enforces them).
+ */
+public class QuotaProcessor implements Processor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QuotaProcessor.class);
+
+    private final ClientQuotas quotas;
+
+    public QuotaProcessor(ClientQuotas quotas) {
+        this.quotas = quotas;
+    }
+
+    @Override
+    public void process(Exchange exchange) {
+
+        Message msg = exchange.getIn();
+
+        if (msg.getHeader(HEADER_SMS_STATUS) != null) {
+            LOG.debug("Skipping, status already {}", msg.getHeader(HEADER_SMS_STATUS));
+        }
+        else if (quotas.getOnExhaustion() == OnExhaustion.FAIL) {
+            String clientId = msg.getHeader(HEADER_CLIENT_ID, String.class);
+            int segments = msg.getHeader(HEADER_SEGMENTS, 1, Integer.class);
+
+            if (!quotas.tryCharge(clientId, segments)) {
+                LOG.warn("Quota exhausted, failing request: {}:{}", clientId, msg.getHeader(HEADER_CORREL_ID));
+                msg.setHeader(HEADER_SMS_STATUS, SMS_STATUS_FAILED);
+                msg.setHeader(HEADER_ERROR_TEXT, "Client quota exhausted, retry later");
+            }
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package it.zwets.sms.gateway.comp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_RECALL_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_RECIPIENT;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.ExchangePropertyKey;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.apache.camel.component.smpp.SmppConstants;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import it.zwets.sms.gateway.smpp.SmppMultiSubmitter;
+
+/**
+ * Suppresses delivery reports that repeat a status we already reported.
+ *
+ * The SMSC re-sends delivery receipts when our response to it is slow, and
+ * sends intermediate (ENROUTE, ACCEPTD) receipts that map to SENT, which we
+ * reported when it accepted the submit.  Each of these would cost a
+ * correlation lookup, a Kafka write and a client log append.
+ *
+ * We remember each (destination, status) that we reported for a time
+ * window, and stop the route for a report that repeats one.  The destination
+ * is the recall-id qualified with the recipient (see
+ * {@link SmppMultiSubmitter#destinationId}), as the receipts for all the
+ * recipients of a submit_multi carry its one message ID.  The window is kept
+ * as two generations of keys, the older of which is dropped when the window
+ * has passed, so a key is remembered for between one and two windows.  The
+ * current generation is also rotated out early when it holds half of
+ * max-entries, so that a burst of reports cannot grow memory without bound
+ * (at the cost of a shorter window while the burst lasts).
+ *
+ * A status is remembered only once its response has been written, so that a
+ * report whose response was lost is not suppressed when it comes again.  A
+ * repeat that arrives while the first is still being responded to passes;
+ * the {@link StatusTracker} drops it further on.
+ *
+ * The <code>process</code> method is for the delivery report route, and
+ * {@link #recordBatch(Exchange)} for the batch of reports it responds to.
+ * {@link #record(Exchange)} is for the submit route, to remember the SENT.
+ */
+@ManagedResource(objectName = "it.zwets.sms.gateway:name=ReceiptDeduplicator", description = "Delivery report deduplication")
+public class ReceiptDeduplicator implements Processor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReceiptDeduplicator.class);
+
+    private final long windowNanos;
+    private final int maxEntries;
+    private final AtomicLong earlyRotationCount = new AtomicLong();
+    private final Map<String, AtomicLong> suppressedCounts = new ConcurrentHashMap<>();
+    private final AtomicLong passedCount = new AtomicLong();
+
+    private volatile Set<String> current = ConcurrentHashMap.newKeySet();
+    private volatile Set<String> previous = ConcurrentHashMap.newKeySet();
+    private volatile long rotateAt;
+
+    /**
+     * Create a deduplicator.
+     *
+     * @param window how long (at least) to remember a reported status
+     * @param maxEntries the maximum number of statuses to remember
+     */
+    public ReceiptDeduplicator(Duration window, int maxEntries) {
+        if (maxEntries < 2) {
+            throw new IllegalArgumentException("Receipt deduplicator max entries must be at least 2: %d".formatted(maxEntries));
+        }
+        this.windowNanos = window.toNanos();
+        this.maxEntries = maxEntries;
+        this.rotateAt = System.nanoTime() + windowNanos;
+    }
+
+    @Override
+    public void process(Exchange exchange) {
+
+        Message msg = exchange.getIn();
+        String key = key(msg, HEADER_RECIPIENT);
+
+        if (key == null) {
+            LOG.debug("Not deduplicating report without recall-id or status");
+        }
+        else if (isRemembered(key)) {
+            String status = msg.getHeader(HEADER_SMS_STATUS, String.class);
+            LOG.debug("Suppressing repeated {} report for recall-id {}", status, msg.getHeader(HEADER_RECALL_ID));
+            suppressedCounts.computeIfAbsent(status, k -> new AtomicLong()).incrementAndGet();
+            exchange.setRouteStop(true);
+            return;
+        }
+
+        passedCount.incrementAndGet();
+    }
+
+    /**
+     * Remembers the status reported for the recall-id on the exchange, if any,
+     * once the exchange (or the copy it is handed to) completes.
+     *
+     * @param exchange the exchange with the response headers
+     */
+    public void record(Exchange exchange) {
+        String key = key(exchange.getIn(), SmppConstants.DEST_ADDR);
+        if (key != null) {
+            rememberOnCompletion(exchange, List.of(key));
+        }
+    }
+
+    /**
+     * Remembers the statuses of the reports in a batch once the batch completes.
+     *
+     * @param exchange the exchange with the list of report exchanges as its body
+     */
+    public void recordBatch(Exchange exchange) {
+        @SuppressWarnings("unchecked")
+        List<Exchange> batch = exchange.getIn().getBody(List.class);
+        rememberOnCompletion(exchange, batch.stream().map(e -> key(e.getIn(), HEADER_RECIPIENT)).filter(Objects::nonNull).toList());
+    }
+
+    // Remembers the keys when the exchange completes, unless it failed or its
+    // route handled an exception, in which case the response may be lost
+
+    private void rememberOnCompletion(Exchange exchange, List<String> keys) {
+        exchange.getExchangeExtension().addOnCompletion(new SynchronizationAdapter() {
+            @Override
+            public void onComplete(Exchange exchange) {
+                if (exchange.getProperty(ExchangePropertyKey.EXCEPTION_CAUGHT) == null) {
+                    keys.forEach(ReceiptDeduplicator.this::remember);
+                }
+            }
+        });
+    }
+
+    // The key of a report or response: its destination and status.  Receipts
+    // have their recipient in its own header, submits in the SMPP header, and
+    // the recall-id of a submit_multi has it already.
+
+    private static String key(Message msg, String recipientHeader) {
+        String recallId = msg.getHeader(HEADER_RECALL_ID, String.class);
+        String recipient = msg.getHeader(recipientHeader, String.class);
+        String status = msg.getHeader(HEADER_SMS_STATUS, String.class);
+        if (recallId == null || status == null) {
+            return null;
+        }
+        String destination = recipient == null || recallId.endsWith("/" + recipient)
+                ? recallId : SmppMultiSubmitter.destinationId(recallId, recipient);
+        return destination + '\t' + status;
+    }
+
+    private boolean isRemembered(String key) {
+        rotateIfDue();
+        return current.contains(key) || previous.contains(key);
+    }
+
+    // Adds the key to the current generation, so a key in the previous one is carried over
+
+    private void remember(String key) {
+        rotateIfDue();
+        current.add(key);
+    }
+
+    private void rotateIfDue() {
+        long now = System.nanoTime();
+        if (now - rotateAt >= 0 || current.size() >= maxEntries / 2) {
+            synchronized (this) {
+                boolean due = now - rotateAt >= 0;
+                if (due || current.size() >= maxEntries / 2) {
+                    if (!due) {
+                        LOG.debug("Rotating receipt keys early at {} entries", current.size());
+                        earlyRotationCount.incrementAndGet();
+                    }
+                    previous = current;
+                    current = ConcurrentHashMap.newKeySet();
+                    rotateAt = now + windowNanos;
+                }
+            }
+        }
+    }
+
+    @ManagedAttribute(description = "Number of reports passed on")
+    public long getPassedCount() {
+        return passedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of reports suppressed")
+    public long getSuppressedCount() {
+        return suppressedCounts.values().stream().mapToLong(AtomicLong::get).sum();
+    }
+
+    @ManagedAttribute(description = "Number of reports suppressed by status")
+    public String getSuppressedByStatus() {
+        Map<String, Long> map = new TreeMap<>();
+        suppressedCounts.forEach((status, count) -> map.put(status, count.get()));
+        return map.toString();
+    }
+
+    @ManagedAttribute(description = "Number of (destination, status) pairs remembered")
+    public int getRememberedCount() {
+        return current.size() + previous.size();
+    }
+
+    @ManagedAttribute(description = "Number of times the remembered pairs were rotated out early to stay within max-entries")
+    public long getEarlyRotationCount() {
+        return earlyRotationCount.get();
+    }
+}
@@ -0,0 +1,229 @@
+package it.zwets.sms.gateway.comp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_BACKEND;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_ERROR_TEXT;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMSC;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_HEADER_SENDER;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_HEADER_TO;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_INVALID;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import it.zwets.sms.gateway.dto.SmsMessage;
+
+/**
+ * Routes each request to a backend by its recipient number.
+ *
+ * Looks up the recipient in the {@link PortabilityTable}, and when it was
+ * ported takes the route of its network, else looks up the route for its
+ * prefix in the {@link RoutingTable}.  Then checks the recipient
+ * and sender against the route's patterns, and sets the backend header (and
+ * the smsc header, when the route prefers an SMSC target) for the backend
+ * route to act on.  A request that has no route, or does not match it, is
+ * set INVALID.
+ *
+ * The table is loaded from the configured file, and can be reloaded over JMX
+ * while we run.  Requests in flight finish on the table they started with,
+ * and a table that fails to load leaves the current one in place.  Without
+ * a file, all <code>+255</code> numbers go to the one configured backend.
+ * The portability table is loaded and reloaded in the same way, from the
+ * latest dump, and is empty without one.
+ *
+ * Does nothing if sms-status is already set on entry.
+ */
+@ManagedResource(objectName = "it.zwets.sms.gateway:name=RecipientRouter", description = "Routing of recipients to backends")
+public class RecipientRouter implements Processor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RecipientRouter.class);
+
+    private final String location;
+    private final String portabilityLocation;
+    private final Map<String, AtomicLong> routedCounts = new ConcurrentHashMap<>();
+    private final AtomicLong unroutableCount = new AtomicLong();
+    private final AtomicLong portedCount = new AtomicLong();
+
+    private volatile RoutingTable table;
+    private volatile Instant loadedAt;
+    private volatile PortabilityTable portability = PortabilityTable.EMPTY;
+    private volatile Instant portabilityLoadedAt;
+
+    /**
+     * Create a router.
+     *
+     * @param location the routing table file (or <code>classpath:</code> resource), empty for none
+     * @param portabilityLocation the portability dump file (or <code>classpath:</code> resource), empty for none
+     * @param defaultBackend the backend for all <code>+255</code> numbers when there is no file
+     * @throws IOException when the routing table or portability dump cannot be read
+     */
+    public RecipientRouter(String location, String portabilityLocation, String defaultBackend) throws IOException {
+        this.location = location;
+        this.portabilityLocation = portabilityLocation;
+        this.table = location.isBlank() ? RoutingTable.single(defaultBackend) : RoutingTable.load(location);
+        this.loadedAt = Instant.now();
+        LOG.info("Loaded routing table with {} routes from {}", table.getRoutes().size(), location.isBlank() ? "defaults" : location);
+        if (!portabilityLocation.isBlank()) {
+            this.portability = PortabilityTable.load(portabilityLocation);
+            this.portabilityLoadedAt = Instant.now();
+            LOG.info("Loaded portability table with {} numbers from {}", portability.size(), portabilityLocation);
+        }
+    }
+
+    @Override
+    public void process(Exchange exchange) {
+
+        Message msg = exchange.getIn();
+
+        if (msg.getHeader(HEADER_SMS_STATUS) != null) {
+            LOG.debug("Skipping, status already {}", msg.getHeader(HEADER_SMS_STATUS));
+            return;
+        }
+
+        SmsMessage sms = msg.getBody(SmsMessage.class);
+        String recipient = sms.getHeader(SMS_HEADER_TO);
+        String sender = sms.getHeader(SMS_HEADER_SENDER);
+        RoutingTable routes = table;
+        RoutingTable.Route route = null;
+
+        if (recipient != null) {
+            String network = portability.lookup(recipient);
+            route = network != null ? routes.lookupNetwork(network) : null;
+            if (route != null) {
+                LOG.debug("Recipient {} is ported to network {}", recipient, network);
+                portedCount.incrementAndGet();
+            }
+            else {
+                route = routes.lookup(recipient);
+            }
+        }
+
+        if (recipient == null) {
+            msg.setHeader(HEADER_ERROR_TEXT, "SMS lacks recipient");
+        }
+        else if (route == null) {
+            msg.setHeader(HEADER_ERROR_TEXT, "Gateway has no route for SMS recipient: %s".formatted(recipient));
+        }
+        else if (!route.recipient().matcher(recipient).matches()) {
+            msg.setHeader(HEADER_ERROR_TEXT, "Recipient number invalid for route %s: %s".formatted(route.name(), recipient));
+        }
+        else if (sender != null && !route.sender().matcher(sender).matches()) {
+            msg.setHeader(HEADER_ERROR_TEXT, "SMS sender not allowed on route %s: %s".formatted(route.name(), sender));
+        }
+        else {
+            LOG.debug("Routing SMS for {} over route {} to {}", recipient, route.name(), route.backend());
+            msg.setHeader(HEADER_BACKEND, route.backend());
+            if (route.smsc() != null) {
+                msg.setHeader(HEADER_SMSC, route.smsc());
+            }
+            routedCounts.computeIfAbsent(route.name(), k -> new AtomicLong()).incrementAndGet();
+            return;
+        }
+
+        LOG.error("Failed to route request: {}", msg.getHeader(HEADER_ERROR_TEXT));
+        msg.setHeader(HEADER_SMS_STATUS, SMS_STATUS_INVALID);
+        unroutableCount.incrementAndGet();
+    }
+
+    /**
+     * Reloads the routing table from its file.
+     *
+     * @return a description of the outcome
+     */
+    @ManagedOperation(description = "Reload the routing table from its file")
+    public String reload() {
+        if (location.isBlank()) {
+            return "No routing table file configured";
+        }
+        try {
+            RoutingTable loaded = RoutingTable.load(location);
+            table = loaded;
+            loadedAt = Instant.now();
+            LOG.info("Reloaded routing table with {} routes from {}", loaded.getRoutes().size(), location);
+            return "Loaded %d routes".formatted(loaded.getRoutes().size());
+        }
+        catch (IOException | RuntimeException e) {
+            LOG.error("Failed to reload routing table from {}, keeping the current one: {}", location, e.getMessage());
+            return "Failed, keeping current table: %s".formatted(e.getMessage());
+        }
+    }
+
+    /**
+     * Reloads the portability table from its dump.
+     *
+     * The new table is built while the current one stays in use, and then
+     * swapped in, so for a while both are in memory.
+     *
+     * @return a description of the outcome
+     */
+    @ManagedOperation(description = "Reload the portability table from its dump")
+    public String reloadPortability() {
+        if (portabilityLocation.isBlank()) {
+            return "No portability dump configured";
+        }
+        try {
+            PortabilityTable loaded = PortabilityTable.load(portabilityLocation);
+            portability = loaded;
+            portabilityLoadedAt = Instant.now();
+            LOG.info("Reloaded portability table with {} numbers from {}", loaded.size(), portabilityLocation);
+            return "Loaded %d numbers".formatted(loaded.size());
+        }
+        catch (IOException | RuntimeException e) {
+            LOG.error("Failed to reload portability table from {}, keeping the current one: {}", portabilityLocation, e.getMessage());
+            return "Failed, keeping current table: %s".formatted(e.getMessage());
+        }
+    }
+
+    @ManagedAttribute(description = "The routes: name, backend and preferred SMSC")
+    public String getRoutes() {
+        return table.getRoutes().stream()
+            .map(r -> "%s: %s%s".formatted(r.name(), r.backend(), r.smsc() != null ? "/" + r.smsc() : ""))
+            .collect(Collectors.joining(", ", "{", "}"));
+    }
+
+    @ManagedAttribute(description = "Time the routing table was loaded")
+    public String getLoadedAt() {
+        return loadedAt.toString();
+    }
+
+    @ManagedAttribute(description = "Number of requests routed, by route")
+    public String getRoutedByRoute() {
+        Map<String, Long> map = new TreeMap<>();
+        routedCounts.forEach((route, count) -> map.put(route, count.get()));
+        return map.toString();
+    }
+
+    @ManagedAttribute(description = "Number of ported numbers in the portability table")
+    public int getPortedNumbers() {
+        return portability.size();
+    }
+
+    @ManagedAttribute(description = "Time the portability table was loaded, if it was")
+    public String getPortabilityLoadedAt() {
+        return portabilityLoadedAt != null ? portabilityLoadedAt.toString() : null;
+    }
+
+    @ManagedAttribute(description = "Number of requests routed by the network they were ported to")
+    public long getPortedCount() {
+        return portedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of requests that had no route or did not match it")
+    public long getUnroutableCount() {
+        return unroutableCount.get();
+    }
+}
@@ -2,6 +2,7 @@ package it.zwets.sms.gateway.comp;
 
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CLIENT_ID;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CORREL_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_DEADLINE;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_ERROR_TEXT;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_EXPIRED;
@@ -26,7 +27,8 @@ import it.zwets.sms.gateway.dto.SendSmsRequest;
  * 
  * Transforms the incoming request string to a {@link SendSmsRequest}
  * and copies client-id and correl-id to message headers so these can
- * can eventually be copied to the reponse.
+ * can eventually be copied to the reponse.  The parsed deadline goes in
+ * a header too, for the dispatch stage to order and re-check on.
  * 
  * Upon completion of the <code>process</code> method, either the body
  * is a valid {@link SendSmsRequest}, or it is unchanged and the header 
@@ -90,6 +92,7 @@ public class RequestProcessor implements Processor {
                             }
                             else {
                                 LOG.debug("Request has passed validation");
+                                msg.setHeader(HEADER_DEADLINE, deadline);
                                 msg.setBody(req);
                             }
                         }
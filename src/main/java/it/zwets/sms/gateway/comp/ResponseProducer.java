@@ -4,15 +4,21 @@ import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CLIE
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CORREL_ID;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_ERROR_TEXT;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_RECALL_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_RECIPIENT;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_TIMESTAMP;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Message;
 import org.apache.camel.Processor;
+import org.apache.camel.support.DefaultMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -20,6 +26,8 @@ import org.springframework.stereotype.Component;
 
 import it.zwets.sms.gateway.dto.CorrelationRecord;
 import it.zwets.sms.gateway.dto.SmsStatusResponse;
+import it.zwets.sms.gateway.smpp.SmppMultiSubmitter;
+import it.zwets.sms.gateway.smpp.SmppReconciler;
 
 /**
  * Produces the outbound response message.
@@ -29,19 +37,139 @@ import it.zwets.sms.gateway.dto.SmsStatusResponse;
  * 
  * The message contents are copied from the header fields set during routing.
  * If we have no client-id or correl-id, the in-body is not touched.
+ *
+ * Delivery reports come in bursts and are responded to in batches, see
+ * {@link #processBatch(Exchange)}.
+ *
+ * A delivery report for a message that went out in a submit_multi carries
+ * the message ID shared by all its recipients.  When the correlation table
+ * has that ID qualified with the report's recipient (see
+ * {@link SmppMultiSubmitter#destinationId}), that becomes the recall-id.
+ *
+ * A delivery report that has no correlation record may be for a submit
+ * whose response never came.  It is offered to the {@link SmppReconciler},
+ * which correlates it when it has such a submit for its recipient.
  */
 @Component
 public class ResponseProducer implements Processor {
     
     private static final Logger LOG = LoggerFactory.getLogger(ResponseProducer.class);
 
+    private static final long CORRELATION_WAIT = 1000;
+
     @Autowired
     private CorrelationTable correlationTable;
+
+    @Autowired(required = false)
+    private SmppReconciler smppReconciler;
     
     public void process(Exchange exchange) throws Exception {
         
         Message msg = exchange.getIn();
         
+        // If we don't have clientId and correlId but we do have recallId then
+        // the correlation table should hopefully have the mapping or receive
+        // it very soon (race condition: we can get here before correlation
+        // route has picked it up from the Kafka topic and added it to table).
+        
+        if (needsCorrelation(msg) && !correlate(msg)) {
+            LOG.debug("No correlation record found for recall ID {}, retrying in one second", msg.getHeader(HEADER_RECALL_ID));
+            Thread.sleep(CORRELATION_WAIT);
+            correlateOrGiveUp(msg);
+        }
+
+        produce(msg);
+    }
+
+    /**
+     * Produces the responses for a batch of exchanges, as grouped by the
+     * aggregator on the delivery report stage.
+     *
+     * Does the same as {@link #process(Exchange)} for each exchange in the
+     * batch, but waits for missing correlation records once for the whole
+     * batch, rather than once per message.  Replaces the body with the list
+     * of the messages that have a response in their body, so that they can
+     * be marshalled and sent on as a batch.
+     *
+     * @param exchange the exchange with a list of exchanges as its body
+     * @throws InterruptedException if interrupted while waiting for correlation records
+     */
+    public void processBatch(Exchange exchange) throws InterruptedException {
+
+        @SuppressWarnings("unchecked")
+        List<Exchange> batch = exchange.getIn().getBody(List.class);
+
+        List<Message> uncorrelated = new ArrayList<>();
+        for (Exchange item : batch) {
+            Message msg = item.getIn();
+            if (needsCorrelation(msg) && !correlate(msg)) {
+                uncorrelated.add(msg);
+            }
+        }
+
+        if (!uncorrelated.isEmpty()) {
+            LOG.debug("No correlation record found for {} of {} recall IDs, retrying in one second", uncorrelated.size(), batch.size());
+            Thread.sleep(CORRELATION_WAIT);
+            uncorrelated.forEach(this::correlateOrGiveUp);
+        }
+
+        List<Message> responses = new ArrayList<>(batch.size());
+        for (Exchange item : batch) {
+            if (produce(item.getIn())) {
+                responses.add(item.getIn());
+            }
+        }
+
+        LOG.debug("Produced {} responses for batch of {}", responses.size(), batch.size());
+        exchange.getIn().setBody(responses);
+    }
+
+    // True if the message has a status to report but no client-id or correl-id yet
+    
+    private boolean needsCorrelation(Message msg) {
+        return msg.getHeader(HEADER_SMS_STATUS) != null 
+                && (msg.getHeader(HEADER_CORREL_ID) == null || msg.getHeader(HEADER_CLIENT_ID) == null)
+                && msg.getHeader(HEADER_RECALL_ID) != null;
+    }
+
+    // Sets the client-id and correl-id from the correlation table, if it has the recall-id
+    
+    private boolean correlate(Message msg) {
+        String recallId = msg.getHeader(HEADER_RECALL_ID, String.class);
+
+        String recipient = msg.getHeader(HEADER_RECIPIENT, String.class);
+
+        LOG.debug("Retrieving correl-id and client-id for recall-id {}", recallId);
+        CorrelationRecord rec = recipient != null
+                ? correlationTable.fetch(SmppMultiSubmitter.destinationId(recallId, recipient))
+                : null;
+
+        if (rec != null) {
+            msg.setHeader(HEADER_RECALL_ID, rec.recallId());
+        }
+        else {
+            rec = correlationTable.fetch(recallId);
+        }
+
+        if (rec != null) {
+            LOG.debug("Found correlation record {} -> {}:{}", rec.recallId(), rec.clientId(), rec.correlId());
+            msg.setHeader(HEADER_CLIENT_ID, rec.clientId());
+            msg.setHeader(HEADER_CORREL_ID, rec.correlId());
+        }
+
+        return rec != null;
+    }
+
+    private void correlateOrGiveUp(Message msg) {
+        if (!correlate(msg) && (smppReconciler == null || !smppReconciler.claim(msg))) {
+            LOG.error("No correlation record found for recall ID {}, no response will be sent to client", msg.getHeader(HEADER_RECALL_ID));
+        }
+    }
+
+    // Sets the response on the body if we have what is needed, returns true if we did
+    
+    private boolean produce(Message msg) {
+        
         String clientId = msg.getHeader(HEADER_CLIENT_ID, String.class);
         String correlId = msg.getHeader(HEADER_CORREL_ID, String.class);
         String timeStamp = msg.getHeader(HEADER_TIMESTAMP, Instant.now(), Instant.class).truncatedTo(ChronoUnit.SECONDS).toString();
@@ -49,43 +177,11 @@ public class ResponseProducer implements Processor {
         String recallId = msg.getHeader(HEADER_RECALL_ID, String.class);
         String errorText = msg.getHeader(HEADER_ERROR_TEXT, String.class);
 
-        // If we don't have clientId and correlId but we do have recallId then
-        // the correlation table should hopefully have the mapping or receive
-        // it very soon (race condition: we can get here before correlation
-        // route has picked it up from the Kafka topic and added it to table).
-        
         if (smsStatus == null) {
             LOG.warn("Not producing response: SMS_STATUS header is not set");
         }
-        else if (correlId == null || clientId == null) {
-            
-            if (recallId == null) {
-                LOG.error("No recall-id and no correl-id or client-id, no response will be sent to client");
-            }
-            else {
-                LOG.debug("Retrieving correl-id and client-id for recall-id {}", recallId);
-                
-                CorrelationRecord rec = correlationTable.fetch(recallId);
-        
-                if (rec == null) {
-                    LOG.debug("No correlation record found for recall ID {}, retrying in one second", recallId);
-                    Thread.sleep(1000);
-                    rec = correlationTable.fetch(recallId);
-                }
-                
-                if (rec != null) {
-                    LOG.debug("Found correlation record {} -> {}:{}", rec.recallId(), rec.clientId(), rec.correlId());
-
-                    clientId = rec.clientId();
-                    msg.setHeader(HEADER_CLIENT_ID, clientId);
-
-                    correlId = rec.correlId();
-                    msg.setHeader(HEADER_CORREL_ID, correlId);
-                }
-                else {
-                    LOG.error("No correlation record found for recall ID {}, no response will be sent to client", recallId);
-                }
-            }
+        else if ((correlId == null || clientId == null) && recallId == null) {
+            LOG.error("No recall-id and no correl-id or client-id, no response will be sent to client");
         }
 
         // Make sure we return sane response
@@ -93,6 +189,41 @@ public class ResponseProducer implements Processor {
         if (correlId != null && clientId != null && smsStatus != null) {
             LOG.debug("Producing response: {}:{}:{}:{}:{}:{}", clientId, correlId, timeStamp, smsStatus, recallId, errorText);
             msg.setBody(new SmsStatusResponse(clientId, correlId, timeStamp, smsStatus, recallId, errorText));
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Groups the client log records of a batch of responses by client.
+     *
+     * Replaces the body, a list of messages as left by {@link #processBatch(Exchange)}
+     * with the TSV record in the given header, by a list of messages, one per
+     * client, with the client's log file name and the records to append.
+     *
+     * @param exchange the exchange with a list of messages as its body
+     * @param tsvHeader the header that holds the TSV record of each message
+     */
+    public void groupClientLogs(Exchange exchange, String tsvHeader) {
+
+        @SuppressWarnings("unchecked")
+        List<Message> responses = exchange.getIn().getBody(List.class);
+
+        Map<String, StringBuilder> records = new LinkedHashMap<>();
+        for (Message msg : responses) {
+            records.computeIfAbsent(msg.getHeader(HEADER_CLIENT_ID, String.class), k -> new StringBuilder())
+                .append(msg.getHeader(tsvHeader, String.class));
         }
+
+        List<Message> logs = new ArrayList<>(records.size());
+        records.forEach((clientId, tsv) -> {
+            Message log = new DefaultMessage(exchange.getContext());
+            log.setHeader(Exchange.FILE_NAME, clientId + ".log");
+            log.setBody(tsv.toString());
+            logs.add(log);
+        });
+
+        exchange.getIn().setBody(logs);
     }
 }
@@ -0,0 +1,226 @@
+package it.zwets.sms.gateway.comp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import it.zwets.sms.gateway.SmsGatewayConfiguration;
+
+/**
+ * Maps recipient numbers to the route that serves them, by longest prefix.
+ *
+ * Each route names its backend (SMPP or WASP), optionally the SMSC target
+ * to prefer on the SMPP backend, and the patterns that the recipient and the
+ * sender must match.  The prefixes of all routes are compiled into a trie on
+ * the digits, so a lookup takes one step per digit of the number, however
+ * many routes there are.  A table is immutable; to change the routing, load
+ * a new one.
+ *
+ * Tables are read from a properties file with, for each route NAME:
+ * <pre>
+ * route.NAME.prefixes = +255, +25568   (comma separated, "+" alone matches all)
+ * route.NAME.backend = SMPP            (or WASP)
+ * route.NAME.smsc = voda               (optional)
+ * route.NAME.recipient = \\+255\\d{9}  (optional, default \+\d{8,15})
+ * route.NAME.sender = .{1,11}          (optional, this is the default)
+ * route.NAME.networks = voda, 64004    (optional, see below)
+ * </pre>
+ *
+ * The networks are the codes that the {@link PortabilityTable} gives for
+ * numbers ported to the network the route serves.  A ported number takes
+ * the route of its network, rather than that of its prefix.
+ */
+public final class RoutingTable {
+
+    public static final String DEFAULT_RECIPIENT = "\\+\\d{8,15}";
+    public static final String DEFAULT_SENDER = ".{1,11}";
+
+    private static final Pattern PREFIX_REGEX = Pattern.compile("^\\+?\\d*$");
+    private static final Pattern KEY_REGEX = Pattern.compile("^route\\.([^.]+)\\.(prefixes|backend|smsc|recipient|sender|networks)$");
+
+    /**
+     * A route in the table.
+     *
+     * @param name the name of the route
+     * @param backend the backend to submit to
+     * @param smsc the SMSC target to prefer, or null
+     * @param recipient the pattern the recipient number must match
+     * @param sender the pattern the sender must match
+     */
+    public record Route(String name, String backend, String smsc, Pattern recipient, Pattern sender) {
+    }
+
+    // A node in the trie has a child per digit, and the route whose prefix ends here
+
+    private static final class Node {
+        final Node[] children = new Node[10];
+        Route route;
+    }
+
+    private final Node root = new Node();
+    private final List<Route> routes;
+    private final Map<String, Route> networks = new HashMap<>();
+
+    private RoutingTable(List<Route> routes, List<List<String>> prefixes, List<List<String>> networks) {
+        this.routes = Collections.unmodifiableList(routes);
+        for (int i = 0; i < routes.size(); ++i) {
+            for (String prefix : prefixes.get(i)) {
+                add(prefix, routes.get(i));
+            }
+            for (String network : networks.get(i)) {
+                Route other = this.networks.putIfAbsent(network, routes.get(i));
+                if (other != null) {
+                    throw new IllegalArgumentException("Network %s is on both route %s and %s".formatted(network, other.name(), routes.get(i).name()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the route of the longest prefix that the recipient starts with.
+     *
+     * @param recipient the recipient number, with or without leading "+"
+     * @return the route, or null if no prefix matches
+     */
+    public Route lookup(String recipient) {
+        Node node = root;
+        Route route = root.route;
+        for (int i = recipient.startsWith("+") ? 1 : 0; i < recipient.length(); ++i) {
+            int digit = recipient.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || (node = node.children[digit]) == null) {
+                break;
+            }
+            if (node.route != null) {
+                route = node.route;
+            }
+        }
+        return route;
+    }
+
+    /**
+     * Returns the route that serves the network.
+     *
+     * @param network the network code, as in the portability table
+     * @return the route, or null if no route serves the network
+     */
+    public Route lookupNetwork(String network) {
+        return networks.get(network);
+    }
+
+    /**
+     * @return the routes in the table
+     */
+    public List<Route> getRoutes() {
+        return routes;
+    }
+
+    /**
+     * Returns the table that routes all <code>+255</code> numbers to the
+     * backend, as the gateway did before it had routing tables.
+     *
+     * @param backend the backend to route to
+     * @return the routing table
+     */
+    public static RoutingTable single(String backend) {
+        return new RoutingTable(
+                List.of(new Route("default", checkBackend(backend), null, Pattern.compile("\\+255\\d{9}"), Pattern.compile(DEFAULT_SENDER))),
+                List.of(List.of("+255")),
+                List.of(List.of()));
+    }
+
+    /**
+     * Loads a routing table from a properties file.
+     *
+     * @param location the file name, or <code>classpath:</code> and the resource name
+     * @return the routing table
+     * @throws IOException when the file cannot be read
+     * @throws IllegalArgumentException when the table is invalid
+     */
+    public static RoutingTable load(String location) throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = location.startsWith("classpath:")
+                ? RoutingTable.class.getClassLoader().getResourceAsStream(location.substring(10))
+                : new FileInputStream(new File(location))) {
+            if (in == null) {
+                throw new IOException("No such resource: %s".formatted(location));
+            }
+            props.load(in);
+        }
+        return parse(props);
+    }
+
+    /**
+     * Parses a routing table from properties.
+     *
+     * @param props the properties, as described in the class comment
+     * @return the routing table
+     * @throws IllegalArgumentException when the table is invalid
+     */
+    public static RoutingTable parse(Properties props) {
+        TreeSet<String> names = new TreeSet<>();
+        for (String key : props.stringPropertyNames()) {
+            var matcher = KEY_REGEX.matcher(key);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Invalid routing table key: %s".formatted(key));
+            }
+            names.add(matcher.group(1));
+        }
+
+        List<Route> routes = new ArrayList<>(names.size());
+        List<List<String>> prefixes = new ArrayList<>(names.size());
+        List<List<String>> networks = new ArrayList<>(names.size());
+        for (String name : names) {
+            String key = "route.%s.".formatted(name);
+            String prefixList = props.getProperty(key + "prefixes", "").trim();
+            if (prefixList.isEmpty()) {
+                throw new IllegalArgumentException("Route %s has no prefixes".formatted(name));
+            }
+            String smsc = props.getProperty(key + "smsc", "").trim();
+            routes.add(new Route(name,
+                    checkBackend(props.getProperty(key + "backend", "")),
+                    smsc.isEmpty() ? null : smsc,
+                    Pattern.compile(props.getProperty(key + "recipient", DEFAULT_RECIPIENT).trim()),
+                    Pattern.compile(props.getProperty(key + "sender", DEFAULT_SENDER).trim())));
+            prefixes.add(List.of(prefixList.split(" *, *")));
+            String networkList = props.getProperty(key + "networks", "").trim();
+            networks.add(networkList.isEmpty() ? List.of() : List.of(networkList.split(" *, *")));
+        }
+
+        return new RoutingTable(routes, prefixes, networks);
+    }
+
+    private void add(String prefix, Route route) {
+        if (!PREFIX_REGEX.matcher(prefix).matches()) {
+            throw new IllegalArgumentException("Invalid prefix for route %s: %s".formatted(route.name(), prefix));
+        }
+        Node node = root;
+        for (int i = prefix.startsWith("+") ? 1 : 0; i < prefix.length(); ++i) {
+            int digit = prefix.charAt(i) - '0';
+            if (node.children[digit] == null) {
+                node.children[digit] = new Node();
+            }
+            node = node.children[digit];
+        }
+        if (node.route != null) {
+            throw new IllegalArgumentException("Prefix %s is on both route %s and %s".formatted(prefix, node.route.name(), route.name()));
+        }
+        node.route = route;
+    }
+
+    private static String checkBackend(String backend) {
+        String name = backend.trim().toUpperCase();
+        if (!name.equals(SmsGatewayConfiguration.BACKEND_SMPP) && !name.equals(SmsGatewayConfiguration.BACKEND_WASP)) {
+            throw new IllegalArgumentException("Not a valid backend: %s".formatted(backend));
+        }
+        return name;
+    }
+}
@@ -2,6 +2,8 @@ package it.zwets.sms.gateway.comp;
 
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_ERROR_TEXT;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_RECALL_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_RECIPIENT;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMSC;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_DELIVERED;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_EXPIRED;
@@ -18,23 +20,32 @@ import org.apache.camel.Message;
 import org.apache.camel.Processor;
 import org.apache.camel.component.smpp.SmppConstants;
 import org.apache.camel.component.smpp.SmppMessage;
+import org.apache.camel.component.smpp.SmppUtils;
+import org.jsmpp.bean.DeliverSm;
 import org.jsmpp.util.DeliveryReceiptState;
 import org.jsmpp.util.HexUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import it.zwets.sms.codec.SmsDecoder;
 import it.zwets.sms.gateway.dto.InboundSms;
+import it.zwets.sms.gateway.smpp.SmppBindPool;
 
 
 /**
- * Processes asynchronous delivery reports from the SMPP gateway.
+ * Processes asynchronous delivery reports and inbound SMS from the SMPP gateway.
  * 
  * Transforms the headers on the response coming from Camel SMPP to exchange
  * headers that the SMS route will translate to a response to the client.
  * 
- * When the <code>process</code> method has completed, the message header
- * sms-status is guaranteed to be set.  Does nothing if sms-status is already
- * set on entry.
+ * When the <code>process</code> method has completed on a delivery report,
+ * the message header sms-status is guaranteed to be set.  On an inbound SMS,
+ * the body is an {@link InboundSms} and sms-status is not set.  Does nothing
+ * if sms-status is already set on entry.
+ *
+ * On a delivery report, the recipient header is set to the number the
+ * report is for.  The recipients of a submit_multi share its message ID,
+ * and the {@link ResponseProducer} uses the recipient to tell them apart.
  */
 public class SmppInboundProcessor implements Processor {
  
@@ -84,7 +95,7 @@ public class SmppInboundProcessor implements Processor {
         String timeStamp = Instant.now().truncatedTo(ChronoUnit.SECONDS).toString();
         String sender = smppMsg.getHeader(SmppConstants.SOURCE_ADDR, String.class);
         String recipient = smppMsg.getHeader(SmppConstants.DEST_ADDR,   String.class);
-        String body = smppMsg.getBody(String.class);
+        String body = decodeBody(smppMsg);
         Integer seqNum = smppMsg.getHeader(SmppConstants.SEQUENCE_NUMBER, Integer.class);
         String serviceType = smppMsg.getHeader(SmppConstants.SERVICE_TYPE, String.class);
 //      String validityPeriod = smppMsg.getHeader(SmppConstants.VALIDITY_PERIOD, String.class);
@@ -98,10 +109,6 @@ public class SmppInboundProcessor implements Processor {
         }
 
         msg.setBody(new InboundSms(sender, recipient, body, timeStamp, String.valueOf(seqNum)));
-        
-        LOG.warn("Ignoring an incoming SMS from the SMSC (sender={}, recipient={}, seqnum={}, svctype={}, body={})",
-                sender, recipient, seqNum, serviceType, body);
-        msg.getExchange().setRouteStop(true);
     }
 
     private void processDeliveryReceipt(Message msg, SmppMessage smppMsg) {
@@ -126,6 +133,14 @@ public class SmppInboundProcessor implements Processor {
                 recallId = recallId.replaceFirst("^0+", "");
             }
 
+            // Message IDs are per SMSC, so we qualify it with the one the report came from
+            recallId = SmppBindPool.recallId(msg.getHeader(HEADER_SMSC, String.class), recallId);
+
+            // The source of a receipt is the recipient, which tells apart the receipts for a submit_multi
+            if (smppMsg.getCommand() instanceof DeliverSm deliverSm && deliverSm.getSourceAddr() != null) {
+                msg.setHeader(HEADER_RECIPIENT, deliverSm.getSourceAddr());
+            }
+
             LOG.info("Delivery receipt for recall-id {}: {} (error {})", recallId, state, error);
             msg.setHeader(HEADER_RECALL_ID, recallId);
         }
@@ -171,6 +186,23 @@ public class SmppInboundProcessor implements Processor {
         }
     }
 
+    // Decode the short message ourselves, as Camel SMPP decodes the default
+    // alphabet with the configured charset; fall back to its body otherwise
+
+    private String decodeBody(SmppMessage smppMsg) {
+        if (smppMsg.getCommand() instanceof DeliverSm deliverSm) {
+            byte[] message = SmppUtils.getMessageBody(deliverSm);
+            if (message != null) {
+                String text = SmsDecoder.decode(deliverSm.getDataCoding(), message,
+                        deliverSm.isUdhi() || deliverSm.isUdhiAndReplyPath());
+                if (text != null) {
+                    return text;
+                }
+            }
+        }
+        return smppMsg.getBody(String.class);
+    }
+
     private void logOptionalParams(SmppMessage smppMsg) {
         LOG.debug("Optional parameters received");
         @SuppressWarnings("unchecked")
@@ -1,12 +1,15 @@
 package it.zwets.sms.gateway.comp;
 
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_DEADLINE;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_ERROR_TEXT;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_HEADER_SENDER;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_HEADER_TO;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_EXPIRED;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_INVALID;
 
-import java.util.regex.Pattern;
+import java.time.Duration;
+import java.time.Instant;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Message;
@@ -25,20 +28,36 @@ import it.zwets.sms.gateway.dto.SmsMessage;
  * Transforms the in body from {@link SmsMessage} to a text body, and
  * sets the exchange headers needed for SMPP (see {@link SmppSubmitSmCommand}).
  * 
+ * The recipient and sender have been checked against the route by the
+ * {@link RecipientRouter}.
+ * 
+ * The validity period is set (in relative format) to the time left until
+ * the request deadline, capped at the configured maximum, so that the SMSC
+ * stops trying to deliver when the client no longer cares.
+ * 
  * When the <code>process</code> method has completed, the message header
  * sms-status will be either unset the message can be processed, or INVALID
- * and error will be set.
+ * and error will be set, or EXPIRED if the deadline has passed.
  *
  * Does nothing if sms-status is already set on entry.
  */
 public class SmppRequestProducer implements Processor {
     
     private static final Logger LOG = LoggerFactory.getLogger(SmppRequestProducer.class);
-    private static final Pattern RECIPIENT_REGEX = Pattern.compile("^\\+255\\d{9}$");
-    private static final Pattern SENDER_REGEX = Pattern.compile("^.{1,11}$");
 
-    public SmppRequestProducer() {
-        LOG.debug("Constructing SmppRequestProducer");
+    // The relative format has two digits for days (and we don't use months)
+    private static final long MAX_VALIDITY_SECONDS = Duration.ofDays(99).toSeconds();
+
+    private final long maxValiditySeconds;
+
+    /**
+     * Create the producer.
+     *
+     * @param maxValidity the maximum validity period to give a message
+     */
+    public SmppRequestProducer(Duration maxValidity) {
+        LOG.debug("Constructing SmppRequestProducer with max validity {}", maxValidity);
+        this.maxValiditySeconds = Math.min(maxValidity.toSeconds(), MAX_VALIDITY_SECONDS);
     }
 
     @Override
@@ -56,22 +75,19 @@ public class SmppRequestProducer implements Processor {
             String recipient = sms.getHeader(SMS_HEADER_TO);
             String sender = sms.getHeader(SMS_HEADER_SENDER);
             String message = sms.getBody();
+            Instant deadline = msg.getHeader(HEADER_DEADLINE, Instant.class);
+            long secondsLeft = deadline == null ? maxValiditySeconds : Duration.between(Instant.now(), deadline).toSeconds();
             
-            if (recipient == null) {
-                msg.setHeader(HEADER_ERROR_TEXT, "SMS lacks recipient");
+            if (secondsLeft <= 0) {
+                LOG.warn("Request expired before it could be submitted");
+                msg.setHeader(HEADER_SMS_STATUS, SMS_STATUS_EXPIRED);
             }
-            else if (!recipient.startsWith("+255")) {
-                msg.setHeader(HEADER_ERROR_TEXT, "Gateway disallows foreign SMS recipient: %s".formatted(recipient));
-            }
-            else if (!RECIPIENT_REGEX.matcher(recipient).matches()) {
-                msg.setHeader(HEADER_ERROR_TEXT, "Recipient number invalid for SMPP backend: %s".formatted(recipient));
+            else if (recipient == null) {
+                msg.setHeader(HEADER_ERROR_TEXT, "SMS lacks recipient");
             }
             else if (sender == null) {
                 msg.setHeader(HEADER_ERROR_TEXT, "SMPP backend requires a message sender");
             }
-            else if (!SENDER_REGEX.matcher(sender).matches()) {
-                msg.setHeader(HEADER_ERROR_TEXT, "SMS sender does not have a 1-11 character length: %s".formatted(sender));
-            }
             else if (message == null || message.isBlank()) {
                 msg.setHeader(HEADER_ERROR_TEXT, "SMS message is empty");
             }
@@ -81,8 +97,8 @@ public class SmppRequestProducer implements Processor {
                 msg.setHeader(SmppConstants.SOURCE_ADDR, sender);
                 // 0: Unknown 1: International 2: National 3: Network Specific 4: Subscriber Number 5: Alphanumeric 6: Abbreviated.
                 msg.setHeader(SmppConstants.DEST_ADDR_TON, TypeOfNumber.INTERNATIONAL.value());
-                msg.setHeader(SmppConstants.DEST_ADDR, recipient.substring(1)); // trim the '+' prefix off the number 
-                // msg.setHeader(SmppConstants.VALIDITY_PERIOD, ???);
+                msg.setHeader(SmppConstants.DEST_ADDR, recipient.startsWith("+") ? recipient.substring(1) : recipient); // trim any '+' prefix off the number
+                msg.setHeader(SmppConstants.VALIDITY_PERIOD, relativeValidity(Math.min(secondsLeft, maxValiditySeconds)));
                 msg.setBody(message);
             }
             
@@ -92,4 +108,16 @@ public class SmppRequestProducer implements Processor {
             }
         }
     }
+
+    /**
+     * Formats a validity period in the SMPP relative time format
+     * <code>YYMMDDhhmmss000R</code> (SMPP 3.4 section 7.1.1).
+     *
+     * @param seconds the validity period in seconds, less than 100 days
+     * @return the relative time string
+     */
+    public static String relativeValidity(long seconds) {
+        return "0000%02d%02d%02d%02d000R".formatted(
+                seconds / 86400, seconds / 3600 % 24, seconds / 60 % 60, seconds % 60);
+    }
 }
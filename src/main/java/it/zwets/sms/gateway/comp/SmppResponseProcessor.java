@@ -5,6 +5,7 @@ import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CORR
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CORREL_REC;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_ERROR_TEXT;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_RECALL_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMSC;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_FAILED;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_SENT;
@@ -18,6 +19,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
 import it.zwets.sms.gateway.dto.CorrelationRecord;
+import it.zwets.sms.gateway.smpp.SmppBindPool;
 
 
 /**
@@ -32,6 +34,8 @@ import it.zwets.sms.gateway.dto.CorrelationRecord;
  * We add headers to the exchange that the SMS route will translate to a
  * response to the client.  Notably we create a correlation record that will
  * be recorded so that we can correlate subsequent asynchronous notifies.
+ * The recall-id is the message ID, prefixed with the SMSC target it went to
+ * when there are several (see {@link SmppBindPool#recallId}).
  * 
  * When the <code>process</code> method has completed, the message header
  * sms-status is guaranteed to be set.  Does nothing if sms-status is
@@ -65,7 +69,7 @@ public class SmppResponseProcessor implements Processor {
                 
                 if (recallIds != null && recallIds.length > 0) {
 
-                    String recallId = recallIds[recallIds.length - 1];
+                    String recallId = SmppBindPool.recallId(msg.getHeader(HEADER_SMSC, String.class), recallIds[recallIds.length - 1]);
                     LOG.debug("SMS was SENT with recall-id {}", recallId);
 
                     // The correlation record we set here will be persistend to Kafka downstream
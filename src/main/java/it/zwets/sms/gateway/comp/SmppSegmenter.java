@@ -0,0 +1,85 @@
+package it.zwets.sms.gateway.comp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SEGMENTS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import it.zwets.sms.codec.SmsEncoder;
+
+/**
+ * Encodes the text body produced by {@link SmppRequestProducer} into the
+ * short messages to submit.
+ *
+ * Replaces the body with an {@link SmsEncoder.Encoded}, in GSM 03.38 when
+ * the text fits that alphabet and UCS-2 otherwise, and concatenated with a
+ * user data header when it takes more than one segment.  Sets the segments
+ * header to the number of segments.
+ *
+ * Does nothing if sms-status is already set on entry.
+ */
+@ManagedResource(objectName = "it.zwets.sms.gateway:name=SmppSegmenter", description = "SMS encoding and segmentation")
+public class SmppSegmenter implements Processor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SmppSegmenter.class);
+
+    private final AtomicInteger reference = new AtomicInteger();
+    private final AtomicLong gsm7Count = new AtomicLong();
+    private final AtomicLong ucs2Count = new AtomicLong();
+    private final AtomicLong concatenatedCount = new AtomicLong();
+    private final AtomicLong segmentCount = new AtomicLong();
+
+    @Override
+    public void process(Exchange exchange) {
+
+        Message msg = exchange.getIn();
+
+        if (msg.getHeader(HEADER_SMS_STATUS) != null) {
+            LOG.debug("Skipping, status already {}", msg.getHeader(HEADER_SMS_STATUS));
+        }
+        else {
+            SmsEncoder.Encoded encoded = SmsEncoder.encode(msg.getBody(String.class), reference.getAndIncrement());
+            int segments = encoded.segments().length;
+
+            LOG.debug("Encoded SMS in {} segment(s) with data coding {}", segments, encoded.dataCoding());
+
+            (encoded.dataCoding() == SmsEncoder.DATA_CODING_GSM7 ? gsm7Count : ucs2Count).incrementAndGet();
+            if (encoded.isConcatenated()) {
+                concatenatedCount.incrementAndGet();
+            }
+            segmentCount.addAndGet(segments);
+
+            msg.setHeader(HEADER_SEGMENTS, segments);
+            msg.setBody(encoded);
+        }
+    }
+
+    @ManagedAttribute(description = "Number of messages encoded in GSM 03.38")
+    public long getGsm7Count() {
+        return gsm7Count.get();
+    }
+
+    @ManagedAttribute(description = "Number of messages encoded in UCS-2")
+    public long getUcs2Count() {
+        return ucs2Count.get();
+    }
+
+    @ManagedAttribute(description = "Number of messages that took more than one segment")
+    public long getConcatenatedCount() {
+        return concatenatedCount.get();
+    }
+
+    @ManagedAttribute(description = "Total number of segments produced")
+    public long getSegmentCount() {
+        return segmentCount.get();
+    }
+}
@@ -0,0 +1,88 @@
+package it.zwets.sms.gateway.comp;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Route;
+import org.apache.camel.component.seda.SedaEndpoint;
+import org.apache.camel.spi.RoutePolicy;
+import org.apache.camel.support.RoutePolicySupport;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Collects queue depth and service time for the stages of the pipeline.
+ *
+ * A stage is one or more routes that are handed a route policy obtained
+ * from {@link #policy(String)}.  The policy times every exchange from begin
+ * to done on the route, and when the route consumes from a SEDA endpoint,
+ * reports the depth of its queue.
+ */
+@ManagedResource(objectName = "it.zwets.sms.gateway:name=StageMonitor", description = "Pipeline stage queue depth and service time")
+public class StageMonitor {
+
+    // Upper bounds (ms) of the service time histogram
+    private static final long[] SERVICE_BOUNDS = { 1, 10, 100, 1_000, 10_000 };
+
+    private final Map<String, Stage> stages = new TreeMap<>();
+
+    /**
+     * Returns the route policy for the named stage.
+     *
+     * @param stage the stage name
+     * @return the policy to put on the stage's route(s)
+     */
+    public synchronized RoutePolicy policy(String stage) {
+        return stages.computeIfAbsent(stage, Stage::new);
+    }
+
+    @ManagedAttribute(description = "Per stage queue depth, exchanges served, and service time histogram (ms)")
+    public synchronized String getStageStats() {
+        StringBuilder sb = new StringBuilder();
+        stages.values().forEach(stage -> sb.append(stage).append('\n'));
+        return sb.toString();
+    }
+
+    private static final class Stage extends RoutePolicySupport {
+
+        private final String name;
+        private final String startProperty;
+        private final Histogram serviceTime = new Histogram(SERVICE_BOUNDS);
+        private final AtomicLong served = new AtomicLong();
+        private volatile IntSupplier depth = () -> 0;
+
+        Stage(String name) {
+            this.name = name;
+            this.startProperty = "stageStart." + name;
+        }
+
+        @Override
+        public void onInit(Route route) {
+            if (route.getEndpoint() instanceof SedaEndpoint seda) {
+                depth = seda::getCurrentQueueSize;
+            }
+        }
+
+        @Override
+        public void onExchangeBegin(Route route, Exchange exchange) {
+            exchange.setProperty(startProperty, System.nanoTime());
+        }
+
+        @Override
+        public void onExchangeDone(Route route, Exchange exchange) {
+            Long start = exchange.getProperty(startProperty, Long.class);
+            if (start != null) {
+                serviceTime.record((System.nanoTime() - start) / 1_000_000);
+                served.incrementAndGet();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "%s: depth=%d served=%d %s".formatted(name, depth.getAsInt(), served.get(), serviceTime);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package it.zwets.sms.gateway.comp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CLIENT_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CORREL_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_EXPIRED;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_FAILED;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_INVALID;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.Processor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Passes on only the status responses that advance a message's lifecycle.
+ *
+ * Each status has a rank, and we remember per (client-id, correl-id) the
+ * rank of the last status we reported.  A response passes only when its
+ * status ranks higher, so a client never sees the same status twice, nor
+ * a SENT after the final DELIVERED or FAILED when the SMSC's reports and
+ * our own responses cross.  Statuses without a rank always pass.
+ *
+ * A client may retry a request that ended EXPIRED, FAILED or INVALID with
+ * the same correl-id.  {@link #admit(Exchange)}, on the main route, forgets
+ * the status of the earlier request when a request comes in for it, so that
+ * the responses to the retry pass.  A request whose last status was any
+ * other is not a retry (it may be consumed again after a restart), so its
+ * status is kept.
+ *
+ * As in {@link ReceiptDeduplicator}, the entries are kept in two generations
+ * of which the older is dropped when the window has passed, or when the
+ * current one holds half the maximum number of entries, whichever is first.
+ *
+ * The <code>process</code> method is for the response route, and
+ * {@link #processBatch(Exchange)} for the batch response route.
+ */
+@ManagedResource(objectName = "it.zwets.sms.gateway:name=StatusTracker", description = "Status response lifecycle tracking")
+public class StatusTracker implements Processor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StatusTracker.class);
+
+    /** The default ranks: SENT, then any of the final statuses */
+    public static final String DEFAULT_RANKS = "SENT:1, DELIVERED:2, EXPIRED:2, INVALID:2, FAILED:2";
+
+    // The final statuses after which a client may retry with the same correl-id
+    private static final Set<String> RETRYABLE = Set.of(SMS_STATUS_EXPIRED, SMS_STATUS_FAILED, SMS_STATUS_INVALID);
+
+    private final Map<String, Integer> ranks;
+    private final long windowNanos;
+    private final int maxGeneration;
+    private final Map<String, AtomicLong> suppressedCounts = new ConcurrentHashMap<>();
+    private final AtomicLong passedCount = new AtomicLong();
+    private final AtomicLong retriedCount = new AtomicLong();
+
+    // The last status reported for each message
+
+    private volatile Map<String, String> current = new ConcurrentHashMap<>();
+    private volatile Map<String, String> previous = new ConcurrentHashMap<>();
+    private volatile long rotateAt;
+
+    /**
+     * Create a status tracker.
+     *
+     * @param ranks the rank of each status, higher advances the lifecycle
+     * @param window how long (at least) to remember the last status of a message
+     * @param maxEntries the maximum number of messages to remember
+     */
+    public StatusTracker(Map<String, Integer> ranks, Duration window, int maxEntries) {
+        this.ranks = Map.copyOf(ranks);
+        this.windowNanos = window.toNanos();
+        this.maxGeneration = Math.max(1, maxEntries / 2);
+        this.rotateAt = System.nanoTime() + windowNanos;
+    }
+
+    @Override
+    public void process(Exchange exchange) {
+        if (!advances(exchange.getIn())) {
+            exchange.setRouteStop(true);
+        }
+    }
+
+    /**
+     * Drops from the list of messages in the body, as left by
+     * {@link ResponseProducer#processBatch(Exchange)}, those whose status
+     * does not advance their message's lifecycle.
+     *
+     * @param exchange the exchange with a list of messages as its body
+     */
+    public void processBatch(Exchange exchange) {
+        @SuppressWarnings("unchecked")
+        List<Message> responses = exchange.getIn().getBody(List.class);
+        responses.removeIf(msg -> !advances(msg));
+    }
+
+    /**
+     * Forgets the status of the earlier request with the client-id and
+     * correl-id of the request on the exchange, if that ended in a status
+     * after which the client may retry.
+     *
+     * @param exchange the exchange with a new request
+     */
+    public void admit(Exchange exchange) {
+        String clientId = exchange.getIn().getHeader(HEADER_CLIENT_ID, String.class);
+        String correlId = exchange.getIn().getHeader(HEADER_CORREL_ID, String.class);
+        if (clientId == null || correlId == null) {
+            return;
+        }
+
+        String key = clientId + '\t' + correlId;
+        Map<String, String> older = previous;
+        String last = current.getOrDefault(key, older.get(key));
+        if (last != null && RETRYABLE.contains(last)) {
+            LOG.debug("Request {}:{} retries one that ended {}, forgetting its status", clientId, correlId, last);
+            current.remove(key, last);
+            older.remove(key, last);
+            retriedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Forgets all messages.
+     */
+    public void clear() {
+        synchronized (this) {
+            previous = new ConcurrentHashMap<>();
+            current = new ConcurrentHashMap<>();
+            rotateAt = System.nanoTime() + windowNanos;
+        }
+    }
+
+    // Records the status if it ranks higher than the last, returns true if it did
+
+    private boolean advances(Message msg) {
+
+        String clientId = msg.getHeader(HEADER_CLIENT_ID, String.class);
+        String correlId = msg.getHeader(HEADER_CORREL_ID, String.class);
+        String status = msg.getHeader(HEADER_SMS_STATUS, String.class);
+        Integer rank = status != null ? ranks.get(status) : null;
+
+        if (clientId == null || correlId == null || rank == null) {
+            passedCount.incrementAndGet();
+            return true;
+        }
+
+        rotateIfDue();
+
+        boolean[] advanced = new boolean[1];
+        Map<String, String> older = previous;
+        current.compute(clientId + '\t' + correlId, (key, last) -> {
+            if (last == null) {
+                last = older.get(key);
+            }
+            advanced[0] = last == null || rank > ranks.get(last);
+            return advanced[0] ? status : last;
+        });
+
+        if (advanced[0]) {
+            passedCount.incrementAndGet();
+        }
+        else {
+            LOG.debug("Suppressing {} response for {}:{} as it does not advance its status", status, clientId, correlId);
+            suppressedCounts.computeIfAbsent(status, k -> new AtomicLong()).incrementAndGet();
+        }
+
+        return advanced[0];
+    }
+
+    private void rotateIfDue() {
+        long now = System.nanoTime();
+        if (now - rotateAt >= 0 || current.size() >= maxGeneration) {
+            synchronized (this) {
+                if (now - rotateAt >= 0 || current.size() >= maxGeneration) {
+                    previous = current;
+                    current = new ConcurrentHashMap<>();
+                    rotateAt = now + windowNanos;
+                }
+            }
+        }
+    }
+
+    @ManagedAttribute(description = "Number of responses passed on")
+    public long getPassedCount() {
+        return passedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of responses suppressed")
+    public long getSuppressedCount() {
+        return suppressedCounts.values().stream().mapToLong(AtomicLong::get).sum();
+    }
+
+    @ManagedAttribute(description = "Number of responses suppressed by status")
+    public String getSuppressedByStatus() {
+        Map<String, Long> map = new TreeMap<>();
+        suppressedCounts.forEach((status, count) -> map.put(status, count.get()));
+        return map.toString();
+    }
+
+    @ManagedAttribute(description = "Number of requests that retried one that ended EXPIRED, FAILED or INVALID")
+    public long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of messages tracked")
+    public int getTrackedCount() {
+        return current.size() + previous.size();
+    }
+
+    @ManagedAttribute(description = "The rank of each status")
+    public String getRanks() {
+        return new TreeMap<>(ranks).toString();
+    }
+}
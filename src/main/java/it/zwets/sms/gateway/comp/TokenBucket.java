@@ -0,0 +1,131 @@
+package it.zwets.sms.gateway.comp;
+
+/**
+ * Thread-safe token bucket.
+ *
+ * Tokens accrue at a fixed rate up to the capacity of the bucket.  A request
+ * for n tokens is granted when the bucket holds n tokens, or is full.  The
+ * latter lets a request that is larger than the capacity through, leaving
+ * the bucket in debt, rather than blocking it forever.
+ *
+ * Times are in nanoseconds on the {@link System#nanoTime()} clock, and are
+ * passed in so that callers can use a single reading for several buckets.
+ */
+public class TokenBucket {
+
+    private double ratePerNano;
+    private final double capacity;
+
+    private double tokens;
+    private long lastNanos;
+
+    /**
+     * Create a full bucket.
+     *
+     * @param ratePerSecond the number of tokens added per second
+     * @param capacity the maximum number of tokens in the bucket
+     */
+    public TokenBucket(double ratePerSecond, double capacity) {
+        if (ratePerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Token bucket rate and capacity must be positive");
+        }
+        this.ratePerNano = ratePerSecond / 1e9;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns how long until n tokens can be taken.
+     *
+     * @param n the number of tokens
+     * @param now the current time in nanos
+     * @return 0 if the tokens are available now, else the nanos to wait
+     */
+    public synchronized long nanosUntilAvailable(int n, long now) {
+        refill(now);
+        double needed = Math.min(n, capacity) - tokens;
+        return needed <= 0 ? 0 : (long) Math.ceil(needed / ratePerNano);
+    }
+
+    /**
+     * Takes n tokens, regardless of whether they are available.
+     *
+     * @param n the number of tokens
+     * @param now the current time in nanos
+     */
+    public synchronized void take(int n, long now) {
+        refill(now);
+        tokens -= n;
+    }
+
+    /**
+     * Takes n tokens if they are available.
+     *
+     * @param n the number of tokens
+     * @param now the current time in nanos
+     * @return true if the tokens were taken
+     */
+    public synchronized boolean tryTake(int n, long now) {
+        if (nanosUntilAvailable(n, now) == 0) {
+            tokens -= n;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes n tokens, and returns how long until they would have been
+     * available.  The caller waits that long before using them, so that
+     * concurrent callers are spaced out at the rate of the bucket.
+     *
+     * @param n the number of tokens
+     * @param now the current time in nanos
+     * @return 0 if the tokens were available, else the nanos to wait
+     */
+    public synchronized long reserve(int n, long now) {
+        long wait = nanosUntilAvailable(n, now);
+        tokens -= n;
+        return wait;
+    }
+
+    /**
+     * Gives back n tokens that were taken for a request that did not go
+     * ahead.  The bucket does not fill beyond its capacity.
+     *
+     * @param n the number of tokens
+     * @param now the current time in nanos
+     */
+    public synchronized void give(int n, long now) {
+        refill(now);
+        tokens = Math.min(capacity, tokens + n);
+    }
+
+    /**
+     * Changes the rate at which tokens accrue from now on.
+     *
+     * @param ratePerSecond the number of tokens added per second
+     */
+    public synchronized void setRate(double ratePerSecond) {
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("Token bucket rate must be positive");
+        }
+        refill(System.nanoTime());
+        this.ratePerNano = ratePerSecond / 1e9;
+    }
+
+    /**
+     * @return the current number of tokens, negative when in debt
+     */
+    public synchronized double getTokens() {
+        refill(System.nanoTime());
+        return tokens;
+    }
+
+    private void refill(long now) {
+        if (now > lastNanos) {
+            tokens = Math.min(capacity, tokens + (now - lastNanos) * ratePerNano);
+            lastNanos = now;
+        }
+    }
+}
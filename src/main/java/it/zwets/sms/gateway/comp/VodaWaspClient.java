@@ -0,0 +1,385 @@
+package it.zwets.sms.gateway.comp;
+
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.http.base.HttpOperationFailedException;
+import org.apache.camel.support.AsyncProcessorSupport;
+import org.apache.hc.client5.http.ConnectTimeoutException;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.ssl.ClientTlsStrategyBuilder;
+import org.apache.hc.client5.http.ssl.HostnameVerificationPolicy;
+import org.apache.hc.client5.http.ssl.NoopHostnameVerifier;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.nio.ssl.TlsStrategy;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.net.NamedEndpoint;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.reactor.ssl.TransportSecurityLayer;
+import org.apache.hc.core5.util.DeadlineTimeoutException;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Asynchronous HTTP client for the Vodacom WASP endpoints.
+ *
+ * All endpoints share one pool of persistent connections, with at most
+ * max-per-route connections to each host and max-total in all.  Connections
+ * are kept alive between requests (as long as the server allows), checked
+ * before reuse when they have been idle, and closed when idle for longer
+ * than the idle timeout.  All TLS connections use the one SSL context, so
+ * that a new connection to a host resumes the TLS session of an earlier one
+ * where the server allows, rather than doing a full handshake.  The number
+ * of handshakes against the number of requests shows how well the
+ * connections are reused.  The SSL context is that of the JSSE system
+ * properties (trust store and so on), and the host name in the server's
+ * certificate is verified unless this is turned off, for endpoints whose
+ * certificates do not match their address.
+ *
+ * The call to each endpoint is an {@link AsyncProcessor} (see {@link #endpoint}),
+ * so that the dispatch thread hands off the request and is free for the next,
+ * like the SMPP submit does.  The exchange continues on the client's own
+ * threads when the response comes in, not on the I/O threads, so that a
+ * slow downstream stage cannot stall the connections.
+ *
+ * Failures to connect are raised as the usual {@link SocketException},
+ * {@link ConnectTimeoutException} or {@link UnknownHostException}, so that
+ * the route can fail over to the next endpoint, and an HTTP error status as
+ * a {@link HttpOperationFailedException}, as Camel's HTTP component does.
+ * A request that times out waiting for a free connection to its host was
+ * not sent, and is raised as a connect timeout too.
+ */
+@ManagedResource(objectName = "it.zwets.sms.gateway:name=VodaWaspClient", description = "HTTP client for the Vodacom WASP API")
+public class VodaWaspClient implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VodaWaspClient.class);
+
+    // Upper bounds (ms) of the response time histogram
+    private static final long[] RESPONSE_BOUNDS = { 50, 100, 200, 500, 1_000, 2_000, 5_000, 15_000 };
+
+    private static final TimeValue VALIDATE_AFTER_INACTIVITY = TimeValue.ofSeconds(2);
+
+    /** The exceptions that mean we did not connect, so nothing was sent */
+    public static final List<Class<?>> CONNECT_EXCEPTIONS = List.of(
+            ConnectTimeoutException.class,
+            SocketException.class,
+            UnknownHostException.class);
+
+    private final List<String> urls;
+    private final PoolingAsyncClientConnectionManager connectionManager;
+    private final CloseableHttpAsyncClient client;
+    private final CamelContext camelContext;
+    private final ExecutorService completer;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong connectFailedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong errorStatusCount = new AtomicLong();
+    private final AtomicLong handshakeCount = new AtomicLong();
+    private final Histogram responseTime = new Histogram(RESPONSE_BOUNDS);
+
+    /**
+     * Create and start the client.
+     *
+     * @param urls the WASP endpoint URLs
+     * @param maxPerRoute the maximum number of connections to each host
+     * @param maxTotal the maximum number of connections to all hosts
+     * @param connectTimeout the connect (and TLS handshake) timeout (ms)
+     * @param responseTimeout the maximum time (ms) to wait for a response
+     * @param idleTimeout the time (ms) after which an idle connection is closed
+     * @param verifyHostnames whether to verify the host name in server certificates
+     * @param camelContext the context to take the completion threads from
+     */
+    public VodaWaspClient(List<String> urls, int maxPerRoute, int maxTotal, long connectTimeout,
+            long responseTimeout, long idleTimeout, boolean verifyHostnames, CamelContext camelContext) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("No Vodacom WASP endpoint URLs");
+        }
+        LOG.info("Creating WASP client for {} endpoints, {} connections per host, {} in all", urls.size(), maxPerRoute, maxTotal);
+
+        ClientTlsStrategyBuilder tls = ClientTlsStrategyBuilder.create().useSystemProperties();
+        if (!verifyHostnames) {
+            LOG.warn("Not verifying the host names in the certificates of the WASP endpoints");
+            tls.setHostVerificationPolicy(HostnameVerificationPolicy.CLIENT).setHostnameVerifier(NoopHostnameVerifier.INSTANCE);
+        }
+
+        this.urls = List.copyOf(urls);
+        this.camelContext = camelContext;
+        this.connectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+                .setTlsStrategy(new CountingTlsStrategy(tls.buildAsync()))
+                .setMaxConnPerRoute(maxPerRoute)
+                .setMaxConnTotal(maxTotal)
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                        .setSocketTimeout((int) responseTimeout, TimeUnit.MILLISECONDS)
+                        .setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY)
+                        .build())
+                .build();
+        this.client = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectionRequestTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                        .setResponseTimeout(responseTimeout, TimeUnit.MILLISECONDS)
+                        .build())
+                .disableCookieManagement()
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofMilliseconds(idleTimeout))
+                .build();
+        this.completer = camelContext.getExecutorServiceManager().newDefaultThreadPool(this, "VodaWaspClient");
+
+        client.start();
+    }
+
+    /**
+     * @return the endpoint URLs, in the order given
+     */
+    public List<String> getUrls() {
+        return urls;
+    }
+
+    /**
+     * Returns the processor that posts the exchange body to an endpoint, and
+     * sets the response body on it.
+     *
+     * @param url the endpoint URL
+     * @return the asynchronous processor
+     */
+    public AsyncProcessor endpoint(String url) {
+        return new AsyncProcessorSupport() {
+            @Override
+            public boolean process(Exchange exchange, AsyncCallback callback) {
+                return post(url, exchange, callback);
+            }
+
+            @Override
+            public String toString() {
+                return "VodaWaspClient[%s]".formatted(url);
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        client.close(CloseMode.GRACEFUL);
+        camelContext.getExecutorServiceManager().shutdown(completer);
+    }
+
+    // Posts the body to the URL, completes the exchange on the completer threads
+
+    private boolean post(String url, Exchange exchange, AsyncCallback callback) {
+        SimpleHttpRequest request = SimpleRequestBuilder.post(url)
+                .setBody(exchange.getIn().getBody(byte[].class), ContentType.APPLICATION_XML)
+                .build();
+
+        requestCount.incrementAndGet();
+        long start = System.nanoTime();
+
+        client.execute(request, new FutureCallback<SimpleHttpResponse>() {
+
+            @Override
+            public void completed(SimpleHttpResponse response) {
+                complete(exchange, callback, () -> {
+                    responseTime.record((System.nanoTime() - start) / 1_000_000);
+                    if (response.getCode() >= 300) {
+                        errorStatusCount.incrementAndGet();
+                        Map<String, String> headers = new HashMap<>();
+                        for (Header h : response.getHeaders()) {
+                            headers.put(h.getName(), h.getValue());
+                        }
+                        exchange.setException(new HttpOperationFailedException(url, response.getCode(),
+                                response.getReasonPhrase(), headers.get("Location"), headers, response.getBodyText()));
+                    }
+                    else {
+                        exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, response.getCode());
+                        exchange.getIn().setBody(response.getBodyText());
+                    }
+                });
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                complete(exchange, callback, () -> {
+                    Exception e = ex instanceof DeadlineTimeoutException
+                            ? new ConnectTimeoutException("Timed out waiting for a connection to %s".formatted(url))
+                            : ex;
+                    if (CONNECT_EXCEPTIONS.stream().anyMatch(c -> c.isInstance(e))) {
+                        connectFailedCount.incrementAndGet();
+                        LOG.warn("Failed to connect to {}: {}", url, e.toString());
+                    }
+                    else {
+                        failedCount.incrementAndGet();
+                    }
+                    exchange.setException(e);
+                });
+            }
+
+            @Override
+            public void cancelled() {
+                complete(exchange, callback, () -> {
+                    failedCount.incrementAndGet();
+                    exchange.setException(new IllegalStateException("WASP request cancelled"));
+                });
+            }
+        });
+
+        return false;
+    }
+
+    // Runs the completion and continues the exchange off the I/O thread
+
+    private void complete(Exchange exchange, AsyncCallback callback, Runnable completion) {
+        Runnable task = () -> {
+            try {
+                completion.run();
+            }
+            catch (Exception e) {
+                exchange.setException(e);
+            }
+            finally {
+                callback.done(false);
+            }
+        };
+        try {
+            completer.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    // Counts the TLS handshakes, which with pooling should be about one per connection
+
+    private class CountingTlsStrategy implements TlsStrategy {
+
+        private final TlsStrategy delegate;
+
+        CountingTlsStrategy(TlsStrategy delegate) {
+            this.delegate = delegate;
+        }
+
+        @Deprecated
+        @Override
+        public boolean upgrade(TransportSecurityLayer tsl, HttpHost host, SocketAddress localAddress,
+                SocketAddress remoteAddress, Object attachment, Timeout handshakeTimeout) {
+            return delegate.upgrade(tsl, host, localAddress, remoteAddress, attachment, handshakeTimeout);
+        }
+
+        @Override
+        public void upgrade(TransportSecurityLayer tsl, NamedEndpoint endpoint, Object attachment,
+                Timeout handshakeTimeout, FutureCallback<TransportSecurityLayer> callback) {
+            delegate.upgrade(tsl, endpoint, attachment, handshakeTimeout, new FutureCallback<TransportSecurityLayer>() {
+
+                @Override
+                public void completed(TransportSecurityLayer result) {
+                    handshakeCount.incrementAndGet();
+                    if (callback != null) {
+                        callback.completed(result);
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    if (callback != null) {
+                        callback.failed(e);
+                    }
+                }
+
+                @Override
+                public void cancelled() {
+                    if (callback != null) {
+                        callback.cancelled();
+                    }
+                }
+            });
+        }
+    }
+
+    @ManagedAttribute(description = "Number of requests sent")
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of requests that failed to connect")
+    public long getConnectFailedCount() {
+        return connectFailedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of requests that failed after connecting")
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of responses with an HTTP error status")
+    public long getErrorStatusCount() {
+        return errorStatusCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of TLS handshakes, one per new connection")
+    public long getHandshakeCount() {
+        return handshakeCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of connections in use")
+    public int getLeased() {
+        return connectionManager.getTotalStats().getLeased();
+    }
+
+    @ManagedAttribute(description = "Number of idle connections kept alive")
+    public int getAvailable() {
+        return connectionManager.getTotalStats().getAvailable();
+    }
+
+    @ManagedAttribute(description = "Number of requests waiting for a connection")
+    public int getPending() {
+        return connectionManager.getTotalStats().getPending();
+    }
+
+    @ManagedAttribute(description = "Maximum number of connections")
+    public int getMaxConnections() {
+        return connectionManager.getMaxTotal();
+    }
+
+    @ManagedAttribute(description = "Leased, available and pending connections per host")
+    public String getHosts() {
+        return connectionManager.getRoutes().stream()
+            .map(route -> {
+                PoolStats stats = connectionManager.getStats(route);
+                return "%s: leased %d, available %d, pending %d".formatted(route.getTargetHost().toHostString(),
+                        stats.getLeased(), stats.getAvailable(), stats.getPending());
+            })
+            .collect(Collectors.joining(", ", "{", "}"));
+    }
+
+    @ManagedAttribute(description = "Histogram of the time (ms) from request to response")
+    public String getResponseTimes() {
+        return responseTime.toString();
+    }
+}
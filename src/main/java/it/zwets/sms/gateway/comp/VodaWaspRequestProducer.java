@@ -1,12 +1,14 @@
 package it.zwets.sms.gateway.comp;
 
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_DEADLINE;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_ERROR_TEXT;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_HEADER_SENDER;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_HEADER_TO;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_EXPIRED;
 import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_INVALID;
 
-import java.util.regex.Pattern;
+import java.time.Instant;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Message;
@@ -20,19 +22,22 @@ import it.zwets.sms.gateway.dto.VodaWaspRequest;
 /**
  * Produces backend request for the Vodacom Wasp REST.
  * 
- * Transforms the in body from {@link SmsMessage} to {@link VodaWaspRequest}
+ * Transforms the in body from {@link SmsMessage} to {@link VodaWaspRequest}.
+ * The recipient and sender have been checked against the route by the
+ * {@link RecipientRouter}.
+ * 
+ * The WASP API has no validity period, so we check the request deadline
+ * here, right before the call, and do not send a message that has expired.
  * 
  * When the <code>process</code> method has completed, the message header
  * sms-status will be either unset and the message body has been replaced by
- * a {@link VodaWaspRequest}, or INVALID and error will be set.
+ * a {@link VodaWaspRequest}, or INVALID and error will be set, or EXPIRED.
  *
  * Does nothing if sms-status is already set on entry.
  */
 public class VodaWaspRequestProducer implements Processor {
     
     private static final Logger LOG = LoggerFactory.getLogger(VodaWaspRequestProducer.class);
-    private static final Pattern RECIPIENT_REGEX = Pattern.compile("^\\+255\\d{9}$");
-    private static final Pattern SENDER_REGEX = Pattern.compile("^.{1,11}$");
 
     private final String username;
     private final String password;
@@ -59,27 +64,23 @@ public class VodaWaspRequestProducer implements Processor {
             String recipient = sms.getHeader(SMS_HEADER_TO);
             String sender = sms.getHeader(SMS_HEADER_SENDER);
             String message = sms.getBody();
+            Instant deadline = msg.getHeader(HEADER_DEADLINE, Instant.class);
             
-            if (recipient == null) {
-                msg.setHeader(HEADER_ERROR_TEXT, "SMS lacks recipient");
-            }
-            else if (!recipient.startsWith("+255")) {
-                msg.setHeader(HEADER_ERROR_TEXT, "Vodacom WASP backend disallows foreign SMS recipient: %s".formatted(recipient));
+            if (deadline != null && deadline.isBefore(Instant.now())) {
+                LOG.warn("Request expired before it could be sent");
+                msg.setHeader(HEADER_SMS_STATUS, SMS_STATUS_EXPIRED);
             }
-            else if (!RECIPIENT_REGEX.matcher(recipient).matches()) {
-                msg.setHeader(HEADER_ERROR_TEXT, "SMS recipient number invalid for Vodacom WASP backend: %s".formatted(recipient));
+            else if (recipient == null) {
+                msg.setHeader(HEADER_ERROR_TEXT, "SMS lacks recipient");
             }
             else if (sender == null) { 
                 msg.setHeader(HEADER_ERROR_TEXT, "Vodacom WASP backend requires a message sender");
             }
-            else if (!SENDER_REGEX.matcher(sender).matches()) {
-                msg.setHeader(HEADER_ERROR_TEXT, "SMS sender does not have a 1-11 character length: %s".formatted(sender));
-            }
             else if (message == null || message.isBlank()) {
                 msg.setHeader(HEADER_ERROR_TEXT, "SMS message is empty");
             }
             else {
-                VodaWaspRequest vodaReq = new VodaWaspRequest(username, password, sender, recipient.substring(1), message);
+                VodaWaspRequest vodaReq = new VodaWaspRequest(username, password, sender, recipient.startsWith("+") ? recipient.substring(1) : recipient, message);
                 LOG.debug("Setting body to VodaWaspRequest: %s".formatted(vodaReq));
                 msg.setBody(vodaReq);
             }
@@ -0,0 +1,280 @@
+package it.zwets.sms.gateway.comp;
+
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.http.base.HttpOperationFailedException;
+import org.apache.camel.processor.loadbalancer.LoadBalancerSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Load balancer over the WASP endpoints that sends each exchange to the
+ * endpoint expected to answer it soonest, fails over to another when it
+ * cannot connect, and skips endpoints whose circuit is open.
+ *
+ * For each endpoint we keep an exponentially weighted moving average (EWMA)
+ * of its latency and of its error rate, and count its requests in flight.
+ * Its expected latency is its average latency times one more than its
+ * requests in flight, inflated by its error rate.  An endpoint without
+ * latency samples yet is taken to be as fast as the average of the others.
+ * Each exchange picks two endpoints at random and goes to the one with the
+ * lower expected latency (power of two choices): this steers traffic away
+ * from slow endpoints without herding all of it onto the one that looked
+ * fastest a moment ago.
+ *
+ * Only the failover exceptions (those raised when we could not connect, so
+ * that nothing was sent) make the exchange go to another endpoint, each
+ * endpoint being tried at most once; any other exception ends it.
+ *
+ * Each endpoint has a {@link CircuitBreaker}.  Every exception counts as a
+ * failure, except an HTTP error status below 500 (the endpoint is up and
+ * answered).  An endpoint whose circuit is open gets no exchanges; one whose
+ * circuit is half-open gets its trial exchanges before any other.  When the
+ * circuits of all endpoints not yet tried are open, the exchange fails at
+ * once with a {@link ConnectException} (if no endpoint was tried) or the
+ * last failover exception, so that it is answered without waiting for a
+ * connect timeout.
+ *
+ * The endpoints are the processors added to the balancer, in the order of
+ * the names given.
+ */
+@ManagedResource(objectName = "it.zwets.sms.gateway:name=WaspLoadBalancer", description = "Latency-aware load balancing with circuit breakers over the WASP endpoints")
+public class WaspLoadBalancer extends LoadBalancerSupport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WaspLoadBalancer.class);
+
+    // Weight of the newest sample in the moving averages
+    private static final double ALPHA = 0.2;
+
+    // Error rate beyond which an endpoint is not penalised further
+    private static final double MAX_ERROR_RATE = 0.9;
+
+    // An endpoint's moving averages, requests in flight, and circuit breaker
+
+    private static class Endpoint {
+        final String name;
+        final CircuitBreaker breaker;
+        volatile double latency = Double.NaN;
+        volatile double errorRate = 0;
+        volatile int outstanding = 0;
+
+        Endpoint(String name, CircuitBreaker breaker) {
+            this.name = name;
+            this.breaker = breaker;
+        }
+
+        double expectedLatency(double defaultLatency) {
+            double avg = Double.isNaN(latency) ? defaultLatency : latency;
+            return avg * (outstanding + 1) / (1 - Math.min(errorRate, MAX_ERROR_RATE));
+        }
+    }
+
+    private final Endpoint[] endpoints;
+    private final List<Class<?>> failoverExceptions;
+
+    private final AtomicLong failoverCount = new AtomicLong();
+    private final AtomicLong trialCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Create the load balancer for the named endpoints.
+     *
+     * @param names the names of the endpoints, in the order their processors are added
+     * @param failureThreshold the number of consecutive failures that opens an endpoint's circuit
+     * @param openMillis the time (ms) an endpoint's circuit stays open
+     * @param halfOpenTrials the number of trial exchanges that must succeed to close a half-open circuit
+     * @param failoverExceptions the exceptions on which to fail over to another endpoint
+     */
+    public WaspLoadBalancer(List<String> names, int failureThreshold, long openMillis, int halfOpenTrials, List<Class<?>> failoverExceptions) {
+        if (names.isEmpty() || names.size() > Long.SIZE) {
+            throw new IllegalArgumentException("Load balancer needs 1 to %d endpoints: %d".formatted(Long.SIZE, names.size()));
+        }
+        this.endpoints = names.stream()
+            .map(name -> new Endpoint(name, new CircuitBreaker(name, failureThreshold, openMillis, halfOpenTrials)))
+            .toArray(Endpoint[]::new);
+        this.failoverExceptions = List.copyOf(failoverExceptions);
+    }
+
+    @Override
+    protected void doInit() throws Exception {
+        super.doInit();
+        if (getProcessors().size() != endpoints.length) {
+            throw new IllegalStateException("Load balancer has %d endpoints but %d processors".formatted(endpoints.length, getProcessors().size()));
+        }
+    }
+
+    @Override
+    public boolean process(Exchange exchange, AsyncCallback callback) {
+        attempt(exchange, callback, doGetProcessors(), 0L);
+        return false;
+    }
+
+    // Sends the exchange to the best endpoint not yet tried whose circuit
+    // lets it through, fails it over to the next on a failover exception
+
+    private void attempt(Exchange exchange, AsyncCallback callback, AsyncProcessor[] processors, long tried) {
+        int i;
+        CircuitBreaker.Permit permit = null;
+        long skip = tried;
+        while ((i = select(skip)) >= 0 && (permit = endpoints[i].breaker.tryAcquire(System.nanoTime())) == null) {
+            skip |= 1L << i;
+        }
+
+        if (i < 0) {
+            if (exchange.getException() == null) {
+                rejectedCount.incrementAndGet();
+                exchange.setException(new ConnectException("No WASP endpoint available: all circuits are open"));
+            }
+            callback.done(false);
+            return;
+        }
+
+        if (exchange.getException() != null) {
+            LOG.warn("Failing over to WASP endpoint {}: {}", endpoints[i].name, exchange.getException().toString());
+            failoverCount.incrementAndGet();
+            exchange.setException(null);
+            exchange.getExchangeExtension().setRedeliveryExhausted(false);
+        }
+        if (permit.state() == CircuitBreaker.State.HALF_OPEN) {
+            trialCount.incrementAndGet();
+            LOG.info("Sending trial request to WASP endpoint {}", endpoints[i].name);
+        }
+
+        Endpoint endpoint = endpoints[i];
+        CircuitBreaker.Permit endpointPermit = permit;
+        long bit = 1L << i;
+        long start = System.nanoTime();
+        synchronized (endpoint) {
+            ++endpoint.outstanding;
+        }
+
+        processors[i].process(exchange, sync -> {
+            Throwable t = exchange.getException();
+            boolean failover = isFailoverException(t);
+            record(endpoint, endpointPermit, t, failover, System.nanoTime() - start);
+
+            if (failover && isRunAllowed()) {
+                attempt(exchange, callback, processors, tried | bit);
+            }
+            else {
+                callback.done(false);
+            }
+        });
+    }
+
+    // Returns the endpoint to try: one whose circuit is due a trial, else the
+    // better of two random ones with closed circuits, or -1 if there is none
+
+    private int select(long skip) {
+        long now = System.nanoTime();
+
+        int[] available = new int[endpoints.length];
+        int count = 0;
+        double latencySum = 0;
+        int latencyCount = 0;
+
+        for (int i = 0; i < endpoints.length; ++i) {
+            Endpoint e = endpoints[i];
+            if (!Double.isNaN(e.latency)) {
+                latencySum += e.latency;
+                ++latencyCount;
+            }
+            if ((skip & 1L << i) != 0) {
+                continue;
+            }
+            if (e.breaker.isTrialDue(now)) {
+                return i;
+            }
+            if (e.breaker.isCallable(now)) {
+                available[count++] = i;
+            }
+        }
+
+        if (count <= 1) {
+            return count == 0 ? -1 : available[0];
+        }
+
+        double defaultLatency = latencyCount == 0 ? 0 : latencySum / latencyCount;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = random.nextInt(count);
+        int b = random.nextInt(count - 1);
+        if (b >= a) {
+            ++b;
+        }
+        return endpoints[available[a]].expectedLatency(defaultLatency) <= endpoints[available[b]].expectedLatency(defaultLatency)
+                ? available[a] : available[b];
+    }
+
+    // Updates the endpoint's averages and circuit with the outcome
+
+    private void record(Endpoint e, CircuitBreaker.Permit permit, Throwable t, boolean connectFailed, long nanos) {
+        synchronized (e) {
+            --e.outstanding;
+            e.errorRate += ALPHA * ((t == null ? 0 : 1) - e.errorRate);
+            if (!connectFailed) {
+                double ms = nanos / 1e6;
+                e.latency = Double.isNaN(e.latency) ? ms : e.latency + ALPHA * (ms - e.latency);
+            }
+        }
+        e.breaker.record(permit, !isBreakerFailure(t), System.nanoTime());
+    }
+
+    private boolean isFailoverException(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            for (Class<?> c : failoverExceptions) {
+                if (c.isInstance(t)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isBreakerFailure(Throwable t) {
+        return t != null && !(t instanceof HttpOperationFailedException h && h.getStatusCode() < 500);
+    }
+
+    @ManagedAttribute(description = "Number of exchanges failed over to another endpoint")
+    public long getFailoverCount() {
+        return failoverCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of times an endpoint's circuit opened")
+    public long getOpenCount() {
+        return Arrays.stream(endpoints).mapToLong(e -> e.breaker.getOpenCount()).sum();
+    }
+
+    @ManagedAttribute(description = "Number of trial exchanges sent to endpoints with a half-open circuit")
+    public long getTrialCount() {
+        return trialCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of exchanges failed at once because all circuits were open")
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of endpoints whose circuit is currently not closed")
+    public int getOpenCircuitCount() {
+        return (int) Arrays.stream(endpoints).filter(e -> e.breaker.getState() != CircuitBreaker.State.CLOSED).count();
+    }
+
+    @ManagedAttribute(description = "Average latency (ms), error rate, requests in flight, and circuit state of each endpoint")
+    public String getEndpoints() {
+        return Arrays.stream(endpoints)
+            .map(e -> "%s: %s ms, %.0f%% errors, %d in flight, %s".formatted(e.name,
+                    Double.isNaN(e.latency) ? "-" : "%.1f".formatted(e.latency), e.errorRate * 100,
+                    e.outstanding, e.breaker.getState()))
+            .collect(Collectors.joining(", ", "{", "}"));
+    }
+}
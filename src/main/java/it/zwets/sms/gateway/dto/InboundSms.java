@@ -19,7 +19,7 @@ public record InboundSms(
     }
     
     public String asTsv() {
-        return "%s\t%s\t%s\t%s\t%s\t%s\n".formatted(b(timeStamp), b(sender), b(recipient), b(recallId), b(body));
+        return "%s\t%s\t%s\t%s\t%s\n".formatted(b(timeStamp), b(sender), b(recipient), b(recallId), b(body));
     }
 }
        
\ No newline at end of file
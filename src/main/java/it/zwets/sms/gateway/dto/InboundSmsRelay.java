@@ -0,0 +1,17 @@
+package it.zwets.sms.gateway.dto;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import it.zwets.sms.gateway.SmsGatewayConfiguration.Constants;
+
+/**
+ * Inbound SMS as relayed to a client: the {@link InboundSms} serialised
+ * to JSON and encrypted with the client's public key in the payload.
+ */
+@JsonInclude(Include.NON_EMPTY)
+public record InboundSmsRelay(
+        @JsonProperty(Constants.OUT_FIELD_CLIENT_ID) String clientId,
+        @JsonProperty(Constants.OUT_FIELD_TIMESTAMP) String timeStamp,
+        @JsonProperty(Constants.OUT_FIELD_PAYLOAD) String payload) { }
@@ -0,0 +1,58 @@
+package it.zwets.sms.gateway.routes;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_BACKEND;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_ERROR_TEXT;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_FAILED;
+import static org.apache.camel.LoggingLevel.DEBUG;
+
+import org.apache.camel.LoggingLevel;
+import org.apache.camel.builder.RouteBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import it.zwets.sms.gateway.SmsGatewayConfiguration;
+import it.zwets.sms.gateway.comp.RecipientRouter;
+
+/**
+ * Camel route that hands each request to the backend for its recipient.
+ *
+ * The {@link RecipientRouter} picks the backend by the recipient's number,
+ * so that both backends are in use at once, each for the networks it serves.
+ */
+@Component
+public class BackendRoute extends RouteBuilder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BackendRoute.class);
+
+    public static final String BACKEND_ROUTE = "direct:backend";
+
+    @Autowired
+    private RecipientRouter recipientRouter;
+
+    @Override
+    public void configure() throws Exception {
+
+        // Global exception handler, respond with FAILED status
+        onException(Throwable.class).routeId("backend-exception")
+            .log(LoggingLevel.ERROR, LOG, "Exception in Backend Route: ${exception}")
+            .handled(true)
+            .setHeader(HEADER_SMS_STATUS, constant(SMS_STATUS_FAILED))
+            .setHeader(HEADER_ERROR_TEXT, simple("Exception while handling request: ${exception.message}"))
+            .to(SmsRouter.RESPOND);
+
+        from(BACKEND_ROUTE).routeId("backend")
+            .process(recipientRouter)
+            .choice()
+                .when(header(HEADER_SMS_STATUS).isNotNull())
+                    .to(SmsRouter.RESPOND)
+                .when(header(HEADER_BACKEND).isEqualTo(SmsGatewayConfiguration.BACKEND_WASP))
+                    .log(DEBUG, LOG, "Routing to the WASP backend")
+                    .to(VodaWaspRoute.VODA_WASP_ROUTE)
+                .otherwise()
+                    .log(DEBUG, LOG, "Routing to the SMPP backend")
+                    .to(SmppRoute.SMPP_SUBMIT);
+    }
+}
@@ -12,10 +12,12 @@ import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.kafka.KafkaConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import it.zwets.sms.gateway.SmsGatewayConfiguration.Constants;
 import it.zwets.sms.gateway.comp.CorrelationTable;
+import it.zwets.sms.gateway.comp.StageMonitor;
 import it.zwets.sms.gateway.dto.CorrelationRecord;
 
 /**
@@ -43,6 +45,9 @@ public class CorrelIdRoute extends RouteBuilder {
     @EndpointInject(Constants.ENDPOINT_CORREL_WRITE)
     private Endpoint correlWrite;
     
+    @Autowired
+    private StageMonitor stageMonitor;
+
     private static final String STASH = "stash";
 
     @Override
@@ -58,6 +63,7 @@ public class CorrelIdRoute extends RouteBuilder {
         // with the whole (7 day) content of the Kafka topic at startup, then updates with
         // CorrelationRecord pushed onto the topic through CORREL_STORE below.
         from (correlRead).routeId("correl-read")
+            .routePolicy(stageMonitor.policy("correl-read"))
             .unmarshal()
             .json(CorrelationRecord.class)
             .bean(BEAN_CORRELATION_TABLE, "store");
@@ -66,6 +72,7 @@ public class CorrelIdRoute extends RouteBuilder {
         // The submission route in SmppRoute will have put it there upon submission of
         // a new SMS.
         from (CORREL_STORE).routeId("correl-store")
+            .routePolicy(stageMonitor.policy("correl-store"))
             .filter(header(HEADER_CORREL_REC).isNotNull())
             .setHeader(STASH, body())
             .setHeader(KafkaConstants.KEY, header(HEADER_RECALL_ID))
@@ -11,23 +11,49 @@ import static org.apache.camel.LoggingLevel.TRACE;
 
 import java.io.IOException;
 
+import org.apache.camel.Endpoint;
+import org.apache.camel.EndpointInject;
 import org.apache.camel.LoggingLevel;
 import org.apache.camel.builder.RouteBuilder;
-import org.apache.camel.component.smpp.SmppConstants;
 import org.apache.camel.component.smpp.SmppException;
+import org.apache.camel.processor.aggregate.GroupedExchangeAggregationStrategy;
+import org.apache.camel.processor.aggregate.GroupedMessageAggregationStrategy;
 import org.jsmpp.extra.NegativeResponseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import it.zwets.sms.gateway.SmsGatewayConfiguration.Constants;
+import it.zwets.sms.gateway.comp.InboundSmsEncoder;
+import it.zwets.sms.gateway.comp.ReceiptDeduplicator;
 import it.zwets.sms.gateway.comp.SmppInboundProcessor;
 import it.zwets.sms.gateway.comp.SmppRequestProducer;
 import it.zwets.sms.gateway.comp.SmppResponseProcessor;
+import it.zwets.sms.gateway.comp.SmppSegmenter;
+import it.zwets.sms.gateway.comp.StageMonitor;
+import it.zwets.sms.gateway.dto.InboundSms;
+import it.zwets.sms.gateway.smpp.SmppBindPool;
+import it.zwets.sms.gateway.smpp.SmppMultiSubmitter;
+import it.zwets.sms.gateway.smpp.SmppReconciler;
+import it.zwets.sms.gateway.smpp.SmppSubmitProcessor;
 
 /**
  * Camel routes for submission to the SMPP backend (SMSC), and delivery notifications back. 
+ *
+ * Submission starts on the dispatch stage threads, but does not hold them while
+ * waiting for the SMSC: up to a window of submits are outstanding on the bind
+ * at once, and each continues when its response comes in (see
+ * {@link SmppSubmitProcessor}).  Identical messages to many recipients can
+ * be held briefly and submitted together (see {@link SmppMultiSubmitter}).
+ * Submits that fail without telling whether the SMSC took them are resolved
+ * later (see {@link SmppReconciler}).  Delivery notifications are handed off
+ * from the SMPP session's receiver thread to their own stage, so that a
+ * backlog in processing them does not stall the session, and the
+ * deliver_sm_resp goes out right away.  That stage collects them into
+ * batches for {@link SmsRouter#RESPOND_BATCH}.  Inbound (mobile originated)
+ * SMS are encrypted for the client that owns their recipient and relayed in
+ * batches to the inbound SMS topic.
  */
 @Component
 public class SmppRoute extends RouteBuilder {
@@ -36,32 +62,45 @@ public class SmppRoute extends RouteBuilder {
 
     public static final String SMPP_SUBMIT = "direct:smpp-submit";
 
-    private static final String SMPP_INBOUND = "direct:smpp-inbound";
+    public static final String SMPP_INBOUND = "direct:smpp-inbound";
+
+    private static final String SMPP_DLR = "seda:smpp-dlr?size={{sms.gateway.stage.dlr.queue-size:1000}}"
+            + "&blockWhenFull=true&concurrentConsumers={{sms.gateway.stage.dlr.concurrency:1}}";
+
+    private static final String SMPP_INBOUND_SMS = "direct:smpp-inbound-sms";
+
+    @EndpointInject(Constants.ENDPOINT_INBOUND_SMS)
+    private Endpoint inboundSmsTopic;
     
     @Autowired
     private SmppRequestProducer smppRequestProducer;
 
+    @Autowired
+    private SmppSegmenter smppSegmenter;
+
     @Autowired
     private SmppResponseProcessor smppResponseProcessor;
 
     @Autowired
     private SmppInboundProcessor smppInboundProcessor;
-    
-    private final String smppUri;
-    private final String username;
-    private final String password;
-    
-    public SmppRoute(
-            @Value("${sms.gateway.smpp.host}") String host,
-            @Value("${sms.gateway.smpp.port}") int port,
-            @Value("${sms.gateway.smpp.username}") String username,
-            @Value("${sms.gateway.smpp.password}") String password)
-    {
-        LOG.info("SmppRoute created to {}:{}", host, port);
-        smppUri = "smpp://%s:%s?messageReceiverRouteId=%s".formatted(host, port, SMPP_INBOUND);
-        this.username = username;
-        this.password = password;
-    }
+
+    @Autowired
+    private SmppMultiSubmitter smppMultiSubmitter;
+
+    @Autowired
+    private SmppReconciler smppReconciler;
+
+    @Autowired
+    private SmppBindPool smppBindPool;
+
+    @Autowired
+    private InboundSmsEncoder inboundSmsEncoder;
+
+    @Autowired
+    private ReceiptDeduplicator receiptDeduplicator;
+
+    @Autowired
+    private StageMonitor stageMonitor;
 
     @Override
     public void configure() throws Exception {
@@ -78,6 +117,7 @@ public class SmppRoute extends RouteBuilder {
         // Outbound Route (we use it only for submitting but could be used for cancal too)
         
         from(SMPP_SUBMIT).routeId("smpp-submit")
+            .routePolicy(stageMonitor.policy("smpp-submit"))
 
             // Use route-local exception handling so we respond FAILED when we know for sure
             // that the send failed, but send no response if we don't know if it was sent.
@@ -98,11 +138,13 @@ public class SmppRoute extends RouteBuilder {
             .end()
                
             // All other exceptions MAY mean the message was sent so we send no response
+            // now, but leave it to the reconciler to find out and respond later
             
             .onException(Throwable.class)
                 .log(ERROR, LOG, "Exception from SMPP backend: ${exception} ${exception.stacktrace}")
                 .log(ERROR, LOG, "NOT sending a FAILED response (we don't know if the SMS was sent)")
                 .handled(true)
+                .process(smppReconciler::record)
                 .stop()
             .end()
 
@@ -110,26 +152,64 @@ public class SmppRoute extends RouteBuilder {
             
             .log(DEBUG, LOG, "Entering the SMPP submit route")
             .process(smppRequestProducer)
+            .process(smppSegmenter)
             .choice()
                 .when(header(HEADER_SMS_STATUS).isNotNull())
                     .to(SmsRouter.RESPOND)
                 .otherwise()
-                    .setHeader(SmppConstants.SYSTEM_ID, constant(username))
-                    .setHeader(SmppConstants.PASSWORD, constant(password))
                     .log(DEBUG, LOG, "Submitting SMS to SMSC")
-                    .to(smppUri) // throws unless successful
+                    .process(smppMultiSubmitter) // throws unless successful
                     .process(smppResponseProcessor)
-                    .log(INFO, LOG, "SMS was submitted, recall ID ${header.%s}".formatted(HEADER_RECALL_ID))
+                    .process(receiptDeduplicator::record)
+                    .log(INFO, LOG, "SMS submit done with status ${header.%s}, recall ID ${header.%s}".formatted(HEADER_SMS_STATUS, HEADER_RECALL_ID))
                     .to(SmsRouter.RESPOND);
             
-        // Inbound route, set by messageReceiverRouteId to receive backend notifications.
-        // Our SMSC supports TRX (response in the same session) and this is set on our side
-        // by setting the messageReceiverRouteId to an inbound consumer.
+        // Inbound route, receives the backend notifications from the SmppBind.
+        // Our SMSC supports TRX (response in the same session) and the bind hands
+        // the PDUs it receives to this route.  We note which SMSC it came from
+        // while we can still tell by the endpoint, and parse the PDU while we
+        // still have it: the copy of the exchange that SEDA hands to the next
+        // stage is a plain SmppMessage without the PDU.
 
         from(SMPP_INBOUND).routeId(SMPP_INBOUND)
             .log(TRACE, LOG, "SMPP inbound message: ${body}")
+            .process(smppBindPool::setSmscHeader)
             .process(smppInboundProcessor)
-            .to(SmsRouter.RESPOND);
+            .to(SMPP_DLR);
+
+        // Drop reports that repeat a status we reported, then batch the rest (by
+        // size, or whatever came in within the timeout) as in a burst they far
+        // outnumber our submits
+
+        from(SMPP_DLR).routeId("smpp-dlr")
+            .routePolicy(stageMonitor.policy("smpp-dlr"))
+            .choice()
+                .when(body().isInstanceOf(InboundSms.class))
+                    .to(SMPP_INBOUND_SMS)
+                .otherwise()
+                    .process(receiptDeduplicator)
+                    .aggregate(constant(true), new GroupedExchangeAggregationStrategy())
+                        .completionSize("{{sms.gateway.stage.dlr.batch-size:100}}")
+                        .completionTimeout("{{sms.gateway.stage.dlr.batch-timeout:100}}")
+                        .process(receiptDeduplicator::recordBatch)
+                        .to(SmsRouter.RESPOND_BATCH)
+                    .end()
+            .end();
+
+        // Inbound SMS are relayed to their client, batched like the reports.
+        // An SMS that fails to encode is lost, as it would be if we dropped it.
+
+        from(SMPP_INBOUND_SMS).routeId("smpp-inbound-sms")
+            .onException(Throwable.class)
+                .log(ERROR, LOG, "Dropping inbound SMS on exception: ${exception}")
+                .handled(true)
+            .end()
+            .process(inboundSmsEncoder)
+            .marshal().json()
+            .aggregate(constant(true), new GroupedMessageAggregationStrategy())
+                .completionSize("{{sms.gateway.stage.dlr.batch-size:100}}")
+                .completionTimeout("{{sms.gateway.stage.dlr.batch-timeout:100}}")
+                .to(inboundSmsTopic);
 
     }
 }
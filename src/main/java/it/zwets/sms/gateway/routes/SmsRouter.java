@@ -11,22 +11,61 @@ import org.apache.camel.EndpointInject;
 import org.apache.camel.Exchange;
 import org.apache.camel.LoggingLevel;
 import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.processor.aggregate.GroupedMessageAggregationStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import it.zwets.sms.gateway.SmsGatewayConfiguration.Constants;
+import it.zwets.sms.gateway.comp.BackpressurePolicy;
+import it.zwets.sms.gateway.comp.DispatchProcessor;
+import it.zwets.sms.gateway.comp.DispatchQueue;
+import it.zwets.sms.gateway.comp.OffsetCommitter;
 import it.zwets.sms.gateway.comp.PayloadDecoder;
+import it.zwets.sms.gateway.comp.QuotaProcessor;
 import it.zwets.sms.gateway.comp.RequestProcessor;
 import it.zwets.sms.gateway.comp.ResponseProducer;
+import it.zwets.sms.gateway.comp.StageMonitor;
+import it.zwets.sms.gateway.comp.StatusTracker;
 
+/**
+ * Camel routes from client request to backend, and from backend to client response.
+ *
+ * The routes form a pipeline of stages that are decoupled by bounded queues,
+ * each with its own consumer threads: ingest (the Kafka consumer thread),
+ * dispatch (the dispatch queue, whose consumers also run the backend submit),
+ * and respond.  Anything that answers a client goes to {@link #RESPOND}, so
+ * that producing the response never holds up the stage that triggered it.
+ * When the dispatch queue fills up, ingest from Kafka is paused, and a
+ * request whose client has used up its share of the queue is answered
+ * FAILED rather than queued.  The Kafka offset of a request is committed
+ * only once it has been answered (see {@link OffsetCommitter}), so that
+ * requests in the queues survive a restart.
+ *
+ * Delivery reports arrive in bursts and go to {@link #RESPOND_BATCH} in
+ * batches instead, which looks up their correlation, writes them to Kafka,
+ * and appends them to the client logs a batch at a time.
+ *
+ * Both response routes pass only the responses whose status advances the
+ * message's lifecycle (see {@link StatusTracker}), so that repeated and
+ * out-of-order statuses do not reach the client.
+ *
+ * With warm-up enabled, the main route is not started with the others, but
+ * by the {@link WarmUpRoute} once it is done.
+ */
 @Component
 public class SmsRouter extends RouteBuilder {
     
     private static final Logger LOG = LoggerFactory.getLogger(SmsRouter.class);
     
-    public static final String RESPOND = "direct:respond";
+    public static final String RESPOND = "seda:respond?size={{sms.gateway.stage.respond.queue-size:1000}}"
+            + "&blockWhenFull=true&concurrentConsumers={{sms.gateway.stage.respond.concurrency:1}}";
+
+    public static final String RESPOND_BATCH = "direct:respond-batch";
+
+    public static final String MAIN_ROUTE_ID = "main";
 
     @EndpointInject(Constants.ENDPOINT_FRONTEND_REQUEST)
     private Endpoint frontIn;
@@ -34,6 +73,9 @@ public class SmsRouter extends RouteBuilder {
     @EndpointInject(Constants.ENDPOINT_FRONTEND_RESPONSE)
     private Endpoint frontOut;
 
+    @EndpointInject(Constants.ENDPOINT_DISPATCH)
+    private Endpoint dispatch;
+
     @EndpointInject(Constants.ENDPOINT_BACKEND_REQUEST)
     private Endpoint backend;
     
@@ -46,8 +88,32 @@ public class SmsRouter extends RouteBuilder {
     @Autowired
     private PayloadDecoder payloadDecoder;
     
+    @Autowired
+    private QuotaProcessor quotaProcessor;
+
+    @Autowired
+    private OffsetCommitter offsetCommitter;
+
+    @Autowired
+    private DispatchQueue dispatchQueue;
+
+    @Autowired
+    private DispatchProcessor dispatchProcessor;
+    
     @Autowired
     private ResponseProducer responseProducer;
+
+    @Autowired
+    private StageMonitor stageMonitor;
+
+    @Autowired
+    private BackpressurePolicy backpressurePolicy;
+
+    @Autowired
+    private StatusTracker statusTracker;
+
+    @Value("${sms.gateway.warm-up.enabled:false}")
+    private boolean warmUp;
     
     private static final String TSV_RECORD = "tsvRecord";
     
@@ -63,10 +129,28 @@ public class SmsRouter extends RouteBuilder {
             .setHeader(HEADER_ERROR_TEXT, simple("Exception while handling request: ${exception.message}"))
             .to(RESPOND);
         
-        from(frontIn).routeId("main")
+        from(frontIn).routeId(MAIN_ROUTE_ID)
+            .autoStartup(!warmUp)
+            .routePolicy(stageMonitor.policy("ingest"), backpressurePolicy)
             .log(LoggingLevel.DEBUG, "Main route starting with request: ${body}")
+            .process(offsetCommitter)
             .process(requestProcessor)
             .process(payloadDecoder)
+            .process(statusTracker::admit)
+            .process(dispatchQueue::admit)
+            .process(quotaProcessor)
+            .choice()
+                .when(header(HEADER_SMS_STATUS).isNotNull())
+                    .to(RESPOND)
+                .otherwise()
+                    .to(dispatch);
+
+        // The dispatch queue hands out requests earliest deadline first, and
+        // we re-check the deadline as it may have passed while it was queued
+        
+        from(dispatch).routeId("dispatch")
+            .routePolicy(stageMonitor.policy("dispatch"))
+            .process(dispatchProcessor)
             .choice()
                 .when(header(HEADER_SMS_STATUS).isNotNull())
                     .to(RESPOND)
@@ -74,12 +158,23 @@ public class SmsRouter extends RouteBuilder {
                     .to(TestClientRoute.TEST_ROUTE)
                 .otherwise()
                     .to(backend);
-                    
+
+        // The global handler responds via RESPOND, which would put a failed
+        // response back on its own queue (and could block its only consumer
+        // on it), so the response route handles its exceptions itself
+
         from(RESPOND).routeId("response")
+            .routePolicy(stageMonitor.policy("respond"))
+            .onException(Throwable.class)
+                .log(LoggingLevel.ERROR, LOG, "Exception while responding to ${header.%s}:${header.%s}, response lost: ${exception}"
+                        .formatted(HEADER_CLIENT_ID, HEADER_CORREL_ID))
+                .handled(true)
+            .end()
             .to(CorrelIdRoute.CORREL_STORE)
             .process(responseProducer)
             .filter(header(HEADER_CLIENT_ID).isNotNull())
             .filter(header(HEADER_CORREL_ID).isNotNull())
+            .process(statusTracker)
             .setHeader(TSV_RECORD, body().method("asTsv"))
             .marshal().json()
             .to(frontOut)
@@ -87,5 +182,27 @@ public class SmsRouter extends RouteBuilder {
             .setBody(header(TSV_RECORD))
             .to(clientLog);
 
+        // Batch of responses (the body is a list of exchanges).  Delivery reports
+        // never carry a correlation record, so there is nothing to store.  The
+        // split regroups the marshalled messages, which Kafka sends as one batch.
+
+        from(RESPOND_BATCH).routeId("response-batch")
+            .routePolicy(stageMonitor.policy("respond-batch"))
+            .onException(Throwable.class)
+                .log(LoggingLevel.ERROR, LOG, "Exception while responding to batch, responses lost: ${exception}")
+                .handled(true)
+            .end()
+            .process(responseProducer::processBatch)
+            .process(statusTracker::processBatch)
+            .split(body(), new GroupedMessageAggregationStrategy())
+                .setHeader(TSV_RECORD, body().method("asTsv"))
+                .marshal().json()
+            .end()
+            .filter(simple("${body.size} > 0"))
+            .to(frontOut)
+            .process(exchange -> responseProducer.groupClientLogs(exchange, TSV_RECORD))
+            .split(body())
+                .to(clientLog);
+
     }
 }
@@ -11,14 +11,18 @@ import java.net.UnknownHostException;
 
 import org.apache.camel.LoggingLevel;
 import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.model.LoadBalanceDefinition;
 import org.apache.hc.client5.http.ConnectTimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
+import it.zwets.sms.gateway.comp.StageMonitor;
+import it.zwets.sms.gateway.comp.VodaWaspClient;
 import it.zwets.sms.gateway.comp.VodaWaspRequestProducer;
 import it.zwets.sms.gateway.comp.VodaWaspResponseProcessor;
+import it.zwets.sms.gateway.comp.WaspLoadBalancer;
 import it.zwets.sms.gateway.dto.VodaWaspResponse;
 
 /**
@@ -30,8 +34,11 @@ import it.zwets.sms.gateway.dto.VodaWaspResponse;
  * If you use the SMS Gateway code, then you will most likely need to replace
  * this route with something that suits your need.
  * 
- * We use failover over the endpoints offered by the provider.  The URLs are
- * not defined in this reposity but in our production application.properties.
+ * We balance the load over the endpoints offered by the provider, by their
+ * latency, failing over when one cannot be reached (see {@link WaspLoadBalancer}).
+ * The URLs are not defined in this reposity but in our production
+ * application.properties.  The calls go over the pooled, asynchronous
+ * {@link VodaWaspClient}.
  */
 @Component
 public class VodaWaspRoute extends RouteBuilder {
@@ -46,6 +53,15 @@ public class VodaWaspRoute extends RouteBuilder {
     @Autowired
     private VodaWaspResponseProcessor vodaResponseProcessor;
 
+    @Autowired
+    private VodaWaspClient vodaWaspClient;
+
+    @Autowired
+    private WaspLoadBalancer waspLoadBalancer;
+
+    @Autowired
+    private StageMonitor stageMonitor;
+
     @Override
     public void configure() throws Exception {
 
@@ -72,7 +88,8 @@ public class VodaWaspRoute extends RouteBuilder {
         // Keep this route separate from the one above
         // for its specific exception handling
 
-        from("direct:call-wasp").routeId("call-wasp")
+        LoadBalanceDefinition balancer = from("direct:call-wasp").routeId("call-wasp")
+            .routePolicy(stageMonitor.policy("wasp-call"))
             .log(TRACE, LOG, "Wasp request: ${body}")
 
             // We split out the route to the Wasp endpoints to give it its own error handling.
@@ -87,7 +104,7 @@ public class VodaWaspRoute extends RouteBuilder {
             // We make an exception (no pun) for ConnectTimeoutException and SocketException which
             // we know will occur BEFORE we have established the http connection.
 
-            .onException( // Match the exceptions in the failover below
+            .onException( // Match VodaWaspClient.CONNECT_EXCEPTIONS, on which we fail over
                     ConnectTimeoutException.class,
                     SocketException.class,
                     UnknownHostException.class)
@@ -105,22 +122,17 @@ public class VodaWaspRoute extends RouteBuilder {
                 .stop()
             .end()
 
-            // We do sticky round robin fail-over: next request goes to last known good
-            // See: https://camel.apache.org/components/4.0.x/eips/failover-eip.html
+            // We balance over the endpoints by their latency, and fail over to another
+            // endpoint only when we failed to connect (see WaspLoadBalancer).
+            // The endpoints are called asynchronously over a shared connection pool.
 
-            .loadBalance().failover(7 /* one less than number of endpoints */, false, true, true,
-                    ConnectTimeoutException.class,
-                    SocketException.class,
-                    UnknownHostException.class)
-                .to("{{sms.gateway.vodacom.wasp.url.1}}")
-                .to("{{sms.gateway.vodacom.wasp.url.2}}")
-                .to("{{sms.gateway.vodacom.wasp.url.3}}")
-                .to("{{sms.gateway.vodacom.wasp.url.4}}")
-                .to("{{sms.gateway.vodacom.wasp.url.5}}")
-                .to("{{sms.gateway.vodacom.wasp.url.6}}")
-                .to("{{sms.gateway.vodacom.wasp.url.7}}")
-                .to("{{sms.gateway.vodacom.wasp.url.8}}")
-            .end()
+            .loadBalance(waspLoadBalancer);
+
+        for (String url : vodaWaspClient.getUrls()) {
+            balancer.process(vodaWaspClient.endpoint(url));
+        }
+
+        balancer.end()
             .log(DEBUG, LOG, "Wasp response: ${body}")
             .to("direct:wasp-response");
 
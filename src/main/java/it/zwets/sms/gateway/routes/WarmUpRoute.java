@@ -0,0 +1,204 @@
+package it.zwets.sms.gateway.routes;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_RECALL_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_HEADER_SENDER;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_HEADER_TO;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_SENT;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import it.zwets.sms.crypto.Vault;
+import it.zwets.sms.gateway.comp.PayloadDecoder;
+import it.zwets.sms.gateway.comp.RequestProcessor;
+import it.zwets.sms.gateway.comp.ResponseProducer;
+import it.zwets.sms.gateway.comp.SmppRequestProducer;
+import it.zwets.sms.gateway.comp.SmppSegmenter;
+import it.zwets.sms.gateway.dto.SendSmsRequest;
+import it.zwets.sms.gateway.dto.SmsMessage;
+import it.zwets.sms.gateway.smpp.SmppBindPool;
+
+/**
+ * Camel route that warms up the gateway before it takes requests.
+ *
+ * The SMPP binds are normally made on first use, and the request path runs
+ * interpreted until the JIT has seen enough of it, so that the first
+ * requests after a start are slow.  When <code>sms.gateway.warm-up.enabled</code>
+ * is set, the main route (the Kafka consumer) is not started with the
+ * others.  Once the application has started, this binds all SMPP binds,
+ * reads the key pairs from the vault, and sends a number of synthetic
+ * requests through the request processing, SMPP request encoding and
+ * segmentation, and response marshalling, which end here without being submitted or answered.
+ * Then it starts the main route.
+ *
+ * The synthetic requests are for the first allowed client that has a key
+ * in the vault, and take turns between a GSM 03.38, a UCS-2 and a long
+ * message, so that all encoding paths get warmed.  They bypass the quota
+ * and dispatch stages, so that no client is charged for them.
+ */
+@Component
+@ConditionalOnProperty("sms.gateway.warm-up.enabled")
+@ManagedResource(objectName = "it.zwets.sms.gateway:name=WarmUp", description = "Warm-up at startup")
+public class WarmUpRoute extends RouteBuilder implements ApplicationRunner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WarmUpRoute.class);
+
+    public static final String WARM_UP = "direct:warm-up";
+
+    private static final String[] TEXTS = {
+        "Warm-up message",
+        "Warm-up message \u2713 \u00e7a marche",
+        "Warm-up message that is too long to fit in a single SMS, so that it is split into "
+            + "concatenated segments with a user data header, as longer messages are when they go to the SMSC"
+    };
+
+    @Autowired
+    private RequestProcessor requestProcessor;
+
+    @Autowired
+    private PayloadDecoder payloadDecoder;
+
+    @Autowired
+    private SmppRequestProducer smppRequestProducer;
+
+    @Autowired
+    private SmppSegmenter smppSegmenter;
+
+    @Autowired
+    private ResponseProducer responseProducer;
+
+    @Autowired
+    private SmppBindPool smppBindPool;
+
+    @Autowired
+    private Vault vault;
+
+    @Value("${sms.gateway.allowed-clients}")
+    private String allowedClients;
+
+    @Value("${sms.gateway.warm-up.bind:true}")
+    private boolean bind;
+
+    @Value("${sms.gateway.warm-up.messages:1000}")
+    private int messages;
+
+    private volatile int boundCount = 0;
+    private volatile int keyCount = 0;
+    private volatile int messageCount = 0;
+    private volatile long bindMillis = 0;
+    private volatile long duration = -1;
+
+    @Override
+    public void configure() throws Exception {
+
+        from(WARM_UP).routeId("warm-up")
+            .process(requestProcessor)
+            .process(payloadDecoder)
+            .process(smppRequestProducer)
+            .process(smppSegmenter)
+            .setHeader(HEADER_SMS_STATUS, constant(SMS_STATUS_SENT))
+            .setHeader(HEADER_RECALL_ID, simple("${exchangeId}"))
+            .process(responseProducer)
+            .marshal().json();
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        LOG.info("Warming up before starting the main route");
+        long start = System.nanoTime();
+
+        try {
+            if (bind) {
+                boundCount = smppBindPool.bindAll();
+                bindMillis = (System.nanoTime() - start) / 1_000_000;
+                LOG.info("Bound {} of {} SMPP binds in {} ms", boundCount, smppBindPool.getBindCount(), bindMillis);
+            }
+
+            List<String> aliases = vault.preload();
+            keyCount = aliases.size();
+
+            String client = Arrays.stream(allowedClients.split(" *, *")).filter(aliases::contains).findFirst().orElse(null);
+            if (client == null) {
+                LOG.warn("No allowed client has a key in the vault, skipping the warm-up requests");
+            }
+            else {
+                sendRequests(client);
+            }
+        }
+        catch (Exception e) {
+            LOG.error("Warm-up failed, starting anyway: {}", e.getMessage());
+        }
+        finally {
+            duration = (System.nanoTime() - start) / 1_000_000;
+            LOG.info("Warm-up took {} ms: {} binds, {} keys, {} requests", duration, boundCount, keyCount, messageCount);
+            getContext().getRouteController().startRoute(SmsRouter.MAIN_ROUTE_ID);
+        }
+    }
+
+    // Sends the requests, with the payloads encrypted once per text
+
+    private void sendRequests(String client) throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+
+        String[] payloads = new String[TEXTS.length];
+        for (int i = 0; i < TEXTS.length; ++i) {
+            SmsMessage sms = new SmsMessage(TEXTS[i]);
+            sms.setHeader(SMS_HEADER_TO, "+255700000000");
+            sms.setHeader(SMS_HEADER_SENDER, "WarmUp");
+            payloads[i] = Base64.getEncoder().encodeToString(vault.encrypt(client, sms.asBytes()));
+        }
+
+        try (ProducerTemplate template = getContext().createProducerTemplate()) {
+            for (int i = 0; i < messages; ++i) {
+                String deadline = Instant.now().plus(Duration.ofHours(1)).toString();
+                template.sendBody(WARM_UP, mapper.writeValueAsString(
+                        new SendSmsRequest(client, "warm-up-" + i, deadline, payloads[i % payloads.length])));
+                messageCount = i + 1;
+            }
+        }
+    }
+
+    @ManagedAttribute(description = "Time the warm-up took (ms), -1 while it runs")
+    public long getDuration() {
+        return duration;
+    }
+
+    @ManagedAttribute(description = "Time binding the SMPP binds took (ms)")
+    public long getBindDuration() {
+        return bindMillis;
+    }
+
+    @ManagedAttribute(description = "Number of SMPP binds bound by the warm-up")
+    public int getBoundCount() {
+        return boundCount;
+    }
+
+    @ManagedAttribute(description = "Number of key pairs read from the vault")
+    public int getKeyCount() {
+        return keyCount;
+    }
+
+    @ManagedAttribute(description = "Number of synthetic requests sent through the pipeline")
+    public int getMessageCount() {
+        return messageCount;
+    }
+}
@@ -0,0 +1,454 @@
+package it.zwets.sms.gateway.smpp;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.component.smpp.MessageReceiverListenerImpl;
+import org.apache.camel.component.smpp.SmppConfiguration;
+import org.apache.camel.component.smpp.SmppConnectionFactory;
+import org.apache.camel.component.smpp.SmppEndpoint;
+import org.jsmpp.DefaultPDUReader;
+import org.jsmpp.DefaultPDUSender;
+import org.jsmpp.InvalidResponseException;
+import org.jsmpp.PDUReader;
+import org.jsmpp.PDUSender;
+import org.jsmpp.SynchronizedPDUSender;
+import org.jsmpp.bean.BindType;
+import org.jsmpp.bean.NumberingPlanIndicator;
+import org.jsmpp.bean.TypeOfNumber;
+import org.jsmpp.extra.ResponseTimeoutException;
+import org.jsmpp.extra.SessionState;
+import org.jsmpp.session.BindParameter;
+import org.jsmpp.session.SMPPSession;
+import org.jsmpp.session.Session;
+import org.jsmpp.session.connection.ConnectionFactory;
+import org.jsmpp.util.DefaultComposer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.jmx.export.naming.SelfNaming;
+
+import it.zwets.sms.gateway.comp.Histogram;
+
+/**
+ * A transceiver bind to the SMSC with a window of outstanding requests.
+ *
+ * Wraps a jSMPP session, which we create and bind ourselves rather than
+ * through the Camel SMPP producer, so that we can have several submits
+ * outstanding on it at once.  jSMPP tracks each outstanding request by its
+ * sequence number and hands the matching response back to its caller, so
+ * all we need is to make the calls concurrently.  We do this on the bind's
+ * own executor, with a semaphore that limits the number of outstanding
+ * requests to the window size that the SMSC allows.
+ *
+ * The session is created on first use, and recreated after the reconnect
+ * delay when it is lost or fails to bind.  While it waits to reconnect, the
+ * bind is not {@link #isAvailable() available}, so that the {@link SmppBindPool}
+ * sends its traffic to the other binds.  Delivery receipts and other PDUs
+ * from the SMSC go to the inbound route, as they did with the Camel SMPP
+ * producer.
+ *
+ * Submits on the bind are paced by its {@link SmppThrottle}, which backs off
+ * when the SMSC signals that we exceed the rate it accepts.
+ *
+ * When given a maximum enquire latency, the bind times an enquire_link at
+ * the SMSC's enquire link interval, and is not available while the last one
+ * failed or took longer than the maximum.  This catches an SMSC that still
+ * holds the connection but has stopped answering in good time.
+ *
+ * The SMPP settings (timers, addressing, bind parameters) come from the
+ * configuration of the Camel SMPP endpoint that this bind is created from.
+ */
+@ManagedResource(description = "SMPP bind with submit window")
+public class SmppBind implements SelfNaming, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SmppBind.class);
+
+    // Upper bounds (ms) of the response time histogram
+    private static final long[] RESPONSE_BOUNDS = { 10, 100, 1_000, 10_000, 60_000 };
+
+    private final SmppEndpoint endpoint;
+    private final SmppConfiguration config;
+    private final String inboundRouteId;
+    private final String target;
+    private final String name;
+    private final long maxEnquireLatency;
+    private final int windowSize;
+    private final Semaphore window;
+    private final SmppThrottle throttle;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService reconnector;
+    private final ReentrantLock connectLock = new ReentrantLock();
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong reconnectCount = new AtomicLong();
+    private final Histogram responseTime = new Histogram(RESPONSE_BOUNDS);
+
+    private volatile SMPPSession session;
+    private volatile boolean reconnecting = false;
+    private volatile boolean closing = false;
+    private volatile String lastError = "";
+    private volatile Instant boundSince = null;
+    private volatile boolean healthy = true;
+    private volatile long enquireLatency = -1;
+
+    /**
+     * Create a bind for the SMSC of the endpoint.
+     *
+     * @param endpoint the Camel SMPP endpoint whose configuration we use
+     * @param inboundRouteId the route that receives the PDUs from the SMSC
+     * @param windowSize the maximum number of outstanding requests
+     * @param ratePerSecond the contracted submits per second, 0 for unpaced
+     * @param target the name of the SMSC target, empty if there is only the one
+     * @param name the name of the bind, for logging and JMX
+     * @param maxEnquireLatency the maximum enquire_link response time (ms) for the bind to be available, 0 for no check
+     */
+    public SmppBind(SmppEndpoint endpoint, String inboundRouteId, int windowSize, double ratePerSecond,
+            String target, String name, long maxEnquireLatency) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("SMPP window size must be positive: %d".formatted(windowSize));
+        }
+        LOG.debug("Constructing SmppBind {} to {} with window {}", name, endpoint.getConnectionString(), windowSize);
+
+        CamelContext camelContext = endpoint.getCamelContext();
+
+        this.endpoint = endpoint;
+        this.config = endpoint.getConfiguration();
+        this.inboundRouteId = inboundRouteId;
+        this.target = target;
+        this.name = name;
+        this.maxEnquireLatency = maxEnquireLatency;
+        this.windowSize = windowSize;
+        this.window = new Semaphore(windowSize, true);
+        this.throttle = new SmppThrottle(name, ratePerSecond);
+        this.executor = camelContext.getExecutorServiceManager().newFixedThreadPool(this, "SmppSubmit-" + name, windowSize);
+        this.reconnector = camelContext.getExecutorServiceManager().newSingleThreadScheduledExecutor(this, "SmppReconnect-" + name);
+
+        if (maxEnquireLatency > 0) {
+            long interval = config.getEnquireLinkTimer();
+            reconnector.scheduleWithFixedDelay(this::probe, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the Camel SMPP endpoint this bind was created from
+     */
+    public SmppEndpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return the name of the SMSC target this bind connects to, empty if there is only the one
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    @Override
+    public ObjectName getObjectName() throws MalformedObjectNameException {
+        return new ObjectName("it.zwets.sms.gateway:name=SmppBind,%sbind=%s".formatted(
+                target.isEmpty() ? "" : "smsc=%s,".formatted(ObjectName.quote(target)), ObjectName.quote(name)));
+    }
+
+    /**
+     * Takes a slot in the window if one is free.
+     *
+     * @return true if a slot was taken
+     */
+    public boolean tryAcquire() {
+        return window.tryAcquire();
+    }
+
+    /**
+     * Releases a slot taken with {@link #tryAcquire}.
+     *
+     * @param succeeded whether the request in the slot succeeded, for the metrics
+     * @param startNanos the nano time at which the request was started
+     */
+    public void release(boolean succeeded, long startNanos) {
+        responseTime.record((System.nanoTime() - startNanos) / 1_000_000);
+        (succeeded ? submittedCount : failedCount).incrementAndGet();
+        window.release();
+    }
+
+    /**
+     * A bind is available when it is bound and healthy, or has not yet tried
+     * to bind.  It is unavailable while it waits to reconnect, and while its
+     * last enquire_link failed or was too slow.
+     *
+     * @return whether it makes sense to send traffic to this bind
+     */
+    public boolean isAvailable() {
+        SMPPSession s = session;
+        return s != null ? s.getSessionState().isBound() && healthy : !reconnecting && !closing;
+    }
+
+    /**
+     * @return the throttle that paces the submits on this bind
+     */
+    public SmppThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * @return the executor on which to make the blocking calls on the session
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Returns the bound session, binding it first if needed.
+     *
+     * @return the session
+     * @throws IOException if the session could not be bound
+     */
+    public SMPPSession getSession() throws IOException {
+        SMPPSession s = session;
+        if (s != null && s.getSessionState().isBound()) {
+            return s;
+        }
+
+        connectLock.lock();
+        try {
+            if (session == null || !session.getSessionState().isBound()) {
+                closeSession();
+                try {
+                    session = createSession();
+                }
+                catch (IOException e) {
+                    lastError = "%s: %s".formatted(Instant.now(), e.getMessage());
+                    scheduleReconnect();
+                    throw e;
+                }
+                boundSince = Instant.now();
+                reconnecting = false;
+                healthy = true;
+            }
+            return session;
+        }
+        finally {
+            connectLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        LOG.info("Closing SMPP bind {} to {}", name, endpoint.getConnectionString());
+        closing = true;
+        CamelContext camelContext = endpoint.getCamelContext();
+        camelContext.getExecutorServiceManager().shutdown(reconnector);
+        camelContext.getExecutorServiceManager().shutdownGraceful(executor);
+        closeSession();
+    }
+
+    @ManagedAttribute(description = "Whether the session is bound")
+    public boolean isBound() {
+        SMPPSession s = session;
+        return s != null && s.getSessionState().isBound();
+    }
+
+    @ManagedAttribute(description = "Time since which the session is bound")
+    public String getBoundSince() {
+        Instant since = boundSince;
+        return since != null && isBound() ? since.toString() : "";
+    }
+
+    @ManagedAttribute(description = "Number of times the bind was lost or failed and was retried")
+    public long getReconnectCount() {
+        return reconnectCount.get();
+    }
+
+    @ManagedAttribute(description = "Last bind or session error")
+    public String getLastError() {
+        return lastError;
+    }
+
+    @ManagedAttribute(description = "Name of the SMSC target")
+    public String getSmsc() {
+        return target;
+    }
+
+    @ManagedAttribute(description = "Whether the last enquire_link succeeded in time")
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    @ManagedAttribute(description = "Response time (ms) of the last enquire_link, -1 if none")
+    public long getEnquireLatency() {
+        return enquireLatency;
+    }
+
+    @ManagedAttribute(description = "Maximum number of outstanding requests")
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    @ManagedAttribute(description = "Current number of outstanding requests")
+    public int getOutstanding() {
+        return windowSize - window.availablePermits();
+    }
+
+    @ManagedAttribute(description = "Number of requests that completed successfully")
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of requests that failed or timed out")
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    @ManagedAttribute(description = "Current submit rate limit (per second), 0 when unpaced")
+    public double getThrottleRate() {
+        return throttle.getRate();
+    }
+
+    @ManagedAttribute(description = "Number of submits the SMSC throttled")
+    public long getThrottledCount() {
+        return throttle.getThrottledCount();
+    }
+
+    @ManagedAttribute(description = "Histogram of the time (ms) from submit to response")
+    public String getResponseTimes() {
+        return responseTime.toString();
+    }
+
+    private SMPPSession createSession() throws IOException {
+        LOG.debug("Binding {} to SMSC at {}", name, endpoint.getConnectionString());
+
+        SMPPSession s = new ProbingSession(
+                new SynchronizedPDUSender(new DefaultPDUSender(new DefaultComposer())),
+                new DefaultPDUReader(),
+                SmppConnectionFactory.getInstance(config));
+
+        s.setEnquireLinkTimer(config.getEnquireLinkTimer());
+        s.setTransactionTimer(config.getTransactionTimer());
+        s.setPduProcessorDegree(config.getPduProcessorDegree());
+        s.setQueueCapacity(config.getPduProcessorQueueCapacity());
+        s.addSessionStateListener(this::onStateChange);
+
+        try {
+            s.setMessageReceiverListener(new MessageReceiverListenerImpl(endpoint, inboundRouteId));
+        }
+        catch (Exception e) {
+            throw new IOException("Failed to set up inbound route %s".formatted(inboundRouteId), e);
+        }
+
+        s.connectAndBind(config.getHost(), config.getPort(), new BindParameter(
+                BindType.BIND_TRX,
+                config.getSystemId(),
+                config.getPassword(),
+                config.getSystemType(),
+                TypeOfNumber.valueOf(config.getTypeOfNumber()),
+                NumberingPlanIndicator.valueOf(config.getNumberingPlanIndicator()),
+                "",
+                config.getInterfaceVersionByte()));
+
+        LOG.info("Bind {} bound to SMSC at {}", name, endpoint.getConnectionString());
+        return s;
+    }
+
+    private void onStateChange(SessionState newState, SessionState oldState, Session source) {
+        LOG.debug("SMPP session {} state change {} -> {}", name, oldState, newState);
+
+        if (newState == SessionState.CLOSED && source == session && !closing) {
+            LOG.warn("Lost SMPP session {} to {}", name, endpoint.getConnectionString());
+            lastError = "%s: session closed".formatted(Instant.now());
+            scheduleReconnect();
+        }
+    }
+
+    // Times an enquire_link on the bound session, and marks the bind unhealthy
+    // when it fails or exceeds the maximum latency.  A failure that loses the
+    // session is handled by the state listener.
+
+    private void probe() {
+        if (!(session instanceof ProbingSession s) || !s.getSessionState().isBound()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        String problem = null;
+        try {
+            s.probe();
+            enquireLatency = (System.nanoTime() - start) / 1_000_000;
+            if (enquireLatency > maxEnquireLatency) {
+                problem = "enquire_link took %dms".formatted(enquireLatency);
+            }
+        }
+        catch (Exception e) {
+            enquireLatency = -1;
+            problem = "enquire_link failed: %s".formatted(e.getMessage());
+        }
+
+        if (problem != null) {
+            lastError = "%s: %s".formatted(Instant.now(), problem);
+            if (healthy) {
+                LOG.warn("Bind {} to {} is unhealthy: {}", name, endpoint.getConnectionString(), problem);
+            }
+        }
+        else if (!healthy) {
+            LOG.info("Bind {} to {} is healthy again", name, endpoint.getConnectionString());
+        }
+        healthy = problem == null;
+    }
+
+    private void scheduleReconnect() {
+        if (!closing && !reconnecting) {
+            LOG.info("Reconnecting bind {} in {}ms", name, config.getReconnectDelay());
+            reconnecting = true;
+            reconnectCount.incrementAndGet();
+            reconnector.schedule(this::reconnect, config.getReconnectDelay(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void reconnect() {
+        reconnecting = false;
+        try {
+            getSession();
+        }
+        catch (IOException e) {
+            LOG.error("Failed to reconnect bind {} to {}: {}", name, endpoint.getConnectionString(), e.getMessage());
+        }
+    }
+
+    // The session with the enquire_link that jSMPP sends on its own timer
+    // exposed, so that we can time it
+
+    private static class ProbingSession extends SMPPSession {
+
+        ProbingSession(PDUSender pduSender, PDUReader pduReader, ConnectionFactory connFactory) {
+            super(pduSender, pduReader, connFactory);
+        }
+
+        void probe() throws ResponseTimeoutException, InvalidResponseException, IOException {
+            sendEnquireLink();
+        }
+    }
+
+    private void closeSession() {
+        SMPPSession s = session;
+        session = null;
+        if (s != null) {
+            try {
+                s.unbindAndClose();
+            }
+            catch (Exception e) {
+                LOG.warn("Exception while closing SMPP session: {}", e.getMessage());
+            }
+        }
+    }
+}
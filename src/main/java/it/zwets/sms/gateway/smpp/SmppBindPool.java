@@ -0,0 +1,340 @@
+package it.zwets.sms.gateway.smpp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMSC;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.apache.camel.Endpoint;
+import org.apache.camel.Exchange;
+import org.apache.camel.component.smpp.SmppEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * A pool of binds to one or more SMSCs, over which submits are load balanced.
+ *
+ * A single bind caps throughput at its window size over the SMSC's response
+ * time, so we open several and send each submit to the available bind with
+ * the fewest outstanding requests.  Binds that are waiting to reconnect are
+ * skipped as long as others are available.  Each bind reconnects on its own.
+ *
+ * With several SMSC targets, each submit first picks a target in proportion
+ * to the targets' weights (smooth weighted round robin), among the targets
+ * that have an available bind with a free slot, so traffic fails over to the
+ * others when a target loses its binds.  A target with weight 0 is a standby,
+ * used only when no weighted target is available.  A submit can ask for a
+ * target (its route prefers an SMSC), and goes there when it is available.
+ *
+ * Message IDs are only unique per SMSC, so the recall-id of a message that
+ * went through a named target is the target's name and the message ID (see
+ * {@link #recallId}).  Delivery reports are tagged with the target whose
+ * bind they came in on (see {@link #setSmscHeader}).
+ *
+ * A submit waits when all windows are full, across all binds.  The wait is
+ * fair: submits get a slot in the order they asked for one.
+ */
+@ManagedResource(objectName = "it.zwets.sms.gateway:name=SmppBindPool", description = "Pool of SMPP binds")
+public class SmppBindPool implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SmppBindPool.class);
+
+    /**
+     * An SMSC to bind to.
+     *
+     * @param name the name of the target, empty if there is only the one
+     * @param endpoint the Camel SMPP endpoint whose configuration its binds use
+     * @param weight its share of the traffic, 0 for standby
+     * @param bindCount the number of binds to open
+     */
+    public record Target(String name, SmppEndpoint endpoint, int weight, int bindCount) {
+
+        public Target {
+            if (!name.matches("[A-Za-z0-9_-]*")) {
+                throw new IllegalArgumentException("Invalid SMSC target name (letters, digits, - and _ only): %s".formatted(name));
+            }
+            if (weight < 0) {
+                throw new IllegalArgumentException("SMSC target weight must not be negative: %d".formatted(weight));
+            }
+            if (bindCount <= 0) {
+                throw new IllegalArgumentException("SMPP bind count must be positive: %d".formatted(bindCount));
+            }
+        }
+    }
+
+    // A target's binds, and its running score for the weighted round robin
+
+    private static class TargetBinds {
+        final Target target;
+        final List<SmppBind> binds;
+        int current = 0;
+        int next = 0;
+
+        TargetBinds(Target target, List<SmppBind> binds) {
+            this.target = target;
+            this.binds = binds;
+        }
+    }
+
+    private final List<SmppBind> binds;
+    private final List<TargetBinds> targets;
+    private final Map<Endpoint, String> targetByEndpoint = new HashMap<>();
+    private final Semaphore slots;
+    private final AtomicLong windowFullCount = new AtomicLong();
+    private final AtomicLong failoverCount = new AtomicLong();
+    private int next = 0;
+
+    /**
+     * Create a pool of binds to the SMSC targets.
+     *
+     * @param targets the SMSCs to bind to
+     * @param inboundRouteId the route that receives the PDUs from the SMSCs
+     * @param windowSize the maximum number of outstanding requests per bind
+     * @param ratePerSecond the contracted submits per second per bind, 0 for unpaced
+     * @param maxEnquireLatency the maximum enquire_link response time (ms) for a bind to be available, 0 for no check
+     */
+    public SmppBindPool(List<Target> targets, String inboundRouteId, int windowSize, double ratePerSecond, long maxEnquireLatency) {
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("No SMSC targets to bind to");
+        }
+
+        List<SmppBind> all = new ArrayList<>();
+        List<TargetBinds> list = new ArrayList<>(targets.size());
+        for (Target target : targets) {
+            LOG.info("Creating pool of {} SMPP binds to {} {}", target.bindCount(), target.name(), target.endpoint().getConnectionString());
+            if (targetByEndpoint.put(target.endpoint(), target.name()) != null) {
+                throw new IllegalArgumentException("Duplicate SMSC target: %s".formatted(target.endpoint().getConnectionString()));
+            }
+            List<SmppBind> targetBinds = new ArrayList<>(target.bindCount());
+            for (int i = 0; i < target.bindCount(); ++i) {
+                targetBinds.add(new SmppBind(target.endpoint(), inboundRouteId, windowSize, ratePerSecond,
+                        target.name(), target.name().isEmpty() ? String.valueOf(i) : target.name() + "-" + i, maxEnquireLatency));
+            }
+            all.addAll(targetBinds);
+            list.add(new TargetBinds(target, targetBinds));
+        }
+
+        this.binds = Collections.unmodifiableList(all);
+        this.targets = list;
+        this.slots = new Semaphore(all.size() * windowSize, true);
+    }
+
+    /**
+     * Returns the recall-id for a message ID given by an SMSC target.
+     *
+     * @param target the name of the target, may be null or empty if there is only the one
+     * @param messageId the message ID the SMSC gave
+     * @return the message ID prefixed with the target name and a colon, if any
+     */
+    public static String recallId(String target, String messageId) {
+        return target == null || target.isEmpty() ? messageId : target + ':' + messageId;
+    }
+
+    /**
+     * Sets the smsc header on an exchange that came in on one of our binds
+     * to the name of the target of that bind.
+     *
+     * @param exchange the exchange created by the bind's receiver
+     */
+    public void setSmscHeader(Exchange exchange) {
+        exchange.getIn().setHeader(HEADER_SMSC, targetByEndpoint.get(exchange.getFromEndpoint()));
+    }
+
+    /**
+     * @return the binds in the pool
+     */
+    public List<SmppBind> getBinds() {
+        return binds;
+    }
+
+    /**
+     * Takes a slot on the least loaded bind, waiting at most timeout for one.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of timeout
+     * @return the bind on which a slot was taken, or null if all stayed full
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public SmppBind acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        return acquire(null, timeout, unit);
+    }
+
+    /**
+     * Takes a slot on the least loaded bind of the preferred target if it
+     * has an available one, else as {@link #acquire(long, TimeUnit)} does.
+     *
+     * @param preferred the name of the preferred target, or null
+     * @param timeout the maximum time to wait
+     * @param unit the unit of timeout
+     * @return the bind on which a slot was taken, or null if all stayed full
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public SmppBind acquire(String preferred, long timeout, TimeUnit unit) throws InterruptedException {
+        if (!slots.tryAcquire()) {
+            windowFullCount.incrementAndGet();
+            if (!slots.tryAcquire(timeout, unit)) {
+                return null;
+            }
+        }
+        return select(preferred);
+    }
+
+    /**
+     * Releases the slot taken with {@link #acquire} on bind.
+     *
+     * @param bind the bind returned by acquire
+     * @param succeeded whether the request in the slot succeeded, for the metrics
+     * @param startNanos the nano time at which the request was started
+     */
+    public void release(SmppBind bind, boolean succeeded, long startNanos) {
+        bind.release(succeeded, startNanos);
+        slots.release();
+    }
+
+    /**
+     * Binds all binds that are not yet bound, rather than on first use.
+     * The binds connect in parallel, each on its own executor.  A bind
+     * that fails is left to reconnect after the reconnect delay.
+     *
+     * @return the number of binds that are bound
+     */
+    public int bindAll() {
+        CompletableFuture.allOf(binds.stream()
+                .map(bind -> CompletableFuture.runAsync(() -> {
+                    try {
+                        bind.getSession();
+                    }
+                    catch (IOException e) {
+                        LOG.warn("Failed to bind to {}: {}", bind.getEndpoint().getConnectionString(), e.getMessage());
+                    }
+                }, bind.getExecutor()))
+                .toArray(CompletableFuture[]::new))
+            .join();
+        return getBoundCount();
+    }
+
+    @Override
+    public void close() {
+        binds.forEach(SmppBind::close);
+    }
+
+    @ManagedAttribute(description = "Number of binds in the pool")
+    public int getBindCount() {
+        return binds.size();
+    }
+
+    @ManagedAttribute(description = "Number of binds currently bound")
+    public int getBoundCount() {
+        return (int) binds.stream().filter(SmppBind::isBound).count();
+    }
+
+    @ManagedAttribute(description = "Current number of outstanding requests over all binds")
+    public int getOutstanding() {
+        return binds.stream().mapToInt(SmppBind::getOutstanding).sum();
+    }
+
+    @ManagedAttribute(description = "Number of times a request had to wait because all windows were full")
+    public long getWindowFullCount() {
+        return windowFullCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of requests that went to a standby or unavailable SMSC as no weighted one was available")
+    public long getFailoverCount() {
+        return failoverCount.get();
+    }
+
+    @ManagedAttribute(description = "Weight and bound binds of each SMSC target")
+    public String getTargets() {
+        return targets.stream()
+            .map(t -> "%s: weight %d, bound %d/%d".formatted(t.target.name(), t.target.weight(),
+                    t.binds.stream().filter(SmppBind::isBound).count(), t.binds.size()))
+            .collect(Collectors.joining(", ", "{", "}"));
+    }
+
+    // Holding a pool slot guarantees that some bind has a free slot, because
+    // all slots are taken here.  We pick the preferred target or else a
+    // weighted target that has an available bind with a free slot, else any
+    // available bind, else any bind.
+
+    private synchronized SmppBind select(String preferred) {
+        SmppBind best = null;
+
+        if (preferred != null) {
+            for (TargetBinds t : targets) {
+                if (t.target.name().equals(preferred) && (best = leastLoaded(t.binds, t.next, true)) != null) {
+                    t.next = (t.next + 1) % t.binds.size();
+                    if (!best.tryAcquire()) {
+                        throw new IllegalStateException("No free slot on bind that has one");
+                    }
+                    return best;
+                }
+            }
+            LOG.debug("Preferred SMSC target {} is not available", preferred);
+        }
+
+        TargetBinds chosen = null;
+        SmppBind chosenBind = null;
+        int total = 0;
+        for (TargetBinds t : targets) {
+            SmppBind bind;
+            if (t.target.weight() > 0 && (bind = leastLoaded(t.binds, t.next, true)) != null) {
+                t.current += t.target.weight();
+                total += t.target.weight();
+                if (chosen == null || t.current > chosen.current) {
+                    chosen = t;
+                    chosenBind = bind;
+                }
+            }
+        }
+
+        if (chosen != null) {
+            chosen.current -= total;
+            chosen.next = (chosen.next + 1) % chosen.binds.size();
+            best = chosenBind;
+        }
+        else {
+            best = leastLoaded(binds, next, true);
+            if (best == null) {
+                best = leastLoaded(binds, next, false);
+            }
+            next = (next + 1) % binds.size();
+            if (targets.size() > 1) {
+                failoverCount.incrementAndGet();
+            }
+        }
+
+        if (best == null || !best.tryAcquire()) {
+            throw new IllegalStateException("No free slot on any bind while holding a pool slot");
+        }
+        return best;
+    }
+
+    // Returns the bind with a free slot and the fewest outstanding requests,
+    // starting the scan at a rotating index so that binds with equal load
+    // share traffic, or null if there is none
+
+    private static SmppBind leastLoaded(List<SmppBind> list, int start, boolean availableOnly) {
+        SmppBind best = null;
+        int n = list.size();
+        for (int i = 0; i < n; ++i) {
+            SmppBind bind = list.get((start + i) % n);
+            if (bind.getOutstanding() < bind.getWindowSize()
+                    && (!availableOnly || bind.isAvailable())
+                    && (best == null || bind.getOutstanding() < best.getOutstanding())) {
+                best = bind;
+            }
+        }
+        return best;
+    }
+}
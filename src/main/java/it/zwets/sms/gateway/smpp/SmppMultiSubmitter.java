@@ -0,0 +1,492 @@
+package it.zwets.sms.gateway.smpp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_DEADLINE;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_ERROR_TEXT;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMSC;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_EXPIRED;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_FAILED;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.component.smpp.SmppConfiguration;
+import org.apache.camel.component.smpp.SmppConstants;
+import org.apache.camel.component.smpp.SmppException;
+import org.apache.camel.support.AsyncProcessorSupport;
+import org.jsmpp.PDUException;
+import org.jsmpp.bean.Address;
+import org.jsmpp.bean.DataCodings;
+import org.jsmpp.bean.ESMClass;
+import org.jsmpp.bean.GSMSpecificFeature;
+import org.jsmpp.bean.MessageMode;
+import org.jsmpp.bean.MessageType;
+import org.jsmpp.bean.NumberingPlanIndicator;
+import org.jsmpp.bean.RegisteredDelivery;
+import org.jsmpp.bean.ReplaceIfPresentFlag;
+import org.jsmpp.bean.TypeOfNumber;
+import org.jsmpp.bean.UnsuccessDelivery;
+import org.jsmpp.extra.NegativeResponseException;
+import org.jsmpp.session.SubmitMultiResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import it.zwets.sms.codec.SmsEncoder;
+
+/**
+ * Submits identical messages to many recipients as one submit_multi.
+ *
+ * Campaign traffic sends the same text from the same sender to thousands of
+ * recipients.  Rather than a submit_sm each, we hold a message for up to the
+ * aggregation window, and submit it in one submit_multi with the messages
+ * with the same sender, text, validity period and preferred SMSC target
+ * that came in meanwhile, up to the SMSC's maximum number of destinations.
+ * A batch that reaches the maximum is submitted at once.  A message that is
+ * still alone when the window closes, and every message when aggregation
+ * is disabled, goes to the {@link SmppSubmitProcessor}.
+ *
+ * Waiting for a slot in a bind's window may take up to the window wait, so
+ * closed batches go to a pool of submit threads, one per bind, rather than
+ * being submitted on the timer thread (which would hold up the expiry of
+ * all other batches) or on the dispatch thread that filled them.  The time
+ * a batch spent queued for a submit thread counts towards its window wait.
+ *
+ * A batch takes one slot in a bind's window and one token of its throttle
+ * per segment.  When the text takes several segments, each is a submit_multi
+ * to all recipients.  While the SMSC throttles it, a batch is resubmitted
+ * until the earliest deadline of its messages.
+ *
+ * The SMSC gives one message ID per submit_multi, and sends a receipt per
+ * destination with that ID, so the ID we set on each message is the
+ * message ID qualified with its recipient (see {@link #destinationId}).
+ * Destinations the SMSC refuses in its response are set FAILED; the other
+ * messages continue as if submitted on their own.  As in the single submit,
+ * failures of the submit itself are set as exceptions on all messages, and
+ * the IDs of the segments that were accepted before are set all the same.
+ */
+@ManagedResource(objectName = "it.zwets.sms.gateway:name=SmppMultiSubmitter", description = "Aggregation of identical SMS into submit_multi")
+public class SmppMultiSubmitter extends AsyncProcessorSupport implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SmppMultiSubmitter.class);
+
+    private static final ESMClass ESM_DEFAULT = new ESMClass();
+    private static final ESMClass ESM_UDHI = new ESMClass(MessageMode.DEFAULT, MessageType.DEFAULT, GSMSpecificFeature.UDHI);
+    private static final RegisteredDelivery NO_RECEIPT = new RegisteredDelivery(0);
+
+    // The messages waiting for a submit_multi, and the timer that will submit them
+
+    private record Pending(Exchange exchange, AsyncCallback callback) {
+    }
+
+    private static final class Batch {
+        final List<Pending> pending = new ArrayList<>();
+        final Set<String> destinations = new HashSet<>();
+        ScheduledFuture<?> timer;
+    }
+
+    // A closed batch waiting for a submit thread, and since when
+
+    private record BatchTask(SmppMultiSubmitter submitter, Batch batch, long queued) implements Runnable {
+        @Override
+        public void run() {
+            submitter.submit(batch, queued);
+        }
+    }
+
+    private final SmppSubmitProcessor single;
+    private final SmppBindPool pool;
+    private final long windowWaitMillis;
+    private final long windowMillis;
+    private final int maxDestinations;
+    private final CamelContext camelContext;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService submitters;
+    private final Map<String, Batch> batches = new HashMap<>();
+
+    private final AtomicLong singleCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong batchedCount = new AtomicLong();
+    private final AtomicLong refusedCount = new AtomicLong();
+
+    /**
+     * Create a submitter that aggregates messages into submit_multi.
+     *
+     * @param single the processor that submits the messages that are not aggregated
+     * @param pool the binds to submit over
+     * @param windowWaitMillis how long to wait for a slot in a window
+     * @param windowMillis how long to hold a message for others like it, 0 to not aggregate
+     * @param maxDestinations the maximum number of destinations in a submit_multi
+     * @param camelContext the context whose executor service manager we use
+     */
+    public SmppMultiSubmitter(SmppSubmitProcessor single, SmppBindPool pool, long windowWaitMillis,
+            long windowMillis, int maxDestinations, CamelContext camelContext) {
+        if (maxDestinations < 1 || maxDestinations > 255) {
+            throw new IllegalArgumentException("SMPP submit_multi allows 1 to 255 destinations: %d".formatted(maxDestinations));
+        }
+        LOG.debug("Constructing SmppMultiSubmitter with window {}ms and at most {} destinations", windowMillis, maxDestinations);
+        this.single = single;
+        this.pool = pool;
+        this.windowWaitMillis = windowWaitMillis;
+        this.windowMillis = windowMillis;
+        this.maxDestinations = maxDestinations;
+        this.camelContext = camelContext;
+        this.timer = camelContext.getExecutorServiceManager().newSingleThreadScheduledExecutor(this, "SmppMultiSubmit");
+        this.submitters = camelContext.getExecutorServiceManager().newFixedThreadPool(this, "SmppMultiSubmitBatch", Math.max(1, pool.getBinds().size()));
+    }
+
+    /**
+     * Returns the ID of a message in a submit_multi, by which its delivery
+     * receipts are correlated.
+     *
+     * @param messageId the message ID that the SMSC gave the submit_multi
+     * @param recipient the recipient's destination address
+     * @return the message ID qualified with the recipient
+     */
+    public static String destinationId(String messageId, String recipient) {
+        return messageId + '/' + recipient;
+    }
+
+    @Override
+    public boolean process(Exchange exchange, AsyncCallback callback) {
+
+        Message msg = exchange.getIn();
+        String recipient = msg.getHeader(SmppConstants.DEST_ADDR, String.class);
+
+        if (windowMillis <= 0 || maxDestinations == 1 || recipient == null
+                || !(msg.getBody() instanceof SmsEncoder.Encoded encoded)) {
+            singleCount.incrementAndGet();
+            return single.process(exchange, callback);
+        }
+
+        String key = batchKey(msg, encoded);
+        Batch full = null;
+        Batch repeat = null;
+
+        synchronized (batches) {
+            Batch batch = batches.get(key);
+            if (batch != null && batch.destinations.contains(recipient)) {
+                // A recipient can be in a submit_multi only once
+                batches.remove(key);
+                batch.timer.cancel(false);
+                repeat = batch;
+                batch = null;
+            }
+            if (batch == null) {
+                Batch created = new Batch();
+                created.timer = timer.schedule(() -> expire(key, created), windowMillis, TimeUnit.MILLISECONDS);
+                batches.put(key, created);
+                batch = created;
+            }
+            batch.pending.add(new Pending(exchange, callback));
+            batch.destinations.add(recipient);
+            if (batch.pending.size() == maxDestinations) {
+                batches.remove(key);
+                batch.timer.cancel(false);
+                full = batch;
+            }
+        }
+
+        if (repeat != null) {
+            schedule(repeat);
+        }
+        if (full != null) {
+            schedule(full);
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        camelContext.getExecutorServiceManager().shutdownNow(timer);
+        List<Batch> left;
+        synchronized (batches) {
+            left = new ArrayList<>(batches.values());
+            batches.clear();
+        }
+        List<Runnable> queued = camelContext.getExecutorServiceManager().shutdownNow(submitters);
+        if (queued != null) {
+            for (Runnable task : queued) {
+                if (task instanceof BatchTask t) {
+                    left.add(t.batch());
+                }
+            }
+        }
+        left.forEach(batch -> fail(batch, new SmppException("SMPP submitter is shutting down")));
+    }
+
+    // Submits the batch when its window closes, unless it was submitted as it filled up
+
+    private void expire(String key, Batch batch) {
+        synchronized (batches) {
+            if (batches.get(key) != batch) {
+                return;
+            }
+            batches.remove(key);
+        }
+        schedule(batch);
+    }
+
+    // Hands the closed batch to a submit thread
+
+    private void schedule(Batch batch) {
+        try {
+            submitters.execute(new BatchTask(this, batch, System.nanoTime()));
+        }
+        catch (RejectedExecutionException e) {
+            fail(batch, new SmppException("SMPP submitter is shutting down", e));
+        }
+    }
+
+    private void submit(Batch batch, long queued) {
+
+        if (batch.pending.size() == 1) {
+            Pending p = batch.pending.get(0);
+            singleCount.incrementAndGet();
+            single.process(p.exchange(), doneSync -> p.callback().done(false));
+            return;
+        }
+
+        final SmppBind bind;
+        try {
+            long waitMillis = Math.max(0, windowWaitMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queued));
+            bind = pool.acquire(batch.pending.get(0).exchange().getIn().getHeader(HEADER_SMSC, String.class), waitMillis, TimeUnit.MILLISECONDS);
+            if (bind == null) {
+                LOG.warn("SMPP windows stayed full for {}ms", windowWaitMillis);
+                fail(batch, new SmppException("SMPP submit window full"));
+                return;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(batch, e);
+            return;
+        }
+
+        for (Pending p : batch.pending) {
+            p.exchange().getIn().setHeader(HEADER_SMSC, bind.getTarget());
+        }
+
+        final long start = System.nanoTime();
+        try {
+            bind.getExecutor().execute(() -> submitMulti(bind, start, batch));
+        }
+        catch (RejectedExecutionException e) {
+            pool.release(bind, false, start);
+            fail(batch, new SmppException("SMPP bind is shutting down", e));
+        }
+    }
+
+    private void submitMulti(SmppBind bind, long start, Batch batch) {
+        boolean succeeded = false;
+        try {
+            succeeded = submitSegments(bind, batch);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            batch.pending.forEach(p -> p.exchange().setException(e));
+        }
+        catch (Exception e) {
+            batch.pending.forEach(p -> p.exchange().setException(e));
+        }
+        finally {
+            pool.release(bind, succeeded, start);
+            batch.pending.forEach(p -> p.callback().done(false));
+        }
+    }
+
+    private boolean submitSegments(SmppBind bind, Batch batch) throws Exception {
+        SmppThrottle throttle = bind.getThrottle();
+        SmppConfiguration cfg = bind.getEndpoint().getConfiguration();
+        Message msg = batch.pending.get(0).exchange().getIn();
+
+        String serviceType = msg.getHeader(SmppConstants.SERVICE_TYPE, cfg.getServiceType(), String.class);
+        TypeOfNumber sourceTon = TypeOfNumber.valueOf(msg.getHeader(SmppConstants.SOURCE_ADDR_TON, cfg.getSourceAddrTon(), Byte.class));
+        NumberingPlanIndicator sourceNpi = NumberingPlanIndicator.valueOf(msg.getHeader(SmppConstants.SOURCE_ADDR_NPI, cfg.getSourceAddrNpi(), Byte.class));
+        String sourceAddr = msg.getHeader(SmppConstants.SOURCE_ADDR, cfg.getSourceAddr(), String.class);
+        byte protocolId = msg.getHeader(SmppConstants.PROTOCOL_ID, cfg.getProtocolId(), Byte.class);
+        byte priority = msg.getHeader(SmppConstants.PRIORITY_FLAG, cfg.getPriorityFlag(), Byte.class);
+        RegisteredDelivery receipt = new RegisteredDelivery(msg.getHeader(SmppConstants.REGISTERED_DELIVERY, cfg.getRegisteredDelivery(), Byte.class));
+        ReplaceIfPresentFlag replaceIfPresent = new ReplaceIfPresentFlag(msg.getHeader(SmppConstants.REPLACE_IF_PRESENT_FLAG, cfg.getReplaceIfPresentFlag(), Byte.class));
+
+        String validityPeriod = msg.getHeader(SmppConstants.VALIDITY_PERIOD, String.class);
+
+        Address[] destinations = new Address[batch.pending.size()];
+        Instant deadline = null;
+        for (int i = 0; i < destinations.length; ++i) {
+            Message m = batch.pending.get(i).exchange().getIn();
+            destinations[i] = new Address(
+                    m.getHeader(SmppConstants.DEST_ADDR_TON, cfg.getDestAddrTon(), Byte.class),
+                    m.getHeader(SmppConstants.DEST_ADDR_NPI, cfg.getDestAddrNpi(), Byte.class),
+                    m.getHeader(SmppConstants.DEST_ADDR, String.class));
+            Instant d = m.getHeader(HEADER_DEADLINE, Instant.class);
+            if (d != null && (deadline == null || d.isBefore(deadline))) {
+                deadline = d;
+            }
+        }
+
+        SmsEncoder.Encoded encoded = msg.getBody(SmsEncoder.Encoded.class);
+        ESMClass esmClass = encoded.isConcatenated() ? ESM_UDHI : ESM_DEFAULT;
+        byte[][] segments = encoded.segments();
+        List<String> ids = new ArrayList<>(segments.length);
+        Map<String, Integer> refused = new HashMap<>();
+
+        // With single DLR, only the last segment asks for a delivery receipt.
+        // When a segment fails or expires after others were accepted, we
+        // still pass on their IDs, for the reconciler to query.
+
+        try {
+            for (int i = 0; i < segments.length; ) {
+                boolean last = i == segments.length - 1;
+                throttle.await();
+                try {
+                    SubmitMultiResult result = bind.getSession().submitMultiple(
+                            serviceType, sourceTon, sourceNpi, sourceAddr, destinations,
+                            esmClass, protocolId, priority, null, validityPeriod,
+                            last || !cfg.isSingleDLR() ? receipt : NO_RECEIPT,
+                            replaceIfPresent, DataCodings.newInstance(encoded.dataCoding()), (byte) 0,
+                            segments[i]);
+                    throttle.onAccepted();
+                    ids.add(result.getMessageId());
+                    if (result.getUnsuccessDeliveries() != null) {
+                        for (UnsuccessDelivery refusal : result.getUnsuccessDeliveries()) {
+                            refused.putIfAbsent(refusal.getDestinationAddress().getAddress(), refusal.getErrorStatusCode());
+                        }
+                    }
+                    ++i;
+                }
+                catch (PDUException e) {
+                    throw new SmppException("Invalid submit_multi: %s".formatted(e.getMessage()), e);
+                }
+                catch (NegativeResponseException e) {
+                    if (!SmppThrottle.isThrottling(e)) {
+                        throw e;
+                    }
+                    throttle.onThrottled();
+                    if (deadline != null && deadline.isBefore(Instant.now())) {
+                        LOG.warn("SMSC kept throttling until deadline passed");
+                        for (Pending p : batch.pending) {
+                            p.exchange().getIn().setHeader(HEADER_SMS_STATUS, SMS_STATUS_EXPIRED);
+                            p.exchange().getIn().setHeader(HEADER_ERROR_TEXT, "SMSC throttled until deadline");
+                        }
+                        return false;
+                    }
+                    LOG.debug("SMSC throttled submit_multi, resubmitting");
+                }
+            }
+
+            LOG.debug("Submitted {} destinations in submit_multi {}, {} refused", destinations.length, ids.get(ids.size() - 1), refused.size());
+            batchCount.incrementAndGet();
+            batchedCount.addAndGet(destinations.length);
+            refusedCount.addAndGet(refused.size());
+
+            for (Pending p : batch.pending) {
+                Message m = p.exchange().getIn();
+                Integer error = refused.get(m.getHeader(SmppConstants.DEST_ADDR, String.class));
+                if (error != null) {
+                    m.setHeader(HEADER_SMS_STATUS, SMS_STATUS_FAILED);
+                    m.setHeader(HEADER_ERROR_TEXT, "SMSC refused destination with error 0x%08x".formatted(error));
+                }
+                else {
+                    m.setHeader(SmppConstants.SENT_MESSAGE_COUNT, ids.size());
+                }
+            }
+            return true;
+        }
+        finally {
+            if (!ids.isEmpty()) {
+                setDestinationIds(batch, ids, refused);
+            }
+        }
+    }
+
+    // Sets the IDs of the accepted segments on the messages whose destination
+    // the SMSC did not refuse
+
+    private static void setDestinationIds(Batch batch, List<String> ids, Map<String, Integer> refused) {
+        for (Pending p : batch.pending) {
+            Message m = p.exchange().getIn();
+            String recipient = m.getHeader(SmppConstants.DEST_ADDR, String.class);
+            if (!refused.containsKey(recipient)) {
+                List<String> destinationIds = new ArrayList<>(ids.size());
+                for (String id : ids) {
+                    destinationIds.add(destinationId(id, recipient));
+                }
+                m.setHeader(SmppConstants.ID, destinationIds);
+            }
+        }
+    }
+
+    private void fail(Batch batch, Exception e) {
+        for (Pending p : batch.pending) {
+            p.exchange().setException(e);
+            p.callback().done(false);
+        }
+    }
+
+    // Messages go in the same batch when they have the same sender, preferred
+    // SMSC, validity period and encoded text.  The concatenation reference
+    // differs per message, so we leave it out; the batch is sent with that
+    // of its first message.
+
+    private static String batchKey(Message msg, SmsEncoder.Encoded encoded) {
+        StringBuilder key = new StringBuilder(200)
+                .append(msg.getHeader(SmppConstants.SOURCE_ADDR, "", String.class)).append('\0')
+                .append(msg.getHeader(HEADER_SMSC, "", String.class)).append('\0')
+                .append(msg.getHeader(SmppConstants.VALIDITY_PERIOD, "", String.class)).append('\0')
+                .append(encoded.dataCoding()).append('\0');
+        for (byte[] segment : encoded.segments()) {
+            byte[] copy = segment;
+            if (encoded.isConcatenated()) {
+                copy = segment.clone();
+                copy[3] = 0;
+            }
+            key.append(new String(copy, StandardCharsets.ISO_8859_1)).append('\0');
+        }
+        return key.toString();
+    }
+
+    @ManagedAttribute(description = "Number of messages submitted on their own")
+    public long getSingleCount() {
+        return singleCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of batches submitted with submit_multi")
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of messages submitted in batches")
+    public long getBatchedCount() {
+        return batchedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of batched messages whose destination the SMSC refused")
+    public long getRefusedCount() {
+        return refusedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of messages waiting for their batch to be submitted")
+    public int getWaitingCount() {
+        synchronized (batches) {
+            return batches.values().stream().mapToInt(b -> b.pending.size()).sum();
+        }
+    }
+}
@@ -0,0 +1,505 @@
+package it.zwets.sms.gateway.smpp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CLIENT_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CORREL_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CORREL_REC;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_DEADLINE;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_ERROR_TEXT;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_RECALL_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_RECIPIENT;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMSC;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_DELIVERED;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_EXPIRED;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_FAILED;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_SENT;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.component.smpp.SmppConfiguration;
+import org.apache.camel.component.smpp.SmppConstants;
+import org.jsmpp.bean.MessageState;
+import org.jsmpp.bean.NumberingPlanIndicator;
+import org.jsmpp.bean.TypeOfNumber;
+import org.jsmpp.extra.NegativeResponseException;
+import org.jsmpp.session.QuerySmResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import it.zwets.sms.codec.SmsEncoder;
+import it.zwets.sms.gateway.comp.Histogram;
+import it.zwets.sms.gateway.comp.TokenBucket;
+import it.zwets.sms.gateway.dto.CorrelationRecord;
+
+/**
+ * Journal of submits whose outcome we do not know, and the reconciler that
+ * resolves them.
+ *
+ * When a submit fails in a way that leaves open whether the SMSC accepted
+ * it, typically when no submit_sm_resp came in time, the SMPP route sends
+ * no response, as FAILED would make the client resend a message that may
+ * have gone out.  It records the submit here instead, and we resolve it in
+ * one of three ways:
+ * <ul>
+ * <li>When some of its segments were accepted, we have message IDs to ask
+ * the SMSC about with query_sm.  When all were accepted, we query the last,
+ * which is the one whose receipt we correlate on.  When only some were, the
+ * segment in doubt may or may not have gone, and with single DLR none of the
+ * accepted segments gets a receipt, so we query every accepted one.  If the
+ * SMSC knows them, the message was (at least in part) sent and we report its
+ * state, but correlate on the last accepted one only when it asked for a
+ * receipt.  If the SMSC answers with an error, it is FAILED.  Queries are
+ * paced at the configured rate over all SMSCs, so that a burst of timeouts
+ * does not turn into a burst of queries at an SMSC in trouble.</li>
+ * <li>Without a message ID there is nothing to query, but when the SMSC did
+ * accept the message, its delivery receipt comes with a message ID we have
+ * no correlation record for.  The {@link it.zwets.sms.gateway.comp.ResponseProducer}
+ * offers such receipts to {@link #claim}, which matches them to the oldest
+ * entry for the recipient on the same SMSC, and reports that SENT.</li>
+ * <li>An entry still unresolved when its deadline is past by the grace
+ * period is FAILED.  The validity period of the submit ended at the
+ * deadline, so had the SMSC accepted it, its receipt would have come.</li>
+ * </ul>
+ *
+ * The status goes to the respond stage with the client-id and correl-id of
+ * the request, and for a message that was sent, with the correlation record
+ * for its recall-id, so that the receipts that follow find their client.
+ */
+@ManagedResource(objectName = "it.zwets.sms.gateway:name=SmppReconciler", description = "Reconciliation of SMPP submits with unknown outcome")
+public class SmppReconciler implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SmppReconciler.class);
+
+    // Upper bounds (s) of the resolution time histogram
+    private static final long[] RESOLUTION_BOUNDS = { 10, 60, 600, 3_600, 86_400 };
+
+    // A submit we do not know the outcome of
+
+    private static final class Entry {
+        final String clientId;
+        final String correlId;
+        final String smsc;
+        final String recipient;
+        final Byte sourceTon;
+        final Byte sourceNpi;
+        final String sourceAddr;
+        final List<String> messageIds;
+        final boolean complete;
+        final Instant deadline;
+        final long recordedNanos = System.nanoTime();
+
+        Entry(String clientId, String correlId, String smsc, String recipient, Byte sourceTon, Byte sourceNpi,
+                String sourceAddr, List<String> messageIds, boolean complete, Instant deadline) {
+            this.clientId = clientId;
+            this.correlId = correlId;
+            this.smsc = smsc;
+            this.recipient = recipient;
+            this.sourceTon = sourceTon;
+            this.sourceNpi = sourceNpi;
+            this.sourceAddr = sourceAddr;
+            this.messageIds = messageIds;
+            this.complete = complete;
+            this.deadline = deadline;
+        }
+
+        // The last accepted segment, whose ID is the recall-id
+
+        String lastId() {
+            return messageIds.get(messageIds.size() - 1);
+        }
+
+        // When all segments were accepted, the last has the receipt
+
+        List<String> queryIds() {
+            return complete ? List.of(lastId()) : messageIds;
+        }
+
+        String key() {
+            return key(smsc, recipient);
+        }
+
+        static String key(String smsc, String recipient) {
+            return (smsc == null ? "" : smsc) + '/' + (recipient.startsWith("+") ? recipient.substring(1) : recipient);
+        }
+    }
+
+    private final SmppBindPool pool;
+    private final String respondUri;
+    private final TokenBucket queryRate;
+    private final Duration grace;
+    private final int maxEntries;
+    private final CamelContext camelContext;
+    private final ProducerTemplate template;
+    private final ScheduledExecutorService timer;
+
+    private final LinkedHashSet<Entry> entries = new LinkedHashSet<>();
+    private final Map<String, Deque<Entry>> byRecipient = new HashMap<>();
+
+    private final AtomicLong recordedCount = new AtomicLong();
+    private final AtomicLong queryCount = new AtomicLong();
+    private final AtomicLong claimedCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final Histogram resolutionTime = new Histogram(RESOLUTION_BOUNDS);
+
+    private volatile boolean closing = false;
+
+    /**
+     * Create the journal and start the reconciler.
+     *
+     * @param pool the binds to query the SMSCs over
+     * @param respondUri the endpoint to send the resolved statuses to
+     * @param queriesPerSecond the maximum rate of query_sm over all SMSCs
+     * @param intervalMillis the time between reconciliation rounds
+     * @param grace how long past its deadline an entry is FAILED
+     * @param maxEntries the maximum number of entries, beyond which the oldest are dropped
+     * @param camelContext the context to take the timer and producer from
+     */
+    public SmppReconciler(SmppBindPool pool, String respondUri, double queriesPerSecond, long intervalMillis,
+            Duration grace, int maxEntries, CamelContext camelContext) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Maximum in-doubt entries must be positive: %d".formatted(maxEntries));
+        }
+        this.pool = pool;
+        this.respondUri = respondUri;
+        this.queryRate = new TokenBucket(queriesPerSecond, 1);
+        this.grace = grace;
+        this.maxEntries = maxEntries;
+        this.camelContext = camelContext;
+        this.template = camelContext.createProducerTemplate();
+        this.timer = camelContext.getExecutorServiceManager().newSingleThreadScheduledExecutor(this, "SmppReconciler");
+        timer.scheduleWithFixedDelay(this::reconcile, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records the submit on the exchange as one we do not know the outcome of.
+     * The exchange must have the headers the SMPP submit had.
+     *
+     * @param exchange the exchange whose submit failed
+     */
+    public void record(Exchange exchange) {
+        Message msg = exchange.getIn();
+
+        String recipient = msg.getHeader(SmppConstants.DEST_ADDR, String.class);
+        String[] ids = msg.getHeader(SmppConstants.ID, String[].class);
+        if (recipient == null) {
+            LOG.warn("Not recording in-doubt submit without recipient");
+            return;
+        }
+
+        // A segmented submit that failed part way has the IDs of the accepted segments only
+
+        List<String> messageIds = ids != null ? List.of(ids) : List.of();
+        boolean complete = !(msg.getBody() instanceof SmsEncoder.Encoded encoded)
+                || messageIds.size() == encoded.segments().length;
+
+        Entry entry = new Entry(
+                msg.getHeader(HEADER_CLIENT_ID, String.class),
+                msg.getHeader(HEADER_CORREL_ID, String.class),
+                msg.getHeader(HEADER_SMSC, String.class),
+                recipient,
+                msg.getHeader(SmppConstants.SOURCE_ADDR_TON, Byte.class),
+                msg.getHeader(SmppConstants.SOURCE_ADDR_NPI, Byte.class),
+                msg.getHeader(SmppConstants.SOURCE_ADDR, String.class),
+                messageIds, complete,
+                msg.getHeader(HEADER_DEADLINE, Instant.now(), Instant.class));
+
+        LOG.info("Recording in-doubt submit {}:{} to {}{}", entry.clientId, entry.correlId, recipient,
+                messageIds.isEmpty() ? "" : " with message IDs " + messageIds + (complete ? "" : " (incomplete)"));
+
+        Entry dropped = null;
+        synchronized (this) {
+            if (entries.size() == maxEntries) {
+                dropped = entries.iterator().next();
+                remove(dropped);
+            }
+            entries.add(entry);
+            byRecipient.computeIfAbsent(entry.key(), k -> new ArrayDeque<>()).addLast(entry);
+        }
+        recordedCount.incrementAndGet();
+
+        if (dropped != null) {
+            LOG.warn("In-doubt journal full, dropping {}:{}", dropped.clientId, dropped.correlId);
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Claims a delivery receipt for which there is no correlation record for
+     * the oldest in-doubt submit to its recipient, if there is one.  When it
+     * does, it sets the client-id and correl-id of the submit on the receipt,
+     * and reports the submit SENT under the receipt's recall-id.
+     *
+     * @param msg the delivery receipt, with the recipient and recall-id headers
+     * @return true if the receipt was claimed
+     */
+    public boolean claim(Message msg) {
+        String recipient = msg.getHeader(HEADER_RECIPIENT, String.class);
+        String recallId = msg.getHeader(HEADER_RECALL_ID, String.class);
+        if (recipient == null || recallId == null) {
+            return false;
+        }
+
+        Entry entry;
+        synchronized (this) {
+            Deque<Entry> list = byRecipient.get(Entry.key(msg.getHeader(HEADER_SMSC, String.class), recipient));
+            if (list == null) {
+                return false;
+            }
+            entry = list.peekFirst();
+            remove(entry);
+        }
+
+        LOG.info("Receipt {} resolves in-doubt submit {}:{}", recallId, entry.clientId, entry.correlId);
+        claimedCount.incrementAndGet();
+        msg.setHeader(HEADER_CLIENT_ID, entry.clientId);
+        msg.setHeader(HEADER_CORREL_ID, entry.correlId);
+        resolve(entry, SMS_STATUS_SENT, recallId, true, null);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        camelContext.getExecutorServiceManager().shutdownNow(timer);
+        try {
+            template.close();
+        }
+        catch (Exception e) {
+            LOG.debug("Failed to close producer template: {}", e.getMessage());
+        }
+    }
+
+    // Fails the entries past their deadline and grace, and queries those we
+    // have message IDs for, pacing the queries at the query rate
+
+    private void reconcile() {
+        List<Entry> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(entries);
+        }
+
+        for (Entry entry : snapshot) {
+            if (closing) {
+                return;
+            }
+            if (entry.deadline.plus(grace).isBefore(Instant.now())) {
+                if (take(entry)) {
+                    resolve(entry, SMS_STATUS_FAILED, null, false, "No response to submit, and no receipt by the deadline");
+                }
+            }
+            else if (!entry.messageIds.isEmpty()) {
+                try {
+                    query(entry);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                catch (Exception e) {
+                    LOG.warn("Failed to query messages {}, will retry: {}", entry.queryIds(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Asks the SMSC of the entry about its segments, resolves it if it gets
+    // an answer for all: FAILED or EXPIRED if any segment is, else the state
+    // of a complete message, or SENT for the accepted part of an incomplete one
+
+    private void query(Entry entry) throws Exception {
+        SmppBind bind = pool.acquire(entry.smsc, 0, TimeUnit.MILLISECONDS);
+        if (bind == null) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try {
+            if (!bind.getTarget().equals(entry.smsc == null ? "" : entry.smsc)) {
+                LOG.debug("SMSC {} unavailable, not querying messages {}", entry.smsc, entry.queryIds());
+                return;
+            }
+
+            SmppConfiguration cfg = bind.getEndpoint().getConfiguration();
+            String status = entry.complete ? null : SMS_STATUS_SENT;
+            String errorText = null;
+            for (String messageId : entry.queryIds()) {
+                long wait = queryRate.reserve(1, System.nanoTime());
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                queryCount.incrementAndGet();
+                try {
+                    QuerySmResult result = bind.getSession().queryShortMessage(messageId,
+                            TypeOfNumber.valueOf(entry.sourceTon != null ? entry.sourceTon : cfg.getSourceAddrTon()),
+                            NumberingPlanIndicator.valueOf(entry.sourceNpi != null ? entry.sourceNpi : cfg.getSourceAddrNpi()),
+                            entry.sourceAddr != null ? entry.sourceAddr : cfg.getSourceAddr());
+                    String s = status(result.getMessageState());
+                    if (SMS_STATUS_FAILED.equals(s)) {
+                        status = s;
+                        errorText = "SMSC reports message %s".formatted(result.getMessageState());
+                        break;
+                    }
+                    if (entry.complete || SMS_STATUS_EXPIRED.equals(s)) {
+                        status = s;
+                    }
+                }
+                catch (NegativeResponseException e) {
+                    status = SMS_STATUS_FAILED;
+                    errorText = "SMSC does not know the message (error 0x%08x)".formatted(e.getCommandStatus());
+                    break;
+                }
+            }
+            succeeded = true;
+
+            // With single DLR, only the last segment asks for a receipt
+
+            if (take(entry)) {
+                resolve(entry, status, SmppBindPool.recallId(entry.smsc, entry.lastId()),
+                        entry.complete || !cfg.isSingleDLR(), errorText);
+            }
+        }
+        finally {
+            pool.release(bind, succeeded, start);
+        }
+    }
+
+    // Reports the message state as a status, the non-final ones as SENT
+
+    private static String status(MessageState state) {
+        return switch (state) {
+            case DELIVERED -> SMS_STATUS_DELIVERED;
+            case EXPIRED -> SMS_STATUS_EXPIRED;
+            case DELETED, UNDELIVERABLE, REJECTED -> SMS_STATUS_FAILED;
+            default -> SMS_STATUS_SENT;
+        };
+    }
+
+    // Sends the status of the entry to the respond stage, with the correlation
+    // record for the recall-id if its receipts are to come
+
+    private void resolve(Entry entry, String status, String recallId, boolean correlate, String errorText) {
+        LOG.info("In-doubt submit {}:{} resolved {}", entry.clientId, entry.correlId, status);
+        resolutionTime.record((System.nanoTime() - entry.recordedNanos) / 1_000_000_000);
+        (SMS_STATUS_FAILED.equals(status) ? failedCount : sentCount).incrementAndGet();
+
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(HEADER_CLIENT_ID, entry.clientId);
+        headers.put(HEADER_CORREL_ID, entry.correlId);
+        headers.put(HEADER_SMS_STATUS, status);
+        if (entry.smsc != null) {
+            headers.put(HEADER_SMSC, entry.smsc);
+        }
+        if (recallId != null) {
+            headers.put(HEADER_RECALL_ID, recallId);
+            if (correlate && !SMS_STATUS_FAILED.equals(status)) {
+                headers.put(HEADER_CORREL_REC, new CorrelationRecord(recallId, entry.clientId, entry.correlId));
+            }
+        }
+        if (errorText != null) {
+            headers.put(HEADER_ERROR_TEXT, errorText);
+        }
+
+        try {
+            template.sendBodyAndHeaders(respondUri, null, headers);
+        }
+        catch (Exception e) {
+            LOG.error("Failed to report in-doubt submit {}:{} {}: {}", entry.clientId, entry.correlId, status, e.getMessage());
+        }
+    }
+
+    // Removes the entry if it is still there, returns whether it was
+
+    private synchronized boolean take(Entry entry) {
+        if (!entries.contains(entry)) {
+            return false;
+        }
+        remove(entry);
+        return true;
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry);
+        Deque<Entry> list = byRecipient.get(entry.key());
+        if (list != null) {
+            list.remove(entry);
+            if (list.isEmpty()) {
+                byRecipient.remove(entry.key());
+            }
+        }
+    }
+
+    @ManagedAttribute(description = "Number of submits whose outcome is not yet known")
+    public synchronized int getInDoubtCount() {
+        return entries.size();
+    }
+
+    @ManagedAttribute(description = "Number of submits recorded as in doubt")
+    public long getRecordedCount() {
+        return recordedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of query_sm sent to resolve submits")
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of submits resolved by an uncorrelated delivery receipt")
+    public long getClaimedCount() {
+        return claimedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of submits resolved as sent")
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of submits resolved as failed")
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of submits dropped unresolved as the journal was full")
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @ManagedAttribute(description = "Histogram of the time (s) from submit to resolution")
+    public String getResolutionTimes() {
+        return resolutionTime.toString();
+    }
+
+    /**
+     * @return the oldest in-doubt submits, as client:correl-id, for diagnosis
+     */
+    @ManagedAttribute(description = "The oldest (up to 20) submits in doubt")
+    public synchronized String getOldest() {
+        List<String> list = new ArrayList<>();
+        Iterator<Entry> it = entries.iterator();
+        while (it.hasNext() && list.size() < 20) {
+            Entry e = it.next();
+            list.add("%s:%s".formatted(e.clientId, e.correlId));
+        }
+        return list.toString();
+    }
+}
@@ -0,0 +1,238 @@
+package it.zwets.sms.gateway.smpp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_DEADLINE;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_ERROR_TEXT;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMSC;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_EXPIRED;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.component.smpp.SmppConfiguration;
+import org.apache.camel.component.smpp.SmppConstants;
+import org.apache.camel.component.smpp.SmppException;
+import org.apache.camel.support.AsyncProcessorSupport;
+import org.jsmpp.PDUException;
+import org.jsmpp.bean.DataCodings;
+import org.jsmpp.bean.ESMClass;
+import org.jsmpp.bean.GSMSpecificFeature;
+import org.jsmpp.bean.MessageMode;
+import org.jsmpp.bean.MessageType;
+import org.jsmpp.bean.NumberingPlanIndicator;
+import org.jsmpp.bean.RegisteredDelivery;
+import org.jsmpp.bean.TypeOfNumber;
+import org.jsmpp.extra.NegativeResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.zwets.sms.codec.SmsEncoder;
+
+/**
+ * Submits the request on the exchange over a bind from the {@link SmppBindPool},
+ * without holding up the calling thread while it waits for the SMSC's response.
+ *
+ * Takes a slot in the window of the least loaded bind (of the SMSC target
+ * in the smsc header, if it is available), then hands the submit off to that
+ * bind's executor and returns.  The exchange continues (to the response
+ * processor) when the SMSC's response comes in, and the slot is released.
+ *
+ * When the body is an {@link SmsEncoder.Encoded}, its segments are submitted
+ * in order, with the UDHI flag set when concatenated.  Addressing and the
+ * other submit_sm fields come from the Camel SMPP headers, with the endpoint
+ * configuration as default.  Any other body is submitted with the command
+ * of the Camel SMPP producer.  Either way, the ID and sent message count
+ * headers are set as the Camel SMPP producer does, and the smsc header is
+ * set to the name of the SMSC target the message went to.
+ *
+ * Failures are set on the exchange as they come out of the submit, so that
+ * the route's exception handling can tell a certain failure from one where
+ * we don't know if the message was sent.  When the windows stay full for
+ * longer than the wait time, nothing was sent, and we fail with an
+ * {@link SmppException}.
+ *
+ * Submits are paced by the bind's {@link SmppThrottle}.  When the SMSC
+ * throttles a submit, we resubmit it rather than fail it, until its deadline
+ * passes, when we set sms-status <code>EXPIRED</code>.
+ */
+public class SmppSubmitProcessor extends AsyncProcessorSupport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SmppSubmitProcessor.class);
+
+    private static final ESMClass ESM_DEFAULT = new ESMClass();
+    private static final ESMClass ESM_UDHI = new ESMClass(MessageMode.DEFAULT, MessageType.DEFAULT, GSMSpecificFeature.UDHI);
+    private static final RegisteredDelivery NO_RECEIPT = new RegisteredDelivery(0);
+
+    private final SmppBindPool pool;
+    private final long windowWaitMillis;
+
+    /**
+     * Create a processor that submits over the binds in pool.
+     *
+     * @param pool the binds to submit over
+     * @param windowWaitMillis how long to wait for a slot in a window
+     */
+    public SmppSubmitProcessor(SmppBindPool pool, long windowWaitMillis) {
+        this.pool = pool;
+        this.windowWaitMillis = windowWaitMillis;
+    }
+
+    @Override
+    public boolean process(Exchange exchange, AsyncCallback callback) {
+
+        final SmppBind bind;
+        try {
+            bind = pool.acquire(exchange.getIn().getHeader(HEADER_SMSC, String.class), windowWaitMillis, TimeUnit.MILLISECONDS);
+            if (bind == null) {
+                LOG.warn("SMPP windows stayed full for {}ms", windowWaitMillis);
+                exchange.setException(new SmppException("SMPP submit window full"));
+                callback.done(true);
+                return true;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.setException(e);
+            callback.done(true);
+            return true;
+        }
+
+        exchange.getIn().setHeader(HEADER_SMSC, bind.getTarget());
+
+        final long start = System.nanoTime();
+        try {
+            bind.getExecutor().execute(() -> submit(bind, start, exchange, callback));
+        }
+        catch (RejectedExecutionException e) {
+            pool.release(bind, false, start);
+            exchange.setException(new SmppException("SMPP bind is shutting down", e));
+            callback.done(true);
+            return true;
+        }
+
+        return false;
+    }
+
+    private void submit(SmppBind bind, long start, Exchange exchange, AsyncCallback callback) {
+        boolean succeeded = false;
+        try {
+            succeeded = exchange.getIn().getBody() instanceof SmsEncoder.Encoded encoded
+                    ? submitSegments(bind, exchange, encoded)
+                    : submitCommand(bind, exchange);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.setException(e);
+        }
+        catch (Exception e) {
+            exchange.setException(e);
+        }
+        finally {
+            pool.release(bind, succeeded, start);
+            callback.done(false);
+        }
+    }
+
+    private boolean submitCommand(SmppBind bind, Exchange exchange) throws Exception {
+        SmppThrottle throttle = bind.getThrottle();
+        while (true) {
+            throttle.await();
+            try {
+                bind.getEndpoint().getBinding()
+                    .createSmppCommand(bind.getSession(), exchange)
+                    .execute(exchange);
+                throttle.onAccepted();
+                return true;
+            }
+            catch (Exception e) {
+                if (!resubmitThrottled(throttle, exchange, e)) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    private boolean submitSegments(SmppBind bind, Exchange exchange, SmsEncoder.Encoded encoded) throws Exception {
+        SmppThrottle throttle = bind.getThrottle();
+        SmppConfiguration cfg = bind.getEndpoint().getConfiguration();
+        Message msg = exchange.getIn();
+
+        String serviceType = msg.getHeader(SmppConstants.SERVICE_TYPE, cfg.getServiceType(), String.class);
+        TypeOfNumber sourceTon = TypeOfNumber.valueOf(msg.getHeader(SmppConstants.SOURCE_ADDR_TON, cfg.getSourceAddrTon(), Byte.class));
+        NumberingPlanIndicator sourceNpi = NumberingPlanIndicator.valueOf(msg.getHeader(SmppConstants.SOURCE_ADDR_NPI, cfg.getSourceAddrNpi(), Byte.class));
+        String sourceAddr = msg.getHeader(SmppConstants.SOURCE_ADDR, cfg.getSourceAddr(), String.class);
+        TypeOfNumber destTon = TypeOfNumber.valueOf(msg.getHeader(SmppConstants.DEST_ADDR_TON, cfg.getDestAddrTon(), Byte.class));
+        NumberingPlanIndicator destNpi = NumberingPlanIndicator.valueOf(msg.getHeader(SmppConstants.DEST_ADDR_NPI, cfg.getDestAddrNpi(), Byte.class));
+        String destAddr = msg.getHeader(SmppConstants.DEST_ADDR, cfg.getDestAddr(), String.class);
+        byte protocolId = msg.getHeader(SmppConstants.PROTOCOL_ID, cfg.getProtocolId(), Byte.class);
+        byte priority = msg.getHeader(SmppConstants.PRIORITY_FLAG, cfg.getPriorityFlag(), Byte.class);
+        String validityPeriod = msg.getHeader(SmppConstants.VALIDITY_PERIOD, String.class);
+        RegisteredDelivery receipt = new RegisteredDelivery(msg.getHeader(SmppConstants.REGISTERED_DELIVERY, cfg.getRegisteredDelivery(), Byte.class));
+        byte replaceIfPresent = msg.getHeader(SmppConstants.REPLACE_IF_PRESENT_FLAG, cfg.getReplaceIfPresentFlag(), Byte.class);
+
+        ESMClass esmClass = encoded.isConcatenated() ? ESM_UDHI : ESM_DEFAULT;
+        byte[][] segments = encoded.segments();
+        List<String> ids = new ArrayList<>(segments.length);
+
+        // With single DLR, only the last segment asks for a delivery receipt.
+        // When a segment fails or expires after others were accepted, we
+        // still pass on their IDs, for the reconciler to query.
+
+        try {
+            for (int i = 0; i < segments.length; ) {
+                boolean last = i == segments.length - 1;
+                throttle.await();
+                try {
+                    ids.add(bind.getSession().submitShortMessage(
+                            serviceType, sourceTon, sourceNpi, sourceAddr, destTon, destNpi, destAddr,
+                            esmClass, protocolId, priority, null, validityPeriod,
+                            last || !cfg.isSingleDLR() ? receipt : NO_RECEIPT,
+                            replaceIfPresent, DataCodings.newInstance(encoded.dataCoding()), (byte) 0,
+                            segments[i]).getMessageId());
+                    throttle.onAccepted();
+                    ++i;
+                }
+                catch (PDUException e) {
+                    throw new SmppException("Invalid submit_sm: %s".formatted(e.getMessage()), e);
+                }
+                catch (NegativeResponseException e) {
+                    if (!resubmitThrottled(throttle, exchange, e)) {
+                        return false;
+                    }
+                }
+            }
+            msg.setHeader(SmppConstants.SENT_MESSAGE_COUNT, ids.size());
+            return true;
+        }
+        finally {
+            if (!ids.isEmpty()) {
+                msg.setHeader(SmppConstants.ID, ids);
+            }
+        }
+    }
+
+    // Returns true if the exception is throttling and we should resubmit,
+    // false if it was throttling but the deadline passed, else rethrows it
+
+    private boolean resubmitThrottled(SmppThrottle throttle, Exchange exchange, Exception e) throws Exception {
+        if (!SmppThrottle.isThrottling(e)) {
+            throw e;
+        }
+        throttle.onThrottled();
+        Instant deadline = exchange.getIn().getHeader(HEADER_DEADLINE, Instant.class);
+        if (deadline != null && deadline.isBefore(Instant.now())) {
+            LOG.warn("SMSC kept throttling until deadline passed");
+            exchange.getIn().setHeader(HEADER_SMS_STATUS, SMS_STATUS_EXPIRED);
+            exchange.getIn().setHeader(HEADER_ERROR_TEXT, "SMSC throttled until deadline");
+            return false;
+        }
+        LOG.debug("SMSC throttled submit, resubmitting");
+        return true;
+    }
+}
@@ -0,0 +1,176 @@
+package it.zwets.sms.gateway.smpp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jsmpp.SMPPConstant;
+import org.jsmpp.extra.NegativeResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.zwets.sms.gateway.comp.TokenBucket;
+
+/**
+ * Paces the submits on a bind to the rate the SMSC will accept.
+ *
+ * Starts at the contracted rate.  When the SMSC tells us to slow down (with
+ * <code>ESME_RTHROTTLED</code> or <code>ESME_RMSGQFUL</code>), the rate is
+ * halved, down to a floor; while submits succeed, it is raised again by a
+ * tenth of the contracted rate each second (additive increase, multiplicative
+ * decrease).  Throttling errors that arrive within a second of a decrease are
+ * from submits that were already in flight, and do not decrease it again.
+ *
+ * With no contracted rate, submits are not paced, and a throttled submit is
+ * only retried after a fixed backoff.
+ *
+ * Times are in nanoseconds on the {@link System#nanoTime()} clock.  The
+ * methods that take the current time are there for tests and for callers
+ * that already have a reading.
+ */
+public class SmppThrottle {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SmppThrottle.class);
+
+    private static final long HOLD_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long UNPACED_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double MIN_FRACTION = 0.05;
+    private static final double STEP_FRACTION = 0.1;
+
+    private final String name;
+    private final double maxRate;
+    private final double minRate;
+    private final TokenBucket bucket;
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    private double rate;
+    private long lastChange;
+    private long backoffUntil;
+
+    /**
+     * Create a throttle for the contracted rate.
+     *
+     * @param name the name of the bind, for logging
+     * @param ratePerSecond the contracted submits per second, or 0 for no pacing
+     */
+    public SmppThrottle(String name, double ratePerSecond) {
+        this.name = name;
+        this.maxRate = ratePerSecond;
+        this.minRate = Math.max(0.1, ratePerSecond * MIN_FRACTION);
+        this.bucket = ratePerSecond > 0 ? new TokenBucket(ratePerSecond, 1) : null;
+        this.rate = ratePerSecond;
+        long now = System.nanoTime();
+        this.lastChange = now - HOLD_NANOS;
+        this.backoffUntil = now;
+    }
+
+    /**
+     * Returns whether exception is the SMSC telling us to slow down.
+     *
+     * @param exception an exception from a submit, or one of its causes
+     * @return true if it is a throttling error
+     */
+    public static boolean isThrottling(Throwable exception) {
+        for (Throwable t = exception; t != null; t = t.getCause()) {
+            if (t instanceof NegativeResponseException nre) {
+                int status = nre.getCommandStatus();
+                return status == SMPPConstant.STAT_ESME_RTHROTTLED || status == SMPPConstant.STAT_ESME_RMSGQFUL;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Waits until the next submit may go.
+     *
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public void await() throws InterruptedException {
+        long wait = reserve(System.nanoTime());
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Reserves the next submit, and returns how long to wait before it may go.
+     *
+     * @param now the current time in nanos
+     * @return 0 if the submit may go now, else the nanos to wait
+     */
+    public long reserve(long now) {
+        long wait;
+        synchronized (this) {
+            wait = Math.max(0, backoffUntil - now);
+        }
+        if (bucket != null) {
+            wait = Math.max(wait, bucket.reserve(1, now));
+        }
+        return wait;
+    }
+
+    /**
+     * Records that a submit was accepted, and raises the rate if due.
+     */
+    public void onAccepted() {
+        onAccepted(System.nanoTime());
+    }
+
+    /**
+     * Records that a submit was accepted at now, and raises the rate if due.
+     *
+     * @param now the current time in nanos
+     */
+    public synchronized void onAccepted(long now) {
+        if (bucket != null && rate < maxRate && now - lastChange >= HOLD_NANOS) {
+            setRate(Math.min(maxRate, rate + maxRate * STEP_FRACTION), now);
+        }
+    }
+
+    /**
+     * Records that a submit was throttled, and lowers the rate if due.
+     */
+    public void onThrottled() {
+        onThrottled(System.nanoTime());
+    }
+
+    /**
+     * Records that a submit was throttled at now, and lowers the rate if due.
+     *
+     * @param now the current time in nanos
+     */
+    public synchronized void onThrottled(long now) {
+        throttledCount.incrementAndGet();
+        if (bucket == null) {
+            backoffUntil = Math.max(backoffUntil, now + UNPACED_BACKOFF_NANOS);
+        }
+        else if (now - lastChange >= HOLD_NANOS) {
+            setRate(Math.max(minRate, rate / 2), now);
+        }
+    }
+
+    /**
+     * @return the current rate, 0 when not paced
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return the number of throttling errors received
+     */
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    private void setRate(double newRate, long now) {
+        if (newRate < rate) {
+            LOG.warn("SMSC throttling bind {}, lowering rate to {}/s", name, newRate);
+        }
+        else {
+            LOG.debug("Raising rate on bind {} to {}/s", name, newRate);
+        }
+        rate = newRate;
+        lastChange = now;
+        bucket.setRate(newRate);
+    }
+}
@@ -0,0 +1,449 @@
+package it.zwets.sms.gateway.smpp;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jsmpp.PDUStringException;
+import org.jsmpp.SMPPConstant;
+import org.jsmpp.bean.Address;
+import org.jsmpp.bean.BroadcastSm;
+import org.jsmpp.bean.CancelBroadcastSm;
+import org.jsmpp.bean.CancelSm;
+import org.jsmpp.bean.DataCodings;
+import org.jsmpp.bean.DataSm;
+import org.jsmpp.bean.DeliveryReceipt;
+import org.jsmpp.bean.DestinationAddress;
+import org.jsmpp.bean.ESMClass;
+import org.jsmpp.bean.GSMSpecificFeature;
+import org.jsmpp.bean.MessageMode;
+import org.jsmpp.bean.MessageState;
+import org.jsmpp.bean.MessageType;
+import org.jsmpp.bean.OptionalParameter;
+import org.jsmpp.bean.QueryBroadcastSm;
+import org.jsmpp.bean.QuerySm;
+import org.jsmpp.bean.RegisteredDelivery;
+import org.jsmpp.bean.ReplaceSm;
+import org.jsmpp.bean.SMSCDeliveryReceipt;
+import org.jsmpp.bean.SubmitMulti;
+import org.jsmpp.bean.SubmitSm;
+import org.jsmpp.bean.UnsuccessDelivery;
+import org.jsmpp.extra.ProcessRequestException;
+import org.jsmpp.extra.SessionState;
+import org.jsmpp.session.BindRequest;
+import org.jsmpp.session.BroadcastSmResult;
+import org.jsmpp.session.DataSmResult;
+import org.jsmpp.session.QueryBroadcastSmResult;
+import org.jsmpp.session.QuerySmResult;
+import org.jsmpp.session.SMPPServerSession;
+import org.jsmpp.session.SMPPServerSessionListener;
+import org.jsmpp.session.ServerMessageReceiverListener;
+import org.jsmpp.session.Session;
+import org.jsmpp.session.SubmitMultiResult;
+import org.jsmpp.session.SubmitSmResult;
+import org.jsmpp.util.DeliveryReceiptState;
+import org.jsmpp.util.MessageId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import it.zwets.sms.gateway.comp.TokenBucket;
+
+/**
+ * In-process stand-in for an SMSC, for load and soak testing the SMPP path.
+ *
+ * Listens on a local port and accepts transceiver (and transmitter) binds
+ * with the configured system ID and password.  Each submit_sm is answered
+ * after a latency drawn from a log-normal distribution, so that there is a
+ * realistic tail, and is rejected with <code>ESME_RMSGQFUL</code> when the
+ * bind has more than window size submits outstanding, or with
+ * <code>ESME_RTHROTTLED</code> when it exceeds the TPS limit or at random
+ * in the configured ratio.
+ *
+ * A submit_multi is handled like a submit_sm, with one message ID for all
+ * its destinations, each of which gets its own delivery receipt.
+ *
+ * When the submit asks for a delivery receipt, one is sent after a delay
+ * drawn from an exponential distribution, with its final state picked from
+ * the configured mix.  Like the Vodacom SMSC, the simulator gives message IDs
+ * without padding in the submit_sm_resp, and zero-padded in the receipt.
+ * A query_sm for a message ID it gave is answered ENROUTE, and for any
+ * other with <code>ESME_RQUERYFAIL</code>.
+ *
+ * The window is checked when jSMPP hands us the submit, so the simulator
+ * processes one more submit than the window size per bind at a time; any
+ * beyond that queue in jSMPP and are checked when their turn comes.
+ */
+@ManagedResource(objectName = "it.zwets.sms.gateway:name=SmscSimulator", description = "Simulated SMSC")
+public class SmscSimulator implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SmscSimulator.class);
+
+    private static final long BIND_TIMEOUT = 5000;
+    private static final ESMClass ESM_RECEIPT = new ESMClass(MessageMode.DEFAULT, MessageType.SMSC_DEL_RECEIPT, GSMSpecificFeature.DEFAULT);
+
+    /**
+     * The behaviour of the simulated SMSC.
+     *
+     * @param port the port to listen on
+     * @param systemId the system ID that binds must use
+     * @param password the password that binds must use
+     * @param windowSize the maximum number of outstanding submits per bind
+     * @param latencyMillis the median submit response time
+     * @param latencySigma the sigma of the log-normal response time, 0 for fixed
+     * @param maxTps the submits per second per bind before throttling, 0 for no limit
+     * @param throttleRatio the fraction of submits to throttle at random
+     * @param dlrDelayMillis the mean delay of delivery receipts
+     * @param dlrMix the relative weights of the receipt final states
+     * @param idWidth the width to zero-pad the message ID in receipts to
+     */
+    public record Settings(
+            int port,
+            String systemId,
+            String password,
+            int windowSize,
+            long latencyMillis,
+            double latencySigma,
+            double maxTps,
+            double throttleRatio,
+            long dlrDelayMillis,
+            Map<DeliveryReceiptState, Integer> dlrMix,
+            int idWidth) {
+
+        /**
+         * Parses a receipt mix of the form <code>STATE:n, STATE:n, ...</code>.
+         *
+         * @param spec the mix, e.g. <code>DELIVRD:95,UNDELIV:3,EXPIRED:2</code>
+         * @return map from final state to weight
+         */
+        public static Map<DeliveryReceiptState, Integer> parseDlrMix(String spec) {
+            Map<DeliveryReceiptState, Integer> mix = new EnumMap<>(DeliveryReceiptState.class);
+            for (String item : spec.trim().split(" *, *")) {
+                String[] parts = item.split(" *: *");
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("Invalid receipt mix (expect STATE:n,...): %s".formatted(spec));
+                }
+                mix.put(DeliveryReceiptState.valueOf(parts[0].toUpperCase()), Integer.parseInt(parts[1]));
+            }
+            return mix;
+        }
+    }
+
+    private final Settings settings;
+    private final DeliveryReceiptState[] dlrStates;
+    private final int[] dlrWeights;
+    private final int dlrTotalWeight;
+    private final Set<SMPPServerSession> sessions = ConcurrentHashMap.newKeySet();
+    private final long firstId = System.currentTimeMillis() % 1_000_000 * 1000;
+    private final AtomicLong nextId = new AtomicLong(firstId);
+
+    private final AtomicLong submitCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();
+    private final AtomicLong windowFullCount = new AtomicLong();
+    private final AtomicLong receiptCount = new AtomicLong();
+
+    private SMPPServerSessionListener listener;
+    private ExecutorService binder;
+    private ScheduledExecutorService receipts;
+    private volatile boolean closing = false;
+
+    /**
+     * Create a simulator, call {@link #start()} to start listening.
+     *
+     * @param settings the behaviour of the simulated SMSC
+     */
+    public SmscSimulator(Settings settings) {
+        LOG.debug("Constructing SmscSimulator on port {}", settings.port());
+        this.settings = settings;
+        this.dlrStates = settings.dlrMix().keySet().toArray(DeliveryReceiptState[]::new);
+        this.dlrWeights = new int[dlrStates.length];
+        int total = 0;
+        for (int i = 0; i < dlrStates.length; ++i) {
+            total += settings.dlrMix().get(dlrStates[i]);
+            dlrWeights[i] = total;
+        }
+        this.dlrTotalWeight = total;
+    }
+
+    /**
+     * Starts listening for binds.
+     *
+     * @throws IOException if the port cannot be opened
+     */
+    public synchronized void start() throws IOException {
+        LOG.info("Starting SMSC simulator on port {}", settings.port());
+        listener = new SMPPServerSessionListener(settings.port());
+        listener.setPduProcessorDegree(settings.windowSize() + 1);
+        binder = Executors.newCachedThreadPool(Thread.ofPlatform().name("SmscSimBind-", 0).daemon().factory());
+        receipts = Executors.newScheduledThreadPool(2, Thread.ofPlatform().name("SmscSimDlr-", 0).daemon().factory());
+        Thread.ofPlatform().name("SmscSimAccept").daemon().start(this::acceptLoop);
+    }
+
+    @Override
+    public synchronized void close() {
+        LOG.info("Stopping SMSC simulator");
+        closing = true;
+        if (receipts != null) {
+            receipts.shutdownNow();
+        }
+        sessions.forEach(SMPPServerSession::unbindAndClose);
+        if (binder != null) {
+            binder.shutdownNow();
+        }
+        if (listener != null) {
+            try {
+                listener.close();
+            }
+            catch (IOException e) {
+                LOG.warn("Failed to close SMSC simulator listener: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closing) {
+            try {
+                SMPPServerSession session = listener.accept();
+                session.setMessageReceiverListener(new SessionHandler());
+                binder.execute(() -> bind(session));
+            }
+            catch (IOException e) {
+                if (!closing) {
+                    LOG.error("SMSC simulator failed to accept connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void bind(SMPPServerSession session) {
+        try {
+            BindRequest request = session.waitForBind(BIND_TIMEOUT);
+            if (!settings.systemId().equals(request.getSystemId())) {
+                LOG.warn("SMSC simulator rejects bind from system ID {}", request.getSystemId());
+                request.reject(SMPPConstant.STAT_ESME_RINVSYSID);
+            }
+            else if (!settings.password().equals(request.getPassword())) {
+                LOG.warn("SMSC simulator rejects bind with invalid password");
+                request.reject(SMPPConstant.STAT_ESME_RINVPASWD);
+            }
+            else {
+                request.accept("smscsim");
+                sessions.add(session);
+                session.addSessionStateListener((newState, oldState, source) -> {
+                    if (newState == SessionState.CLOSED) {
+                        sessions.remove(session);
+                    }
+                });
+                LOG.info("SMSC simulator accepted {} bind from {}", request.getBindType(), request.getSystemId());
+            }
+        }
+        catch (TimeoutException e) {
+            LOG.warn("SMSC simulator got no bind request within {}ms", BIND_TIMEOUT);
+            session.unbindAndClose();
+        }
+        catch (Exception e) {
+            LOG.error("SMSC simulator failed to bind: {}", e.getMessage());
+            session.unbindAndClose();
+        }
+    }
+
+    // Log-normal latency around the median
+
+    private long latency() {
+        double sigma = settings.latencySigma();
+        return sigma <= 0
+                ? settings.latencyMillis()
+                : Math.round(settings.latencyMillis() * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+    }
+
+    private DeliveryReceiptState pickFinalState() {
+        int pick = ThreadLocalRandom.current().nextInt(dlrTotalWeight);
+        int i = 0;
+        while (dlrWeights[i] <= pick) {
+            ++i;
+        }
+        return dlrStates[i];
+    }
+
+    // The receipt comes from the destination of the submit, and goes to its source
+
+    private void scheduleReceipt(SMPPServerSession session, String serviceType, Address source, Address destination, String messageId) {
+        long delay = Math.round(-settings.dlrDelayMillis() * Math.log(1.0 - ThreadLocalRandom.current().nextDouble()));
+        Date submitDate = new Date();
+        receipts.schedule(() -> sendReceipt(session, serviceType, source, destination, messageId, submitDate), delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void sendReceipt(SMPPServerSession session, String serviceType, Address source, Address destination, String messageId, Date submitDate) {
+        DeliveryReceiptState state = pickFinalState();
+        String paddedId = settings.idWidth() > messageId.length()
+                ? "0".repeat(settings.idWidth() - messageId.length()) + messageId
+                : messageId;
+        DeliveryReceipt receipt = new DeliveryReceipt(paddedId, 1, state == DeliveryReceiptState.DELIVRD ? 1 : 0,
+                submitDate, new Date(), state, state == DeliveryReceiptState.DELIVRD ? "000" : "001", "");
+        try {
+            session.deliverShortMessage(serviceType,
+                    destination.getTypeOfNumber(), destination.getNumberingPlanIndicator(), destination.getAddress(),
+                    source.getTypeOfNumber(), source.getNumberingPlanIndicator(), source.getAddress(),
+                    ESM_RECEIPT, (byte) 0, (byte) 0, new RegisteredDelivery(0), DataCodings.ZERO,
+                    receipt.toString().getBytes());
+            receiptCount.incrementAndGet();
+        }
+        catch (Exception e) {
+            LOG.warn("SMSC simulator failed to deliver receipt for {}: {}", messageId, e.getMessage());
+        }
+    }
+
+    /**
+     * Handles the requests on one bind, with its own window and TPS limit.
+     */
+    private class SessionHandler implements ServerMessageReceiverListener {
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final TokenBucket tps = settings.maxTps() > 0 ? new TokenBucket(settings.maxTps(), settings.maxTps()) : null;
+
+        @Override
+        public SubmitSmResult onAcceptSubmitSm(SubmitSm submit, SMPPServerSession session) throws ProcessRequestException {
+            String messageId = accept();
+            if (!SMSCDeliveryReceipt.DEFAULT.containedIn(submit.getRegisteredDelivery())) {
+                scheduleReceipt(session, submit.getServiceType(),
+                        new Address(submit.getSourceAddrTon(), submit.getSourceAddrNpi(), submit.getSourceAddr()),
+                        new Address(submit.getDestAddrTon(), submit.getDestAddrNpi(), submit.getDestAddress()),
+                        messageId);
+            }
+            try {
+                return new SubmitSmResult(new MessageId(messageId), new OptionalParameter[0]);
+            }
+            catch (PDUStringException e) {
+                throw new ProcessRequestException("Invalid message ID", SMPPConstant.STAT_ESME_RSYSERR, e);
+            }
+        }
+
+        @Override
+        public SubmitMultiResult onAcceptSubmitMulti(SubmitMulti submitMulti, SMPPServerSession session) throws ProcessRequestException {
+            String messageId = accept();
+            if (!SMSCDeliveryReceipt.DEFAULT.containedIn(submitMulti.getRegisteredDelivery())) {
+                Address source = new Address(submitMulti.getSourceAddrTon(), submitMulti.getSourceAddrNpi(), submitMulti.getSourceAddr());
+                for (DestinationAddress destination : submitMulti.getDestAddresses()) {
+                    if (destination instanceof Address address) {
+                        scheduleReceipt(session, submitMulti.getServiceType(), source, address, messageId);
+                    }
+                }
+            }
+            return new SubmitMultiResult(messageId, new UnsuccessDelivery[0], new OptionalParameter[0]);
+        }
+
+        // Applies the window and TPS limit and latency, returns the message ID
+
+        private String accept() throws ProcessRequestException {
+            try {
+                if (outstanding.incrementAndGet() > settings.windowSize()) {
+                    windowFullCount.incrementAndGet();
+                    throw new ProcessRequestException("Window exceeded", SMPPConstant.STAT_ESME_RMSGQFUL);
+                }
+                if ((tps != null && !tps.tryTake(1, System.nanoTime()))
+                        || ThreadLocalRandom.current().nextDouble() < settings.throttleRatio()) {
+                    throttledCount.incrementAndGet();
+                    throw new ProcessRequestException("Throttled", SMPPConstant.STAT_ESME_RTHROTTLED);
+                }
+
+                Thread.sleep(latency());
+
+                submitCount.incrementAndGet();
+                return Long.toString(nextId.incrementAndGet());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessRequestException("Interrupted", SMPPConstant.STAT_ESME_RSYSERR, e);
+            }
+            finally {
+                outstanding.decrementAndGet();
+            }
+        }
+
+        @Override
+        public DataSmResult onAcceptDataSm(DataSm dataSm, Session source) throws ProcessRequestException {
+            throw notSupported();
+        }
+
+        @Override
+        public QuerySmResult onAcceptQuerySm(QuerySm querySm, SMPPServerSession source) throws ProcessRequestException {
+            long id;
+            try {
+                id = Long.parseLong(querySm.getMessageId());
+            }
+            catch (NumberFormatException e) {
+                throw new ProcessRequestException("Invalid message ID", SMPPConstant.STAT_ESME_RINVMSGID);
+            }
+            if (id <= firstId || id > nextId.get()) {
+                throw new ProcessRequestException("Unknown message ID", SMPPConstant.STAT_ESME_RQUERYFAIL);
+            }
+            return new QuerySmResult("", MessageState.ENROUTE, (byte) 0);
+        }
+
+        @Override
+        public void onAcceptReplaceSm(ReplaceSm replaceSm, SMPPServerSession source) throws ProcessRequestException {
+            throw notSupported();
+        }
+
+        @Override
+        public void onAcceptCancelSm(CancelSm cancelSm, SMPPServerSession source) throws ProcessRequestException {
+            throw notSupported();
+        }
+
+        @Override
+        public BroadcastSmResult onAcceptBroadcastSm(BroadcastSm broadcastSm, SMPPServerSession source) throws ProcessRequestException {
+            throw notSupported();
+        }
+
+        @Override
+        public void onAcceptCancelBroadcastSm(CancelBroadcastSm cancelBroadcastSm, SMPPServerSession source) throws ProcessRequestException {
+            throw notSupported();
+        }
+
+        @Override
+        public QueryBroadcastSmResult onAcceptQueryBroadcastSm(QueryBroadcastSm queryBroadcastSm, SMPPServerSession source) throws ProcessRequestException {
+            throw notSupported();
+        }
+
+        private ProcessRequestException notSupported() {
+            return new ProcessRequestException("Not supported by the simulator", SMPPConstant.STAT_ESME_RINVCMDID);
+        }
+    }
+
+    @ManagedAttribute(description = "Number of binds")
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    @ManagedAttribute(description = "Number of submits accepted")
+    public long getSubmitCount() {
+        return submitCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of submits throttled")
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of submits rejected for exceeding the window")
+    public long getWindowFullCount() {
+        return windowFullCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of delivery receipts sent")
+    public long getReceiptCount() {
+        return receiptCount.get();
+    }
+}
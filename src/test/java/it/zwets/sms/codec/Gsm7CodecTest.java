@@ -0,0 +1,96 @@
+package it.zwets.sms.codec;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class Gsm7CodecTest {
+
+    private static final String ALL_CHARS = GsmAlphabet.BASIC_TABLE.replace("\uFFFF", "") + GsmAlphabet.EXTENSION_CHARS;
+
+    @Test
+    public void encodesBasicAndExtension() {
+        byte[] septets = new byte[16];
+
+        assertEquals(7, Gsm7Codec.encode("@a€{Δ", 0, 5, septets, 0));
+        assertArrayEquals(new byte[] { 0x00, 0x61, 0x1B, 0x65, 0x1B, 0x28, 0x10 }, Arrays.copyOf(septets, 7));
+    }
+
+    @Test
+    public void rejectsCharactersOutsideAlphabet() {
+        byte[] septets = new byte[16];
+
+        assertEquals(-1, Gsm7Codec.encode("abcж", 0, 4, septets, 0));
+        assertEquals(-1, Gsm7Codec.encode("`", 0, 1, septets, 0));
+        assertEquals(-1, Gsm7Codec.encode("😀", 0, 2, septets, 0));
+    }
+
+    @Test
+    public void roundTripsWholeAlphabet() {
+        assertEquals(ALL_CHARS, roundTrip(ALL_CHARS));
+    }
+
+    @Test
+    public void decodesUnknownExtensionAsSpace() {
+        byte[] septets = { 0x61, 0x1B, 0x41, 0x62 };
+        char[] chars = new char[4];
+
+        assertEquals("a b", new String(chars, 0, Gsm7Codec.decode(septets, 0, 4, chars, 0)));
+    }
+
+    @Test
+    public void dropsTrailingEscape() {
+        byte[] septets = { 0x61, 0x62, 0x1B };
+        char[] chars = new char[3];
+
+        assertEquals("ab", new String(chars, 0, Gsm7Codec.decode(septets, 0, 3, chars, 0)));
+    }
+
+    @Test
+    public void packsKnownVector() {
+        byte[] septets = new byte[10];
+        Gsm7Codec.encode("hellohello", 0, 10, septets, 0);
+        byte[] packed = new byte[Gsm7Codec.packedLength(10, 0)];
+
+        assertEquals(9, Gsm7Codec.pack(septets, 0, 10, packed, 0, 0));
+        assertArrayEquals(new byte[] { (byte) 0xE8, 0x32, (byte) 0x9B, (byte) 0xFD, 0x46, (byte) 0x97, (byte) 0xD9, (byte) 0xEC, 0x37 }, packed);
+    }
+
+    @Test
+    public void packedLengths() {
+        assertEquals(0, Gsm7Codec.packedLength(0, 0));
+        assertEquals(7, Gsm7Codec.packedLength(8, 0));
+        assertEquals(140, Gsm7Codec.packedLength(160, 0));
+        assertEquals(134, Gsm7Codec.packedLength(153, 1));
+    }
+
+    @Test
+    public void packUnpackRoundTripsWithFillBits() {
+        Random random = new Random(7);
+        for (int fillBits = 0; fillBits <= 6; ++fillBits) {
+            for (int count : new int[] { 1, 7, 8, 9, 153, 160 }) {
+                byte[] septets = new byte[count];
+                for (int i = 0; i < count; ++i) {
+                    septets[i] = (byte) random.nextInt(128);
+                }
+                byte[] packed = new byte[2 + Gsm7Codec.packedLength(count, fillBits)];
+                assertEquals(packed.length - 2, Gsm7Codec.pack(septets, 0, count, packed, 2, fillBits));
+
+                byte[] unpacked = new byte[count];
+                assertEquals(count, Gsm7Codec.unpack(packed, 2, count, fillBits, unpacked, 0));
+                assertArrayEquals(septets, unpacked, "count %d fill %d".formatted(count, fillBits));
+            }
+        }
+    }
+
+    private static String roundTrip(String text) {
+        byte[] septets = new byte[2 * text.length()];
+        int count = Gsm7Codec.encode(text, 0, text.length(), septets, 0);
+        char[] chars = new char[count];
+        return new String(chars, 0, Gsm7Codec.decode(septets, 0, count, chars, 0));
+    }
+}
@@ -0,0 +1,54 @@
+package it.zwets.sms.codec;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class SmsDecoderTest {
+
+    @Test
+    public void decodesWhatEncoderEncodes() {
+        for (String body : new String[] { "", "Hello {world} costs 5€", "a".repeat(160), "Привет 😀 мир" }) {
+            SmsEncoder.Encoded encoded = SmsEncoder.encode(body, 1);
+            assertEquals(body, SmsDecoder.decode(encoded.dataCoding(), encoded.segments()[0], false));
+        }
+    }
+
+    @Test
+    public void joinsConcatenatedSegments() {
+        for (String body : new String[] { "a".repeat(152) + "€" + "b".repeat(152), "ж".repeat(66) + "😀" + "ж".repeat(66) }) {
+            SmsEncoder.Encoded encoded = SmsEncoder.encode(body, 1);
+            StringBuilder sb = new StringBuilder();
+            for (byte[] segment : encoded.segments()) {
+                sb.append(SmsDecoder.decode(encoded.dataCoding(), segment, true));
+            }
+            assertEquals(body, sb.toString());
+        }
+    }
+
+    @Test
+    public void decodesLatin1AndAscii() {
+        assertEquals("café", SmsDecoder.decode((byte) 0x03, "café".getBytes(StandardCharsets.ISO_8859_1), false));
+        assertEquals("plain", SmsDecoder.decode((byte) 0x01, "plain".getBytes(StandardCharsets.US_ASCII), false));
+    }
+
+    @Test
+    public void skipsUdh() {
+        byte[] message = { 5, 0, 3, 1, 2, 1, 0x61, 0x62 };
+        assertEquals("ab", SmsDecoder.decode((byte) 0x00, message, true));
+    }
+
+    @Test
+    public void survivesUdhLongerThanMessage() {
+        byte[] message = { 9, 0, 3 };
+        assertEquals("", SmsDecoder.decode((byte) 0x00, message, true));
+    }
+
+    @Test
+    public void returnsNullForUnknownCoding() {
+        assertNull(SmsDecoder.decode((byte) 0x04, new byte[] { 1, 2 }, false));
+    }
+}
@@ -0,0 +1,88 @@
+package it.zwets.sms.codec;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class SmsEncoderTest {
+
+    private static final String EMOJI = "😀";
+
+    @Test
+    public void singleGsm7HasNoUdh() {
+        SmsEncoder.Encoded encoded = SmsEncoder.encode("a".repeat(160), 1);
+
+        assertEquals(SmsEncoder.DATA_CODING_GSM7, encoded.dataCoding());
+        assertFalse(encoded.isConcatenated());
+        assertEquals(160, encoded.segments()[0].length);
+        assertEquals(0x61, encoded.segments()[0][0]);
+    }
+
+    @Test
+    public void concatenatedGsm7HasUdh() {
+        SmsEncoder.Encoded encoded = SmsEncoder.encode("a".repeat(161), 0x1234);
+
+        assertTrue(encoded.isConcatenated());
+        assertEquals(2, encoded.segments().length);
+        assertArrayEquals(new byte[] { 5, 0, 3, 0x34, 2, 1 }, Arrays.copyOf(encoded.segments()[0], 6));
+        assertArrayEquals(new byte[] { 5, 0, 3, 0x34, 2, 2 }, Arrays.copyOf(encoded.segments()[1], 6));
+        assertEquals(6 + 153, encoded.segments()[0].length);
+        assertEquals(6 + 8, encoded.segments()[1].length);
+    }
+
+    @Test
+    public void gsm7EscapeStaysWithItsCode() {
+        SmsEncoder.Encoded encoded = SmsEncoder.encode("a".repeat(152) + "€" + "a".repeat(152), 1);
+
+        byte[][] segments = encoded.segments();
+        assertEquals(3, segments.length);
+        assertEquals(6 + 152, segments[0].length);
+        assertEquals(GsmAlphabet.ESCAPE, segments[1][6]);
+        assertEquals(0x65, segments[1][7]);
+        assertEquals(6 + 153, segments[1].length);
+    }
+
+    @Test
+    public void ucs2IsBigEndian() {
+        SmsEncoder.Encoded encoded = SmsEncoder.encode("ж".repeat(70), 1);
+
+        assertEquals(SmsEncoder.DATA_CODING_UCS2, encoded.dataCoding());
+        assertEquals(140, encoded.segments()[0].length);
+        assertEquals(0x04, encoded.segments()[0][0]);
+        assertEquals(0x36, encoded.segments()[0][1]);
+    }
+
+    @Test
+    public void ucs2SurrogatePairStaysTogether() {
+        SmsEncoder.Encoded encoded = SmsEncoder.encode("ж".repeat(66) + EMOJI + "ж".repeat(66), 1);
+
+        byte[][] segments = encoded.segments();
+        assertEquals(3, segments.length);
+        assertEquals(6 + 2 * 66, segments[0].length);
+        assertEquals((byte) 0xD8, segments[1][6]);
+        assertEquals((byte) 0xDE, segments[1][8]);
+        assertEquals(6 + 2 * 67, segments[1].length);
+    }
+
+    @Test
+    public void segmentsMatchCount() {
+        Random random = new Random(42);
+        String[] pieces = { "a", "€", "{", " ", "ж", EMOJI };
+        for (int n = 0; n < 500; ++n) {
+            StringBuilder sb = new StringBuilder();
+            int len = random.nextInt(400);
+            boolean gsm = random.nextBoolean();
+            for (int i = 0; i < len; ++i) {
+                sb.append(pieces[random.nextInt(gsm ? 4 : pieces.length)]);
+            }
+            String body = sb.toString();
+            assertEquals(SmsSegments.count(body), SmsEncoder.encode(body, n).segments().length, body);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package it.zwets.sms.codec;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class SmsSegmentsTest {
+
+    private static final String EMOJI = "😀"; // one code point, two UCS-2 units
+
+    @Test
+    public void gsm7Limits() {
+        assertEquals(1, SmsSegments.count(""));
+        assertEquals(1, SmsSegments.count("a".repeat(160)));
+        assertEquals(2, SmsSegments.count("a".repeat(161)));
+        assertEquals(2, SmsSegments.count("a".repeat(306)));
+        assertEquals(3, SmsSegments.count("a".repeat(307)));
+    }
+
+    @Test
+    public void gsm7EscapesCountDouble() {
+        assertEquals(1, SmsSegments.count("€".repeat(80)));
+        assertEquals(2, SmsSegments.count("€".repeat(81)));
+        assertEquals(1, SmsSegments.count("a".repeat(158) + "{"));
+        assertEquals(2, SmsSegments.count("a".repeat(159) + "{"));
+    }
+
+    @Test
+    public void gsm7EscapeNotSplit() {
+        // 306 septets would fit two segments, but the escape can't straddle them
+        assertEquals(2, SmsSegments.count("a".repeat(153) + "€" + "a".repeat(151)));
+        assertEquals(3, SmsSegments.count("a".repeat(152) + "€" + "a".repeat(152)));
+    }
+
+    @Test
+    public void ucs2Limits() {
+        assertEquals(1, SmsSegments.count("ж".repeat(70)));
+        assertEquals(2, SmsSegments.count("ж".repeat(71)));
+        assertEquals(2, SmsSegments.count("ж".repeat(134)));
+        assertEquals(3, SmsSegments.count("ж".repeat(135)));
+    }
+
+    @Test
+    public void ucs2SurrogateNotSplit() {
+        assertEquals(1, SmsSegments.count("ж".repeat(68) + EMOJI));
+        assertEquals(2, SmsSegments.count("ж".repeat(69) + EMOJI));
+        assertEquals(2, SmsSegments.count("ж".repeat(65) + EMOJI + "ж".repeat(67)));
+        assertEquals(3, SmsSegments.count("ж".repeat(66) + EMOJI + "ж".repeat(66)));
+    }
+
+    @Test
+    public void oneNonGsmCharacterMakesUcs2() {
+        assertTrue(SmsSegments.isGsm7("Hello €uro [ok] {}"));
+        assertFalse(SmsSegments.isGsm7("Hello ж"));
+        assertEquals(3, SmsSegments.count("a".repeat(140) + "ж"));
+    }
+}
@@ -1,5 +1,8 @@
 package it.zwets.sms.gateway;
 
+import java.time.Duration;
+import java.util.Map;
+
 import org.apache.camel.CamelContext;
 import org.apache.camel.Endpoint;
 import org.apache.camel.builder.RouteBuilder;
@@ -10,9 +13,17 @@ import org.springframework.context.annotation.Configuration;
 
 import it.zwets.sms.crypto.Vault;
 import it.zwets.sms.gateway.SmsGatewayConfiguration.Constants;
+import it.zwets.sms.gateway.comp.BackpressurePolicy;
+import it.zwets.sms.gateway.comp.ClientQuotas;
 import it.zwets.sms.gateway.comp.CorrelationTable;
+import it.zwets.sms.gateway.comp.DispatchProcessor;
+import it.zwets.sms.gateway.comp.DispatchQueue;
+import it.zwets.sms.gateway.comp.OffsetCommitter;
 import it.zwets.sms.gateway.comp.PayloadDecoder;
+import it.zwets.sms.gateway.comp.QuotaProcessor;
 import it.zwets.sms.gateway.comp.RequestProcessor;
+import it.zwets.sms.gateway.comp.StageMonitor;
+import it.zwets.sms.gateway.comp.StatusTracker;
 
 @Configuration
 public class MockConfiguration {
@@ -113,6 +124,56 @@ public class MockConfiguration {
         return camelContext.getEndpoint("file://%s?fileExist=append".formatted(clientLogDir));
     }
 
+    /**
+     * The dispatch endpoint, as in the normal configuration
+     * @param camelContext
+     * @return SEDA endpoint over the dispatch queue
+     */
+    @Bean(Constants.ENDPOINT_DISPATCH)
+    public Endpoint getDispatchEndpoint(CamelContext camelContext) {
+        return camelContext.getEndpoint("seda:dispatch?queue=#%s&blockWhenFull=true".formatted(Constants.BEAN_DISPATCH_QUEUE));
+    }
+
+    @Bean(Constants.BEAN_DISPATCH_QUEUE)
+    public DispatchQueue getDispatchQueue() {
+        return new DispatchQueue(100);
+    }
+
+    @Bean
+    public OffsetCommitter getOffsetCommitter() {
+        return new OffsetCommitter();
+    }
+
+    @Bean
+    public DispatchProcessor getDispatchProcessor(ClientQuotas quotas) {
+        return new DispatchProcessor(quotas);
+    }
+
+    @Bean
+    public StageMonitor getStageMonitor() {
+        return new StageMonitor();
+    }
+
+    @Bean
+    public BackpressurePolicy getBackpressurePolicy(DispatchQueue dispatchQueue) {
+        return new BackpressurePolicy(dispatchQueue, 0.9, 0.5);
+    }
+
+    @Bean
+    public ClientQuotas getClientQuotas() {
+        return new ClientQuotas(Map.of(), Map.of(), ClientQuotas.OnExhaustion.FAIL);
+    }
+
+    @Bean
+    public QuotaProcessor getQuotaProcessor(ClientQuotas quotas) {
+        return new QuotaProcessor(quotas);
+    }
+
+    @Bean
+    public StatusTracker getStatusTracker() {
+        return new StatusTracker(SmsGatewayConfiguration.parseClientValues(StatusTracker.DEFAULT_RANKS), Duration.ofHours(1), 1000);
+    }
+
     @Bean(Constants.BEAN_CORRELATION_TABLE)
     public CorrelationTable getCorrelationTable() {
         return new CorrelationTable();
@@ -160,6 +221,7 @@ public class MockConfiguration {
                     .marshal().json()
                     .to(Constants.ENDPOINT_FRONTEND_REQUEST);
                 from(Constants.ENDPOINT_FRONTEND_RESPONSE).routeId("mock-out")
+                    .errorHandler(noErrorHandler()) // failures go to the caller, as with Kafka
                     .to("mockFrontEndResponseEndpoint");
             }
         };
@@ -0,0 +1,229 @@
+package it.zwets.sms.gateway;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Endpoint;
+import org.apache.camel.EndpointInject;
+import org.apache.camel.Message;
+import org.apache.camel.Produce;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.component.smpp.SmppEndpoint;
+import org.apache.camel.test.spring.junit5.CamelSpringBootTest;
+import org.apache.camel.test.spring.junit5.DisableJmx;
+import org.jsmpp.util.DeliveryReceiptState;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.jayway.jsonpath.JsonPath;
+
+import it.zwets.sms.crypto.PkiCrypto;
+import it.zwets.sms.crypto.Vault;
+import it.zwets.sms.gateway.SmsGatewayConfiguration.Constants;
+import it.zwets.sms.gateway.comp.InboundSmsEncoder;
+import it.zwets.sms.gateway.comp.ReceiptDeduplicator;
+import it.zwets.sms.gateway.comp.RecipientRouter;
+import it.zwets.sms.gateway.comp.ResponseProducer;
+import it.zwets.sms.gateway.comp.SmppInboundProcessor;
+import it.zwets.sms.gateway.comp.SmppRequestProducer;
+import it.zwets.sms.gateway.comp.SmppResponseProcessor;
+import it.zwets.sms.gateway.comp.SmppSegmenter;
+import it.zwets.sms.gateway.comp.StatusTracker;
+import it.zwets.sms.gateway.dto.SendSmsRequest;
+import it.zwets.sms.gateway.dto.SmsMessage;
+import it.zwets.sms.gateway.routes.BackendRoute;
+import it.zwets.sms.gateway.routes.CorrelIdRoute;
+import it.zwets.sms.gateway.routes.SmppRoute;
+import it.zwets.sms.gateway.routes.SmsRouter;
+import it.zwets.sms.gateway.routes.TestClientRoute;
+import it.zwets.sms.gateway.smpp.SmppBindPool;
+import it.zwets.sms.gateway.smpp.SmppMultiSubmitter;
+import it.zwets.sms.gateway.smpp.SmppReconciler;
+import it.zwets.sms.gateway.smpp.SmppSubmitProcessor;
+import it.zwets.sms.gateway.smpp.SmscSimulator;
+
+/**
+ * Runs requests of the test client through the real SMPP backend, bound to
+ * the {@link SmscSimulator} on a free local port, instead of the test client
+ * route of {@link SmsGatewayTest}.
+ */
+@SpringBootTest(classes = {MockConfiguration.class, SmscSimulatorTest.SmppConfiguration.class,
+        SmsRouter.class, CorrelIdRoute.class, ResponseProducer.class,
+        BackendRoute.class, SmppRoute.class, SmppResponseProcessor.class})
+@CamelSpringBootTest
+@EnableAutoConfiguration
+@DisableJmx
+public class SmscSimulatorTest {
+
+    private static final String CLIENT_ID = "test";
+    private static final String CORREL_ID = "my-smpp-correl-id";
+    private static final int PORT = freePort();
+
+    @Autowired
+    private Vault vault;
+
+    @Autowired
+    private SmscSimulator simulator;
+
+    @Produce("marshallingFrontEndRequestEndpoint") // defined in MockConfiguration
+    private ProducerTemplate template;
+
+    @EndpointInject("mockFrontEndResponseEndpoint") // defined in MockConfiguration
+    private MockEndpoint response;
+
+    @Autowired
+    private StatusTracker statusTracker;
+
+    @AfterEach
+    private void afterEach() {
+        response.reset();
+        statusTracker.clear();
+    }
+
+    @Test
+    public void submitsAndReportsReceipt() throws InterruptedException {
+
+        // The submit response comes on its own, the receipt in a batch of responses
+
+        response.expectedMessageCount(2);
+        response.setResultWaitTime(10000);
+
+        response.message(0).jsonpath("$['correl-id']").isEqualTo(CORREL_ID);
+        response.message(0).jsonpath("$['client-id']").isEqualTo(CLIENT_ID);
+        response.message(0).jsonpath("$['sms-status']").isEqualTo(Constants.SMS_STATUS_SENT);
+
+        template.sendBody(makeSmsRequest("Hello over SMPP"));
+
+        response.assertIsSatisfied();
+
+        List<?> batch = response.getExchanges().get(1).getIn().getBody(List.class);
+        assertEquals(1, batch.size());
+        String receipt = ((Message) batch.get(0)).getBody(String.class);
+        assertEquals(CORREL_ID, JsonPath.read(receipt, "$['correl-id']"));
+        assertEquals(CLIENT_ID, JsonPath.read(receipt, "$['client-id']"));
+        assertEquals(Constants.SMS_STATUS_DELIVERED, JsonPath.read(receipt, "$['sms-status']"));
+
+        assertEquals(1, simulator.getSubmitCount());
+        assertEquals(1, simulator.getReceiptCount());
+    }
+
+    // -- The SMPP backend against the simulator, and the test client routed to it
+
+    @Configuration
+    public static class SmppConfiguration {
+
+        @Bean(initMethod = "start", destroyMethod = "close")
+        public SmscSimulator getSmscSimulator() {
+            return new SmscSimulator(new SmscSimulator.Settings(PORT, "gateway", "secret",
+                    10, 10, 0, 0, 0, 100, Map.of(DeliveryReceiptState.DELIVRD, 1), 10));
+        }
+
+        @Bean(destroyMethod = "close")
+        public SmppBindPool getSmppBindPool(SmscSimulator simulator, CamelContext camelContext) {
+            SmppEndpoint endpoint = camelContext.getEndpoint("smpp://gateway@localhost:%d".formatted(PORT), SmppEndpoint.class);
+            endpoint.getConfiguration().setSystemId("gateway");
+            endpoint.getConfiguration().setPassword("secret");
+            return new SmppBindPool(List.of(new SmppBindPool.Target("", endpoint, 1, 1)), SmppRoute.SMPP_INBOUND, 10, 0, 0);
+        }
+
+        @Bean
+        public SmppSubmitProcessor getSmppSubmitProcessor(SmppBindPool pool) {
+            return new SmppSubmitProcessor(pool, 5000);
+        }
+
+        @Bean(destroyMethod = "close")
+        public SmppMultiSubmitter getSmppMultiSubmitter(SmppSubmitProcessor single, SmppBindPool pool, CamelContext camelContext) {
+            return new SmppMultiSubmitter(single, pool, 5000, 0, 100, camelContext);
+        }
+
+        @Bean(destroyMethod = "close")
+        public SmppReconciler getSmppReconciler(SmppBindPool pool, CamelContext camelContext) {
+            return new SmppReconciler(pool, SmsRouter.RESPOND, 1, 10000, Duration.ofMinutes(5), 100, camelContext);
+        }
+
+        @Bean
+        public SmppRequestProducer getSmppRequestProducer() {
+            return new SmppRequestProducer(Duration.ofHours(48));
+        }
+
+        @Bean
+        public SmppSegmenter getSmppSegmenter() {
+            return new SmppSegmenter();
+        }
+
+        @Bean
+        public SmppInboundProcessor getSmppInboundProcessor() {
+            return new SmppInboundProcessor();
+        }
+
+        @Bean
+        public InboundSmsEncoder getInboundSmsEncoder(Vault vault) {
+            return new InboundSmsEncoder(vault, Map.of());
+        }
+
+        @Bean
+        public ReceiptDeduplicator getReceiptDeduplicator() {
+            return new ReceiptDeduplicator(Duration.ofMinutes(15), 1000);
+        }
+
+        @Bean
+        public RecipientRouter getRecipientRouter() throws IOException {
+            return new RecipientRouter("", "", SmsGatewayConfiguration.BACKEND_SMPP);
+        }
+
+        @Bean(Constants.ENDPOINT_INBOUND_SMS)
+        public Endpoint getInboundSmsEndpoint(CamelContext camelContext) {
+            return camelContext.getEndpoint("mock:inbound-sms");
+        }
+
+        // The dispatch route sends the test client to its own route, which we connect to the backend
+
+        @Bean
+        public RouteBuilder getTestClientRoute() {
+            return new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from(TestClientRoute.TEST_ROUTE).to(BackendRoute.BACKEND_ROUTE);
+                }
+            };
+        }
+    }
+
+    // -- Helpers
+
+    private SendSmsRequest makeSmsRequest(String message) {
+        SmsMessage sms = new SmsMessage(message);
+        sms.setHeader("To", "+255712345678");
+        sms.setHeader("Sender", "Gateway");
+
+        byte[] encrypted = PkiCrypto.encrypt(vault.getPublicKey(CLIENT_ID), sms.asBytes());
+        String payload = new String(Base64.getEncoder().encode(encrypted), StandardCharsets.UTF_8);
+        return new SendSmsRequest(CLIENT_ID, CORREL_ID, Instant.now().plusSeconds(30).toString(), payload);
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
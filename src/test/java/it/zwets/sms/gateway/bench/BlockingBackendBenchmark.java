@@ -0,0 +1,95 @@
+package it.zwets.sms.gateway.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares platform and virtual threads for blocking backend calls.
+ *
+ * Every operation pushes a batch of simulated backend calls, each blocking
+ * for the backend latency, through the executor and waits for all of them.
+ * The platform executor is a fixed pool like Camel's default thread pools;
+ * the virtual executor is what Camel uses with virtual threads enabled.
+ *
+ * This measures the threading model only: the calls are sleeps, not the
+ * SMPP or WASP backend path.  Those backends are called asynchronously and
+ * no longer block a thread while they wait; what blocks is the other work
+ * on the Camel thread pools, which the sleeps stand in for.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class BlockingBackendBenchmark {
+
+    @Param({ "1", "10", "100", "1000" })
+    public int latencyMillis;
+
+    @Param({ "20", "200" })
+    public int platformPoolSize;
+
+    @Param({ "2000" })
+    public int callsInFlight;
+
+    private ExecutorService platform;
+    private ExecutorService virtual;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        platform = Executors.newFixedThreadPool(platformPoolSize);
+        virtual = Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        platform.shutdownNow();
+        virtual.shutdownNow();
+    }
+
+    @Benchmark
+    public int platformThreads() throws Exception {
+        return runBatch(platform);
+    }
+
+    @Benchmark
+    public int virtualThreads() throws Exception {
+        return runBatch(virtual);
+    }
+
+    private int runBatch(ExecutorService executor) throws Exception {
+        List<Future<Integer>> calls = new ArrayList<>(callsInFlight);
+        for (int i = 0; i < callsInFlight; ++i) {
+            calls.add(executor.submit(this::backendCall));
+        }
+        int done = 0;
+        for (Future<Integer> call : calls) {
+            done += call.get();
+        }
+        return done;
+    }
+
+    private Integer backendCall() throws InterruptedException {
+        Thread.sleep(latencyMillis);
+        return 1;
+    }
+}
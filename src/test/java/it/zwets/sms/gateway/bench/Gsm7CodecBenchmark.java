@@ -0,0 +1,77 @@
+package it.zwets.sms.gateway.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.component.smpp.SmppUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.zwets.sms.codec.Gsm7Codec;
+import it.zwets.sms.codec.SmsDecoder;
+
+/**
+ * Compares the gateway's GSM 03.38 codec with the Camel SMPP path.
+ *
+ * Camel SMPP encodes the body with the configured charset and then checks
+ * the octets for GSM 03.38 compatibility, and decodes inbound bodies with
+ * the charset.  The codec checks and encodes in one pass into a reused
+ * buffer, and decodes through a reused buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Gsm7CodecBenchmark {
+
+    private static final String SAMPLE = "Dear customer, your appointment is on Monday 12/05 at 10:00 (room 4). "
+            + "Reply YES to confirm or call 0800-123-456. Cost: 5€ @ clinic {ref 7781}. ";
+
+    @Param({ "20", "160", "612" })
+    public int length;
+
+    private String text;
+    private byte[] septets;
+    private byte[] buffer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        text = SAMPLE.repeat(length / SAMPLE.length() + 1).substring(0, length);
+        buffer = new byte[2 * length];
+        septets = new byte[Gsm7Codec.encode(text, 0, length, buffer, 0)];
+        System.arraycopy(buffer, 0, septets, 0, septets.length);
+    }
+
+    @Benchmark
+    public boolean encodeCamel() {
+        byte[] octets = text.getBytes(StandardCharsets.ISO_8859_1);
+        return SmppUtils.isGsm0338Encodeable(octets);
+    }
+
+    @Benchmark
+    public int encodeCodec() {
+        return Gsm7Codec.encode(text, 0, length, buffer, 0);
+    }
+
+    @Benchmark
+    public String decodeCamel() throws Exception {
+        return SmppUtils.decodeBody(septets, (byte) 0, "ISO-8859-1");
+    }
+
+    @Benchmark
+    public String decodeCodec() {
+        return SmsDecoder.decode((byte) 0, septets, false);
+    }
+}
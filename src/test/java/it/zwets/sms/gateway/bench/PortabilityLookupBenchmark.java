@@ -0,0 +1,118 @@
+package it.zwets.sms.gateway.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.zwets.sms.gateway.comp.PortabilityTable;
+
+/**
+ * Measures lookups in the number portability table.
+ *
+ * The table is read from a generated dump of ported numbers in shuffled
+ * order, as the operators' dumps come.  Lookups go to a random sample of
+ * numbers that are in it, and of numbers in the same range that are not,
+ * so that the binary search misses the caches as it would in production.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PortabilityLookupBenchmark {
+
+    private static final long FIRST_NUMBER = 255_700_000_000L;
+    private static final int SAMPLES = 1 << 16;
+
+    @Param({ "1000000", "50000000" })
+    public int entries;
+
+    private PortabilityTable table;
+    private String[] ported;
+    private String[] notPorted;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        long start = System.nanoTime();
+        table = PortabilityTable.read(new BufferedReader(new DumpReader(entries), 1 << 16));
+        System.out.printf("%nLoaded %d numbers in %d ms%n", table.size(), (System.nanoTime() - start) / 1_000_000);
+
+        SplittableRandom random = new SplittableRandom(42);
+        ported = new String[SAMPLES];
+        notPorted = new String[SAMPLES];
+        for (int i = 0; i < SAMPLES; ++i) {
+            long n = random.nextLong(entries);
+            ported[i] = "+" + (FIRST_NUMBER + 2 * n);
+            notPorted[i] = "+" + (FIRST_NUMBER + 2 * n + 1);
+        }
+    }
+
+    @Benchmark
+    public String lookupPorted() {
+        return table.lookup(ported[next++ & (SAMPLES - 1)]);
+    }
+
+    @Benchmark
+    public String lookupNotPorted() {
+        return table.lookup(notPorted[next++ & (SAMPLES - 1)]);
+    }
+
+    // Generates a dump of every other number from FIRST_NUMBER, in an order
+    // shuffled by stepping through them with a stride coprime to the count
+
+    private static final class DumpReader extends Reader {
+
+        private static final long STRIDE = 48_271;
+
+        private final int count;
+        private final StringBuilder line = new StringBuilder(32);
+        private int index;
+        private int pos;
+
+        DumpReader(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public int read(char[] buf, int off, int len) {
+            int n = 0;
+            while (n < len) {
+                if (pos == line.length()) {
+                    if (index == count) {
+                        break;
+                    }
+                    long i = index++ * STRIDE % count;
+                    line.setLength(0);
+                    line.append('+').append(FIRST_NUMBER + 2 * i).append(',').append("net").append(i % 5).append('\n');
+                    pos = 0;
+                }
+                int chunk = Math.min(len - n, line.length() - pos);
+                line.getChars(pos, pos + chunk, buf, off + n);
+                pos += chunk;
+                n += chunk;
+            }
+            return n == 0 && len > 0 ? -1 : n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package it.zwets.sms.gateway.comp;
+
+import static it.zwets.sms.gateway.comp.CircuitBreaker.State.CLOSED;
+import static it.zwets.sms.gateway.comp.CircuitBreaker.State.HALF_OPEN;
+import static it.zwets.sms.gateway.comp.CircuitBreaker.State.OPEN;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class CircuitBreakerTest {
+
+    // Nano times, the circuit stays open for one second
+
+    private static final long MS = 1_000_000L;
+    private static final long OPEN_MILLIS = 1000;
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, OPEN_MILLIS, 2);
+        long now = 0;
+
+        fail(breaker, now);
+        fail(breaker, now);
+        succeed(breaker, now);
+
+        // A success resets the count, so it takes three more
+
+        fail(breaker, now);
+        fail(breaker, now);
+        assertEquals(CLOSED, breaker.getState());
+        fail(breaker, now);
+        assertEquals(OPEN, breaker.getState());
+        assertEquals(1, breaker.getOpenCount());
+
+        assertNull(breaker.tryAcquire(now + 999 * MS));
+        assertFalse(breaker.isCallable(now + 999 * MS));
+        assertFalse(breaker.isTrialDue(now + 999 * MS));
+    }
+
+    @Test
+    public void closesWhenTrialsSucceed() {
+        CircuitBreaker breaker = open();
+        long now = OPEN_MILLIS * MS;
+
+        assertTrue(breaker.isTrialDue(now));
+        assertEquals(HALF_OPEN, breaker.getState());
+
+        // Only as many trials as configured at once
+
+        CircuitBreaker.Permit first = breaker.tryAcquire(now);
+        CircuitBreaker.Permit second = breaker.tryAcquire(now);
+        assertEquals(HALF_OPEN, first.state());
+        assertEquals(HALF_OPEN, second.state());
+        assertNull(breaker.tryAcquire(now));
+        assertFalse(breaker.isTrialDue(now));
+
+        breaker.record(first, true, now);
+        assertEquals(HALF_OPEN, breaker.getState());
+        breaker.record(second, true, now);
+        assertEquals(CLOSED, breaker.getState());
+        assertEquals(CLOSED, breaker.tryAcquire(now).state());
+    }
+
+    @Test
+    public void reopensWhenTrialFails() {
+        CircuitBreaker breaker = open();
+        long now = OPEN_MILLIS * MS;
+
+        CircuitBreaker.Permit first = breaker.tryAcquire(now);
+        CircuitBreaker.Permit second = breaker.tryAcquire(now);
+        breaker.record(first, false, now);
+        assertEquals(OPEN, breaker.getState());
+        assertEquals(2, breaker.getOpenCount());
+
+        // The other trial's outcome belongs to the earlier half-open state
+
+        breaker.record(second, true, now);
+        assertEquals(OPEN, breaker.getState());
+
+        // Open for another full open time from the failed trial
+
+        assertNull(breaker.tryAcquire(now + 999 * MS));
+        assertEquals(HALF_OPEN, breaker.tryAcquire(now + OPEN_MILLIS * MS).state());
+    }
+
+    @Test
+    public void ignoresOutcomesOfCallsBeforeOpening() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, OPEN_MILLIS, 1);
+
+        // Calls in flight when the endpoint goes down open it only once
+
+        CircuitBreaker.Permit a = breaker.tryAcquire(0);
+        CircuitBreaker.Permit b = breaker.tryAcquire(0);
+        CircuitBreaker.Permit late = breaker.tryAcquire(0);
+        breaker.record(a, false, 0);
+        breaker.record(b, false, 10 * MS);
+        assertEquals(1, breaker.getOpenCount());
+
+        // And their successes do not close it
+
+        CircuitBreaker.Permit c = breaker.tryAcquire(OPEN_MILLIS * MS);
+        breaker.record(late, true, OPEN_MILLIS * MS);
+        assertEquals(HALF_OPEN, breaker.getState());
+        breaker.record(c, true, OPEN_MILLIS * MS);
+        assertEquals(CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void ignoresTrialsOfEarlierHalfOpen() {
+        CircuitBreaker breaker = open();
+        long now = OPEN_MILLIS * MS;
+
+        CircuitBreaker.Permit failed = breaker.tryAcquire(now);
+        CircuitBreaker.Permit stale = breaker.tryAcquire(now);
+        breaker.record(failed, false, now);
+
+        // Half-open again, the trial still in flight from before does not count
+
+        now += OPEN_MILLIS * MS;
+        CircuitBreaker.Permit first = breaker.tryAcquire(now);
+        breaker.record(stale, true, now);
+        breaker.record(first, true, now);
+        assertEquals(HALF_OPEN, breaker.getState());
+
+        breaker.record(breaker.tryAcquire(now), true, now);
+        assertEquals(CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void ignoresCallsOfEarlierClosed() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 2, OPEN_MILLIS, 1);
+
+        CircuitBreaker.Permit stale = breaker.tryAcquire(0);
+        fail(breaker, 0);
+        fail(breaker, 0);
+        succeed(breaker, OPEN_MILLIS * MS);
+        assertEquals(CLOSED, breaker.getState());
+
+        // A failure from before the circuit opened does not count towards the next
+
+        long now = OPEN_MILLIS * MS;
+        breaker.record(stale, false, now);
+        fail(breaker, now);
+        assertEquals(CLOSED, breaker.getState());
+        fail(breaker, now);
+        assertEquals(OPEN, breaker.getState());
+    }
+
+    @Test
+    public void rejectsInvalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new CircuitBreaker("test", 0, OPEN_MILLIS, 1));
+        assertThrows(IllegalArgumentException.class, () -> new CircuitBreaker("test", 1, OPEN_MILLIS, 0));
+    }
+
+    // Helpers
+
+    // A breaker with two trials that opened at time 0
+
+    private static CircuitBreaker open() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, OPEN_MILLIS, 2);
+        fail(breaker, 0);
+        assertEquals(OPEN, breaker.getState());
+        return breaker;
+    }
+
+    private static void fail(CircuitBreaker breaker, long now) {
+        breaker.record(breaker.tryAcquire(now), false, now);
+    }
+
+    private static void succeed(CircuitBreaker breaker, long now) {
+        breaker.record(breaker.tryAcquire(now), true, now);
+    }
+}
@@ -0,0 +1,57 @@
+package it.zwets.sms.gateway.comp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class ClientQuotasTest {
+
+    @Test
+    public void clientWithoutQuotaIsUnlimited() {
+        ClientQuotas quotas = new ClientQuotas(Map.of("a", 1), Map.of(), ClientQuotas.OnExhaustion.FAIL);
+
+        for (int i = 0; i < 100; ++i) {
+            assertTrue(quotas.tryCharge("b", 10));
+        }
+        assertEquals(0, quotas.nanosUntilAvailable("b", 1000, System.nanoTime()));
+    }
+
+    @Test
+    public void failsWhenPerSecondExhausted() {
+        ClientQuotas quotas = new ClientQuotas(Map.of("a", 5), Map.of(), ClientQuotas.OnExhaustion.FAIL);
+
+        assertTrue(quotas.tryCharge("a", 3));
+        assertTrue(quotas.tryCharge("a", 2));
+        assertFalse(quotas.tryCharge("a", 1));
+        assertTrue(quotas.getClientStats().contains("a: segments=5 rejected=1"));
+    }
+
+    @Test
+    public void perDayLimitsBeyondPerSecond() {
+        ClientQuotas quotas = new ClientQuotas(Map.of("a", 100), Map.of("a", 4), ClientQuotas.OnExhaustion.DELAY);
+        long now = System.nanoTime();
+
+        assertEquals(0, quotas.nanosUntilAvailable("a", 4, now));
+        quotas.charge("a", 4, now);
+
+        // A day's worth of 4 segments refills one in six hours
+        long wait = quotas.nanosUntilAvailable("a", 1, now);
+        assertEquals(6 * 3600 * 1_000_000_000L, wait, 1_000_000_000L);
+    }
+
+    @Test
+    public void refundRestoresQuota() {
+        ClientQuotas quotas = new ClientQuotas(Map.of("a", 2), Map.of("a", 10), ClientQuotas.OnExhaustion.FAIL);
+
+        assertTrue(quotas.tryCharge("a", 2));
+        assertFalse(quotas.tryCharge("a", 2));
+
+        quotas.refund("a", 2, System.nanoTime());
+        assertTrue(quotas.tryCharge("a", 2));
+        assertTrue(quotas.getClientStats().contains("a: segments=2 rejected=1 refunded=2"));
+    }
+}
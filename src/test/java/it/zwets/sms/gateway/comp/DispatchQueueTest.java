@@ -0,0 +1,221 @@
+package it.zwets.sms.gateway.comp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CLIENT_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CORREL_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_DEADLINE;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_ERROR_TEXT;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SEGMENTS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_EXPIRED;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_FAILED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.Test;
+
+public class DispatchQueueTest {
+
+    private static final CamelContext CONTEXT = new DefaultCamelContext();
+
+    @Test
+    public void earliestDeadlineFirstWithinClient() {
+        DispatchQueue queue = new DispatchQueue(10);
+        Instant now = Instant.now();
+
+        queue.offer(exchange("a", "late", now.plusSeconds(30), 1));
+        queue.offer(exchange("a", "none", null, 1));
+        queue.offer(exchange("a", "soon", now.plusSeconds(10), 1));
+        queue.offer(exchange("a", "soon-too", now.plusSeconds(10), 1));
+
+        assertEquals(List.of("soon", "soon-too", "late", "none"), drain(queue));
+    }
+
+    @Test
+    public void sharesByWeightAcrossClients() {
+        DispatchQueue queue = new DispatchQueue(100, 100, Map.of("bulk", 1, "prio", 2), Map.of(), Map.of(), null);
+
+        for (int i = 0; i < 30; ++i) {
+            queue.offer(exchange("bulk", "b" + i, null, 1));
+        }
+        for (int i = 0; i < 30; ++i) {
+            queue.offer(exchange("prio", "p" + i, null, 1));
+        }
+
+        // Although bulk queued first, prio gets two of every three slots
+        List<String> first = drain(queue).subList(0, 30);
+        long prio = first.stream().filter(id -> id.startsWith("p")).count();
+        assertTrue(prio >= 19 && prio <= 21, "prio got %d of 30".formatted(prio));
+    }
+
+    @Test
+    public void sharesBySegments() {
+        DispatchQueue queue = new DispatchQueue(100);
+
+        for (int i = 0; i < 10; ++i) {
+            queue.offer(exchange("long", "l" + i, null, 4));
+            queue.offer(exchange("short", "s" + i, null, 1));
+        }
+
+        // Four single segment messages go for every four segment one
+        List<String> first = drain(queue).subList(0, 10);
+        assertEquals(2, first.stream().filter(id -> id.startsWith("l")).count());
+    }
+
+    @Test
+    public void holdsClientAtMaxInFlight() {
+        DispatchQueue queue = new DispatchQueue(10, 10, Map.of(), Map.of("a", 1), Map.of(), null);
+
+        queue.offer(exchange("a", "a1", null, 1));
+        queue.offer(exchange("a", "a2", null, 1));
+        queue.offer(exchange("b", "b1", null, 1));
+
+        Exchange a1 = queue.poll();
+        assertEquals("a1", correlId(a1));
+        assertEquals("b1", correlId(queue.poll()));
+        assertNull(queue.poll());
+
+        complete(a1);
+        assertEquals("a2", correlId(queue.poll()));
+    }
+
+    @Test
+    public void admitsUpToShare() {
+        DispatchQueue queue = new DispatchQueue(10, 2, Map.of(), Map.of(), Map.of("big", 5), null);
+
+        for (int i = 0; i < 3; ++i) {
+            Exchange e = exchange("campaign", "c" + i, null, 1);
+            queue.admit(e);
+            if (e.getIn().getHeader(HEADER_SMS_STATUS) == null) {
+                queue.offer(e);
+            }
+        }
+        assertEquals(2, queue.size());
+
+        Exchange rejected = exchange("campaign", "c3", null, 1);
+        queue.admit(rejected);
+        assertEquals(SMS_STATUS_FAILED, rejected.getIn().getHeader(HEADER_SMS_STATUS));
+        assertEquals(DispatchQueue.ERROR_SHARE_FULL, rejected.getIn().getHeader(HEADER_ERROR_TEXT));
+
+        // Other clients still get in, up to their own share
+
+        Exchange other = exchange("other", "o0", null, 1);
+        queue.admit(other);
+        assertNull(other.getIn().getHeader(HEADER_SMS_STATUS));
+
+        for (int i = 0; i < 5; ++i) {
+            Exchange e = exchange("big", "g" + i, null, 1);
+            queue.admit(e);
+            assertNull(e.getIn().getHeader(HEADER_SMS_STATUS));
+            queue.offer(e);
+        }
+        Exchange big = exchange("big", "g5", null, 1);
+        queue.admit(big);
+        assertEquals(SMS_STATUS_FAILED, big.getIn().getHeader(HEADER_SMS_STATUS));
+
+        // Room in the share comes back as the queue drains
+
+        queue.poll();
+        queue.poll();
+        Exchange again = exchange("campaign", "c4", null, 1);
+        queue.admit(again);
+        assertNull(again.getIn().getHeader(HEADER_SMS_STATUS));
+    }
+
+    @Test
+    public void delaysClientOverQuota() {
+        ClientQuotas quotas = new ClientQuotas(Map.of("a", 2), Map.of(), ClientQuotas.OnExhaustion.DELAY);
+        DispatchQueue queue = new DispatchQueue(10, 3, Map.of(), Map.of(), Map.of(), quotas);
+        Instant later = Instant.now().plusSeconds(60);
+
+        for (int i = 0; i < 4; ++i) {
+            Exchange e = exchange("a", "a" + i, later, 1);
+            queue.admit(e);
+            if (e.getIn().getHeader(HEADER_SMS_STATUS) == null) {
+                queue.offer(e);
+            }
+        }
+        queue.offer(exchange("b", "b0", later, 1));
+
+        // Client a gets its two segments per second, then is held back,
+        // and its held back requests are capped at its share
+
+        assertEquals(List.of("a0", "b0", "a1"), drain(queue));
+        assertEquals(1, queue.size());
+        assertTrue(queue.getClientStats().contains("a: weight=1 queued=1/3 inFlight=0 dispatched=2 rejected=1"));
+    }
+
+    @Test
+    public void dispatchesExpiredOverQuotaAndRefunds() {
+        ClientQuotas quotas = new ClientQuotas(Map.of("a", 1), Map.of(), ClientQuotas.OnExhaustion.DELAY);
+        DispatchQueue queue = new DispatchQueue(10, 10, Map.of(), Map.of(), Map.of(), quotas);
+        DispatchProcessor processor = new DispatchProcessor(quotas);
+
+        queue.offer(exchange("a", "live", Instant.now().plusSeconds(60), 1));
+        queue.offer(exchange("a", "expired", Instant.now().minusSeconds(1), 1));
+
+        // The expired one goes first (EDF) and is answered EXPIRED
+
+        Exchange expired = queue.poll();
+        assertEquals("expired", correlId(expired));
+        processor.process(expired);
+        assertEquals(SMS_STATUS_EXPIRED, expired.getIn().getHeader(HEADER_SMS_STATUS));
+        complete(expired);
+
+        // It was refunded, so the live one gets the quota
+
+        Exchange live = queue.poll();
+        assertEquals("live", correlId(live));
+        processor.process(live);
+        assertNull(live.getIn().getHeader(HEADER_SMS_STATUS));
+
+        // While an expired one goes although the quota is used up
+
+        queue.offer(exchange("a", "expired-too", Instant.now().minusSeconds(1), 1));
+        queue.offer(exchange("a", "waits", Instant.now().plusSeconds(60), 1));
+        assertEquals("expired-too", correlId(queue.poll()));
+        assertNull(queue.poll());
+    }
+
+    // Helpers
+
+    static Exchange exchange(String clientId, String correlId, Instant deadline, int segments) {
+        Exchange exchange = new DefaultExchange(CONTEXT);
+        exchange.getIn().setHeader(HEADER_CLIENT_ID, clientId);
+        exchange.getIn().setHeader(HEADER_CORREL_ID, correlId);
+        exchange.getIn().setHeader(HEADER_DEADLINE, deadline);
+        exchange.getIn().setHeader(HEADER_SEGMENTS, segments);
+        return exchange;
+    }
+
+    static String correlId(Exchange exchange) {
+        return exchange == null ? null : exchange.getIn().getHeader(HEADER_CORREL_ID, String.class);
+    }
+
+    // Runs the on-completions the queue added to the exchange, as its unit of work would
+
+    static void complete(Exchange exchange) {
+        exchange.getExchangeExtension().handoverCompletions().forEach(s -> s.onComplete(exchange));
+    }
+
+    // Takes everything off the queue, completing each exchange as it goes
+
+    static List<String> drain(DispatchQueue queue) {
+        List<String> ids = new ArrayList<>();
+        Exchange exchange;
+        while ((exchange = queue.poll()) != null) {
+            ids.add(correlId(exchange));
+            complete(exchange);
+        }
+        return ids;
+    }
+}
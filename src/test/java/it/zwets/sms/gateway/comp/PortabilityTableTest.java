@@ -0,0 +1,118 @@
+package it.zwets.sms.gateway.comp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class PortabilityTableTest {
+
+    // Ported numbers are every third from this one, so there are misses in between
+
+    private static final long FIRST = 255754000000L;
+
+    @Test
+    public void findsEveryNumberAcrossBlocks() throws IOException {
+
+        // Sizes around the 64 entry blocks of the sparse index
+
+        for (int size : List.of(1, 63, 64, 65, 127, 128, 129, 1000)) {
+            PortabilityTable table = PortabilityTable.read(dump(size));
+            assertEquals(size, table.size());
+
+            for (int i = 0; i < size; ++i) {
+                long number = FIRST + 3 * i;
+                assertEquals(network(i), table.lookup("+" + number), "size %d entry %d".formatted(size, i));
+                assertNull(table.lookup("+" + (number + 1)), "size %d after entry %d".formatted(size, i));
+                assertNull(table.lookup("+" + (number - 1)), "size %d before entry %d".formatted(size, i));
+            }
+            assertNull(table.lookup("+" + (FIRST - 3)));
+            assertNull(table.lookup("+" + (FIRST + 3L * size)));
+            assertNull(table.lookup("+1"));
+            assertNull(table.lookup("+999999999999999"));
+        }
+    }
+
+    @Test
+    public void findsNumbersListedOutOfOrder() throws IOException {
+        PortabilityTable table = PortabilityTable.read(reader("""
+                +255754000300, airtel
+                255754000003;tigo
+                # a comment
+                   +255754000100 halotel
+
+                255754000200\tvoda
+                """));
+
+        assertEquals(4, table.size());
+        assertEquals("tigo", table.lookup("+255754000003"));
+        assertEquals("halotel", table.lookup("255754000100"));
+        assertEquals("voda", table.lookup("+255754000200"));
+        assertEquals("airtel", table.lookup("+255754000300"));
+        assertEquals(List.of("airtel", "tigo", "halotel", "voda"), table.getNetworks());
+    }
+
+    @Test
+    public void keepsLastLineOfDuplicates() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; ++i) {
+            sb.append(FIRST + i).append(",tigo\n");
+        }
+        sb.append(FIRST + 64).append(",voda\n");   // first of a block
+        sb.append(FIRST + 150).append(",airtel\n");
+        sb.append(FIRST + 150).append(",tigo\n");  // back to an earlier network
+        sb.append(FIRST + 199).append(",voda\n");  // the last number
+
+        PortabilityTable table = PortabilityTable.read(reader(sb.toString()));
+
+        assertEquals(200, table.size());
+        assertEquals("voda", table.lookup("+" + (FIRST + 64)));
+        assertEquals("tigo", table.lookup("+" + (FIRST + 150)));
+        assertEquals("voda", table.lookup("+" + (FIRST + 199)));
+        for (int i = 0; i < 200; ++i) {
+            if (i != 64 && i != 199) {
+                assertEquals("tigo", table.lookup("+" + (FIRST + i)));
+            }
+        }
+    }
+
+    @Test
+    public void rejectsNonNumbers() throws IOException {
+        PortabilityTable table = PortabilityTable.read(dump(10));
+
+        assertNull(table.lookup(""));
+        assertNull(table.lookup("+"));
+        assertNull(table.lookup("+0255754000000"));
+        assertNull(table.lookup("+25575400000x"));
+        assertNull(table.lookup("+1234567890123456"));
+        assertNull(PortabilityTable.EMPTY.lookup("+" + FIRST));
+
+        assertThrows(IllegalArgumentException.class, () -> PortabilityTable.read(reader("+255754000001\n")));
+        assertThrows(IllegalArgumentException.class, () -> PortabilityTable.read(reader("+25575400000x,tigo\n")));
+        assertThrows(IllegalArgumentException.class, () -> PortabilityTable.read(reader("0754000001,tigo\n")));
+    }
+
+    // Helpers
+
+    private static String network(int i) {
+        return "net" + i % 5;
+    }
+
+    private static BufferedReader dump(int size) {
+        StringBuilder sb = new StringBuilder("# number, network\n");
+        for (int i = size - 1; i >= 0; --i) {
+            sb.append('+').append(FIRST + 3 * i).append(", ").append(network(i)).append('\n');
+        }
+        return reader(sb.toString());
+    }
+
+    private static BufferedReader reader(String text) {
+        return new BufferedReader(new StringReader(text));
+    }
+}
@@ -0,0 +1,164 @@
+package it.zwets.sms.gateway.comp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_RECALL_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_RECIPIENT;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_DELIVERED;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_SENT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.List;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ExchangePropertyKey;
+import org.apache.camel.component.smpp.SmppConstants;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.Test;
+
+public class ReceiptDeduplicatorTest {
+
+    private static final CamelContext CONTEXT = new DefaultCamelContext();
+
+    @Test
+    public void suppressesRepeatOnceResponded() {
+        ReceiptDeduplicator dedup = new ReceiptDeduplicator(Duration.ofMinutes(15), 100);
+
+        Exchange first = report("1", SMS_STATUS_DELIVERED);
+        assertTrue(passes(dedup, first));
+
+        // Not yet remembered while its response is being written
+
+        assertTrue(passes(dedup, report("1", SMS_STATUS_DELIVERED)));
+
+        respond(dedup, List.of(first), false);
+        assertFalse(passes(dedup, report("1", SMS_STATUS_DELIVERED)));
+        assertTrue(passes(dedup, report("1", SMS_STATUS_SENT)));
+        assertTrue(passes(dedup, report("2", SMS_STATUS_DELIVERED)));
+        assertEquals(1, dedup.getSuppressedCount());
+    }
+
+    @Test
+    public void passesRepeatWhenResponseLost() {
+        ReceiptDeduplicator dedup = new ReceiptDeduplicator(Duration.ofMinutes(15), 100);
+
+        Exchange first = report("1", SMS_STATUS_DELIVERED);
+        assertTrue(passes(dedup, first));
+        respond(dedup, List.of(first), true);
+
+        assertTrue(passes(dedup, report("1", SMS_STATUS_DELIVERED)));
+    }
+
+    @Test
+    public void remembersSentOfSubmit() {
+        ReceiptDeduplicator dedup = new ReceiptDeduplicator(Duration.ofMinutes(15), 100);
+
+        Exchange submit = report("1", SMS_STATUS_SENT);
+        dedup.record(submit);
+        DispatchQueueTest.complete(submit);
+
+        assertFalse(passes(dedup, report("1", SMS_STATUS_SENT)));
+    }
+
+    @Test
+    public void tellsRecipientsOfMultiSubmitApart() {
+        ReceiptDeduplicator dedup = new ReceiptDeduplicator(Duration.ofMinutes(15), 100);
+
+        // The receipts for both recipients carry the one message ID
+
+        Exchange first = receipt("1", "255711111111", SMS_STATUS_DELIVERED);
+        Exchange second = receipt("1", "255722222222", SMS_STATUS_DELIVERED);
+        assertTrue(passes(dedup, first));
+        assertTrue(passes(dedup, second));
+        respond(dedup, List.of(first, second), false);
+
+        assertFalse(passes(dedup, receipt("1", "255711111111", SMS_STATUS_DELIVERED)));
+        assertFalse(passes(dedup, receipt("1", "255722222222", SMS_STATUS_DELIVERED)));
+        assertEquals(2, dedup.getSuppressedCount());
+    }
+
+    @Test
+    public void remembersSentOfMultiSubmitPerRecipient() {
+        ReceiptDeduplicator dedup = new ReceiptDeduplicator(Duration.ofMinutes(15), 100);
+
+        // The recall-id of a submit_multi response is qualified with its recipient
+
+        Exchange submit = submitted("1/255711111111", "255711111111");
+        dedup.record(submit);
+        DispatchQueueTest.complete(submit);
+
+        assertFalse(passes(dedup, receipt("1", "255711111111", SMS_STATUS_SENT)));
+        assertTrue(passes(dedup, receipt("1", "255722222222", SMS_STATUS_SENT)));
+    }
+
+    @Test
+    public void remembersSentOfSingleSubmitForRecipient() {
+        ReceiptDeduplicator dedup = new ReceiptDeduplicator(Duration.ofMinutes(15), 100);
+
+        Exchange submit = submitted("1", "255711111111");
+        dedup.record(submit);
+        DispatchQueueTest.complete(submit);
+
+        assertFalse(passes(dedup, receipt("1", "255711111111", SMS_STATUS_SENT)));
+    }
+
+    @Test
+    public void staysWithinMaxEntries() {
+        ReceiptDeduplicator dedup = new ReceiptDeduplicator(Duration.ofMinutes(15), 10);
+
+        for (int i = 0; i < 100; ++i) {
+            Exchange e = report(String.valueOf(i), SMS_STATUS_DELIVERED);
+            passes(dedup, e);
+            respond(dedup, List.of(e), false);
+            assertTrue(dedup.getRememberedCount() <= 10);
+        }
+        assertTrue(dedup.getEarlyRotationCount() > 0);
+
+        // The latest are still remembered, the oldest are gone
+
+        assertFalse(passes(dedup, report("99", SMS_STATUS_DELIVERED)));
+        assertTrue(passes(dedup, report("0", SMS_STATUS_DELIVERED)));
+    }
+
+    // Helpers
+
+    private static Exchange report(String recallId, String status) {
+        Exchange exchange = new DefaultExchange(CONTEXT);
+        exchange.getIn().setHeader(HEADER_RECALL_ID, recallId);
+        exchange.getIn().setHeader(HEADER_SMS_STATUS, status);
+        return exchange;
+    }
+
+    private static Exchange receipt(String recallId, String recipient, String status) {
+        Exchange exchange = report(recallId, status);
+        exchange.getIn().setHeader(HEADER_RECIPIENT, recipient);
+        return exchange;
+    }
+
+    private static Exchange submitted(String recallId, String destAddr) {
+        Exchange exchange = report(recallId, SMS_STATUS_SENT);
+        exchange.getIn().setHeader(SmppConstants.DEST_ADDR, destAddr);
+        return exchange;
+    }
+
+    private static boolean passes(ReceiptDeduplicator dedup, Exchange exchange) {
+        dedup.process(exchange);
+        return !exchange.isRouteStop();
+    }
+
+    // Responds to the reports in a batch, as the batch response route would
+
+    private static void respond(ReceiptDeduplicator dedup, List<Exchange> reports, boolean lost) {
+        Exchange batch = new DefaultExchange(CONTEXT);
+        batch.getIn().setBody(reports);
+        dedup.recordBatch(batch);
+        if (lost) {
+            batch.setProperty(ExchangePropertyKey.EXCEPTION_CAUGHT, new IllegalStateException("Kafka is down"));
+        }
+        DispatchQueueTest.complete(batch);
+    }
+}
@@ -0,0 +1,125 @@
+package it.zwets.sms.gateway.comp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_BACKEND;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_ERROR_TEXT;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMSC;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_HEADER_SENDER;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_HEADER_TO;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_INVALID;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import it.zwets.sms.gateway.dto.SmsMessage;
+
+public class RecipientRouterTest {
+
+    private static final String TABLE = """
+            route.tz.prefixes = +255
+            route.tz.backend = WASP
+            route.tz.recipient = \\\\+255\\\\d{9}
+            route.voda.prefixes = +25574, +25575
+            route.voda.backend = SMPP
+            route.voda.smsc = voda
+            route.voda.networks = voda
+            route.voda.sender = [A-Za-z]{3,11}
+            """;
+
+    private static final String DUMP = """
+            # number, network
+            +255712000001, voda
+            255754000001 tigo
+            """;
+
+    @TempDir
+    private Path dir;
+
+    @Test
+    public void routesByLongestPrefix() throws IOException {
+        RecipientRouter router = router(TABLE, "");
+
+        Exchange voda = route(router, "+255751234567", "Gateway");
+        assertEquals("SMPP", voda.getIn().getHeader(HEADER_BACKEND));
+        assertEquals("voda", voda.getIn().getHeader(HEADER_SMSC));
+
+        Exchange tz = route(router, "+255651234567", "Gateway");
+        assertEquals("WASP", tz.getIn().getHeader(HEADER_BACKEND));
+        assertNull(tz.getIn().getHeader(HEADER_SMSC));
+        assertNull(tz.getIn().getHeader(HEADER_SMS_STATUS));
+    }
+
+    @Test
+    public void routesPortedNumberByNetwork() throws IOException {
+        RecipientRouter router = router(TABLE, DUMP);
+
+        // Ported in to voda from another prefix
+
+        Exchange in = route(router, "+255712000001", "Gateway");
+        assertEquals("SMPP", in.getIn().getHeader(HEADER_BACKEND));
+        assertEquals("voda", in.getIn().getHeader(HEADER_SMSC));
+
+        // Ported out to a network without a route, so by its prefix
+
+        Exchange out = route(router, "+255754000001", "Gateway");
+        assertEquals("SMPP", out.getIn().getHeader(HEADER_BACKEND));
+        assertEquals(1, router.getPortedCount());
+    }
+
+    @Test
+    public void rejectsWhatRouteDoesNotAllow() throws IOException {
+        RecipientRouter router = router(TABLE, "");
+
+        assertInvalid(route(router, "+254712345678", "Gateway"), "no route");
+        assertInvalid(route(router, "+2556512345678", "Gateway"), "invalid");
+        assertInvalid(route(router, "+255751234567", "07 Sender"), "not allowed");
+        assertEquals(3, router.getUnroutableCount());
+    }
+
+    @Test
+    public void routesAllTanzanianNumbersWithoutTable() throws IOException {
+        RecipientRouter router = new RecipientRouter("", "", "SMPP");
+
+        assertEquals("SMPP", route(router, "+255751234567", "Gateway").getIn().getHeader(HEADER_BACKEND));
+        assertInvalid(route(router, "+254712345678", "Gateway"), "no route");
+    }
+
+    // Helpers
+
+    private RecipientRouter router(String table, String dump) throws IOException {
+        Path tableFile = Files.writeString(dir.resolve("routing.properties"), table);
+        String dumpLocation = "";
+        if (!dump.isEmpty()) {
+            dumpLocation = Files.writeString(dir.resolve("portability.txt"), dump).toString();
+        }
+        return new RecipientRouter(tableFile.toString(), dumpLocation, "SMPP");
+    }
+
+    private static Exchange route(RecipientRouter router, String recipient, String sender) {
+        SmsMessage sms = new SmsMessage("Hello");
+        sms.setHeader(SMS_HEADER_TO, recipient);
+        sms.setHeader(SMS_HEADER_SENDER, sender);
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getIn().setBody(sms);
+        router.process(exchange);
+        return exchange;
+    }
+
+    private static void assertInvalid(Exchange exchange, String reason) {
+        assertEquals(SMS_STATUS_INVALID, exchange.getIn().getHeader(HEADER_SMS_STATUS));
+        String error = exchange.getIn().getHeader(HEADER_ERROR_TEXT, String.class);
+        assertNotNull(error);
+        assertTrue(error.contains(reason), error);
+    }
+}
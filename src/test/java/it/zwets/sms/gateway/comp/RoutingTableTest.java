@@ -0,0 +1,97 @@
+package it.zwets.sms.gateway.comp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Properties;
+
+import org.junit.jupiter.api.Test;
+
+public class RoutingTableTest {
+
+    private static final String TABLE = """
+            route.all.prefixes = +
+            route.all.backend = WASP
+            route.tz.prefixes = +255
+            route.tz.backend = SMPP
+            route.voda.prefixes = +25574, +25575, +25576
+            route.voda.backend = SMPP
+            route.voda.smsc = voda
+            route.voda.networks = voda
+            route.voda1.prefixes = +255741
+            route.voda1.backend = wasp
+            route.tigo.prefixes = +25571, +25565
+            route.tigo.backend = SMPP
+            route.tigo.networks = tigo, 64002
+            """;
+
+    @Test
+    public void takesLongestPrefix() throws IOException {
+        RoutingTable table = RoutingTable.parse(props(TABLE));
+
+        assertEquals("voda1", table.lookup("+255741234567").name());
+        assertEquals("voda", table.lookup("+255742234567").name());
+        assertEquals("voda", table.lookup("+255751234567").name());
+        assertEquals("tigo", table.lookup("+255651234567").name());
+        assertEquals("tz", table.lookup("+255621234567").name());
+        assertEquals("tz", table.lookup("+255").name());
+        assertEquals("all", table.lookup("+254712345678").name());
+        assertEquals("all", table.lookup("+2").name());
+    }
+
+    @Test
+    public void ignoresLeadingPlusAndStopsAtNonDigit() throws IOException {
+        RoutingTable table = RoutingTable.parse(props(TABLE));
+
+        assertEquals("voda1", table.lookup("255741234567").name());
+        assertEquals("tz", table.lookup("+2557x1234567").name());
+        assertEquals("all", table.lookup("").name());
+    }
+
+    @Test
+    public void returnsNullWithoutCatchAll() {
+        RoutingTable table = RoutingTable.single("SMPP");
+
+        assertEquals("default", table.lookup("+255712345678").name());
+        assertEquals("SMPP", table.lookup("+255712345678").backend());
+        assertNull(table.lookup("+254712345678"));
+        assertNull(table.lookup("+25"));
+    }
+
+    @Test
+    public void parsesRouteSettings() throws IOException {
+        RoutingTable table = RoutingTable.parse(props(TABLE));
+
+        RoutingTable.Route voda = table.lookup("+255751234567");
+        assertEquals("SMPP", voda.backend());
+        assertEquals("voda", voda.smsc());
+        assertEquals(RoutingTable.DEFAULT_RECIPIENT, voda.recipient().pattern());
+        assertEquals("WASP", table.lookup("+255741234567").backend());
+        assertNull(table.lookup("+255741234567").smsc());
+
+        assertEquals("tigo", table.lookupNetwork("64002").name());
+        assertEquals("voda", table.lookupNetwork("voda").name());
+        assertNull(table.lookupNetwork("airtel"));
+    }
+
+    @Test
+    public void rejectsInvalidTables() {
+        assertThrows(IllegalArgumentException.class, () -> RoutingTable.parse(props("route.a.prefixes = +255\nroute.a.backend = FAX")));
+        assertThrows(IllegalArgumentException.class, () -> RoutingTable.parse(props("route.a.backend = SMPP")));
+        assertThrows(IllegalArgumentException.class, () -> RoutingTable.parse(props("route.a.prefixes = +25x\nroute.a.backend = SMPP")));
+        assertThrows(IllegalArgumentException.class, () -> RoutingTable.parse(props("route.a.prefixes = +255\nroute.a.backend = SMPP\nroute.a.colour = red")));
+        assertThrows(IllegalArgumentException.class, () -> RoutingTable.parse(props(
+                "route.a.prefixes = +255\nroute.a.backend = SMPP\nroute.b.prefixes = 255\nroute.b.backend = WASP")));
+        assertThrows(IllegalArgumentException.class, () -> RoutingTable.parse(props(
+                "route.a.prefixes = +1\nroute.a.backend = SMPP\nroute.a.networks = x\nroute.b.prefixes = +2\nroute.b.backend = WASP\nroute.b.networks = x")));
+    }
+
+    private static Properties props(String text) throws IOException {
+        Properties props = new Properties();
+        props.load(new StringReader(text));
+        return props;
+    }
+}
@@ -0,0 +1,58 @@
+package it.zwets.sms.gateway.comp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_DEADLINE;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_HEADER_SENDER;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_HEADER_TO;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_EXPIRED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.component.smpp.SmppConstants;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.Test;
+
+import it.zwets.sms.gateway.dto.SmsMessage;
+
+public class SmppRequestProducerTest {
+
+    private final SmppRequestProducer producer = new SmppRequestProducer(Duration.ofHours(48));
+
+    @Test
+    public void stripsPlusOnlyWhenPresent() throws Exception {
+        assertEquals("255712345678", produce("+255712345678", Instant.now().plusSeconds(60)).getIn().getHeader(SmppConstants.DEST_ADDR));
+        assertEquals("255712345678", produce("255712345678", Instant.now().plusSeconds(60)).getIn().getHeader(SmppConstants.DEST_ADDR));
+    }
+
+    @Test
+    public void setsValidityToDeadline() throws Exception {
+        Exchange exchange = produce("+255712345678", Instant.now().plusSeconds(3 * 3600 + 90));
+        assertNull(exchange.getIn().getHeader(HEADER_SMS_STATUS));
+        assertTrue(exchange.getIn().getHeader(SmppConstants.VALIDITY_PERIOD, String.class).startsWith("0000000301"));
+
+        Exchange capped = produce("+255712345678", null);
+        assertEquals("000002000000000R", capped.getIn().getHeader(SmppConstants.VALIDITY_PERIOD));
+    }
+
+    @Test
+    public void expiresPastDeadline() throws Exception {
+        assertEquals(SMS_STATUS_EXPIRED, produce("+255712345678", Instant.now().minusSeconds(1)).getIn().getHeader(HEADER_SMS_STATUS));
+    }
+
+    private Exchange produce(String recipient, Instant deadline) throws Exception {
+        SmsMessage sms = new SmsMessage("Hello");
+        sms.setHeader(SMS_HEADER_TO, recipient);
+        sms.setHeader(SMS_HEADER_SENDER, "Gateway");
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getIn().setHeader(HEADER_DEADLINE, deadline);
+        exchange.getIn().setBody(sms);
+        producer.process(exchange);
+        return exchange;
+    }
+}
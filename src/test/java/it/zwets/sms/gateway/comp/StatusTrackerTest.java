@@ -0,0 +1,78 @@
+package it.zwets.sms.gateway.comp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_DELIVERED;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_EXPIRED;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_FAILED;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_SENT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+
+import org.apache.camel.Exchange;
+import org.junit.jupiter.api.Test;
+
+import it.zwets.sms.gateway.SmsGatewayConfiguration;
+
+public class StatusTrackerTest {
+
+    private final StatusTracker tracker = new StatusTracker(
+            SmsGatewayConfiguration.parseClientValues(StatusTracker.DEFAULT_RANKS), Duration.ofHours(1), 100);
+
+    @Test
+    public void passesOnlyAdvancingStatuses() {
+        assertTrue(passes("a", SMS_STATUS_SENT));
+        assertFalse(passes("a", SMS_STATUS_SENT));
+        assertTrue(passes("a", SMS_STATUS_DELIVERED));
+        assertFalse(passes("a", SMS_STATUS_SENT));
+        assertFalse(passes("a", SMS_STATUS_FAILED));
+        assertTrue(passes("b", SMS_STATUS_SENT));
+    }
+
+    @Test
+    public void reportsRetryAfterFailure() {
+        assertTrue(passes("a", SMS_STATUS_FAILED));
+
+        // A late SENT of the same request is suppressed
+
+        assertFalse(passes("a", SMS_STATUS_SENT));
+
+        // A retry with the same correl-id starts afresh
+
+        tracker.admit(request("a"));
+        assertTrue(passes("a", SMS_STATUS_SENT));
+        assertTrue(passes("a", SMS_STATUS_EXPIRED));
+
+        tracker.admit(request("a"));
+        assertTrue(passes("a", SMS_STATUS_SENT));
+        assertTrue(passes("a", SMS_STATUS_DELIVERED));
+        assertEquals(2, tracker.getRetriedCount());
+    }
+
+    @Test
+    public void keepsStatusOfRequestConsumedAgain() {
+        assertTrue(passes("a", SMS_STATUS_SENT));
+        tracker.admit(request("a"));
+        assertFalse(passes("a", SMS_STATUS_SENT));
+
+        assertTrue(passes("b", SMS_STATUS_DELIVERED));
+        tracker.admit(request("b"));
+        assertFalse(passes("b", SMS_STATUS_SENT));
+        assertEquals(0, tracker.getRetriedCount());
+    }
+
+    // Helpers
+
+    private static Exchange request(String correlId) {
+        return DispatchQueueTest.exchange("client", correlId, null, 1);
+    }
+
+    private boolean passes(String correlId, String status) {
+        Exchange exchange = request(correlId);
+        exchange.getIn().setHeader(HEADER_SMS_STATUS, status);
+        tracker.process(exchange);
+        return !exchange.isRouteStop();
+    }
+}
@@ -0,0 +1,68 @@
+package it.zwets.sms.gateway.comp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class TokenBucketTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void startsFullAndRefillsAtRate() {
+        TokenBucket bucket = new TokenBucket(10, 10);
+        long now = System.nanoTime();
+
+        assertTrue(bucket.tryTake(10, now));
+        assertFalse(bucket.tryTake(1, now));
+        assertEquals(SECOND / 10, bucket.nanosUntilAvailable(1, now), 1);
+
+        assertFalse(bucket.tryTake(5, now + SECOND / 4));
+        assertTrue(bucket.tryTake(5, now + SECOND / 2));
+    }
+
+    @Test
+    public void letsOversizedRequestThroughWhenFull() {
+        TokenBucket bucket = new TokenBucket(1, 3);
+        long now = System.nanoTime();
+
+        assertTrue(bucket.tryTake(5, now));
+        assertEquals(3 * SECOND, bucket.nanosUntilAvailable(1, now), 1);
+        assertFalse(bucket.tryTake(1, now + SECOND));
+        assertTrue(bucket.tryTake(1, now + 3 * SECOND));
+    }
+
+    @Test
+    public void reserveSpacesCallers() {
+        TokenBucket bucket = new TokenBucket(2, 2);
+        long now = System.nanoTime();
+
+        assertEquals(0, bucket.reserve(2, now));
+        assertEquals(SECOND / 2, bucket.reserve(1, now), 1);
+        assertEquals(SECOND, bucket.reserve(1, now), 1);
+    }
+
+    @Test
+    public void giveRestoresUpToCapacity() {
+        TokenBucket bucket = new TokenBucket(1, 4);
+        long now = System.nanoTime();
+
+        bucket.take(3, now);
+        assertFalse(bucket.tryTake(2, now));
+        bucket.give(3, now);
+        assertTrue(bucket.tryTake(4, now));
+
+        bucket.give(10, now);
+        assertTrue(bucket.tryTake(4, now));
+        assertFalse(bucket.tryTake(1, now));
+    }
+
+    @Test
+    public void rejectsNonPositiveRate() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(1, 0));
+    }
+}
@@ -0,0 +1,194 @@
+package it.zwets.sms.gateway.comp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ConnectException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.http.base.HttpOperationFailedException;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.AsyncProcessorSupport;
+import org.apache.camel.support.DefaultExchange;
+import org.apache.camel.support.service.ServiceHelper;
+import org.junit.jupiter.api.Test;
+
+public class WaspLoadBalancerTest {
+
+    private static final CamelContext CONTEXT = new DefaultCamelContext();
+
+    private static final List<Class<?>> FAILOVER = List.of(ConnectException.class);
+
+    @Test
+    public void prefersFasterEndpoint() throws Exception {
+        AtomicInteger fast = new AtomicInteger();
+        AtomicInteger slow = new AtomicInteger();
+        WaspLoadBalancer balancer = balancer(List.of("fast", "slow"), 3, 10000,
+                endpoint(fast, () -> null),
+                endpoint(slow, () -> { sleep(30); return null; }));
+
+        // Both get samples, and the first (cold) ones of the fast endpoint fade
+
+        for (int i = 0; i < 30; ++i) {
+            assertNull(send(balancer).getException());
+        }
+        fast.set(0);
+        slow.set(0);
+
+        for (int i = 0; i < 50; ++i) {
+            assertNull(send(balancer).getException());
+        }
+        assertEquals(0, slow.get());
+        assertEquals(50, fast.get());
+    }
+
+    @Test
+    public void failsOverWhenConnectFails() throws Exception {
+        AtomicInteger down = new AtomicInteger();
+        AtomicInteger up = new AtomicInteger();
+        WaspLoadBalancer balancer = balancer(List.of("down", "up"), 100, 10000,
+                endpoint(down, () -> new ConnectException("Connection refused")),
+                endpoint(up, () -> null));
+
+        for (int i = 0; i < 10; ++i) {
+            assertNull(send(balancer).getException());
+        }
+
+        assertEquals(10, up.get());
+        assertEquals(down.get(), balancer.getFailoverCount());
+    }
+
+    @Test
+    public void doesNotFailOverWhenSent() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        WaspLoadBalancer balancer = balancer(List.of("a", "b"), 100, 10000,
+                endpoint(calls, () -> new IllegalStateException("Read timed out")),
+                endpoint(calls, () -> new IllegalStateException("Read timed out")));
+
+        // The request may have gone out, so it must not go out again
+
+        assertInstanceOf(IllegalStateException.class, send(balancer).getException());
+        assertEquals(1, calls.get());
+        assertEquals(0, balancer.getFailoverCount());
+    }
+
+    @Test
+    public void leavesOutEndpointWithOpenCircuit() throws Exception {
+        AtomicInteger down = new AtomicInteger();
+        AtomicInteger up = new AtomicInteger();
+        WaspLoadBalancer balancer = balancer(List.of("down", "up"), 1, 60000,
+                endpoint(down, () -> new ConnectException("Connection refused")),
+                endpoint(up, () -> null));
+
+        // Until it is picked, the down endpoint is as good as the other
+
+        for (int i = 0; i < 100 && down.get() == 0; ++i) {
+            assertNull(send(balancer).getException());
+        }
+        assertEquals(1, down.get());
+        assertEquals(1, balancer.getOpenCount());
+
+        for (int i = 0; i < 20; ++i) {
+            assertNull(send(balancer).getException());
+        }
+        assertEquals(1, down.get());
+        assertEquals(1, balancer.getOpenCircuitCount());
+    }
+
+    @Test
+    public void rejectsAtOnceWhenAllCircuitsOpen() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        WaspLoadBalancer balancer = balancer(List.of("down"), 1, 60000,
+                endpoint(calls, () -> new ConnectException("Connection refused")));
+
+        assertInstanceOf(ConnectException.class, send(balancer).getException());
+        assertEquals(1, calls.get());
+
+        Exchange rejected = send(balancer);
+        assertInstanceOf(ConnectException.class, rejected.getException());
+        assertTrue(rejected.getException().getMessage().contains("all circuits are open"));
+        assertEquals(1, calls.get());
+        assertEquals(1, balancer.getRejectedCount());
+    }
+
+    @Test
+    public void sendsTrialWhenHalfOpen() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        WaspLoadBalancer balancer = balancer(List.of("flaky"), 1, 50,
+                endpoint(calls, () -> calls.get() == 1 ? new ConnectException("Connection refused") : null));
+
+        assertInstanceOf(ConnectException.class, send(balancer).getException());
+        assertEquals(1, balancer.getOpenCircuitCount());
+
+        Thread.sleep(60);
+        assertNull(send(balancer).getException());
+        assertEquals(1, balancer.getTrialCount());
+        assertEquals(0, balancer.getOpenCircuitCount());
+    }
+
+    @Test
+    public void keepsCircuitClosedOnClientError() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        WaspLoadBalancer balancer = balancer(List.of("strict"), 1, 60000,
+                endpoint(calls, () -> new HttpOperationFailedException("https://wasp", 400, "Bad Request", null, Map.of(), "")));
+
+        // The endpoint is up and answered, so it stays in
+
+        assertInstanceOf(HttpOperationFailedException.class, send(balancer).getException());
+        assertInstanceOf(HttpOperationFailedException.class, send(balancer).getException());
+        assertEquals(2, calls.get());
+        assertEquals(0, balancer.getOpenCount());
+    }
+
+    // Helpers
+
+    static WaspLoadBalancer balancer(List<String> names, int failureThreshold, long openMillis, AsyncProcessor... processors) {
+        WaspLoadBalancer balancer = new WaspLoadBalancer(names, failureThreshold, openMillis, 1, FAILOVER);
+        for (AsyncProcessor processor : processors) {
+            balancer.addProcessor(processor);
+        }
+        ServiceHelper.startService(balancer);
+        return balancer;
+    }
+
+    // An endpoint that counts its calls and fails with the exception supplied, if any
+
+    static AsyncProcessor endpoint(AtomicInteger calls, Supplier<Exception> outcome) {
+        return new AsyncProcessorSupport() {
+            @Override
+            public boolean process(Exchange exchange, AsyncCallback callback) {
+                calls.incrementAndGet();
+                Exception e = outcome.get();
+                if (e != null) {
+                    exchange.setException(e);
+                }
+                callback.done(true);
+                return true;
+            }
+        };
+    }
+
+    static Exchange send(WaspLoadBalancer balancer) {
+        Exchange exchange = new DefaultExchange(CONTEXT);
+        balancer.process(exchange, doneSync -> { });
+        return exchange;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
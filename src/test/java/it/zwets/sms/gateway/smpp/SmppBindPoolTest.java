@@ -0,0 +1,170 @@
+package it.zwets.sms.gateway.smpp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMSC;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.component.smpp.SmppEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class SmppBindPoolTest {
+
+    // The binds point at a port that nothing listens on, so they never bind
+    // unless asked to, and a target is taken down by asking its binds to
+
+    private CamelContext context;
+    private int port;
+    private SmppBindPool pool;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        context = new DefaultCamelContext();
+        context.start();
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (pool != null) {
+            pool.close();
+        }
+        context.stop();
+    }
+
+    @Test
+    public void takesLeastOutstandingBind() throws Exception {
+        pool = pool(10, target("", 1, 3));
+        List<SmppBind> binds = pool.getBinds();
+
+        // Equal load is spread over all binds
+
+        for (int i = 0; i < 6; ++i) {
+            pool.acquire(0, TimeUnit.MILLISECONDS);
+        }
+        binds.forEach(bind -> assertEquals(2, bind.getOutstanding()));
+
+        // And the bind with the fewest outstanding gets the next request
+
+        SmppBind freed = binds.get(1);
+        pool.release(freed, true, System.nanoTime());
+        pool.release(freed, true, System.nanoTime());
+        assertEquals(freed, pool.acquire(0, TimeUnit.MILLISECONDS));
+        assertEquals(freed, pool.acquire(0, TimeUnit.MILLISECONDS));
+        assertEquals(6, pool.getOutstanding());
+    }
+
+    @Test
+    public void splitsTrafficByWeight() throws Exception {
+        pool = pool(10, target("a", 3, 2), target("b", 1, 1));
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 400; ++i) {
+            SmppBind bind = pool.acquire(0, TimeUnit.MILLISECONDS);
+            counts.merge(bind.getTarget(), 1, Integer::sum);
+            pool.release(bind, true, System.nanoTime());
+        }
+
+        assertEquals(Map.of("a", 300, "b", 100), counts);
+        assertEquals(0, pool.getFailoverCount());
+    }
+
+    @Test
+    public void failsOverWhenTargetDown() throws Exception {
+        pool = pool(10, target("a", 1, 2), target("b", 1, 1), target("standby", 0, 1));
+
+        takeDown("a");
+        for (int i = 0; i < 10; ++i) {
+            assertEquals("b", acquireAndRelease(null));
+        }
+        assertEquals(0, pool.getFailoverCount());
+
+        // With no weighted target left, the standby takes the traffic
+
+        takeDown("b");
+        for (int i = 0; i < 10; ++i) {
+            assertEquals("standby", acquireAndRelease(null));
+        }
+        assertEquals(10, pool.getFailoverCount());
+    }
+
+    @Test
+    public void waitsWhenAllWindowsFull() throws Exception {
+        pool = pool(2, target("a", 1, 1), target("b", 1, 1));
+
+        for (int i = 0; i < 4; ++i) {
+            pool.acquire(0, TimeUnit.MILLISECONDS);
+        }
+        assertNull(pool.acquire(10, TimeUnit.MILLISECONDS));
+        assertEquals(1, pool.getWindowFullCount());
+    }
+
+    @Test
+    public void routesRecallIdToOwningTarget() throws Exception {
+        pool = pool(10, target("a", 1, 1), target("b", 1, 1));
+
+        // A receipt that came in on a bind of b is marked as b's, and so is its recall-id
+
+        Exchange receipt = new DefaultExchange(context);
+        receipt.getExchangeExtension().setFromEndpoint(endpointOf("b"));
+        pool.setSmscHeader(receipt);
+        String smsc = receipt.getIn().getHeader(HEADER_SMSC, String.class);
+        assertEquals("b", smsc);
+        assertEquals("b:42", SmppBindPool.recallId(smsc, "42"));
+        assertEquals("42", SmppBindPool.recallId("", "42"));
+
+        // Requests about the message go to b, unless b is down
+
+        for (int i = 0; i < 10; ++i) {
+            assertEquals("b", acquireAndRelease("b"));
+        }
+        takeDown("b");
+        assertEquals("a", acquireAndRelease("b"));
+    }
+
+    // Helpers
+
+    private SmppBindPool pool(int windowSize, SmppBindPool.Target... targets) {
+        return new SmppBindPool(List.of(targets), "inbound", windowSize, 0, 0);
+    }
+
+    private SmppBindPool.Target target(String name, int weight, int bindCount) {
+        SmppEndpoint endpoint = context.getEndpoint("smpp://%s@localhost:%d".formatted(name.isEmpty() ? "gateway" : name, port), SmppEndpoint.class);
+        return new SmppBindPool.Target(name, endpoint, weight, bindCount);
+    }
+
+    private SmppEndpoint endpointOf(String target) {
+        return pool.getBinds().stream().filter(bind -> bind.getTarget().equals(target)).findFirst().orElseThrow().getEndpoint();
+    }
+
+    // The failed bind attempts leave the binds of the target reconnecting
+
+    private void takeDown(String target) {
+        for (SmppBind bind : pool.getBinds().stream().filter(bind -> bind.getTarget().equals(target)).toList()) {
+            assertThrows(IOException.class, bind::getSession);
+            assertFalse(bind.isAvailable());
+        }
+    }
+
+    private String acquireAndRelease(String preferred) throws InterruptedException {
+        SmppBind bind = pool.acquire(preferred, 0, TimeUnit.MILLISECONDS);
+        pool.release(bind, true, System.nanoTime());
+        return bind.getTarget();
+    }
+}
@@ -0,0 +1,83 @@
+package it.zwets.sms.gateway.smpp;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.component.smpp.SmppConfiguration;
+import org.apache.camel.component.smpp.SmppEndpoint;
+import org.jsmpp.session.SMPPSession;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Mocks for testing the SMPP processors without an SMSC: a pool of one bind,
+ * whose session answers the one operation that a test is about.
+ */
+final class SmppMocks {
+
+    private SmppMocks() {
+    }
+
+    /**
+     * Returns a session that answers calls to method with answer, and
+     * other calls with Mockito's defaults.
+     *
+     * @param method the name of the SMPPSession method to answer
+     * @param answer the answer, which may throw
+     * @return the mock session
+     */
+    static SMPPSession session(String method, Answer<?> answer) {
+        return mock(SMPPSession.class, invocation -> invocation.getMethod().getName().equals(method)
+                ? answer.answer(invocation)
+                : RETURNS_DEFAULTS.answer(invocation));
+    }
+
+    /**
+     * Returns a bind to the unnamed target on session.  Its endpoint has a
+     * default configuration that tests may change, its executor runs tasks
+     * on the calling thread, and its throttle does not pace.
+     *
+     * @param session the session of the bind
+     * @return the mock bind
+     * @throws Exception never, the bind is a mock
+     */
+    static SmppBind bind(SMPPSession session) throws Exception {
+        SmppEndpoint endpoint = mock(SmppEndpoint.class);
+        when(endpoint.getConfiguration()).thenReturn(new SmppConfiguration());
+
+        ExecutorService executor = mock(ExecutorService.class);
+        doAnswer(invocation -> {
+            invocation.<Runnable>getArgument(0).run();
+            return null;
+        }).when(executor).execute(any());
+
+        SmppBind bind = mock(SmppBind.class);
+        when(bind.getTarget()).thenReturn("");
+        when(bind.getEndpoint()).thenReturn(endpoint);
+        when(bind.getSession()).thenReturn(session);
+        when(bind.getExecutor()).thenReturn(executor);
+        when(bind.getThrottle()).thenReturn(new SmppThrottle("test", 0));
+        return bind;
+    }
+
+    /**
+     * Returns a pool that always hands out bind.
+     *
+     * @param bind the one bind in the pool
+     * @return the mock pool
+     * @throws Exception never, the pool is a mock
+     */
+    static SmppBindPool pool(SmppBind bind) throws Exception {
+        SmppBindPool pool = mock(SmppBindPool.class);
+        when(pool.getBinds()).thenReturn(List.of(bind));
+        when(pool.acquire(any(), anyLong(), any(TimeUnit.class))).thenReturn(bind);
+        return pool;
+    }
+}
@@ -0,0 +1,227 @@
+package it.zwets.sms.gateway.smpp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_DEADLINE;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_EXPIRED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.when;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.component.smpp.SmppConstants;
+import org.apache.camel.component.smpp.SmppException;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.jsmpp.SMPPConstant;
+import org.jsmpp.extra.NegativeResponseException;
+import org.jsmpp.session.SubmitMultiResult;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import it.zwets.sms.codec.SmsEncoder;
+
+public class SmppMultiSubmitterTest {
+
+    private static final CamelContext CONTEXT = new DefaultCamelContext();
+
+    // The first acquire of a window slot waits until the windows open
+
+    private final CountDownLatch windowsOpen = new CountDownLatch(1);
+    private final AtomicInteger acquires = new AtomicInteger();
+    private final AtomicInteger submits = new AtomicInteger();
+    private final List<String> validities = new CopyOnWriteArrayList<>();
+
+    // The submit_multi calls that fail, by number
+
+    private final Map<Integer, Exception> errors = new ConcurrentHashMap<>();
+
+    private SmppBindPool pool;
+    private SmppSubmitProcessor single;
+    private SmppMultiSubmitter submitter;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        SmppBind bind = SmppMocks.bind(SmppMocks.session("submitMultiple", invocation -> {
+            validities.add(invocation.getArgument(9));
+            int n = submits.incrementAndGet();
+            Exception e = errors.get(n);
+            if (e != null) {
+                throw e;
+            }
+            return new SubmitMultiResult("m" + n);
+        }));
+
+        pool = SmppMocks.pool(bind);
+        when(pool.getBinds()).thenReturn(List.of(bind, bind));
+        when(pool.acquire(any(), anyLong(), any(TimeUnit.class))).thenAnswer(invocation -> {
+            if (acquires.incrementAndGet() == 1) {
+                windowsOpen.await();
+            }
+            return bind;
+        });
+
+        single = new SmppSubmitProcessor(pool, 5000);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        windowsOpen.countDown();
+        submitter.close();
+    }
+
+    @Test
+    public void submitsFullBatchOffDispatchThread() throws Exception {
+        submitter = new SmppMultiSubmitter(single, pool, 5000, 60000, 2, CONTEXT);
+        CountDownLatch done = new CountDownLatch(2);
+
+        Exchange first = message("Hello", "255711111111");
+        Exchange second = message("Hello", "255722222222");
+        submitter.process(first, doneSync -> done.countDown());
+        submitter.process(second, doneSync -> done.countDown());
+
+        // The batch is full, but we returned while it waits for a window slot
+
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+
+        windowsOpen.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        assertNull(first.getException());
+        assertEquals(List.of("m1/255711111111"), first.getIn().getHeader(SmppConstants.ID));
+        assertEquals(List.of("m1/255722222222"), second.getIn().getHeader(SmppConstants.ID));
+        assertEquals(1, submitter.getBatchCount());
+    }
+
+    @Test
+    public void expiresBatchWhileOtherWaitsForWindow() throws Exception {
+        submitter = new SmppMultiSubmitter(single, pool, 5000, 50, 10, CONTEXT);
+        CountDownLatch heldDone = new CountDownLatch(2);
+        CountDownLatch otherDone = new CountDownLatch(2);
+
+        submitter.process(message("Held", "255711111111"), doneSync -> heldDone.countDown());
+        submitter.process(message("Held", "255722222222"), doneSync -> heldDone.countDown());
+        Thread.sleep(20);
+        Exchange other = message("Other", "255733333333");
+        submitter.process(other, doneSync -> otherDone.countDown());
+        submitter.process(message("Other", "255744444444"), doneSync -> otherDone.countDown());
+
+        // The first batch to expire holds a submit thread, not the timer
+
+        assertTrue(otherDone.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("m1/255733333333"), other.getIn().getHeader(SmppConstants.ID));
+        assertEquals(2, heldDone.getCount());
+
+        windowsOpen.countDown();
+        assertTrue(heldDone.await(5, TimeUnit.SECONDS));
+        assertEquals(2, submitter.getBatchCount());
+    }
+
+    @Test
+    public void batchesOnlyMessagesWithSameValidity() throws Exception {
+        submitter = new SmppMultiSubmitter(single, pool, 5000, 60000, 2, CONTEXT);
+        windowsOpen.countDown();
+        CountDownLatch done = new CountDownLatch(2);
+        CountDownLatch shorterDone = new CountDownLatch(1);
+
+        Exchange first = message("Hello", "255711111111", "000000010000000R");
+        Exchange shorter = message("Hello", "255722222222", "000000000500000R");
+        Exchange third = message("Hello", "255733333333", "000000010000000R");
+        submitter.process(first, doneSync -> done.countDown());
+        submitter.process(shorter, doneSync -> shorterDone.countDown());
+        submitter.process(third, doneSync -> done.countDown());
+
+        // The message with the shorter validity waits for one like it
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("m1/255711111111"), first.getIn().getHeader(SmppConstants.ID));
+        assertEquals(List.of("m1/255733333333"), third.getIn().getHeader(SmppConstants.ID));
+        assertEquals(List.of("000000010000000R"), validities);
+        assertEquals(1, shorterDone.getCount());
+    }
+
+    @Test
+    public void setsAcceptedIdsWhenSegmentFails() throws Exception {
+        errors.put(2, new NegativeResponseException(SMPPConstant.STAT_ESME_RSUBMITFAIL));
+
+        List<Exchange> batch = submitBatch(Instant.now().plusSeconds(60));
+
+        for (Exchange exchange : batch) {
+            assertInstanceOf(NegativeResponseException.class, exchange.getException());
+        }
+        assertEquals(List.of("m1/255711111111"), batch.get(0).getIn().getHeader(SmppConstants.ID));
+        assertEquals(List.of("m1/255722222222"), batch.get(1).getIn().getHeader(SmppConstants.ID));
+    }
+
+    @Test
+    public void setsAcceptedIdsWhenThrottledPastDeadline() throws Exception {
+        errors.put(2, new NegativeResponseException(SMPPConstant.STAT_ESME_RTHROTTLED));
+
+        List<Exchange> batch = submitBatch(Instant.now().minusSeconds(1));
+
+        for (Exchange exchange : batch) {
+            assertNull(exchange.getException());
+            assertEquals(SMS_STATUS_EXPIRED, exchange.getIn().getHeader(HEADER_SMS_STATUS));
+        }
+        assertEquals(List.of("m1/255711111111"), batch.get(0).getIn().getHeader(SmppConstants.ID));
+        assertEquals(List.of("m1/255722222222"), batch.get(1).getIn().getHeader(SmppConstants.ID));
+    }
+
+    @Test
+    public void failsBatchesLeftOnClose() throws Exception {
+        submitter = new SmppMultiSubmitter(single, pool, 5000, 60000, 10, CONTEXT);
+        CountDownLatch done = new CountDownLatch(1);
+
+        Exchange exchange = message("Hello", "255711111111");
+        submitter.process(exchange, doneSync -> done.countDown());
+        submitter.close();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertInstanceOf(SmppException.class, exchange.getException());
+    }
+
+    // Helpers
+
+    // Submits a batch of two messages of two segments each, and waits until done
+
+    private List<Exchange> submitBatch(Instant deadline) throws InterruptedException {
+        submitter = new SmppMultiSubmitter(single, pool, 5000, 60000, 2, CONTEXT);
+        windowsOpen.countDown();
+        CountDownLatch done = new CountDownLatch(2);
+
+        List<Exchange> batch = List.of(message("x".repeat(200), "255711111111"), message("x".repeat(200), "255722222222"));
+        for (Exchange exchange : batch) {
+            exchange.getIn().setHeader(HEADER_DEADLINE, deadline);
+            submitter.process(exchange, doneSync -> done.countDown());
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        return batch;
+    }
+
+    private static Exchange message(String text, String recipient) {
+        return message(text, recipient, null);
+    }
+
+    private static Exchange message(String text, String recipient, String validity) {
+        Exchange exchange = new DefaultExchange(CONTEXT);
+        exchange.getIn().setHeader(SmppConstants.DEST_ADDR, recipient);
+        exchange.getIn().setHeader(SmppConstants.VALIDITY_PERIOD, validity);
+        exchange.getIn().setBody(SmsEncoder.encode(text, 1));
+        return exchange;
+    }
+}
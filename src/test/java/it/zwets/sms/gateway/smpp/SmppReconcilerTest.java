@@ -0,0 +1,173 @@
+package it.zwets.sms.gateway.smpp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CLIENT_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CORREL_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_CORREL_REC;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_DEADLINE;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_RECALL_ID;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_RECIPIENT;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_DELIVERED;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_FAILED;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_SENT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.component.smpp.SmppConstants;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.jsmpp.SMPPConstant;
+import org.jsmpp.bean.MessageState;
+import org.jsmpp.extra.NegativeResponseException;
+import org.jsmpp.session.QuerySmResult;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import it.zwets.sms.codec.SmsEncoder;
+import it.zwets.sms.gateway.dto.CorrelationRecord;
+
+public class SmppReconcilerTest {
+
+    private static final String RECIPIENT = "255712345678";
+
+    // What the SMSC answers to the query_sm for each message ID: a state or an exception
+
+    private final Map<String, Object> states = new HashMap<>();
+    private final List<String> queried = new ArrayList<>();
+
+    private CamelContext context;
+    private MockEndpoint respond;
+    private SmppReconciler reconciler;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        context = new DefaultCamelContext();
+        context.start();
+        respond = context.getEndpoint("mock:respond", MockEndpoint.class);
+
+        SmppBind bind = SmppMocks.bind(SmppMocks.session("queryShortMessage", invocation -> {
+            String messageId = invocation.getArgument(0);
+            synchronized (queried) {
+                queried.add(messageId);
+            }
+            Object state = states.get(messageId);
+            if (state instanceof Exception e) {
+                throw e;
+            }
+            return new QuerySmResult(null, (MessageState) state, (byte) 0);
+        }));
+        bind.getEndpoint().getConfiguration().setSingleDLR(true);
+
+        reconciler = new SmppReconciler(SmppMocks.pool(bind), "mock:respond", 1000, 50, Duration.ofSeconds(1), 100, context);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        reconciler.close();
+        context.stop();
+    }
+
+    @Test
+    public void queriesLastIdOfAcceptedSubmit() throws Exception {
+        states.put("13", MessageState.DELIVERED);
+
+        reconciler.record(submit(List.of("11", "12", "13"), 3, Instant.now().plusSeconds(60)));
+        Message response = awaitResponse();
+
+        assertEquals(List.of("13"), queried);
+        assertEquals(SMS_STATUS_DELIVERED, response.getHeader(HEADER_SMS_STATUS));
+        assertEquals("13", response.getHeader(HEADER_RECALL_ID));
+        assertEquals("13", response.getHeader(HEADER_CORREL_REC, CorrelationRecord.class).recallId());
+        assertEquals(1, reconciler.getSentCount());
+    }
+
+    @Test
+    public void queriesEveryIdOfIncompleteSubmit() throws Exception {
+        states.put("11", MessageState.DELIVERED);
+        states.put("12", MessageState.ENROUTE);
+
+        reconciler.record(submit(List.of("11", "12"), 3, Instant.now().plusSeconds(60)));
+        Message response = awaitResponse();
+
+        // With single DLR no receipt carries either ID, so there is nothing to correlate
+
+        assertEquals(List.of("11", "12"), queried);
+        assertEquals(SMS_STATUS_SENT, response.getHeader(HEADER_SMS_STATUS));
+        assertEquals("12", response.getHeader(HEADER_RECALL_ID));
+        assertNull(response.getHeader(HEADER_CORREL_REC));
+        assertEquals(2, reconciler.getQueryCount());
+    }
+
+    @Test
+    public void failsIncompleteSubmitWithUnknownSegment() throws Exception {
+        states.put("11", new NegativeResponseException(SMPPConstant.STAT_ESME_RQUERYFAIL));
+        states.put("12", MessageState.ENROUTE);
+
+        reconciler.record(submit(List.of("11", "12"), 3, Instant.now().plusSeconds(60)));
+        Message response = awaitResponse();
+
+        assertEquals(SMS_STATUS_FAILED, response.getHeader(HEADER_SMS_STATUS));
+        assertNull(response.getHeader(HEADER_CORREL_REC));
+        assertEquals(1, reconciler.getFailedCount());
+    }
+
+    @Test
+    public void claimsReceiptForSubmitWithoutIds() throws Exception {
+        reconciler.record(submit(null, 1, Instant.now().plusSeconds(60)));
+
+        Exchange receipt = new DefaultExchange(context);
+        receipt.getIn().setHeader(HEADER_RECIPIENT, "+" + RECIPIENT);
+        receipt.getIn().setHeader(HEADER_RECALL_ID, "77");
+        assertTrue(reconciler.claim(receipt.getIn()));
+        assertEquals("client", receipt.getIn().getHeader(HEADER_CLIENT_ID));
+
+        Message response = awaitResponse();
+        assertEquals(SMS_STATUS_SENT, response.getHeader(HEADER_SMS_STATUS));
+        assertEquals("77", response.getHeader(HEADER_CORREL_REC, CorrelationRecord.class).recallId());
+        assertEquals(0, reconciler.getInDoubtCount());
+        assertEquals(List.of(), queried);
+    }
+
+    @Test
+    public void failsUnknownSubmitPastDeadline() throws Exception {
+        reconciler.record(submit(null, 1, Instant.now().minusSeconds(2)));
+
+        Message response = awaitResponse();
+        assertEquals(SMS_STATUS_FAILED, response.getHeader(HEADER_SMS_STATUS));
+        assertEquals("correl", response.getHeader(HEADER_CORREL_ID));
+        assertEquals(0, reconciler.getInDoubtCount());
+    }
+
+    // Helpers
+
+    private Exchange submit(List<String> ids, int segments, Instant deadline) {
+        Exchange exchange = new DefaultExchange(context);
+        exchange.getIn().setHeader(HEADER_CLIENT_ID, "client");
+        exchange.getIn().setHeader(HEADER_CORREL_ID, "correl");
+        exchange.getIn().setHeader(HEADER_DEADLINE, deadline);
+        exchange.getIn().setHeader(SmppConstants.DEST_ADDR, RECIPIENT);
+        exchange.getIn().setHeader(SmppConstants.ID, ids);
+        exchange.getIn().setBody(SmsEncoder.encode("x".repeat(segments == 1 ? 10 : 153 * segments), 1));
+        return exchange;
+    }
+
+    private Message awaitResponse() throws InterruptedException {
+        respond.expectedMessageCount(1);
+        respond.setResultWaitTime(5000);
+        respond.assertIsSatisfied();
+        return respond.getExchanges().get(0).getIn();
+    }
+}
@@ -0,0 +1,110 @@
+package it.zwets.sms.gateway.smpp;
+
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_DEADLINE;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.HEADER_SMS_STATUS;
+import static it.zwets.sms.gateway.SmsGatewayConfiguration.Constants.SMS_STATUS_EXPIRED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.verify;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.component.smpp.SmppConstants;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.jsmpp.SMPPConstant;
+import org.jsmpp.bean.OptionalParameter;
+import org.jsmpp.extra.NegativeResponseException;
+import org.jsmpp.session.SubmitSmResult;
+import org.jsmpp.util.MessageId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import it.zwets.sms.codec.SmsEncoder;
+
+public class SmppSubmitProcessorTest {
+
+    // What the SMSC answers to each submit_sm in turn: a message ID or an exception
+
+    private final Deque<Object> answers = new ArrayDeque<>();
+
+    private SmppBindPool pool;
+    private SmppBind bind;
+    private SmppSubmitProcessor processor;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        bind = SmppMocks.bind(SmppMocks.session("submitShortMessage", invocation -> {
+            Object answer = answers.remove();
+            if (answer instanceof Exception e) {
+                throw e;
+            }
+            return new SubmitSmResult(new MessageId((String) answer), new OptionalParameter[0]);
+        }));
+
+        pool = SmppMocks.pool(bind);
+
+        processor = new SmppSubmitProcessor(pool, 100);
+    }
+
+    @Test
+    public void setsAllIdsWhenAccepted() {
+        answers.addAll(List.of("11", "12", "13"));
+
+        Exchange exchange = submit(Instant.now().plusSeconds(60));
+
+        assertNull(exchange.getException());
+        assertEquals(List.of("11", "12", "13"), exchange.getIn().getHeader(SmppConstants.ID));
+        assertEquals(3, exchange.getIn().getHeader(SmppConstants.SENT_MESSAGE_COUNT));
+        verify(pool).release(eq(bind), eq(true), anyLong());
+    }
+
+    @Test
+    public void setsAcceptedIdsWhenSegmentFails() {
+        answers.addAll(List.of("11", new NegativeResponseException(SMPPConstant.STAT_ESME_RSUBMITFAIL)));
+
+        Exchange exchange = submit(Instant.now().plusSeconds(60));
+
+        assertInstanceOf(NegativeResponseException.class, exchange.getException());
+        assertEquals(List.of("11"), exchange.getIn().getHeader(SmppConstants.ID));
+        verify(pool).release(eq(bind), eq(false), anyLong());
+    }
+
+    @Test
+    public void setsAcceptedIdsWhenThrottledPastDeadline() {
+        answers.addAll(List.of("11", "12", new NegativeResponseException(SMPPConstant.STAT_ESME_RTHROTTLED)));
+
+        Exchange exchange = submit(Instant.now().minusSeconds(1));
+
+        assertNull(exchange.getException());
+        assertEquals(SMS_STATUS_EXPIRED, exchange.getIn().getHeader(HEADER_SMS_STATUS));
+        assertEquals(List.of("11", "12"), exchange.getIn().getHeader(SmppConstants.ID));
+    }
+
+    @Test
+    public void setsNoIdsWhenFirstSegmentFails() {
+        answers.add(new NegativeResponseException(SMPPConstant.STAT_ESME_RSUBMITFAIL));
+
+        Exchange exchange = submit(Instant.now().plusSeconds(60));
+
+        assertInstanceOf(NegativeResponseException.class, exchange.getException());
+        assertNull(exchange.getIn().getHeader(SmppConstants.ID));
+    }
+
+    // Submits a three segment message, the executor runs it on this thread
+
+    private Exchange submit(Instant deadline) {
+        Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+        exchange.getIn().setHeader(HEADER_DEADLINE, deadline);
+        exchange.getIn().setBody(SmsEncoder.encode("x".repeat(400), 1));
+        processor.process(exchange, doneSync -> { });
+        return exchange;
+    }
+}
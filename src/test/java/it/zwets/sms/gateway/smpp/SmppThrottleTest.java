@@ -0,0 +1,108 @@
+package it.zwets.sms.gateway.smpp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.camel.CamelExecutionException;
+import org.jsmpp.SMPPConstant;
+import org.jsmpp.extra.NegativeResponseException;
+import org.junit.jupiter.api.Test;
+
+public class SmppThrottleTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void halvesRateDownToFloor() {
+        SmppThrottle throttle = new SmppThrottle("test", 100);
+        long now = System.nanoTime();
+
+        throttle.onThrottled(now);
+        assertEquals(50, throttle.getRate(), 1e-9);
+
+        // The bucket paces submits at the lowered rate
+
+        throttle.reserve(now + SECOND);
+        assertEquals(SECOND / 50, throttle.reserve(now + SECOND), 1000);
+
+        for (int i = 1; i <= 10; ++i) {
+            throttle.onThrottled(now + i * SECOND);
+        }
+        assertEquals(5, throttle.getRate(), 1e-9);
+        assertEquals(11, throttle.getThrottledCount());
+    }
+
+    @Test
+    public void ignoresThrottlingInFlightAfterDecrease() {
+        SmppThrottle throttle = new SmppThrottle("test", 100);
+        long now = System.nanoTime();
+
+        throttle.onThrottled(now);
+        throttle.onThrottled(now + SECOND / 10);
+        throttle.onThrottled(now + SECOND - 1);
+        assertEquals(50, throttle.getRate(), 1e-9);
+
+        throttle.onThrottled(now + SECOND);
+        assertEquals(25, throttle.getRate(), 1e-9);
+        assertEquals(4, throttle.getThrottledCount());
+    }
+
+    @Test
+    public void raisesRateStepwiseToContracted() {
+        SmppThrottle throttle = new SmppThrottle("test", 100);
+        long now = System.nanoTime();
+
+        throttle.onThrottled(now);
+        throttle.onAccepted(now + SECOND / 2);
+        assertEquals(50, throttle.getRate(), 1e-9);
+
+        // A tenth of the contracted rate per second
+
+        throttle.onAccepted(now + SECOND);
+        assertEquals(60, throttle.getRate(), 1e-9);
+        throttle.onAccepted(now + SECOND + SECOND / 2);
+        assertEquals(60, throttle.getRate(), 1e-9);
+
+        for (int i = 2; i <= 10; ++i) {
+            throttle.onAccepted(now + i * SECOND);
+        }
+        assertEquals(100, throttle.getRate(), 1e-9);
+    }
+
+    @Test
+    public void backsOffWhenUnpaced() {
+        SmppThrottle throttle = new SmppThrottle("test", 0);
+        long now = System.nanoTime();
+
+        assertEquals(0, throttle.reserve(now));
+        assertEquals(0, throttle.reserve(now));
+
+        throttle.onThrottled(now);
+        assertEquals(SECOND, throttle.reserve(now));
+        assertEquals(SECOND / 2, throttle.reserve(now + SECOND / 2));
+        assertEquals(0, throttle.reserve(now + SECOND));
+
+        // Success does not pace it either
+
+        throttle.onAccepted(now + 2 * SECOND);
+        assertEquals(0, throttle.getRate());
+        assertEquals(0, throttle.reserve(now + 2 * SECOND));
+    }
+
+    @Test
+    public void findsThrottlingInCauseChain() {
+        NegativeResponseException throttled = new NegativeResponseException(SMPPConstant.STAT_ESME_RTHROTTLED);
+        NegativeResponseException queueFull = new NegativeResponseException(SMPPConstant.STAT_ESME_RMSGQFUL);
+        NegativeResponseException rejected = new NegativeResponseException(SMPPConstant.STAT_ESME_RSUBMITFAIL);
+
+        assertTrue(SmppThrottle.isThrottling(throttled));
+        assertTrue(SmppThrottle.isThrottling(queueFull));
+        assertTrue(SmppThrottle.isThrottling(new CamelExecutionException("Submit failed", null, new IOException(throttled))));
+        assertFalse(SmppThrottle.isThrottling(new CamelExecutionException("Submit failed", null, rejected)));
+        assertFalse(SmppThrottle.isThrottling(new IOException("Connection reset")));
+        assertFalse(SmppThrottle.isThrottling(null));
+    }
+}